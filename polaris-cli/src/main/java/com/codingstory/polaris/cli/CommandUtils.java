@@ -1,9 +1,18 @@
 package com.codingstory.polaris.cli;
 
+import com.codingstory.polaris.parser.ParseBudget;
+import com.codingstory.polaris.pipeline.HeavyFilePolicy;
+import com.codingstory.polaris.pipeline.IndexPipeline;
 import com.codingstory.polaris.search.SearchProtos.StatusCode;
 import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 
 import java.io.File;
+import java.util.List;
 
 public final class CommandUtils {
     private CommandUtils() {}
@@ -24,4 +33,147 @@ public final class CommandUtils {
             die(dir + " does not exist");
         }
     }
+
+    /**
+     * @param hadoopConfDir directory of *-site.xml files of the cluster to run on, or empty to run on local machine
+     */
+    public static IndexPipeline newIndexPipeline(String hadoopConfDir) {
+        if (Strings.isNullOrEmpty(hadoopConfDir)) {
+            return new IndexPipeline();
+        }
+        File dir = new File(hadoopConfDir);
+        checkDirectoryExists(dir);
+        Configuration conf = new Configuration();
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith("-site.xml")) {
+                conf.addResource(new Path(file.getAbsolutePath()));
+            }
+        }
+        return new IndexPipeline(conf);
+    }
+
+    /** Sets the working directory, which is on the cluster's file system if {@code hadoopConfDir} is given. */
+    public static void setWorkingDirectory(IndexPipeline pipeline, String hadoopConfDir, String workdir) {
+        if (Strings.isNullOrEmpty(hadoopConfDir)) {
+            pipeline.setWorkingDirectory(new File(workdir));
+        } else {
+            pipeline.setWorkingDirectory(new Path(workdir));
+        }
+    }
+
+    /** Sets the parse budget in seconds and megabytes, each of which defaults to that of the pipeline if empty. */
+    public static void setParseBudget(IndexPipeline pipeline, String timeoutSecs, String memoryMb) {
+        if (Strings.isNullOrEmpty(timeoutSecs) && Strings.isNullOrEmpty(memoryMb)) {
+            return;
+        }
+        long maxMillis = Strings.isNullOrEmpty(timeoutSecs)
+                ? ParseBudget.DEFAULT.getMaxMillis() : Long.parseLong(timeoutSecs) * 1000;
+        long maxAllocatedBytes = Strings.isNullOrEmpty(memoryMb)
+                ? ParseBudget.DEFAULT.getMaxAllocatedBytes() : Long.parseLong(memoryMb) << 20;
+        pipeline.setParseBudget(maxMillis, maxAllocatedBytes);
+    }
+
+    /**
+     * Sets thresholds of heavy files in lines and symbol nodes, each of which defaults to that of
+     * {@link HeavyFilePolicy} if empty, and the number of partitions they are spread over unless empty.
+     */
+    public static void setHeavyFiles(IndexPipeline pipeline, String maxLines, String maxSymbolNodes,
+            String partitions) {
+        if (!Strings.isNullOrEmpty(maxLines) || !Strings.isNullOrEmpty(maxSymbolNodes)) {
+            pipeline.setHeavyFileThresholds(
+                    Strings.isNullOrEmpty(maxLines)
+                            ? HeavyFilePolicy.DEFAULT_MAX_LINES : parsePositiveInt("heavy file lines", maxLines),
+                    Strings.isNullOrEmpty(maxSymbolNodes)
+                            ? HeavyFilePolicy.DEFAULT_MAX_SYMBOL_NODES
+                            : parsePositiveInt("heavy file symbol nodes", maxSymbolNodes));
+        }
+        if (!Strings.isNullOrEmpty(partitions)) {
+            pipeline.setHeavyFilePartitions(parsePositiveInt("heavy file partitions", partitions));
+        }
+    }
+
+    private static int parsePositiveInt(String what, String s) {
+        try {
+            int n = Integer.parseInt(s);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through.
+        }
+        die("Bad " + what + ": " + s);
+        return 0;
+    }
+
+    /**
+     * Partitions the pipeline by project if {@code partitioned}. {@code dependencies} are comma-separated pairs of
+     * {@code project:dependency}, and {@code concurrentPartitions} defaults to that of the pipeline if empty.
+     */
+    public static void setPartitions(IndexPipeline pipeline, boolean partitioned, String dependencies,
+            String concurrentPartitions) {
+        pipeline.setPartitionedByProject(partitioned);
+        if (!Strings.isNullOrEmpty(dependencies)) {
+            for (String dependency : Splitter.on(',').trimResults().omitEmptyStrings().split(dependencies)) {
+                List<String> pair = ImmutableList.copyOf(Splitter.on(':').trimResults().split(dependency));
+                if (pair.size() != 2 || pair.get(0).isEmpty() || pair.get(1).isEmpty()) {
+                    die("Bad project dependency: " + dependency);
+                }
+                pipeline.addProjectDependency(pair.get(0), pair.get(1));
+            }
+        }
+        if (!Strings.isNullOrEmpty(concurrentPartitions)) {
+            pipeline.setConcurrentPartitions(Integer.parseInt(concurrentPartitions));
+        }
+    }
+
+    /** Sets the memory budget of the pipeline in megabytes, unless empty. */
+    public static void setMemoryBudget(IndexPipeline pipeline, String memoryMb) {
+        if (Strings.isNullOrEmpty(memoryMb)) {
+            return;
+        }
+        long mb;
+        try {
+            mb = Long.parseLong(memoryMb);
+        } catch (NumberFormatException e) {
+            die("Bad memory budget: " + memoryMb);
+            return;
+        }
+        if (mb <= 0 || mb > Integer.MAX_VALUE) {
+            die("Bad memory budget: " + memoryMb);
+            return;
+        }
+        pipeline.setMemoryBudget(mb << 20);
+    }
+
+    /**
+     * Leaves {@code excludes}, comma-separated patterns in gitignore syntax, out of every project, and sets what
+     * becomes of generated files unless {@code generatedFiles} is empty.
+     */
+    public static void setFileFilters(IndexPipeline pipeline, String excludes, String generatedFiles) {
+        if (!Strings.isNullOrEmpty(excludes)) {
+            for (String exclude : Splitter.on(',').trimResults().omitEmptyStrings().split(excludes)) {
+                pipeline.addExclude(exclude);
+            }
+        }
+        if (!Strings.isNullOrEmpty(generatedFiles)) {
+            try {
+                pipeline.setGeneratedFiles(IndexPipeline.GeneratedFiles.valueOf(
+                        generatedFiles.toUpperCase().replace('-', '_')));
+            } catch (IllegalArgumentException e) {
+                die("Unknown treatment of generated files: " + generatedFiles);
+            }
+        }
+    }
+
+    public static IndexPipeline.Engine parseEngine(String s) {
+        if (Strings.isNullOrEmpty(s)) {
+            return IndexPipeline.Engine.MAPREDUCE;
+        }
+        try {
+            return IndexPipeline.Engine.valueOf(s.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            die("Unknown engine: " + s);
+            return null;
+        }
+    }
 }
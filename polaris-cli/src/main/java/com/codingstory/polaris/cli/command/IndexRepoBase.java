@@ -5,28 +5,119 @@ import com.codingstory.polaris.cli.Help;
 import com.codingstory.polaris.cli.Option;
 import com.codingstory.polaris.cli.Run;
 import com.codingstory.polaris.pipeline.IndexPipeline;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
 
 import static com.codingstory.polaris.cli.CommandUtils.die;
+import static com.codingstory.polaris.cli.CommandUtils.newIndexPipeline;
+import static com.codingstory.polaris.cli.CommandUtils.parseEngine;
+import static com.codingstory.polaris.cli.CommandUtils.setFileFilters;
+import static com.codingstory.polaris.cli.CommandUtils.setHeavyFiles;
+import static com.codingstory.polaris.cli.CommandUtils.setMemoryBudget;
+import static com.codingstory.polaris.cli.CommandUtils.setParseBudget;
+import static com.codingstory.polaris.cli.CommandUtils.setPartitions;
+import static com.codingstory.polaris.cli.CommandUtils.setWorkingDirectory;
 
 @Command(name = "indexrepobase")
 public class IndexRepoBase {
     @Option(name = "index", shortName = "i", defaultValue = "index")
     public String index;
 
+    @Option(name = "engine", shortName = "e")
+    public String engine;
+
+    @Option(name = "threads", shortName = "t")
+    public String threads;
+
+    @Option(name = "incremental")
+    public boolean incremental;
+
+    @Option(name = "workdir", shortName = "w")
+    public String workdir;
+
+    @Option(name = "resume")
+    public boolean resume;
+
+    @Option(name = "cluster")
+    public String cluster;
+
+    @Option(name = "reduce-heavy-files")
+    public boolean reduceHeavyFiles;
+
+    @Option(name = "heavy-file-lines")
+    public String heavyFileLines;
+
+    @Option(name = "heavy-file-nodes")
+    public String heavyFileNodes;
+
+    @Option(name = "heavy-file-partitions")
+    public String heavyFilePartitions;
+
+    @Option(name = "parse-timeout")
+    public String parseTimeout;
+
+    @Option(name = "parse-memory")
+    public String parseMemory;
+
+    @Option(name = "quarantine")
+    public String quarantine;
+
+    @Option(name = "partition-by-project")
+    public boolean partitionByProject;
+
+    @Option(name = "project-deps")
+    public String projectDeps;
+
+    @Option(name = "concurrent-partitions")
+    public String concurrentPartitions;
+
+    @Option(name = "memory-budget")
+    public String memoryBudget;
+
+    @Option(name = "exclude")
+    public String exclude;
+
+    @Option(name = "generated-files")
+    public String generatedFiles;
+
+    @Option(name = "refs")
+    public String refs;
+
     @Run
     public void run(String[] args) throws IOException {
         if (args.length != 1) {
             die("Require repobase dir");
         }
         File indexDir = new File(index);
-        FileUtils.deleteQuietly(indexDir);
+        if (!incremental) {
+            FileUtils.deleteQuietly(indexDir);
+        }
         FileUtils.forceMkdir(indexDir);
-        IndexPipeline pipeline = new IndexPipeline();
-        pipeline.addRepoBase(new File(args[0]));
+        IndexPipeline pipeline = newIndexPipeline(cluster);
+        pipeline.setEngine(parseEngine(engine));
+        pipeline.setIncremental(incremental);
+        setWorkingDirectory(pipeline, cluster, Strings.isNullOrEmpty(workdir) ? index + ".pipeline" : workdir);
+        pipeline.setResume(resume);
+        pipeline.setReduceHeavyFiles(reduceHeavyFiles);
+        setHeavyFiles(pipeline, heavyFileLines, heavyFileNodes, heavyFilePartitions);
+        setParseBudget(pipeline, parseTimeout, parseMemory);
+        setPartitions(pipeline, partitionByProject, projectDeps, concurrentPartitions);
+        setMemoryBudget(pipeline, memoryBudget);
+        setFileFilters(pipeline, exclude, generatedFiles);
+        // Out of the index directory, which is deleted unless indexing incrementally.
+        pipeline.setQuarantineFile(new File(Strings.isNullOrEmpty(quarantine) ? index + ".quarantine" : quarantine));
+        if (!Strings.isNullOrEmpty(threads)) {
+            pipeline.setThreads(Integer.parseInt(threads));
+        }
+        pipeline.addRepoBase(new File(args[0]), Strings.isNullOrEmpty(refs)
+                ? ImmutableList.<String>of()
+                : ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(refs)));
+        pipeline.setIndexDirectory(indexDir);
         pipeline.run();
         pipeline.cleanUp();
     }
@@ -34,10 +125,44 @@ public class IndexRepoBase {
     @Help
     public void help() {
         System.out.println("Usage:\n" +
-                "  polaris indexrepobase [--clean] [--index=<index-dir>] <repobase-dir>\n" +
+                "  polaris indexrepobase [--clean] [--index=<index-dir>] [--engine=<engine>] [--incremental]\n" +
+                "      [--resume] [--cluster=<hadoop-conf-dir>] [--reduce-heavy-files] [--heavy-file-lines=<n>]\n" +
+                "      [--heavy-file-nodes=<n>] [--heavy-file-partitions=<n>]\n" +
+                "      [--parse-timeout=<secs>] [--parse-memory=<mb>] [--quarantine=<file>]\n" +
+                "      [--partition-by-project] [--project-deps=<deps>] [--concurrent-partitions=<n>]\n" +
+                "      [--memory-budget=<mb>] [--exclude=<pattern>,...] [--generated-files=<treatment>]\n" +
+                "      [--refs=<ref>,...] <repobase-dir>\n" +
                 "\n" +
                 "Options:\n" +
                 "  -i, --index          output index directory: default: ./index\n" +
+                "  -e, --engine         mapreduce or inmemory, default: mapreduce\n" +
+                "  -t, --threads        number of worker threads of inmemory engine, default: number of cores\n" +
+                "      --incremental    only reindex files changed since last run of the same index directory\n" +
+                "  -w, --workdir        working directory kept if indexing fails, default: <index-dir>.pipeline\n" +
+                "      --resume         skip stages completed by the last failed run of the same working directory\n" +
+                "      --cluster        run MapReduce stages on the Hadoop cluster configured in <hadoop-conf-dir>;\n" +
+                "                       the working directory is then on the cluster's file system\n" +
+                "      --reduce-heavy-files  only index types and members of huge files, e.g. generated parsers\n" +
+                "      --heavy-file-lines  files of this many lines or more are huge, default: 20000\n" +
+                "      --heavy-file-nodes  files with more names, types, calls and variables are huge,\n" +
+                "                       default: 200000\n" +
+                "      --heavy-file-partitions  number of partitions huge files are spread over, default: 16\n" +
+                "      --parse-timeout  quarantine files taking longer to parse, default: 60\n" +
+                "      --parse-memory   quarantine files allocating more memory to parse, default: 1024\n" +
+                "      --quarantine     list of quarantined files, which are skipped until they change,\n" +
+                "                       default: <index-dir>.quarantine\n" +
+                "      --refs           branches or tags to index, each as project <repo>@<ref>, default: HEAD;\n" +
+                "                       files unchanged between them are processed once\n" +
+                "      --partition-by-project  process each project on its own, resolving symbols only within it\n" +
+                "      --project-deps   <project>:<dependency>,... to also resolve symbols across, if partitioned\n" +
+                "      --concurrent-partitions  number of partitions processed at once, default: 1\n" +
+                "      --memory-budget  size sort and shuffle buffers to <mb> of heap, which spill to disk;\n" +
+                "                       on a cluster, the heap of each task. Records grouped by package\n" +
+                "                       or file are still held in memory whole\n" +
+                "      --exclude        paths to leave out of every project, in .gitignore syntax, e.g. target/;\n" +
+                "                       each project may add its own in a .polarisignore file at its root\n" +
+                "      --generated-files  index, types-only or skip files marked as generated, e.g. by\n" +
+                "                       @Generated or \"DO NOT EDIT\", default: types-only\n" +
                 "\n");
     }
 }
@@ -11,6 +11,7 @@ import com.codingstory.polaris.search.SearchProtos.Hit;
 import com.codingstory.polaris.search.SearchProtos.SearchRequest;
 import com.codingstory.polaris.search.SearchProtos.SearchResponse;
 import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
@@ -23,6 +24,9 @@ public class Search {
     @Option(name = "index", shortName = "i", defaultValue = "index")
     public String index;
 
+    @Option(name = "project", shortName = "p")
+    public String project;
+
     @Run
     public void run(String[] args) throws IOException {
         if (args.length != 1) {
@@ -31,12 +35,14 @@ public class Search {
         final String query = args[0];
         CodeSearchImpl searcher = new CodeSearchImpl(new File(index));
         try {
-            SearchRequest req = SearchRequest.newBuilder()
+            SearchRequest.Builder req = SearchRequest.newBuilder()
                     .setQuery(query)
                     .setRankFrom(0)
-                    .setRankTo(20)
-                    .build();
-            SearchResponse resp = searcher.search(NoOpController.getInstance(), req);
+                    .setRankTo(20);
+            if (!Strings.isNullOrEmpty(project)) {
+                req.setProject(project);
+            }
+            SearchResponse resp = searcher.search(NoOpController.getInstance(), req.build());
             int i = 0;
             for (Hit hit : resp.getHitsList()) {
                 FileHandle file = hit.getJumpTarget().getFile();
@@ -59,10 +65,11 @@ public class Search {
     @Help
     public void help() {
         System.out.println("Usage: \n" +
-                "  polaris search <query> [--index=<dir>] [--server=<ip:port>]\n" +
+                "  polaris search <query> [--index=<dir>] [--project=<project>] [--server=<ip:port>]\n" +
                 "\n" +
                 "Options:\n" +
                 HelpMessages.INDEX +
+                "  -p, --project=<project>  only search the project, e.g. <repo>@<ref> for a ref of a repository\n" +
                 "\n");
     }
 }
@@ -0,0 +1,52 @@
+package com.codingstory.polaris.cli;
+
+import com.codingstory.polaris.pipeline.HeavyFilePolicy;
+import com.codingstory.polaris.pipeline.IndexPipeline;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommandUtilsTest {
+
+    /** Records heavy file settings instead of applying them. */
+    private static class RecordingPipeline extends IndexPipeline {
+        private int maxLines = 0;
+        private int maxSymbolNodes = 0;
+        private int partitions = 0;
+
+        @Override
+        public void setHeavyFileThresholds(int maxLines, int maxSymbolNodes) {
+            this.maxLines = maxLines;
+            this.maxSymbolNodes = maxSymbolNodes;
+        }
+
+        @Override
+        public void setHeavyFilePartitions(int partitions) {
+            this.partitions = partitions;
+        }
+    }
+
+    @Test
+    public void testSetHeavyFiles() {
+        RecordingPipeline pipeline = new RecordingPipeline();
+        CommandUtils.setHeavyFiles(pipeline, "100", "2000", "4");
+        assertEquals(100, pipeline.maxLines);
+        assertEquals(2000, pipeline.maxSymbolNodes);
+        assertEquals(4, pipeline.partitions);
+    }
+
+    @Test
+    public void testSetHeavyFiles_defaults() {
+        RecordingPipeline pipeline = new RecordingPipeline();
+        CommandUtils.setHeavyFiles(pipeline, "100", null, "");
+        assertEquals(100, pipeline.maxLines);
+        assertEquals(HeavyFilePolicy.DEFAULT_MAX_SYMBOL_NODES, pipeline.maxSymbolNodes);
+        assertEquals(0, pipeline.partitions);
+
+        pipeline = new RecordingPipeline();
+        CommandUtils.setHeavyFiles(pipeline, null, null, null);
+        assertEquals(0, pipeline.maxLines);
+        assertEquals(0, pipeline.maxSymbolNodes);
+        assertEquals(0, pipeline.partitions);
+    }
+}
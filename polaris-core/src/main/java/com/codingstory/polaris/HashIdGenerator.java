@@ -0,0 +1,64 @@
+package com.codingstory.polaris;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * Derives IDs from stable keys of entities, such as project, path and full name, so that an entity keeps its ID when
+ * indexed again. An ID depends on nothing but its key and the colliding IDs given, so every task, thread and run
+ * derives the same ID of the same key, in any order.
+ *
+ * <p>With 52 bits of hash, different keys are expected to hash to the same ID once among about 2^26 keys. The index
+ * pipeline finds such IDs once entities are indexed and runs again with them as colliding IDs. Every key hashing to
+ * a colliding ID is then hashed again with a salt, until it hashes to an ID not colliding, so no key wins the ID
+ * over another one depending on the order they come in.
+ *
+ * <p>IDs have 52 bits of hash and bit 52 set. So they are exact as JavaScript numbers, which the web client uses,
+ * and never meet IDs counted up from {@link IdGenerator#MAX_RESERVED_ID} by other generators, e.g. in indexes built
+ * before.
+ */
+public class HashIdGenerator implements KeyedIdGenerator, Serializable {
+
+    private static final long HASH_BIT = 1L << 52;
+    private static final HashFunction ID_HASH = Hashing.murmur3_128();
+
+    private final ImmutableSet<Long> collidingIds;
+
+    public HashIdGenerator() {
+        this(ImmutableSet.<Long>of());
+    }
+
+    /** @param collidingIds IDs which different keys have hashed to, which are given to none of them */
+    public HashIdGenerator(Set<Long> collidingIds) {
+        this.collidingIds = ImmutableSet.copyOf(collidingIds);
+    }
+
+    @Override
+    public long next(String key) {
+        Preconditions.checkNotNull(key);
+        long id = hash(key);
+        for (int salt = 1; collidingIds.contains(id); salt++) {
+            id = hash(key + '\0' + salt);
+        }
+        return id;
+    }
+
+    public Set<Long> getCollidingIds() {
+        return collidingIds;
+    }
+
+    /** @return whether {@code id} may have been derived from a key, rather than counted up */
+    public static boolean isHashed(long id) {
+        return id >= HASH_BIT;
+    }
+
+    private static long hash(String key) {
+        return (ID_HASH.hashBytes(key.getBytes(Charsets.UTF_8)).asLong() & (HASH_BIT - 1)) | HASH_BIT;
+    }
+}
@@ -0,0 +1,25 @@
+package com.codingstory.polaris;
+
+import com.google.common.base.Preconditions;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class HashUtils {
+    private HashUtils() {}
+
+    /** Computes the id git would assign to a blob of {@code content}. */
+    public static String gitBlobHash(byte[] content) {
+        Preconditions.checkNotNull(content);
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        sha1.update(("blob " + content.length + "\0").getBytes());
+        sha1.update(content);
+        return String.format("%040x", new BigInteger(1, sha1.digest()));
+    }
+}
@@ -0,0 +1,10 @@
+package com.codingstory.polaris;
+
+public interface KeyedIdGenerator {
+
+    /**
+     * Generates an ID of the entity identified by {@code key}, e.g. a class by its project, path and full name.
+     * Generators may derive the ID from the key, so that the entity keeps it when indexed again.
+     */
+    long next(String key);
+}
@@ -2,11 +2,17 @@ package com.codingstory.polaris;
 
 import java.io.IOException;
 
-public class SimpleIdGenerator implements IdGenerator {
+public class SimpleIdGenerator implements IdGenerator, KeyedIdGenerator {
     private long n = MAX_RESERVED_ID + 1;
 
     @Override
-    public long next() {
+    public synchronized long next() {
         return n++;
     }
+
+    /** Ignores {@code key}. */
+    @Override
+    public long next(String key) {
+        return next();
+    }
 }
@@ -0,0 +1,104 @@
+package com.codingstory.polaris.indexing;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds Lucene documents on a pool of threads and adds them to a shared {@link IndexWriter}, which is thread-safe.
+ */
+public class ConcurrentDocumentWriter<T> implements Closeable {
+
+    /** Converts a record into its Lucene document. Must be thread-safe. */
+    public interface DocumentBuilder<T> {
+        Document build(T record) throws IOException;
+    }
+
+    private static final int BATCH_SIZE = 256;
+
+    private final IndexWriter writer;
+    private final DocumentBuilder<T> builder;
+    private final int threads;
+    private final ExecutorService executor;
+
+    public ConcurrentDocumentWriter(IndexWriter writer, DocumentBuilder<T> builder, int threads) {
+        Preconditions.checkArgument(threads > 0);
+        this.writer = Preconditions.checkNotNull(writer);
+        this.builder = Preconditions.checkNotNull(builder);
+        this.threads = threads;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    public void write(T record) throws IOException {
+        writer.addDocument(builder.build(record));
+    }
+
+    /** Writes all records. Returns after every document has been added to the writer. */
+    public void writeAll(Iterable<? extends T> records) throws IOException {
+        Preconditions.checkNotNull(records);
+        if (executor == null) {
+            for (T record : records) {
+                write(record);
+            }
+            return;
+        }
+        // Bound the number of pending batches, so that a lazy iterable is never fully loaded into memory.
+        LinkedList<Future<Void>> pending = Lists.newLinkedList();
+        try {
+            for (final List<? extends T> batch : Iterables.partition(records, BATCH_SIZE)) {
+                if (pending.size() >= threads * 2) {
+                    waitFor(pending.removeFirst());
+                }
+                pending.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (T record : batch) {
+                            write(record);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                waitFor(pending.removeFirst());
+            }
+        } finally {
+            for (Future<Void> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitFor(Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
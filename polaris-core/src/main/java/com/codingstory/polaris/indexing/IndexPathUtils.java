@@ -16,4 +16,16 @@ public class IndexPathUtils {
     public static File getSourceDbPath(File base) {
         return new File(base, "sourcedb");
     }
+
+    public static File getManifestPath(File base) {
+        return new File(base, "manifest");
+    }
+
+    public static File getPipelineReportPath(File base) {
+        return new File(base, "pipeline-report.json");
+    }
+
+    public static File getQuarantinePath(File base) {
+        return new File(base, "quarantine.json");
+    }
 }
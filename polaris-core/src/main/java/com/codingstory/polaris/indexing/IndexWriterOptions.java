@@ -0,0 +1,65 @@
+package com.codingstory.polaris.indexing;
+
+import com.google.common.base.Preconditions;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.util.Version;
+
+/** Tuning knobs shared by TypeDb, UsageDb and SourceDb writers. */
+public class IndexWriterOptions {
+    private int threads = 1;
+    private double ramBufferSizeMb = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    private int segmentsPerTier = 10;
+
+    public static IndexWriterOptions defaults() {
+        return new IndexWriterOptions();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Sets number of threads building documents in {@code writeAll}. 1 builds them on the caller's thread. */
+    public IndexWriterOptions setThreads(int threads) {
+        Preconditions.checkArgument(threads > 0);
+        this.threads = threads;
+        return this;
+    }
+
+    public double getRamBufferSizeMb() {
+        return ramBufferSizeMb;
+    }
+
+    /** Sets amount of RAM used to buffer documents before they are flushed as a new segment. */
+    public IndexWriterOptions setRamBufferSizeMb(double ramBufferSizeMb) {
+        Preconditions.checkArgument(ramBufferSizeMb > 0);
+        this.ramBufferSizeMb = ramBufferSizeMb;
+        return this;
+    }
+
+    public int getSegmentsPerTier() {
+        return segmentsPerTier;
+    }
+
+    /** Sets number of segments allowed per tier. Higher values merge less often but leave more segments. */
+    public IndexWriterOptions setSegmentsPerTier(int segmentsPerTier) {
+        Preconditions.checkArgument(segmentsPerTier >= 2);
+        this.segmentsPerTier = segmentsPerTier;
+        return this;
+    }
+
+    public IndexWriterConfig createConfig(Analyzer analyzer) {
+        Preconditions.checkNotNull(analyzer);
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(segmentsPerTier);
+        mergePolicy.setMaxMergeAtOnce(segmentsPerTier);
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36, analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        config.setRAMBufferSizeMB(ramBufferSizeMb);
+        config.setMergePolicy(mergePolicy);
+        // Let every document-building thread add documents without waiting for the others.
+        config.setMaxThreadStates(Math.max(threads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
+        return config;
+    }
+}
@@ -0,0 +1,34 @@
+package com.codingstory.polaris.indexing;
+
+import com.google.common.base.Preconditions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/** Operations shared by TypeDb, UsageDb and SourceDb writers. */
+public class IndexWriterUtils {
+    private IndexWriterUtils() {}
+
+    /** Merges the indexes in {@code shards} into {@code writer}. Shards are left as they are. */
+    public static void addIndexes(IndexWriter writer, List<File> shards) throws IOException {
+        Preconditions.checkNotNull(writer);
+        Preconditions.checkNotNull(shards);
+        Directory[] directories = new Directory[shards.size()];
+        try {
+            for (int i = 0; i < directories.length; i++) {
+                directories[i] = FSDirectory.open(shards.get(i));
+            }
+            writer.addIndexes(directories);
+        } finally {
+            for (Directory directory : directories) {
+                if (directory != null) {
+                    directory.close();
+                }
+            }
+        }
+    }
+}
@@ -22,7 +22,7 @@ public final class SourceCodeAnalyzer extends Analyzer {
 
     private static final SourceCodeAnalyzer INSTANCE = new SourceCodeAnalyzer();
     private static final Set<String> ANALYZED_FIELDS = ImmutableSet.of(
-            SourceDbIndexedField.PROJECT_RAW,
+            SourceDbIndexedField.PROJECT,
             SourceDbIndexedField.PATH,
             SourceDbIndexedField.SOURCE_TEXT);
 
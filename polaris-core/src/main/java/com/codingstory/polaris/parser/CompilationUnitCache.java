@@ -0,0 +1,66 @@
+package com.codingstory.polaris.parser;
+
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import japa.parser.ast.CompilationUnit;
+
+import java.io.IOException;
+
+/**
+ * Keeps ASTs of recently parsed files, so that passes over the same file in this JVM share one parse. That saves
+ * parses only where the passes run in one JVM, i.e. in the in-memory engine. Stages of the MapReduce pipeline run
+ * in separate tasks, which parse again. The cache is bounded by the length of cached sources, as a proxy for the
+ * size of their ASTs, to an eighth of the heap.
+ */
+public final class CompilationUnitCache {
+
+    private static class Entry {
+        private final String source;
+        private final CompilationUnit compilationUnit;
+
+        private Entry(String source, CompilationUnit compilationUnit) {
+            this.source = source;
+            this.compilationUnit = compilationUnit;
+        }
+    }
+
+    private static final int AST_BYTES_PER_CHAR = 40; // Roughly, for typical sources
+    private static final Cache<Long, Entry> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(Runtime.getRuntime().maxMemory() / 8 / AST_BYTES_PER_CHAR)
+            .weigher(new Weigher<Long, Entry>() {
+                @Override
+                public int weigh(Long fileId, Entry entry) {
+                    return entry.source.length();
+                }
+            })
+            .build();
+
+    private CompilationUnitCache() {}
+
+    /** Parses {@code source} of {@code file}, or returns its cached AST if the source has not changed. */
+    public static CompilationUnit parse(FileHandle file, String source) throws IOException {
+        return parse(file, source, ParseBudget.UNLIMITED);
+    }
+
+    /** Like {@link #parse(FileHandle, String)}, but a parse exceeding {@code budget} fails. */
+    public static CompilationUnit parse(FileHandle file, String source, ParseBudget budget) throws IOException {
+        Preconditions.checkNotNull(file);
+        Preconditions.checkNotNull(source);
+        Entry entry = CACHE.getIfPresent(file.getId());
+        // A file id may be reused for another version of the file, e.g. by incremental indexing.
+        if (entry != null && entry.source.equals(source)) {
+            return entry.compilationUnit;
+        }
+        CompilationUnit compilationUnit = ParserUtils.parse(source, budget);
+        CACHE.put(file.getId(), new Entry(source, compilationUnit));
+        return compilationUnit;
+    }
+
+    /** Drops all cached ASTs, e.g. after a pipeline run. */
+    public static void clear() {
+        CACHE.invalidateAll();
+    }
+}
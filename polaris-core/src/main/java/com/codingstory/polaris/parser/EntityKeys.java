@@ -0,0 +1,80 @@
+package com.codingstory.polaris.parser;
+
+import com.codingstory.polaris.KeyedIdGenerator;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.MethodHandle;
+import com.codingstory.polaris.parser.ParserProtos.TypeHandle;
+import com.codingstory.polaris.parser.ParserProtos.TypeKind;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import java.util.List;
+
+/**
+ * Makes keys identifying entities declared in a file, for {@link KeyedIdGenerator#next(String)}. A key depends only on
+ * what stays the same when an unchanged entity is indexed again: never on IDs or line numbers. Entities sharing a
+ * name in the same scope, e.g. initializer blocks, are told apart by the order they are declared in.
+ */
+final class EntityKeys {
+    private final String fileKey;
+    private final Multiset<String> made = HashMultiset.create();
+
+    public EntityKeys(FileHandle file) {
+        Preconditions.checkNotNull(file);
+        this.fileKey = file.getProject() + file.getPath();
+    }
+
+    public String ofClass(String fullName) {
+        return unique("class:" + fileKey + ":" + Preconditions.checkNotNull(fullName));
+    }
+
+    public String ofField(String fullName) {
+        return unique("field:" + fileKey + ":" + Preconditions.checkNotNull(fullName));
+    }
+
+    public String ofMethod(String fullName, List<TypeHandle> parameterTypes) {
+        return unique("method:" + fileKey + ":" + signatureOf(fullName, parameterTypes));
+    }
+
+    /** @param methodKey key made by {@link #ofMethod(String, List)} */
+    public String ofParameter(String methodKey, int index) {
+        return unique("parameter:" + Preconditions.checkNotNull(methodKey) + "#" + index);
+    }
+
+    /** @param scope full name of the enclosing class, or {@link #signatureOf(MethodHandle)} of the method */
+    public String ofLocalVariable(String scope, String name) {
+        Preconditions.checkNotNull(scope);
+        Preconditions.checkNotNull(name);
+        return unique("local:" + fileKey + ":" + scope + ":" + name);
+    }
+
+    /** @return full name and parameter types of {@code method}, as the scope of its local variables */
+    public static String signatureOf(MethodHandle method) {
+        return signatureOf(method.getName(), method.getParametersList());
+    }
+
+    private static String signatureOf(String fullName, List<TypeHandle> parameterTypes) {
+        Preconditions.checkNotNull(fullName);
+        Preconditions.checkNotNull(parameterTypes);
+        StringBuilder signature = new StringBuilder(fullName).append("(");
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            if (i > 0) {
+                signature.append(",");
+            }
+            signature.append(typeName(parameterTypes.get(i)));
+        }
+        return signature.append(")").toString();
+    }
+
+    private String unique(String key) {
+        int count = made.add(key, 1);
+        return count == 0 ? key : key + "#" + count;
+    }
+
+    private static String typeName(TypeHandle type) {
+        return type.getKind() == TypeKind.PRIMITIVE
+                ? type.getPrimitive().getKind().name()
+                : type.getClazz().getName();
+    }
+}
@@ -1,6 +1,6 @@
 package com.codingstory.polaris.parser;
 
-import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.KeyedIdGenerator;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
@@ -8,11 +8,11 @@ import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.Span;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.PackageDeclaration;
 import japa.parser.ast.body.AnnotationDeclaration;
 import japa.parser.ast.body.ClassOrInterfaceDeclaration;
 import japa.parser.ast.body.EnumDeclaration;
-import japa.parser.ast.visitor.VoidVisitorAdapter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -23,7 +23,7 @@ import java.util.List;
 import static com.codingstory.polaris.parser.ParserUtils.makeTypeName;
 import static com.codingstory.polaris.parser.ParserUtils.nodeSpan;
 
-/** Extracts full type names with assigned type ids. */
+/** Extracts full type names with assigned type ids, and imports of the file. */
 public class FirstPassProcessor {
 
     private static final Log LOG = LogFactory.getLog(FirstPassProcessor.class);
@@ -31,10 +31,18 @@ public class FirstPassProcessor {
     public static class Result {
         private final String pkg;
         private final List<ClassType> discoveredClasses;
+        private final List<String> importedClasses;
+        private final List<String> importedPackages;
+        private final List<String> referencedNames;
+        private final int symbolNodes;
 
-        public Result(String pkg, List<ClassType> discoveredClasses) {
+        public Result(String pkg, List<ClassType> discoveredClasses, ImportExtractor.Result imports) {
             this.pkg = pkg;
             this.discoveredClasses = discoveredClasses;
+            this.importedClasses = imports.getImportedClasses();
+            this.importedPackages = imports.getImportedPackages();
+            this.referencedNames = imports.getReferencedNames();
+            this.symbolNodes = imports.getSymbolNodes();
         }
 
         public String getPackage() {
@@ -44,18 +52,39 @@ public class FirstPassProcessor {
         public List<ClassType> getDiscoveredClasses() {
             return discoveredClasses;
         }
+
+        public List<String> getImportedClasses() {
+            return importedClasses;
+        }
+
+        public List<String> getImportedPackages() {
+            return importedPackages;
+        }
+
+        /** @see ImportExtractor.Result#getReferencedNames() */
+        public List<String> getReferencedNames() {
+            return referencedNames;
+        }
+
+        /** @see ImportExtractor.ImportExtractVisitor#getSymbolNodes() */
+        public int getSymbolNodes() {
+            return symbolNodes;
+        }
     }
 
-    private static class FirstPassVisitor extends VoidVisitorAdapter<Void> {
+    /** Discovers classes while extracting imports in the same walk. */
+    private static class FirstPassVisitor extends ImportExtractor.ImportExtractVisitor {
         private String pkg = "";
         private final FileHandle file;
-        private final IdGenerator idGenerator;
+        private final KeyedIdGenerator idGenerator;
+        private final EntityKeys keys;
         private final LinkedList<String> typeStack = Lists.newLinkedList();
         private final List<ClassType> discoveredClasses = Lists.newArrayList();
 
-        private FirstPassVisitor(FileHandle file, IdGenerator idGenerator) {
+        private FirstPassVisitor(FileHandle file, KeyedIdGenerator idGenerator) {
             this.file = Preconditions.checkNotNull(file);
             this.idGenerator = Preconditions.checkNotNull(idGenerator);
+            this.keys = new EntityKeys(file);
         }
 
         @Override
@@ -91,7 +120,7 @@ public class FirstPassProcessor {
         private void processTypeAndPushStack(String simpleName, ClassType.Kind kind, Span span) {
             String fullName = makeTypeName(pkg, typeStack, simpleName);
             ClassTypeHandle handle = ClassTypeHandle.newBuilder()
-                    .setId(idGenerator.next())
+                    .setId(idGenerator.next(keys.ofClass(fullName)))
                     .setName(fullName)
                     .setResolved(true)
                     .build();
@@ -109,19 +138,26 @@ public class FirstPassProcessor {
             discoveredClasses.add(clazz);
         }
 
-        public Result getResult() {
-            return new Result(pkg, discoveredClasses);
+        public Result getFirstPassResult() {
+            return new Result(pkg, discoveredClasses, getResult());
         }
     }
 
     public static Result process(
             FileHandle file,
             String source,
-            IdGenerator idGenerator) throws IOException {
+            KeyedIdGenerator idGenerator) throws IOException {
+        return process(file, ParserUtils.parse(source), idGenerator);
+    }
+
+    public static Result process(
+            FileHandle file,
+            CompilationUnit compilationUnit,
+            KeyedIdGenerator idGenerator) throws IOException {
         FirstPassVisitor visitor = new FirstPassVisitor(
                 Preconditions.checkNotNull(file),
                 Preconditions.checkNotNull(idGenerator));
-        ParserUtils.safeVisit(source, visitor);
-        return visitor.getResult();
+        ParserUtils.safeVisit(compilationUnit, visitor);
+        return visitor.getFirstPassResult();
     }
 }
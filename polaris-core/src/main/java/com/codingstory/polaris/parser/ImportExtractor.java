@@ -1,13 +1,26 @@
 package com.codingstory.polaris.parser;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.ImportDeclaration;
 import japa.parser.ast.PackageDeclaration;
+import japa.parser.ast.body.AnnotationDeclaration;
+import japa.parser.ast.body.ClassOrInterfaceDeclaration;
+import japa.parser.ast.body.EnumDeclaration;
+import japa.parser.ast.body.VariableDeclarator;
+import japa.parser.ast.expr.FieldAccessExpr;
+import japa.parser.ast.expr.MethodCallExpr;
+import japa.parser.ast.expr.NameExpr;
+import japa.parser.ast.expr.ObjectCreationExpr;
+import japa.parser.ast.type.ClassOrInterfaceType;
 import japa.parser.ast.visitor.VoidVisitorAdapter;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Extract possible imports, including implicit import, e.g. same package.
@@ -18,11 +31,18 @@ public class ImportExtractor {
         private final String pkg;
         private final List<String> classes;
         private final List<String> packages;
+        private final List<String> referencedNames;
+        private final List<String> declaredClasses;
+        private final int symbolNodes;
 
-        public Result(String pkg, List<String> classes, List<String> packages) {
+        public Result(String pkg, List<String> classes, List<String> packages, List<String> referencedNames,
+                List<String> declaredClasses, int symbolNodes) {
             this.pkg = pkg;
             this.classes = classes;
             this.packages = packages;
+            this.referencedNames = referencedNames;
+            this.declaredClasses = declaredClasses;
+            this.symbolNodes = symbolNodes;
         }
 
         public String getPackage() {
@@ -36,12 +56,30 @@ public class ImportExtractor {
         public List<String> getImportedPackages() {
             return packages;
         }
+
+        /** @see ImportExtractVisitor#getReferencedNames() */
+        public List<String> getReferencedNames() {
+            return referencedNames;
+        }
+
+        /** @return simple names of classes declared in the file, including nested ones */
+        public List<String> getDeclaredClasses() {
+            return declaredClasses;
+        }
+
+        /** @see ImportExtractVisitor#getSymbolNodes() */
+        public int getSymbolNodes() {
+            return symbolNodes;
+        }
     }
 
-    private static class ImportExtractVisitor extends VoidVisitorAdapter<Void> {
+    static class ImportExtractVisitor extends VoidVisitorAdapter<Void> {
         private String pkg = "";
         private final List<String> classes = Lists.newArrayList();
         private final List<String> packages = Lists.newArrayList();
+        private final Set<String> referencedNames = Sets.newLinkedHashSet();
+        private final List<String> declaredClasses = Lists.newArrayList();
+        private int symbolNodes = 0;
 
         @Override
         public void visit(PackageDeclaration n, Void arg) {
@@ -60,14 +98,105 @@ public class ImportExtractor {
             }
         }
 
+        @Override
+        public void visit(ClassOrInterfaceDeclaration n, Void arg) {
+            super.visit(n, arg);
+            declaredClasses.add(n.getName());
+        }
+
+        @Override
+        public void visit(EnumDeclaration n, Void arg) {
+            super.visit(n, arg);
+            declaredClasses.add(n.getName());
+        }
+
+        @Override
+        public void visit(AnnotationDeclaration n, Void arg) {
+            super.visit(n, arg);
+            declaredClasses.add(n.getName());
+        }
+
+        @Override
+        public void visit(ClassOrInterfaceType n, Void arg) {
+            super.visit(n, arg);
+            countSymbolNode();
+            if (n.getScope() == null) {
+                addReferencedName(n.getName());
+            }
+        }
+
+        @Override
+        public void visit(NameExpr n, Void arg) {
+            super.visit(n, arg);
+            countSymbolNode();
+            addReferencedName(n.getName()); // e.g. "Foo" in "Foo.bar()"
+        }
+
+        @Override
+        public void visit(FieldAccessExpr n, Void arg) {
+            super.visit(n, arg);
+            countSymbolNode();
+        }
+
+        @Override
+        public void visit(MethodCallExpr n, Void arg) {
+            super.visit(n, arg);
+            countSymbolNode();
+        }
+
+        @Override
+        public void visit(ObjectCreationExpr n, Void arg) {
+            super.visit(n, arg);
+            countSymbolNode();
+        }
+
+        @Override
+        public void visit(VariableDeclarator n, Void arg) {
+            super.visit(n, arg);
+            countSymbolNode();
+        }
+
+        /** Budgets are checked as symbol nodes are counted, since visiting them is most of the work. */
+        private void countSymbolNode() {
+            symbolNodes++;
+            ParseBudget.checkpoint();
+        }
+
+        private void addReferencedName(String name) {
+            // By convention, only class names start with upper case letters.
+            if (!name.isEmpty() && Character.isUpperCase(name.charAt(0))) {
+                referencedNames.add(name);
+            }
+        }
+
+        /**
+         * Returns simple names which may refer to classes, e.g. classes in wildcard-imported packages. Only the
+         * outermost name is returned for nested classes, e.g. "Map" for "Map.Entry".
+         */
+        public List<String> getReferencedNames() {
+            return ImmutableList.copyOf(referencedNames);
+        }
+
+        /**
+         * Returns the number of AST nodes later passes resolve symbols of, e.g. names, types, method calls and
+         * variables. Their cost grows with it, rather than with the length of the file.
+         */
+        public int getSymbolNodes() {
+            return symbolNodes;
+        }
+
         public Result getResult() {
-            return new Result(pkg, classes,  packages);
+            return new Result(pkg, classes, packages, getReferencedNames(), declaredClasses, symbolNodes);
         }
     }
 
     public static Result findImports(String source) throws IOException {
+        return findImports(ParserUtils.parse(source));
+    }
+
+    public static Result findImports(CompilationUnit compilationUnit) throws IOException {
         ImportExtractVisitor visitor = new ImportExtractVisitor();
-        ParserUtils.safeVisit(source, visitor);
+        ParserUtils.safeVisit(compilationUnit, visitor);
         return visitor.getResult();
     }
 }
@@ -0,0 +1,202 @@
+package com.codingstory.polaris.parser;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits wall-clock time and memory allocated by parsing or visiting one file, so that a pathological file cannot
+ * spin the parser for minutes or allocate until the task dies. The work runs on the calling thread, which a watchdog
+ * thread shared by all budgets samples every {@link #SAMPLE_INTERVAL_MILLIS}, whether or not the work makes progress.
+ * Once the budget is spent, the watchdog flags the work and interrupts its thread. The work stops at its next
+ * {@link #checkpoint()}, which visitors of the parser passes call as they go, and the parser whenever it reads ahead.
+ * Work returning after its budget is spent fails all the same, with {@link ParseBudgetExceededException}, so that the
+ * file is quarantined rather than indexed from what an overrun found.
+ *
+ * <p>Parsing stays serialized under the lock of {@link ParserUtils}, since the parser is not thread safe. A parse
+ * spending its budget keeps other threads waiting until it stops, but their budgets start once they hold the lock.
+ */
+public class ParseBudget implements Serializable {
+
+    public static final ParseBudget UNLIMITED = new ParseBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    public static final ParseBudget DEFAULT = new ParseBudget(60 * 1000, 1L << 30);
+    static final long SAMPLE_INTERVAL_MILLIS = 100;
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ParseBudget-watchdog").setDaemon(true).build());
+    private static final ThreadLocal<Watch> CURRENT_WATCH = new ThreadLocal<Watch>();
+
+    private final long maxMillis;
+    private final long maxAllocatedBytes;
+
+    /** @param maxAllocatedBytes ignored if the JVM does not measure memory allocated by threads */
+    public ParseBudget(long maxMillis, long maxAllocatedBytes) {
+        Preconditions.checkArgument(maxMillis > 0);
+        Preconditions.checkArgument(maxAllocatedBytes > 0);
+        this.maxMillis = maxMillis;
+        this.maxAllocatedBytes = maxAllocatedBytes;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public long getMaxAllocatedBytes() {
+        return maxAllocatedBytes;
+    }
+
+    /**
+     * Runs {@code task} on the calling thread, starting the budget now. Unless the budget is unlimited, the watchdog
+     * samples the task until it returns.
+     *
+     * @throws ParseBudgetExceededException if the task exceeds the budget
+     */
+    public <T> T run(Callable<T> task) throws IOException {
+        Preconditions.checkNotNull(task);
+        if (maxMillis == Long.MAX_VALUE && maxAllocatedBytes == Long.MAX_VALUE) {
+            return call(task);
+        }
+        Watch watch = new Watch(Thread.currentThread(), CURRENT_WATCH.get());
+        CURRENT_WATCH.set(watch);
+        ScheduledFuture<?> sampling = WATCHDOG.scheduleWithFixedDelay(watch,
+                Math.min(SAMPLE_INTERVAL_MILLIS, maxMillis), SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        T result = null;
+        IOException failure = null;
+        try {
+            result = call(task);
+        } catch (Exceeded e) {
+            watch.finish();
+            if (!watch.isExceeded()) {
+                throw e; // An outer budget is spent.
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            sampling.cancel(false);
+            watch.finish();
+            CURRENT_WATCH.set(watch.outer);
+        }
+        if (watch.isExceeded()) {
+            // Also if the task returned or failed otherwise, e.g. once interrupted, since its work is incomplete.
+            throw new ParseBudgetExceededException(watch.exceeded);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    /**
+     * Stops work running under a budget on this thread, by throwing an unchecked exception, if the budget is spent.
+     * Work is expected to call this often, e.g. for each node visited, since it is stopped nowhere else.
+     */
+    public static void checkpoint() {
+        for (Watch watch = CURRENT_WATCH.get(); watch != null; watch = watch.outer) {
+            if (watch.isExceeded() || watch.isPastDeadline()) {
+                throw new Exceeded();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "maxMillis=" + maxMillis + ",maxAllocatedBytes=" + maxAllocatedBytes;
+    }
+
+    private static <T> T call(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (Exception e) {
+            Throwables.propagateIfPossible(e, IOException.class);
+            throw new IOException(e);
+        }
+    }
+
+    /** Thrown by {@link #checkpoint()} out of work exceeding its budget, and caught by {@link #run}. */
+    private static class Exceeded extends RuntimeException {
+    }
+
+    /** Samples work running under the budget on a thread, and flags it once it exceeds the budget. */
+    private class Watch implements Runnable {
+        private final Thread thread;
+        private final Watch outer;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startAllocatedBytes;
+        private volatile String exceeded = null;
+        private boolean finished = false;
+        private boolean interrupted = false;
+
+        private Watch(Thread thread, Watch outer) {
+            this.thread = thread;
+            this.outer = outer;
+            this.startAllocatedBytes = allocatedBytes(thread);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (finished || exceeded != null) {
+                return;
+            }
+            exceeded = check();
+            if (exceeded != null && !thread.isInterrupted()) {
+                thread.interrupt(); // Wakes the work up if it waits, e.g. for I/O.
+                interrupted = true;
+            }
+        }
+
+        /** Called by the thread of the work once it returns, which may have overrun since the last sample. */
+        private synchronized void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (exceeded == null) {
+                exceeded = check();
+            }
+            if (interrupted) {
+                Thread.interrupted(); // Clears the interrupt of the watchdog.
+            }
+        }
+
+        private boolean isExceeded() {
+            return exceeded != null;
+        }
+
+        private boolean isPastDeadline() {
+            return System.currentTimeMillis() - startMillis > maxMillis;
+        }
+
+        /** @return why the work exceeds the budget, or {@code null} if it does not */
+        private String check() {
+            if (isPastDeadline()) {
+                return "Parsing takes more than " + maxMillis + " ms";
+            }
+            if (allocatedBytes(thread) - startAllocatedBytes > maxAllocatedBytes) {
+                return "Parsing allocates more than " + maxAllocatedBytes + " bytes";
+            }
+            return null;
+        }
+    }
+
+    /** @return bytes allocated by {@code thread} so far, or 0 if the JVM does not measure it */
+    private static long allocatedBytes(Thread thread) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (hotSpot.isThreadAllocatedMemorySupported() && hotSpot.isThreadAllocatedMemoryEnabled()) {
+                return Math.max(0, hotSpot.getThreadAllocatedBytes(thread.getId()));
+            }
+        }
+        return 0;
+    }
+}
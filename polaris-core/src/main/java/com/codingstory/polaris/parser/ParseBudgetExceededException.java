@@ -0,0 +1,10 @@
+package com.codingstory.polaris.parser;
+
+import java.io.IOException;
+
+/** Thrown if parsing a file exceeds its {@link ParseBudget}. Unlike other parse failures, retrying is futile. */
+public class ParseBudgetExceededException extends IOException {
+    public ParseBudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -16,9 +16,11 @@ import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.Node;
 import japa.parser.ast.visitor.VoidVisitor;
 
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import static com.codingstory.polaris.parser.TypeUtils.positionOf;
 import static com.codingstory.polaris.parser.TypeUtils.spanOf;
@@ -27,22 +29,58 @@ public final class ParserUtils {
     private ParserUtils() {}
 
     public static void safeVisit(String s, VoidVisitor<?> visitor) throws IOException {
+        safeVisit(parse(s), visitor);
+    }
+
+    public static CompilationUnit parse(String s) throws IOException {
+        return parse(s, ParseBudget.UNLIMITED);
+    }
+
+    /** Parses {@code s}, giving up with {@link ParseBudgetExceededException} if it exceeds {@code budget}. */
+    public static CompilationUnit parse(final String s, ParseBudget budget) throws IOException {
+        Preconditions.checkNotNull(budget);
+        synchronized (ParserUtils.class) {
+            // Walk around race condition bug in JavaParser. TODO: Fix it upstream.
+            // So parsing stays serialized under the budget. The budget is spent from here, excluding time waiting
+            // for the lock, which is held until the parse has stopped.
+            return budget.run(new Callable<CompilationUnit>() {
+                @Override
+                public CompilationUnit call() throws IOException {
+                    return doParse(s);
+                }
+            });
+        }
+    }
+
+    private static CompilationUnit doParse(String s) throws IOException {
         try {
-            CompilationUnit compilationUnit;
-            synchronized (ParserUtils.class) {
-                // Walk around race condition bug in JavaParser. TODO: Fix it upstream.
-                compilationUnit = JavaParser.parse(new StringReader(s));
-            }
-            visitor.visit(compilationUnit, null);
+            return JavaParser.parse(new FilterReader(new StringReader(s)) {
+                @Override
+                public int read(char[] buffer, int offset, int length) throws IOException {
+                    // The parser reads ahead a buffer at a time, so a parse spending its budget stops at the next.
+                    ParseBudget.checkpoint();
+                    return super.read(buffer, offset, length);
+                }
+            });
         } catch (ParseException e) {
             throw new IOException(e);
         } catch (TokenMgrError e) {
             // Don't know why this error may be raised when parsing Eclipse code.
             throw new IOException(e);
+        } catch (Error e) {
+            // The parser may throw java.lang.Error, e.g. at JavaCharStream.java:347.
+            throw new IOException(e);
+        }
+    }
+
+    /** Visits a parsed compilation unit. Visitors must not modify it, since it may be shared by later passes. */
+    public static void safeVisit(CompilationUnit compilationUnit, VoidVisitor<?> visitor) throws IOException {
+        Preconditions.checkNotNull(compilationUnit);
+        try {
+            visitor.visit(compilationUnit, null);
         } catch (StackOverflowError e) {
             throw new IOException(e); // See issue #2.
         } catch (Error e) {
-            // The parser may throw java.lang.Error, e.g. at JavaCharStream.java:347.
             throw new IOException(e);
         } catch (SkipCheckingExceptionWrapper e) {
             throw (IOException) e.getCause();
@@ -1,6 +1,6 @@
 package com.codingstory.polaris.parser;
 
-import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.KeyedIdGenerator;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.Variable;
@@ -18,6 +18,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.ImportDeclaration;
 import japa.parser.ast.TypeParameter;
 import japa.parser.ast.body.AnnotationDeclaration;
@@ -75,7 +76,8 @@ public final class SecondPassProcessor {
         private final LinkedList<ClassType> typeStack = Lists.newLinkedList();
         private final LinkedList<Method> methodStack = Lists.newLinkedList();
         private final List<ImportDeclaration> imports = Lists.newArrayList();
-        private final IdGenerator idGenerator;
+        private final KeyedIdGenerator idGenerator;
+        private final EntityKeys keys;
         private final String[] lines;
 
         /** Symbol table for classTypes. */
@@ -85,12 +87,13 @@ public final class SecondPassProcessor {
                 FileHandle file,
                 String source,
                 SymbolTable symbolTable,
-                IdGenerator idGenerator,
+                KeyedIdGenerator idGenerator,
                 String pkg) {
             this.project = Preconditions.checkNotNull(project);
             this.file = Preconditions.checkNotNull(file);
             this.symbolTable = Preconditions.checkNotNull(symbolTable);
             this.idGenerator = Preconditions.checkNotNull(idGenerator);
+            this.keys = new EntityKeys(file);
             this.pkg = Preconditions.checkNotNull(pkg);
             this.lines = source.split("\n");
         }
@@ -116,6 +119,7 @@ public final class SecondPassProcessor {
         @Override
         public void visit(final ClassOrInterfaceDeclaration node, final Object arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             List<ClassOrInterfaceType> superTypeAsts = ImmutableList.copyOf(Iterables.concat(
                     nullToEmptyList(node.getExtends()), nullToEmptyList(node.getImplements())));
             for (TypeParameter genericType : nullToEmptyList(node.getTypeParameters())) {
@@ -174,6 +178,7 @@ public final class SecondPassProcessor {
         @Override
         public void visit(final AnnotationDeclaration node, final Object arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             processTypeDeclaration(node.getName(),
                     ClassType.Kind.ANNOTATION,
                     nodeJumpTarget(file, node.getNameExpr()),
@@ -190,6 +195,7 @@ public final class SecondPassProcessor {
         @Override
         public void visit(final japa.parser.ast.body.EnumDeclaration node, final Object arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             processTypeDeclaration(node.getName(),
                     ClassType.Kind.ENUM,
                     nodeJumpTarget(file, node.getNameExpr()),
@@ -206,6 +212,7 @@ public final class SecondPassProcessor {
         @Override
         public void visit(final japa.parser.ast.body.MethodDeclaration node, final Object arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             processMethodDeclaration(node.getType(), node.getName(), nodeJumpTarget(file, node.getNameExpr()),
                     node.getParameters(), node.getThrows(), new Runnable() {
                 @Override
@@ -218,6 +225,7 @@ public final class SecondPassProcessor {
         @Override
         public void visit(final ConstructorDeclaration node, final Object arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             processMethodDeclaration(null, "<init>", nodeJumpTarget(file, node.getNameExpr()),
                     node.getParameters(), node.getThrows(), new Runnable() {
                 @Override
@@ -230,6 +238,7 @@ public final class SecondPassProcessor {
         @Override
         public void visit(final InitializerDeclaration node, final Object arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             processMethodDeclaration(null, "<cinit>", nodeJumpTarget(file, node),
                     null, null, new Runnable() {
                 @Override
@@ -267,12 +276,16 @@ public final class SecondPassProcessor {
                         .setKind(TypeUsage.Kind.METHOD_SIGNATURE)
                         .build(), parameterJumpTarget, snippetLine(lines, parameterJumpTarget)));
                 parameterTypes.add(parameterType);
+            }
+            String fullMemberName = currentTypeName() + "." + methodName;
+            String methodKey = keys.ofMethod(fullMemberName, parameterTypes);
+            for (Parameter parameter : nullToEmptyList(methodParameters)) {
                 VariableHandle handle = VariableHandle.newBuilder()
-                        .setId(idGenerator.next())
+                        .setId(idGenerator.next(keys.ofParameter(methodKey, parameters.size())))
                         .setName(parameter.getId().getName())
                         .build();
                 parameters.add(Variable.newBuilder()
-                        .setType(parameterType)
+                        .setType(parameterTypes.get(parameters.size()))
                         .setHandle(handle)
                         .setKind(Variable.Kind.PARAMETER)
                         .build());
@@ -287,9 +300,8 @@ public final class SecondPassProcessor {
                         .build(), throwJumpTarget, snippetLine(lines, throwJumpTarget)));
                 exceptions.add(exceptionType);
             }
-            String fullMemberName = currentTypeName() + "." + methodName;
             MethodHandle methodHandle = MethodHandle.newBuilder()
-                    .setId(idGenerator.next())
+                    .setId(idGenerator.next(methodKey))
                     .setName(fullMemberName)
                     .addAllParameters(parameterTypes)
                     .build();
@@ -303,6 +315,7 @@ public final class SecondPassProcessor {
                     .addAllParameters(parameters)
                     .addAllExceptions(exceptions)
                     .setJumpTarget(jumpTarget)
+                    .setVarArgs(!parameters.isEmpty() && Iterables.getLast(methodParameters).isVarArgs())
                     .build();
             addMethodToCurrentType(method);
             methodStack.push(method);
@@ -320,6 +333,7 @@ public final class SecondPassProcessor {
         @Override
         public void visit(japa.parser.ast.body.FieldDeclaration node, Object arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             TypeHandle type = symbolTable.resolveTypeHandle(
                     dropGenericTypes(node.getType().toString()));
             JumpTarget jumpTarget = nodeJumpTarget(file, node.getType());
@@ -331,7 +345,7 @@ public final class SecondPassProcessor {
                 JumpTarget fieldTarget = nodeJumpTarget(file, varDecl.getId());
                 String fullMemberName = currentTypeName() + "." + varDecl.getId().getName();
                 VariableHandle fieldHandle = VariableHandle.newBuilder()
-                        .setId(idGenerator.next())
+                        .setId(idGenerator.next(keys.ofField(fullMemberName)))
                         .setName(fullMemberName)
                         .build();
                 Variable field = Variable.newBuilder()
@@ -397,7 +411,18 @@ public final class SecondPassProcessor {
             FileHandle file,
             String source,
             SymbolTable symbolTable,
-            IdGenerator idGenerator,
+            KeyedIdGenerator idGenerator,
+            String pkg) throws IOException {
+        return extract(project, file, source, ParserUtils.parse(source), symbolTable, idGenerator, pkg);
+    }
+
+    /** Like {@link #extract(String, FileHandle, String, SymbolTable, KeyedIdGenerator, String)}, but skips parsing. */
+    public static Result extract(String project,
+            FileHandle file,
+            String source,
+            CompilationUnit compilationUnit,
+            SymbolTable symbolTable,
+            KeyedIdGenerator idGenerator,
             String pkg) throws IOException {
         Preconditions.checkNotNull(project);
         Preconditions.checkNotNull(file);
@@ -406,7 +431,7 @@ public final class SecondPassProcessor {
         Preconditions.checkNotNull(idGenerator);
         symbolTable.enterCompilationUnit(pkg);
         ASTVisitor visitor = new ASTVisitor(project, file, source, symbolTable, idGenerator, pkg);
-        ParserUtils.safeVisit(source, visitor);
+        ParserUtils.safeVisit(compilationUnit, visitor);
         symbolTable.leaveCompilationUnit();
         return new Result(visitor.getClassTypes(), visitor.getUsages());
     }
@@ -174,7 +174,9 @@ public class SymbolTable {
         Preconditions.checkNotNull(classType);
         fullyNamedTypes.put(classType.getHandle().getName(), classType);
         classesByHandle.put(classType.getHandle(), classType);
-        classesByJumpTarget.put(classType.getJumpTarget(), classType);
+        if (classType.hasJumpTarget()) { // Not set for summaries of imported classes
+            classesByJumpTarget.put(classType.getJumpTarget(), classType);
+        }
         currentFrame().registerClassType(classType);
     }
 
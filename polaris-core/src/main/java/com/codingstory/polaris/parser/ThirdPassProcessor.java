@@ -1,6 +1,7 @@
 package com.codingstory.polaris.parser;
 
-import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.KeyedIdGenerator;
+import com.codingstory.polaris.parser.ParserProtos.CallSite;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.Variable;
@@ -8,6 +9,7 @@ import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.Method;
 import com.codingstory.polaris.parser.ParserProtos.MethodUsage;
+import com.codingstory.polaris.parser.ParserProtos.Position;
 import com.codingstory.polaris.parser.ParserProtos.Span;
 import com.codingstory.polaris.parser.ParserProtos.TypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.TypeKind;
@@ -19,6 +21,8 @@ import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.ImportDeclaration;
 import japa.parser.ast.body.AnnotationDeclaration;
 import japa.parser.ast.body.ClassOrInterfaceDeclaration;
@@ -26,10 +30,18 @@ import japa.parser.ast.body.EnumDeclaration;
 import japa.parser.ast.body.MethodDeclaration;
 import japa.parser.ast.body.TypeDeclaration;
 import japa.parser.ast.body.VariableDeclarator;
+import japa.parser.ast.expr.BooleanLiteralExpr;
+import japa.parser.ast.expr.CastExpr;
+import japa.parser.ast.expr.CharLiteralExpr;
+import japa.parser.ast.expr.DoubleLiteralExpr;
 import japa.parser.ast.expr.Expression;
+import japa.parser.ast.expr.FieldAccessExpr;
+import japa.parser.ast.expr.IntegerLiteralExpr;
+import japa.parser.ast.expr.LongLiteralExpr;
 import japa.parser.ast.expr.MethodCallExpr;
 import japa.parser.ast.expr.NameExpr;
 import japa.parser.ast.expr.ObjectCreationExpr;
+import japa.parser.ast.expr.StringLiteralExpr;
 import japa.parser.ast.expr.ThisExpr;
 import japa.parser.ast.expr.VariableDeclarationExpr;
 import japa.parser.ast.visitor.VoidVisitorAdapter;
@@ -37,33 +49,66 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
-import static com.codingstory.polaris.CollectionUtils.nullToEmptyCollection;
+import static com.codingstory.polaris.CollectionUtils.nullToEmptyList;
 import static com.codingstory.polaris.parser.ParserUtils.dropGenericTypes;
 import static com.codingstory.polaris.parser.ParserUtils.nodeJumpTarget;
 import static com.codingstory.polaris.parser.ParserUtils.nodeSpan;
 import static com.codingstory.polaris.parser.TypeUtils.handleOf;
+import static com.codingstory.polaris.parser.TypeUtils.positionOf;
 import static com.codingstory.polaris.parser.TypeUtils.snippetLine;
+import static com.codingstory.polaris.parser.TypeUtils.spanOf;
 import static com.codingstory.polaris.parser.TypeUtils.usageOf;
 
-/** Generates cross references for local variable declarationmethod calls. */
+/** Generates cross references for local variable declarations, variable and field accesses and method calls. */
 public class ThirdPassProcessor {
 
     private static final Log LOG = LogFactory.getLog(ThirdPassProcessor.class);
+    private static final TypeHandle UNKNOWN_TYPE = TypeHandle.getDefaultInstance();
+
+    public static class Result {
+        private final List<Usage> usages;
+        private final List<CallSite> callSites;
+
+        public Result(List<Usage> usages, List<CallSite> callSites) {
+            this.usages = Preconditions.checkNotNull(usages);
+            this.callSites = Preconditions.checkNotNull(callSites);
+        }
+
+        public List<Usage> getUsages() {
+            return usages;
+        }
+
+        /** @return references to members of classes declared in other files, see {@link #resolveCallSite} */
+        public List<CallSite> getCallSites() {
+            return callSites;
+        }
+    }
 
     private static class ThirdPassVisitor extends VoidVisitorAdapter<Void> {
         private final FileHandle file;
         private final SymbolTable symbolTable;
         private final List<Usage> usages = Lists.newArrayList();
         private final String[] lines;
-        private final IdGenerator idGenerator;
+        private final KeyedIdGenerator idGenerator;
+        private final EntityKeys keys;
+        private final LinkedList<String> scopes = Lists.newLinkedList();
+        private final List<CallSite> callSites; // null to resolve references to classes of other files in place
+        private final Set<Long> classIdsOfFile;
 
-        private ThirdPassVisitor(FileHandle file, String source, SymbolTable symbolTable, IdGenerator idGenerator) {
+        private ThirdPassVisitor(FileHandle file, String source, SymbolTable symbolTable, KeyedIdGenerator idGenerator,
+                List<CallSite> callSites, Set<Long> classIdsOfFile) {
             this.file = Preconditions.checkNotNull(file);
+            this.callSites = callSites;
+            this.classIdsOfFile = classIdsOfFile;
             this.symbolTable = Preconditions.checkNotNull(symbolTable);
             this.lines = source.split("\n");
             this.idGenerator = Preconditions.checkNotNull(idGenerator);
+            this.keys = new EntityKeys(file);
         }
 
         @Override
@@ -120,20 +165,25 @@ public class ThirdPassProcessor {
                         + typeDeclaration.getName());
             }
             symbolTable.enterClassScope(clazz);
+            scopes.push(clazz.getHandle().getName());
             visitChildren.run();
+            scopes.pop();
             symbolTable.leaveClassScope();
         }
 
         @Override
         public void visit(MethodDeclaration node, Void arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             Method method = findMethodBySpan(symbolTable.currentClass(), nodeSpan(node.getNameExpr()));
             if (method == null) {
                 throw new AssertionError("This method should have been discovered by previous passes: "
                         + node.getName());
             }
             symbolTable.enterMethodScope(method);
+            scopes.push(EntityKeys.signatureOf(method.getHandle()));
             super.visit(node, arg);    //To change body of overridden methods use File | Settings | File Templates.
+            scopes.pop();
             symbolTable.leaveMethodScope();
         }
 
@@ -149,6 +199,7 @@ public class ThirdPassProcessor {
         @Override
         public void visit(VariableDeclarationExpr node, Void arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             TypeHandle type = symbolTable.resolveTypeHandle(
                     dropGenericTypes(node.getType().toString()));
             JumpTarget jumpTarget = nodeJumpTarget(file, node.getType());
@@ -160,7 +211,7 @@ public class ThirdPassProcessor {
                 JumpTarget variableJumpTarget = nodeJumpTarget(file, decl.getId());
                 String variableName = decl.getId().getName();
                 VariableHandle variableHandle = VariableHandle.newBuilder()
-                        .setId(idGenerator.next())
+                        .setId(idGenerator.next(keys.ofLocalVariable(scopes.peek(), variableName)))
                         .setName(variableName)
                         .build();
                 Variable variable = Variable.newBuilder()
@@ -181,25 +232,11 @@ public class ThirdPassProcessor {
         @Override
         public void visit(MethodCallExpr node, Void arg) {
             Preconditions.checkNotNull(node);
-            Expression scope = node.getScope();
-            TypeHandle type = null;
-            if (scope == null || scope instanceof ThisExpr) { // Call member methods
-                type = handleOf(symbolTable.currentClass().getHandle());
-            } else if (scope instanceof NameExpr) {
-                String name = ((NameExpr) scope).getName();
-                Variable variable = symbolTable.getVariable(name);
-                if (variable != null) {
-                    type = variable.getType();
-                } else {
-                    type = symbolTable.resolveTypeHandle(name); // calling static method
-                }
-            } else {
-                // TODO: Handle more complex expressions.
-            }
+            ParseBudget.checkpoint();
             processMethodCall(
-                    type,
+                    typeOfScope(node.getScope()),
                     node.getName(),
-                    nullToEmptyCollection(node.getArgs()).size(),
+                    nullToEmptyList(node.getArgs()),
                     MethodUsage.Kind.METHOD_CALL,
                     nodeJumpTarget(file, node.getNameExpr()));
             super.visit(node, arg);
@@ -208,50 +245,121 @@ public class ThirdPassProcessor {
         @Override
         public void visit(ObjectCreationExpr node, Void arg) {
             Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
             processMethodCall(
                     symbolTable.resolveTypeHandle(node.getType().getName()),
                     "<init>",
-                    nullToEmptyCollection(node.getArgs()).size(),
+                    nullToEmptyList(node.getArgs()),
                     MethodUsage.Kind.INSTANCE_CREATION,
                     nodeJumpTarget(file, node.getType()));
             super.visit(node, arg);
         }
 
-        private void processMethodCall(TypeHandle type, String methodName, int argc,
-                MethodUsage.Kind kind, JumpTarget jumpTarget) {
-            if (type != null && type.getKind() == TypeKind.CLASS && type.getClazz().getResolved()) {
-                ClassType clazz = symbolTable.getClassByHandle(type.getClazz());
-                if (clazz != null) {
-                    Method method = findMethodInClass(clazz, methodName, argc);
-                    if (method != null) {
-                        String snippet = snippetLine(lines, jumpTarget);
-                        usages.add(usageOf(MethodUsage.newBuilder()
-                                .setKind(kind)
-                                .setMethod(method.getHandle())
-                                .build(), jumpTarget, snippet));
-                    }
+        @Override
+        public void visit(FieldAccessExpr node, Void arg) {
+            Preconditions.checkNotNull(node);
+            ParseBudget.checkpoint();
+            super.visit(node, arg);
+            // The field name is not a node of its own, but it ends the expression.
+            Position to = positionOf(node.getEndLine() - 1, node.getEndColumn());
+            Position from = positionOf(to.getLine(), to.getColumn() - node.getField().length());
+            JumpTarget jumpTarget = JumpTarget.newBuilder()
+                    .setFile(file)
+                    .setSpan(spanOf(from, to))
+                    .build();
+            processMemberReference(typeOfScope(node.getScope()), CallSite.newBuilder()
+                    .setFieldName(node.getField())
+                    .setJumpTarget(jumpTarget)
+                    .setSnippet(snippetLine(lines, jumpTarget)));
+        }
+
+        /** @return type of the object or class whose members {@code scope} refers to, or {@code null} */
+        private TypeHandle typeOfScope(Expression scope) {
+            if (scope == null || scope instanceof ThisExpr) { // Members of this class
+                return handleOf(symbolTable.currentClass().getHandle());
+            } else if (scope instanceof NameExpr) {
+                String name = ((NameExpr) scope).getName();
+                Variable variable = symbolTable.getVariable(name);
+                if (variable != null) {
+                    return variable.getType();
+                } else {
+                    return symbolTable.resolveTypeHandle(name); // Static members
                 }
+            } else {
+                return null; // TODO: Handle more complex expressions.
             }
         }
 
-        private Method findMethodInClass(ClassType clazz, String methodName, int argumentCount) {
-            List<Method> results = Lists.newArrayList();
-            String prefix = clazz.getHandle().getName() + ".";
-            for (Method method : clazz.getMethodsList()) {
-                if (Objects.equal(method.getHandle().getName(), prefix + methodName) &&
-                        method.getParametersCount() == argumentCount) {
-                    results.add(method);
-                }
+        /**
+         * @return type of {@code argument} as far as it is known without resolving other calls, or a handle without
+         * a kind
+         */
+        private TypeHandle typeOfArgument(Expression argument) {
+            String typeName;
+            if (argument instanceof NameExpr) {
+                Variable variable = symbolTable.getVariable(((NameExpr) argument).getName());
+                return variable == null ? UNKNOWN_TYPE : variable.getType();
+            } else if (argument instanceof ThisExpr) {
+                return handleOf(symbolTable.currentClass().getHandle());
+            } else if (argument instanceof ObjectCreationExpr) {
+                typeName = ((ObjectCreationExpr) argument).getType().getName();
+            } else if (argument instanceof CastExpr) {
+                typeName = dropGenericTypes(((CastExpr) argument).getType().toString());
+            } else if (argument instanceof IntegerLiteralExpr) { // Literals extend StringLiteralExpr.
+                typeName = "int";
+            } else if (argument instanceof LongLiteralExpr) {
+                typeName = "long";
+            } else if (argument instanceof DoubleLiteralExpr) {
+                typeName = ((DoubleLiteralExpr) argument).getValue().matches(".*[fF]") ? "float" : "double";
+            } else if (argument instanceof CharLiteralExpr) {
+                typeName = "char";
+            } else if (argument instanceof StringLiteralExpr) {
+                typeName = "String";
+            } else if (argument instanceof BooleanLiteralExpr) {
+                typeName = "boolean";
+            } else {
+                return UNKNOWN_TYPE;
             }
-            if (results.size() == 1) {
-                return Iterables.getOnlyElement(results);
+            // Resolved as parameter types are, so that they compare equal.
+            return symbolTable.resolveTypeHandle(typeName);
+        }
+
+        private void processMethodCall(TypeHandle type, String methodName, List<Expression> arguments,
+                MethodUsage.Kind kind, JumpTarget jumpTarget) {
+            CallSite.Builder callSite = CallSite.newBuilder()
+                    .setMethodName(methodName)
+                    .setArgumentCount(arguments.size())
+                    .setKind(kind)
+                    .setJumpTarget(jumpTarget)
+                    .setSnippet(snippetLine(lines, jumpTarget));
+            for (Expression argument : arguments) {
+                callSite.addArgumentTypes(typeOfArgument(argument));
+            }
+            processMemberReference(type, callSite);
+        }
+
+        private void processMemberReference(TypeHandle type, CallSite.Builder callSite) {
+            if (type == null || type.getKind() != TypeKind.CLASS || !type.getClazz().getResolved()) {
+                return;
+            }
+            ClassType clazz = symbolTable.getClassByHandle(type.getClazz());
+            if (clazz == null) {
+                return;
+            }
+            callSite.setClazz(clazz.getHandle());
+            if (callSites != null && !classIdsOfFile.contains(clazz.getHandle().getId())) {
+                callSites.add(callSite.build());
             } else {
-                return null; // TODO: Support overload.
+                Usage usage = resolveCallSite(callSite.build(), clazz);
+                if (usage != null) {
+                    usages.add(usage);
+                }
             }
         }
 
         @Override
         public void visit(NameExpr node, Void arg) {
+            ParseBudget.checkpoint();
             super.visit(node, arg);
             Variable variable =  symbolTable.getVariable(node.getName());
             if (variable == null) {
@@ -269,20 +377,143 @@ public class ThirdPassProcessor {
         }
     }
 
+    /**
+     * @return the usage of the field or method referred to at {@code callSite}, or {@code null} if {@code clazz}
+     * has no such member, or more than one method matches the call
+     */
+    public static Usage resolveCallSite(CallSite callSite, ClassType clazz) {
+        Preconditions.checkNotNull(callSite);
+        Preconditions.checkNotNull(clazz);
+        String prefix = clazz.getHandle().getName() + ".";
+        if (callSite.hasFieldName()) {
+            for (Variable field : clazz.getFieldsList()) {
+                if (Objects.equal(field.getHandle().getName(), prefix + callSite.getFieldName())) {
+                    return usageOf(VariableUsage.newBuilder()
+                            .setKind(VariableUsage.Kind.ACCESS)
+                            .setVariable(field.getHandle())
+                            .build(), callSite.getJumpTarget(), callSite.getSnippet());
+                }
+            }
+            return null;
+        }
+        List<Method> fixedArity = Lists.newArrayList();
+        List<Method> variableArity = Lists.newArrayList();
+        int argc = callSite.getArgumentCount();
+        for (Method method : clazz.getMethodsList()) {
+            if (!Objects.equal(method.getHandle().getName(), prefix + callSite.getMethodName())) {
+                continue;
+            }
+            int parameterCount = method.getHandle().getParametersCount();
+            if (!method.getVarArgs() && parameterCount == argc) {
+                fixedArity.add(method);
+            } else if (method.getVarArgs() && argc >= parameterCount - 1) {
+                variableArity.add(method);
+            }
+        }
+        // As with javac, methods taking a variable number of arguments are only considered if no other applies.
+        Method method = findMethodByArguments(
+                fixedArity.isEmpty() ? variableArity : fixedArity, callSite.getArgumentTypesList());
+        if (method == null) {
+            return null;
+        }
+        return usageOf(MethodUsage.newBuilder()
+                .setKind(callSite.getKind())
+                .setMethod(method.getHandle())
+                .build(), callSite.getJumpTarget(), callSite.getSnippet());
+    }
+
+    /**
+     * @return the only one of {@code candidates}, or else the only one whose parameters have the types of the
+     * arguments known, or {@code null}
+     */
+    private static Method findMethodByArguments(List<Method> candidates, List<TypeHandle> argumentTypes) {
+        if (candidates.size() == 1) {
+            return Iterables.getOnlyElement(candidates);
+        }
+        List<Method> results = Lists.newArrayList();
+        for (Method method : candidates) {
+            List<TypeHandle> parameterTypes = method.getHandle().getParametersList();
+            boolean matches = true;
+            for (int i = 0; i < argumentTypes.size() && matches; i++) {
+                // Arguments beyond the parameters go to the variable one, which is typed as its elements.
+                TypeHandle parameterType = parameterTypes.get(Math.min(i, parameterTypes.size() - 1));
+                matches = !argumentTypes.get(i).hasKind() || isSameType(argumentTypes.get(i), parameterType);
+            }
+            if (matches) {
+                results.add(method);
+            }
+        }
+        return results.size() == 1 ? Iterables.getOnlyElement(results) : null;
+    }
+
+    /** Compares types resolved in different files, where classes resolved in one may be unresolved in another. */
+    private static boolean isSameType(TypeHandle a, TypeHandle b) {
+        if (a.getKind() != b.getKind()) {
+            return false;
+        } else if (a.getKind() != TypeKind.CLASS) {
+            return Objects.equal(a, b);
+        } else if (a.getClazz().getResolved() && b.getClazz().getResolved()) {
+            return a.getClazz().getId() == b.getClazz().getId();
+        }
+        return Objects.equal(TypeUtils.getSimpleName(dropGenericTypes(a.getClazz().getName())),
+                TypeUtils.getSimpleName(dropGenericTypes(b.getClazz().getName())));
+    }
+
     public static List<Usage> extract(
             FileHandle file,
             String source,
             SymbolTable symbolTable,
             String pkg,
-            IdGenerator idGenerator) throws IOException {
+            KeyedIdGenerator idGenerator) throws IOException {
+        return extract(file, source, ParserUtils.parse(source), symbolTable, pkg, idGenerator);
+    }
+
+    /** Like {@link #extract(FileHandle, String, SymbolTable, String, KeyedIdGenerator)}, but skips parsing. */
+    public static List<Usage> extract(
+            FileHandle file,
+            String source,
+            CompilationUnit compilationUnit,
+            SymbolTable symbolTable,
+            String pkg,
+            KeyedIdGenerator idGenerator) throws IOException {
         Preconditions.checkNotNull(file);
         Preconditions.checkNotNull(source);
         Preconditions.checkNotNull(pkg);
         Preconditions.checkNotNull(idGenerator);
         symbolTable.enterCompilationUnit(pkg);
-        ThirdPassVisitor visitor = new ThirdPassVisitor(file, source, symbolTable, idGenerator);
-        ParserUtils.safeVisit(source, visitor);
+        ThirdPassVisitor visitor = new ThirdPassVisitor(file, source, symbolTable, idGenerator, null, null);
+        ParserUtils.safeVisit(compilationUnit, visitor);
         symbolTable.leaveCompilationUnit();
         return visitor.getUsages();
     }
+
+    /**
+     * Like {@link #extract(FileHandle, String, CompilationUnit, SymbolTable, String, KeyedIdGenerator)}, but references
+     * to fields and methods of classes not in {@code classesOfFile} are returned as call sites, so that
+     * {@code symbolTable} only needs summaries of those classes as the 1st pass produces them, without members.
+     */
+    public static Result extractWithCallSites(
+            FileHandle file,
+            String source,
+            CompilationUnit compilationUnit,
+            SymbolTable symbolTable,
+            String pkg,
+            KeyedIdGenerator idGenerator,
+            Collection<ClassType> classesOfFile) throws IOException {
+        Preconditions.checkNotNull(file);
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(pkg);
+        Preconditions.checkNotNull(idGenerator);
+        Set<Long> classIdsOfFile = Sets.newHashSet();
+        for (ClassType clazz : classesOfFile) {
+            classIdsOfFile.add(clazz.getHandle().getId());
+        }
+        List<CallSite> callSites = Lists.newArrayList();
+        symbolTable.enterCompilationUnit(pkg);
+        ThirdPassVisitor visitor = new ThirdPassVisitor(
+                file, source, symbolTable, idGenerator, callSites, classIdsOfFile);
+        ParserUtils.safeVisit(compilationUnit, visitor);
+        symbolTable.leaveCompilationUnit();
+        return new Result(visitor.getUsages(), callSites);
+    }
 }
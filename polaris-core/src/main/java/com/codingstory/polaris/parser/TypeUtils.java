@@ -1,5 +1,6 @@
 package com.codingstory.polaris.parser;
 
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.VariableUsage;
 import com.codingstory.polaris.parser.ParserProtos.MethodUsage;
@@ -12,6 +13,8 @@ import com.codingstory.polaris.parser.ParserProtos.TypeUsage;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.parser.ParserProtos.Position;
 import com.codingstory.polaris.parser.ParserProtos.Span;
+import com.codingstory.polaris.parser.ParserProtos.Method;
+import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ComparisonChain;
 import org.apache.commons.lang.StringUtils;
@@ -61,6 +64,31 @@ public final class TypeUtils {
         return builder.build();
     }
 
+    /**
+     * Returns what resolving symbols against {@code clazz} from another file needs: handles, kind, super types and
+     * types of members. Javadoc, jump targets and parameter details are dropped, which makes the class much smaller
+     * to ship to every file importing it.
+     */
+    public static ClassType summaryOf(ClassType clazz) {
+        Preconditions.checkNotNull(clazz);
+        ClassType.Builder summary = ClassType.newBuilder()
+                .setHandle(clazz.getHandle())
+                .setKind(clazz.getKind())
+                .addAllSuperTypes(clazz.getSuperTypesList());
+        for (Variable field : clazz.getFieldsList()) {
+            summary.addFields(Variable.newBuilder()
+                    .setHandle(field.getHandle())
+                    .setKind(field.getKind())
+                    .setType(field.getType()));
+        }
+        for (Method method : clazz.getMethodsList()) {
+            summary.addMethods(Method.newBuilder()
+                    .setHandle(method.getHandle()) // Parameter types are kept here.
+                    .setReturnType(method.getReturnType()));
+        }
+        return summary.build();
+    }
+
     /** Gets simple name from a fully qualified name. */
     public static String getSimpleName(String fullName) {
         Preconditions.checkNotNull(fullName);
@@ -72,9 +100,9 @@ public final class TypeUtils {
     }
 
     /** Gets package from a fully qualified name. */
-    public static Object getPackage(String fullName) {
+    public static String getPackage(String fullName) {
         Preconditions.checkNotNull(fullName);
-        int lastDot = fullName.lastIndexOf(fullName);
+        int lastDot = fullName.lastIndexOf('.');
         if (lastDot == -1) {
             return "";
         }
@@ -0,0 +1,189 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.KeyedIdGenerator;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.Method;
+import com.codingstory.polaris.parser.ParserProtos.MethodHandle;
+import com.codingstory.polaris.parser.ParserProtos.TypeHandle;
+import com.codingstory.polaris.parser.ParserProtos.TypeKind;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.parser.ParserProtos.Variable;
+import com.codingstory.polaris.parser.ParserProtos.VariableHandle;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies classes and usages of canonical files to their aliases, see {@link DuplicateFiles}. Each alias gets its own
+ * IDs of the classes, fields, methods and parameters it declares, keyed by the alias and the canonical ID, so that no
+ * two documents share an ID. IDs of copies are checked for collisions like those of any other entity, see
+ * {@link IdCollisions}, and keys of copies whose IDs collide are hashed again. A copy refers to entities of another
+ * canonical file through its alias in the same project, if there is one, so that a library vendored into a project
+ * refers to its own classes. Otherwise it refers to what the canonical file was resolved to.
+ *
+ * <p>Declarations of canonical files are added before any copies are made. Copies may then be made from multiple
+ * threads.
+ */
+class AliasIds {
+
+    private final ListMultimap<Long, FileHandle> aliases;
+    private final KeyedIdGenerator idGenerator;
+    private final Map<Long, FileHandle> declaringFiles = Maps.newHashMap(); // By ID of the entity
+
+    /** @param aliases aliases of each canonical file, by ID of the canonical file */
+    public AliasIds(ListMultimap<Long, FileHandle> aliases, KeyedIdGenerator idGenerator) {
+        this.aliases = Preconditions.checkNotNull(aliases);
+        this.idGenerator = Preconditions.checkNotNull(idGenerator);
+    }
+
+    /** @return whether any file has aliases */
+    public boolean isEmpty() {
+        return aliases.isEmpty();
+    }
+
+    /** Records the entities {@code clazz} declares, if its file has aliases. */
+    public void addDeclarations(ClassType clazz) {
+        FileHandle file = clazz.getJumpTarget().getFile();
+        if (!aliases.containsKey(file.getId())) {
+            return;
+        }
+        declaringFiles.put(clazz.getHandle().getId(), file);
+        for (Variable field : clazz.getFieldsList()) {
+            declaringFiles.put(field.getHandle().getId(), file);
+        }
+        for (Method method : clazz.getMethodsList()) {
+            declaringFiles.put(method.getHandle().getId(), file);
+            for (Variable parameter : method.getParametersList()) {
+                declaringFiles.put(parameter.getHandle().getId(), file);
+            }
+        }
+    }
+
+    /** @return copies of {@code clazz} declared in each alias of its file */
+    public List<ClassType> copiesOf(ClassType clazz) {
+        Preconditions.checkNotNull(clazz);
+        List<ClassType> copies = Lists.newArrayList();
+        for (FileHandle alias : aliases.get(clazz.getJumpTarget().getFile().getId())) {
+            copies.add(copyToAlias(clazz, alias));
+        }
+        return copies;
+    }
+
+    /** @return copies of {@code usage} in each alias of its file */
+    public List<Usage> copiesOf(Usage usage) {
+        Preconditions.checkNotNull(usage);
+        List<Usage> copies = Lists.newArrayList();
+        for (FileHandle alias : aliases.get(usage.getJumpTarget().getFile().getId())) {
+            copies.add(copyToAlias(usage, alias));
+        }
+        return copies;
+    }
+
+    private ClassType copyToAlias(ClassType clazz, FileHandle alias) {
+        ClassType.Builder builder = clazz.toBuilder();
+        builder.getJumpTargetBuilder().setFile(alias);
+        mapClass(builder.getHandleBuilder(), alias);
+        for (int i = 0; i < builder.getSuperTypesCount(); i++) {
+            mapType(builder.getSuperTypesBuilder(i), alias);
+        }
+        for (int i = 0; i < builder.getFieldsCount(); i++) {
+            mapVariable(builder.getFieldsBuilder(i), alias);
+        }
+        for (int i = 0; i < builder.getMethodsCount(); i++) {
+            Method.Builder method = builder.getMethodsBuilder(i);
+            method.getJumpTargetBuilder().setFile(alias);
+            mapMethod(method.getHandleBuilder(), alias);
+            if (method.hasReturnType()) {
+                mapType(method.getReturnTypeBuilder(), alias);
+            }
+            for (int j = 0; j < method.getParametersCount(); j++) {
+                mapVariable(method.getParametersBuilder(j), alias);
+            }
+            for (int j = 0; j < method.getExceptionsCount(); j++) {
+                mapType(method.getExceptionsBuilder(j), alias);
+            }
+        }
+        return builder.build();
+    }
+
+    private Usage copyToAlias(Usage usage, FileHandle alias) {
+        Usage.Builder builder = usage.toBuilder();
+        builder.getJumpTargetBuilder().setFile(alias);
+        switch (usage.getKind()) {
+            case TYPE:
+                mapType(builder.getTypeBuilder().getTypeBuilder(), alias);
+                break;
+            case METHOD:
+                mapMethod(builder.getMethodBuilder().getMethodBuilder(), alias);
+                break;
+            case VARIABLE:
+                VariableHandle.Builder variable = builder.getVariableBuilder().getVariableBuilder();
+                variable.setId(idInAlias(variable.getId(), alias));
+                break;
+            default:
+                throw new AssertionError("Unknown kind: " + usage.getKind());
+        }
+        return builder.build();
+    }
+
+    private void mapVariable(Variable.Builder variable, FileHandle alias) {
+        if (variable.hasJumpTarget()) {
+            variable.getJumpTargetBuilder().setFile(alias);
+        }
+        variable.getHandleBuilder().setId(idInAlias(variable.getHandle().getId(), alias));
+        if (variable.hasType()) {
+            mapType(variable.getTypeBuilder(), alias);
+        }
+    }
+
+    private void mapMethod(MethodHandle.Builder method, FileHandle alias) {
+        method.setId(idInAlias(method.getId(), alias));
+        for (int i = 0; i < method.getParametersCount(); i++) {
+            mapType(method.getParametersBuilder(i), alias);
+        }
+    }
+
+    private void mapType(TypeHandle.Builder type, FileHandle alias) {
+        if (type.getKind() == TypeKind.CLASS) {
+            mapClass(type.getClazzBuilder(), alias);
+        }
+    }
+
+    private void mapClass(ClassTypeHandle.Builder clazz, FileHandle alias) {
+        clazz.setId(idInAlias(clazz.getId(), alias));
+    }
+
+    /**
+     * @return ID of entity {@code id} as seen from {@code alias}: its copy in {@code alias}, if declared by the
+     * canonical file of the alias, or else in the alias of the declaring file with the least path in the same
+     * project. Entities without such copies keep {@code id}.
+     */
+    private long idInAlias(long id, FileHandle alias) {
+        FileHandle declaringFile = declaringFiles.get(id);
+        if (declaringFile == null) {
+            return id;
+        }
+        List<FileHandle> candidates = aliases.get(declaringFile.getId());
+        FileHandle copy = null;
+        if (candidates.contains(alias)) {
+            copy = alias;
+        } else if (!declaringFile.getProject().equals(alias.getProject())) {
+            for (FileHandle candidate : candidates) {
+                if (candidate.getProject().equals(alias.getProject())
+                        && (copy == null || candidate.getPath().compareTo(copy.getPath()) < 0)) {
+                    copy = candidate;
+                }
+            }
+        }
+        if (copy == null) {
+            return id;
+        }
+        return idGenerator.next("alias:" + copy.getProject() + copy.getPath() + ":" + id);
+    }
+}
@@ -0,0 +1,68 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups files to be processed by content, so that identical files, e.g. libraries vendored into many projects, are
+ * parsed and annotated once. Of each group, the file with the least project and path is processed, so the choice
+ * does not depend on the order files are read in. Others are its aliases, which share its source, and get copies of
+ * its classes and usages when the index is built, see {@link AliasIds}. Files may be added from multiple threads.
+ */
+class DuplicateFiles {
+
+    private final Map<String, FileHandle> canonicalFiles = Maps.newHashMap(); // By content hash
+    private final ListMultimap<String, FileHandle> filesByContent = ArrayListMultimap.create();
+    private final Set<Long> displacedFileIds = Sets.newHashSet();
+
+    /**
+     * @return whether content of the file needs to be written into pipeline input, i.e. no file read before with the
+     * same content precedes it
+     */
+    public synchronized boolean add(FileHandle file, String contentHash) {
+        filesByContent.put(contentHash, file);
+        FileHandle canonical = canonicalFiles.get(contentHash);
+        if (canonical != null && keyOf(canonical).compareTo(keyOf(file)) <= 0) {
+            return false;
+        }
+        if (canonical != null) {
+            displacedFileIds.add(canonical.getId());
+        }
+        canonicalFiles.put(contentHash, file);
+        return true;
+    }
+
+    /** @return aliases of each canonical file, by ID of the canonical file */
+    public synchronized ListMultimap<Long, FileHandle> getAliases() {
+        ImmutableListMultimap.Builder<Long, FileHandle> aliases = ImmutableListMultimap.builder();
+        for (Map.Entry<String, FileHandle> entry : canonicalFiles.entrySet()) {
+            FileHandle canonical = entry.getValue();
+            for (FileHandle file : filesByContent.get(entry.getKey())) {
+                if (file.getId() != canonical.getId()) {
+                    aliases.put(canonical.getId(), file);
+                }
+            }
+        }
+        return aliases.build();
+    }
+
+    /**
+     * @return IDs of aliases whose content has been written into pipeline input, since they were canonical until a
+     * preceding file with the same content was read. The engines skip them.
+     */
+    public synchronized Set<Long> getDisplacedFileIds() {
+        return ImmutableSet.copyOf(displacedFileIds);
+    }
+
+    private static String keyOf(FileHandle file) {
+        return file.getProject() + file.getPath(); // Path starts with "/"
+    }
+}
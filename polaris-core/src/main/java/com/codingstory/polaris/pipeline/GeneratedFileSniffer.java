@@ -0,0 +1,47 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Tells generated sources, e.g. of protobuf, ANTLR, JAXB or JavaCC, by markers their generators put in the header:
+ * comments and {@code @Generated} annotations on the class. Only the header is looked at, without parsing it, so
+ * that every file read can be sniffed. Markers are matched as whole words, so that e.g. {@code @GeneratedValue} of
+ * JPA or a hand-written "do not edit" note is not taken for one.
+ */
+final class GeneratedFileSniffer {
+    private GeneratedFileSniffer() {}
+
+    private static final int HEADER_BYTES = 8192; // Past imports of most generated classes
+    private static final List<Pattern> MARKERS = ImmutableList.of(
+            // @Generated, and the Javadoc tag of EMF and others
+            Pattern.compile("@[Gg]enerated\\b"),
+            // Imported or fully qualified javax.annotation.Generated, or its successor of Java 9
+            Pattern.compile("\\bannotation\\.(?:processing\\.)?Generated\\b"),
+            // protobuf, Thrift, Avro and many others: "Generated by ... DO NOT EDIT", on the same or following lines
+            Pattern.compile("\\b(?:auto-?)?generated\\b.{0,200}?\\bdo not edit\\b",
+                    Pattern.CASE_INSENSITIVE | Pattern.DOTALL),
+            // ANTLR 4: "Generated from Foo.g4 by ANTLR 4.x"
+            Pattern.compile("\\bby ANTLR\\b"),
+            // ANTLR 3
+            Pattern.compile("\\$ANTLR "),
+            // JAXB
+            Pattern.compile("\\bArchitecture for XML Binding\\b", Pattern.CASE_INSENSITIVE),
+            Pattern.compile("\\bGenerated By:\\s*JavaCC\\b", Pattern.CASE_INSENSITIVE));
+
+    public static boolean isGenerated(byte[] content) {
+        Preconditions.checkNotNull(content);
+        // Markers are ASCII, so the header needs no decoding. Non-ASCII bytes of it are not matched anyway.
+        String header = new String(content, 0, Math.min(content.length, HEADER_BYTES), Charsets.ISO_8859_1);
+        for (Pattern marker : MARKERS) {
+            if (marker.matcher(header).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
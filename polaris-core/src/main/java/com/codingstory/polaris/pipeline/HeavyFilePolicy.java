@@ -0,0 +1,67 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.Serializable;
+
+/**
+ * Tells heavy files, such as generated parser tables, which take longer in the 2nd and 3rd pass than thousands of
+ * normal files combined. Files are classified by lines when they are read, and by symbol nodes of their AST in the
+ * 1st pass. Heavy files are processed in partitions of their own, and optionally in reduced form: types and members
+ * only, without usages.
+ */
+public class HeavyFilePolicy implements Serializable {
+
+    public static final int DEFAULT_MAX_LINES = 20000;
+    public static final int DEFAULT_MAX_SYMBOL_NODES = 200000;
+    public static final int DEFAULT_PARTITIONS = 16;
+
+    private int maxLines = DEFAULT_MAX_LINES;
+    private int maxSymbolNodes = DEFAULT_MAX_SYMBOL_NODES;
+    private int partitions = DEFAULT_PARTITIONS;
+    private boolean reduced = false;
+
+    public void setThresholds(int maxLines, int maxSymbolNodes) {
+        Preconditions.checkArgument(maxLines > 0);
+        Preconditions.checkArgument(maxSymbolNodes > 0);
+        this.maxLines = maxLines;
+        this.maxSymbolNodes = maxSymbolNodes;
+    }
+
+    /** Sets number of reduce partitions heavy files are spread over by the MapReduce engine. */
+    public void setPartitions(int partitions) {
+        Preconditions.checkArgument(partitions > 0);
+        this.partitions = partitions;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setReduced(boolean reduced) {
+        this.reduced = reduced;
+    }
+
+    /** Classifies a file by its source, before it is parsed. */
+    public boolean isHeavySource(String content) {
+        Preconditions.checkNotNull(content);
+        return StringUtils.countMatches(content, "\n") >= maxLines;
+    }
+
+    /** Classifies a file by its AST, once the 1st pass has parsed it. */
+    public boolean isHeavyAst(int symbolNodes) {
+        return symbolNodes > maxSymbolNodes;
+    }
+
+    /** @return whether usages of a heavy file are skipped */
+    public boolean isReduced() {
+        return reduced;
+    }
+
+    /** Describes settings which change outputs, but not {@link #getPartitions()}. */
+    @Override
+    public String toString() {
+        return "maxLines=" + maxLines + ",maxSymbolNodes=" + maxSymbolNodes + ",reduced=" + reduced;
+    }
+}
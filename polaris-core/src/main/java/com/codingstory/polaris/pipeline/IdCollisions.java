@@ -0,0 +1,171 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
+import com.codingstory.polaris.parser.ParserProtos.Method;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.parser.ParserProtos.Variable;
+import com.codingstory.polaris.parser.ParserProtos.VariableUsage;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Finds IDs given to different entities, which {@link com.codingstory.polaris.HashIdGenerator} derives from keys
+ * hashing alike. Entities are recorded as they are indexed, by ID and by what tells them apart otherwise, e.g. a class
+ * by its file and name. Records are sorted on disk, so that memory used does not grow with the index. Entities may be
+ * recorded from multiple threads.
+ */
+class IdCollisions implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(IdCollisions.class);
+
+    /** Kinds of entities, which tell where an ID is looked up in the existing index. */
+    enum Kind {
+        TYPE,
+        METHOD,
+        PARAMETER,
+        VARIABLE, // Fields and local variables, which are told apart by where they are declared
+        FILE
+    }
+
+    /** IDs of entities in the existing index, which stay in it. */
+    interface ExistingIds {
+        boolean contains(Kind kind, long id) throws IOException;
+    }
+
+    private final FileSystem fs;
+    private final Configuration conf;
+    private final Path records;
+    private final SequenceFile.Writer out;
+    private final LongWritable key = new LongWritable();
+    private final Text value = new Text();
+    private boolean closed = false;
+
+    /** Keeps records in {@code dir} on {@code fs}, which is deleted once done. */
+    public IdCollisions(FileSystem fs, Configuration conf, Path dir) throws IOException {
+        this.fs = Preconditions.checkNotNull(fs);
+        this.conf = Preconditions.checkNotNull(conf);
+        this.records = new Path(Preconditions.checkNotNull(dir), "ids");
+        this.out = SequenceFile.createWriter(fs, conf, records, LongWritable.class, Text.class);
+    }
+
+    /** Records {@code clazz} and the fields, methods and parameters it declares. */
+    public void addClass(ClassType clazz) throws IOException {
+        Preconditions.checkNotNull(clazz);
+        long fileId = clazz.getJumpTarget().getFile().getId();
+        add(clazz.getHandle().getId(), Kind.TYPE, PipelineStages.typeKey(fileId, clazz.getHandle().getName()));
+        for (Variable field : clazz.getFieldsList()) {
+            addVariable(field.getHandle().getId(), fileId, field.getHandle().getName(), field.getJumpTarget());
+        }
+        for (Method method : clazz.getMethodsList()) {
+            String methodKey = PipelineStages.methodKey(fileId, method.getHandle());
+            add(method.getHandle().getId(), Kind.METHOD, methodKey);
+            for (int i = 0; i < method.getParametersCount(); i++) {
+                add(method.getParameters(i).getHandle().getId(), Kind.PARAMETER, methodKey + "#" + i);
+            }
+        }
+    }
+
+    /** Records the variable {@code usage} declares, if any. Variables are only declared by usages. */
+    public void addUsage(Usage usage) throws IOException {
+        Preconditions.checkNotNull(usage);
+        if (usage.getKind() != Usage.Kind.VARIABLE
+                || usage.getVariable().getKind() != VariableUsage.Kind.DECLARATION) {
+            return;
+        }
+        addVariable(usage.getVariable().getVariable().getId(), usage.getJumpTarget().getFile().getId(),
+                usage.getVariable().getVariable().getName(), usage.getJumpTarget());
+    }
+
+    public void addFile(FileHandle file) throws IOException {
+        Preconditions.checkNotNull(file);
+        add(file.getId(), Kind.FILE, file.getProject() + file.getPath());
+    }
+
+    /**
+     * A field is recorded both with its class and by its declaration, alike, since both are where its name is.
+     * Local variables are declared once per name in a scope, so they are told apart by where they are declared.
+     */
+    private void addVariable(long id, long fileId, String name, JumpTarget declaration) throws IOException {
+        add(id, Kind.VARIABLE, fileId + ":" + name + "@" + declaration.getSpan().getFrom().getLine() + ":"
+                + declaration.getSpan().getFrom().getColumn());
+    }
+
+    private void add(long id, Kind kind, String identity) throws IOException {
+        synchronized (out) {
+            key.set(id);
+            value.set(kind.name() + " " + identity);
+            out.append(key, value);
+        }
+    }
+
+    /**
+     * Sorts the records by ID and finds IDs recorded for different entities, or for an entity and one in
+     * {@code existing}, unless it is {@code null}. No more entities may be recorded after.
+     *
+     * @return the colliding IDs
+     */
+    public Set<Long> find(ExistingIds existing) throws IOException {
+        close();
+        Path sorted = new Path(records.getParent(), "ids-sorted");
+        new SequenceFile.Sorter(fs, LongWritable.class, Text.class, conf).sort(records, sorted);
+        Set<Long> colliding = Sets.newTreeSet();
+        SequenceFile.Reader in = new SequenceFile.Reader(fs, sorted, conf);
+        try {
+            LongWritable id = new LongWritable();
+            Text identity = new Text();
+            boolean more = in.next(id, identity);
+            while (more) {
+                long groupId = id.get();
+                String groupIdentity = identity.toString();
+                boolean collides = false;
+                while ((more = in.next(id, identity)) && id.get() == groupId) {
+                    if (!identity.toString().equals(groupIdentity)) {
+                        if (!collides) {
+                            LOG.warn("ID " + groupId + " is given to both " + groupIdentity + " and " + identity);
+                        }
+                        collides = true;
+                    }
+                }
+                if (!collides && existing != null && existing.contains(kindOf(groupIdentity), groupId)) {
+                    LOG.warn("ID " + groupId + " of " + groupIdentity + " is given to another entity in the index");
+                    collides = true;
+                }
+                if (collides) {
+                    colliding.add(groupId);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        fs.delete(records.getParent(), true);
+        return colliding;
+    }
+
+    private static Kind kindOf(String identity) {
+        return Kind.valueOf(identity.substring(0, identity.indexOf(' ')));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (out) {
+            if (!closed) {
+                out.close();
+                closed = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Paths of a project left out of the index, by rules in gitignore syntax: global excludes, followed by those of
+ * the project's {@code .polarisignore}. The last rule matching a path decides, and a rule starting with "!"
+ * includes again what an earlier one excluded. As with git, files in an excluded directory cannot be included again.
+ */
+class IgnoreRules {
+
+    public static final String FILE_NAME = ".polarisignore";
+    public static final IgnoreRules NONE = new IgnoreRules(ImmutableList.<Rule>of());
+
+    private static class Rule {
+        private final String line; // As written, without blanks around
+        private final Pattern pattern;
+        private final boolean negated;
+        private final boolean directoryOnly;
+        private final boolean anchored; // Matches the whole path, not the name at any depth
+
+        private Rule(String line, Pattern pattern, boolean negated, boolean directoryOnly, boolean anchored) {
+            this.line = line;
+            this.pattern = pattern;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+        }
+
+        /** @param path relative to the project, without leading or trailing "/" */
+        private boolean matches(String path, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+            return pattern.matcher(anchored ? path : path.substring(path.lastIndexOf('/') + 1)).matches();
+        }
+    }
+
+    private final List<Rule> rules;
+
+    private IgnoreRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @return these rules followed by {@code lines} in gitignore syntax, which take precedence. Blank lines and
+     * comments starting with "#" are skipped.
+     */
+    public IgnoreRules with(Iterable<String> lines) {
+        Preconditions.checkNotNull(lines);
+        List<Rule> combined = Lists.newArrayList(rules);
+        for (String line : lines) {
+            Rule rule = parseRule(line);
+            if (rule != null) {
+                combined.add(rule);
+            }
+        }
+        return new IgnoreRules(ImmutableList.copyOf(combined));
+    }
+
+    /**
+     * @return a hash of the rules, which differs if they may ignore other paths. Blank lines and comments are not
+     * rules, so they leave it as is.
+     */
+    public String fingerprint() {
+        Hasher hasher = Hashing.md5().newHasher();
+        for (Rule rule : rules) {
+            hasher.putBytes(rule.line.getBytes(Charsets.UTF_8)).putByte((byte) '\n');
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @param path starting with "/", as files and directories are named in pipeline input. Directories may end with
+     * "/".
+     */
+    public boolean isIgnored(String path, boolean directory) {
+        Preconditions.checkNotNull(path);
+        if (rules.isEmpty()) {
+            return false;
+        }
+        String relative = path.replaceAll("^/+|/+$", "");
+        if (relative.isEmpty()) {
+            return false; // The project root
+        }
+        int slash = -1;
+        while ((slash = relative.indexOf('/', slash + 1)) != -1) {
+            if (decide(relative.substring(0, slash), true)) {
+                return true;
+            }
+        }
+        return decide(relative, directory);
+    }
+
+    private boolean decide(String path, boolean directory) {
+        boolean ignored = false;
+        for (Rule rule : rules) {
+            if (rule.matches(path, directory)) {
+                ignored = !rule.negated;
+            }
+        }
+        return ignored;
+    }
+
+    private static Rule parseRule(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        String pattern = trimmed;
+        boolean negated = pattern.startsWith("!");
+        if (negated) {
+            pattern = pattern.substring(1);
+        }
+        boolean directoryOnly = pattern.endsWith("/");
+        pattern = pattern.replaceAll("/+$", "");
+        // A slash anywhere but the end anchors the pattern to the project root.
+        boolean anchored = pattern.contains("/");
+        pattern = pattern.replaceAll("^/+", "");
+        if (pattern.isEmpty()) {
+            return null;
+        }
+        return new Rule(trimmed, Pattern.compile(toRegex(pattern)), negated, directoryOnly, anchored);
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (glob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?"); // Any directories, including none
+                i += 2;
+            } else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[' && glob.indexOf(']', i + 1) > i + 1) {
+                int end = glob.indexOf(']', i + 1);
+                String set = glob.substring(i + 1, end);
+                regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                i = end;
+            } else if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,445 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.KeyedIdGenerator;
+import com.codingstory.polaris.parser.ParseBudget;
+import com.codingstory.polaris.parser.ParseBudgetExceededException;
+import com.codingstory.polaris.parser.ParserProtos.CallSite;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.pipeline.PipelineCounters.Counter;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileImports;
+import com.codingstory.polaris.pipeline.PipelineProtos.FirstPassResult;
+import com.codingstory.polaris.pipeline.PipelineProtos.ParsedFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.QuarantinedFile;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.SetMultimap;
+import com.google.protobuf.Message;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the stages of {@link IndexPipeline} inside the current JVM on a thread pool, keeping all intermediate
+ * records in memory. It reads and writes the same SequenceFiles as the MapReduce pipeline, so the index built
+ * from its output is the same.
+ */
+class InMemoryIndexEngine {
+
+    private static final Log LOG = LogFactory.getLog(InMemoryIndexEngine.class);
+    private static final Ordering<ClassType> CLASS_ORDER = Ordering.natural().onResultOf(
+            new Function<ClassType, Long>() {
+                @Override
+                public Long apply(ClassType clazz) {
+                    return PipelineStages.classSortKey(clazz);
+                }
+            });
+    private static final Ordering<Usage> USAGE_ORDER = Ordering.natural().onResultOf(
+            new Function<Usage, Long>() {
+                @Override
+                public Long apply(Usage usage) {
+                    return PipelineStages.usageSortKey(usage);
+                }
+            });
+    private static final Ordering<SourceFile> SOURCE_ORDER = Ordering.natural().onResultOf(
+            new Function<SourceFile, String>() {
+                @Override
+                public String apply(SourceFile source) {
+                    return PipelineStages.sourceSortKey(source);
+                }
+            });
+
+    /** Transforms one record. Returns {@code null} to drop the record. */
+    private interface Stage<I, O> {
+        O apply(I in) throws IOException;
+    }
+
+    private final Configuration conf;
+    private final FileSystem fs;
+    private final KeyedIdGenerator idGenerator;
+    private final int threads;
+    private final Map<String, Long> previousIds;
+    private final PipelineCounters counters;
+    private final HeavyFilePolicy heavyFiles;
+    private final ParseBudget parseBudget;
+    private final Set<Long> displacedFileIds;
+
+    /** @param displacedFileIds files in the input to skip, see {@link DuplicateFiles#getDisplacedFileIds()} */
+    public InMemoryIndexEngine(Configuration conf, FileSystem fs, KeyedIdGenerator idGenerator, int threads,
+            Map<String, Long> previousIds, PipelineCounters counters, HeavyFilePolicy heavyFiles,
+            ParseBudget parseBudget, Set<Long> displacedFileIds) {
+        Preconditions.checkArgument(threads > 0);
+        this.conf = Preconditions.checkNotNull(conf);
+        this.fs = Preconditions.checkNotNull(fs);
+        this.idGenerator = Preconditions.checkNotNull(idGenerator);
+        this.threads = threads;
+        this.previousIds = Preconditions.checkNotNull(previousIds);
+        this.counters = Preconditions.checkNotNull(counters);
+        this.heavyFiles = Preconditions.checkNotNull(heavyFiles);
+        this.parseBudget = Preconditions.checkNotNull(parseBudget);
+        this.displacedFileIds = Preconditions.checkNotNull(displacedFileIds);
+    }
+
+    public void run(Path inputDir, Path contextDir, Path classOutputDir, Path usageOutputDir,
+            Path sourceOutputDir, Path quarantineDir) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            doRun(executor, inputDir, contextDir, classOutputDir, usageOutputDir, sourceOutputDir, quarantineDir);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void doRun(ExecutorService executor, Path inputDir, Path contextDir, Path classOutputDir,
+            Path usageOutputDir, Path sourceOutputDir, Path quarantineDir) throws IOException {
+        List<FileContent> fileContents = Lists.newArrayList();
+        for (FileContent fileContent : readMessages(inputDir, FileContent.getDefaultInstance())) {
+            if (!displacedFileIds.contains(fileContent.getFile().getId())) {
+                fileContents.add(fileContent);
+            }
+        }
+        List<ParsedFile> context = readMessages(contextDir, ParsedFile.getDefaultInstance());
+        LOG.info("Loaded " + fileContents.size() + " file(s) into memory, running on " + threads + " thread(s)");
+
+        List<FirstPassResult> firstPassResults = parallel(executor, "FirstPass", fileContents,
+                new Stage<FileContent, FirstPassResult>() {
+                    @Override
+                    public FirstPassResult apply(FileContent in) throws IOException {
+                        try {
+                            return PipelineStages.firstPass(in, idGenerator, heavyFiles, parseBudget);
+                        } catch (ParseBudgetExceededException e) {
+                            counters.increment("FirstPass", Counter.QUARANTINED, 1);
+                            LOG.warn("Parsing " + in.getFile() + " exceeds the budget: " + e.getMessage());
+                            return PipelineStages.quarantined(in, e.getMessage());
+                        }
+                    }
+                });
+        List<ParsedFile> parsedFiles1stPass = Lists.newArrayListWithCapacity(firstPassResults.size());
+        List<FileImports> fileImports = Lists.newArrayListWithCapacity(firstPassResults.size());
+        List<QuarantinedFile> quarantined = Lists.newArrayList();
+        for (FirstPassResult result : firstPassResults) {
+            if (result.hasQuarantineReason()) {
+                quarantined.add(QuarantinedFile.newBuilder()
+                        .setFile(result.getParsedFile().getFile())
+                        .setReason(result.getQuarantineReason())
+                        .build());
+                continue;
+            }
+            if (result.getParsedFile().getHeavy()) {
+                counters.increment("FirstPass", Counter.HEAVY_FILES, 1);
+            }
+            parsedFiles1stPass.add(PipelineStages.restoreIds(result.getParsedFile(), previousIds));
+            fileImports.add(result.getImports());
+        }
+        counters.increment("ExtractImports", Counter.RECORDS_IN, firstPassResults.size());
+        counters.increment("ExtractImports", Counter.RECORDS_OUT, fileImports.size());
+
+        final Map<Long, FileContent> fileContentById = Maps.newHashMap();
+        for (FileContent fileContent : fileContents) {
+            fileContentById.put(fileContent.getFile().getId(), fileContent);
+        }
+        final SetMultimap<Long, Long> importGraph = buildImportGraph(
+                fileImports, ImmutableList.copyOf(Iterables.concat(parsedFiles1stPass, context)));
+
+        final Map<Long, List<ClassType>> summariesById1stPass = indexSummariesById(
+                Iterables.concat(parsedFiles1stPass, context));
+        final ListMultimap<String, ClassType> classesByPackage1stPass = indexClassesByPackage(
+                Iterables.concat(parsedFiles1stPass, context), summariesById1stPass);
+        List<ParsedFile> parsedFiles2ndPass = parallel(executor, "SecondPass", parsedFiles1stPass,
+                new Stage<ParsedFile, ParsedFile>() {
+                    @Override
+                    public ParsedFile apply(ParsedFile in) throws IOException {
+                        FileContent fileContent = fileContentById.get(in.getFile().getId());
+                        Collection<ClassType> importedClasses = collectImportedClasses(
+                                in, importGraph, summariesById1stPass, classesByPackage1stPass);
+                        countJoin("SecondPass", fileContent, importedClasses);
+                        return PipelineStages.secondPass(
+                                fileContent, in, importedClasses, idGenerator, heavyFiles, previousIds, parseBudget);
+                    }
+                });
+
+        List<Usage> callSiteUsages = resolveCallSites(parsedFiles2ndPass, context);
+        List<Usage> usages = Lists.newArrayList();
+        for (ParsedFile parsedFile : parsedFiles2ndPass) {
+            usages.addAll(parsedFile.getUsagesList());
+        }
+        usages.addAll(callSiteUsages);
+
+        final Map<Long, Long> useCounts = Maps.newHashMap();
+        for (Usage usage : usages) {
+            Long classId = PipelineStages.usedClassId(usage);
+            if (classId != null) {
+                Long count = useCounts.get(classId);
+                useCounts.put(classId, count == null ? 1L : count + 1);
+            }
+        }
+        final Multimap<Long, Usage> callSiteUsagesByFileId = ArrayListMultimap.create();
+        for (Usage usage : callSiteUsages) {
+            callSiteUsagesByFileId.put(usage.getJumpTarget().getFile().getId(), usage);
+        }
+        List<ClassType> classes = Lists.newArrayList();
+        for (ParsedFile parsedFile : parsedFiles2ndPass) {
+            for (ClassType clazz : parsedFile.getClassesList()) {
+                classes.add(PipelineStages.fillUseCount(clazz, useCounts.get(clazz.getHandle().getId())));
+            }
+        }
+        counters.increment("FillClassesWithUseCounts", Counter.RECORDS_IN, classes.size());
+        counters.increment("FillClassesWithUseCounts", Counter.RECORDS_OUT, classes.size());
+
+        List<SourceFile> sources = parallel(executor, "AnnotateSource", parsedFiles2ndPass,
+                new Stage<ParsedFile, SourceFile>() {
+                    @Override
+                    public SourceFile apply(ParsedFile in) throws IOException {
+                        return PipelineStages.annotate(in, callSiteUsagesByFileId.get(in.getFile().getId()));
+                    }
+                });
+
+        // Sorted by the same keys as outputs of the MapReduce pipeline.
+        writeParts(classOutputDir, CLASS_ORDER.sortedCopy(classes));
+        writeParts(usageOutputDir, USAGE_ORDER.sortedCopy(usages));
+        writeParts(sourceOutputDir, SOURCE_ORDER.sortedCopy(sources));
+        writeMessages(new Path(quarantineDir, "part-m-00000"), quarantined);
+    }
+
+    /** Resolves call sites recorded by the 2nd pass against members of the classes they refer to. */
+    private List<Usage> resolveCallSites(List<ParsedFile> parsedFiles2ndPass, List<ParsedFile> context) {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        Map<Long, ClassType> classesById = Maps.newHashMap();
+        for (ParsedFile parsedFile : Iterables.concat(parsedFiles2ndPass, context)) {
+            for (ClassType clazz : parsedFile.getClassesList()) {
+                classesById.put(clazz.getHandle().getId(), clazz);
+            }
+        }
+        int callSites = 0;
+        List<Usage> usages = Lists.newArrayList();
+        for (ParsedFile parsedFile : parsedFiles2ndPass) {
+            for (CallSite callSite : parsedFile.getCallSitesList()) {
+                callSites++;
+                ClassType clazz = classesById.get(callSite.getClazz().getId());
+                Usage usage = (clazz == null ? null : PipelineStages.resolveCallSite(callSite, clazz));
+                if (usage != null) {
+                    usages.add(usage);
+                }
+            }
+        }
+        counters.increment("ResolveCallSites", Counter.WALL_MILLIS, stopWatch.getTime());
+        counters.increment("ResolveCallSites", Counter.RECORDS_IN, callSites);
+        counters.increment("ResolveCallSites", Counter.RECORDS_OUT, usages.size());
+        return usages;
+    }
+
+    /**
+     * Produces import relation A -> B if A imports a class declared in B, explicitly or by a wildcard import.
+     * Classes in the same package are looked up by package instead, which keeps the graph linear in the number of
+     * files.
+     */
+    private static SetMultimap<Long, Long> buildImportGraph(
+            List<FileImports> fileImports, List<ParsedFile> parsedFiles) {
+        Multimap<String, Long> filesByDeclaredClass = HashMultimap.create();
+        for (ParsedFile parsedFile : parsedFiles) {
+            for (ClassType clazz : parsedFile.getClassesList()) {
+                filesByDeclaredClass.put(clazz.getHandle().getName(), parsedFile.getFile().getId());
+            }
+        }
+        SetMultimap<Long, Long> importGraph = HashMultimap.create();
+        for (FileImports imports : fileImports) {
+            long importer = imports.getFile().getId();
+            for (String clazz : imports.getImportedClassesList()) {
+                importGraph.putAll(importer, filesByDeclaredClass.get(clazz));
+            }
+            for (String clazz : PipelineStages.wildcardImportCandidates(imports)) {
+                importGraph.putAll(importer, filesByDeclaredClass.get(clazz));
+            }
+        }
+        return importGraph;
+    }
+
+    private static Collection<ClassType> collectImportedClasses(ParsedFile importer,
+            SetMultimap<Long, Long> importGraph, Map<Long, List<ClassType>> summariesById,
+            ListMultimap<String, ClassType> classesByPackage) {
+        List<ClassType> classes = Lists.newArrayList();
+        for (Long imported : importGraph.get(importer.getFile().getId())) {
+            List<ClassType> summaries = summariesById.get(imported);
+            if (summaries != null) {
+                classes.addAll(summaries);
+            }
+        }
+        return PipelineStages.mergeImportedClasses(classes, classesByPackage.get(importer.getPackage()));
+    }
+
+    private static ListMultimap<String, ClassType> indexClassesByPackage(Iterable<ParsedFile> parsedFiles,
+            Map<Long, List<ClassType>> summariesById) {
+        ListMultimap<String, ClassType> result = ArrayListMultimap.create();
+        for (ParsedFile parsedFile : parsedFiles) {
+            result.putAll(parsedFile.getPackage(), summariesById.get(parsedFile.getFile().getId()));
+        }
+        return result;
+    }
+
+    /** Summarizes classes once per pass, since every summary is shipped to many importers. */
+    private static Map<Long, List<ClassType>> indexSummariesById(Iterable<ParsedFile> parsedFiles) {
+        Map<Long, List<ClassType>> result = Maps.newHashMap();
+        for (ParsedFile parsedFile : parsedFiles) {
+            result.put(parsedFile.getFile().getId(), PipelineStages.summarizeClasses(parsedFile));
+        }
+        return result;
+    }
+
+    /**
+     * Applies {@code stage} to every input on the thread pool. Records failing with IOException are dropped. Heavy
+     * files are submitted first, so that they do not trail the stage on a single thread, but results keep the order
+     * of inputs.
+     */
+    private <I, O> List<O> parallel(ExecutorService executor, final String name, List<I> inputs,
+            final Stage<I, O> stage) throws IOException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        List<Future<O>> futures = Lists.newArrayList(Collections.<Future<O>>nCopies(inputs.size(), null));
+        for (int i : heavyFirst(inputs)) {
+            final I in = inputs.get(i);
+            futures.set(i, executor.submit(new Callable<O>() {
+                @Override
+                public O call() {
+                    long cpuTime = PipelineCounters.cpuTimeNanos();
+                    if (in instanceof FileContent) {
+                        counters.increment(name, Counter.SOURCE_CHARS, ((FileContent) in).getContent().length());
+                    }
+                    try {
+                        return stage.apply(in);
+                    } catch (IOException e) {
+                        counters.increment(name, Counter.PARSE_FAILURES, 1);
+                        LOG.warn("Failed to process " + describe(in));
+                        LOG.debug("Exception", e);
+                        return null;
+                    } finally {
+                        counters.increment(name, Counter.CPU_NANOS, PipelineCounters.cpuTimeNanos() - cpuTime);
+                    }
+                }
+            }));
+        }
+        List<O> results = Lists.newArrayListWithCapacity(inputs.size());
+        try {
+            for (Future<O> future : futures) {
+                O out = future.get();
+                if (out != null) {
+                    results.add(out);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Stage " + name + " failed", e.getCause());
+        }
+        LOG.info(name + " completes in " + stopWatch.getTime() + " ms: " + inputs.size() + " in, "
+                + results.size() + " out");
+        counters.increment(name, Counter.WALL_MILLIS, stopWatch.getTime());
+        counters.increment(name, Counter.RECORDS_IN, inputs.size());
+        counters.increment(name, Counter.RECORDS_OUT, results.size());
+        return results;
+    }
+
+    /** Counts what the 2nd pass of a file reads, other than the parsed file. */
+    private void countJoin(String name, FileContent fileContent, Collection<ClassType> importedClasses) {
+        counters.increment(name, Counter.SOURCE_CHARS, fileContent.getContent().length());
+        counters.increment(name, Counter.IMPORTED_CLASSES, importedClasses.size());
+    }
+
+    /** @return indexes of {@code inputs}, heavy files first */
+    private static List<Integer> heavyFirst(List<?> inputs) {
+        List<Integer> heavy = Lists.newArrayList();
+        List<Integer> normal = Lists.newArrayListWithCapacity(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            (isHeavy(inputs.get(i)) ? heavy : normal).add(i);
+        }
+        heavy.addAll(normal);
+        return heavy;
+    }
+
+    private static boolean isHeavy(Object in) {
+        if (in instanceof FileContent) {
+            return ((FileContent) in).getHeavy();
+        } else if (in instanceof ParsedFile) {
+            return ((ParsedFile) in).getHeavy();
+        }
+        return false;
+    }
+
+    private static String describe(Object in) {
+        if (in instanceof FileContent) {
+            return ((FileContent) in).getFile().toString();
+        } else if (in instanceof ParsedFile) {
+            return ((ParsedFile) in).getFile().toString();
+        }
+        return String.valueOf(in);
+    }
+
+    private <T extends Message> List<T> readMessages(Path inputDir, T prototype) throws IOException {
+        List<T> results = Lists.newArrayList();
+        BytesWritable value = new BytesWritable();
+        for (Path file : SequenceFiles.listParts(fs, inputDir)) {
+            SequenceFile.Reader r = new SequenceFile.Reader(fs, file, conf);
+            try {
+                T message;
+                while ((message = SequenceFiles.next(r, value, prototype)) != null) {
+                    results.add(message);
+                }
+            } finally {
+                r.close();
+            }
+        }
+        return results;
+    }
+
+    /** Splits {@code messages} into one part file per thread, so that the index shards can be built in parallel. */
+    private void writeParts(Path outputDir, List<? extends Message> messages) throws IOException {
+        int partSize = Math.max(1, (messages.size() + threads - 1) / threads);
+        int n = 0;
+        for (List<? extends Message> part : Lists.partition(messages, partSize)) {
+            writeMessages(new Path(outputDir, String.format("part-m-%05d", n++)), part);
+        }
+        if (n == 0) {
+            writeMessages(new Path(outputDir, "part-m-00000"), messages);
+        }
+    }
+
+    private void writeMessages(Path file, Iterable<? extends Message> messages) throws IOException {
+        SequenceFiles.Writer w = SequenceFiles.createWriter(fs, conf, file);
+        try {
+            for (Message message : messages) {
+                w.append(message);
+            }
+        } finally {
+            w.close();
+        }
+    }
+}
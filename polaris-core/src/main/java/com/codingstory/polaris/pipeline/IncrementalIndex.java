@@ -0,0 +1,663 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.KeyedIdGenerator;
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.parser.ParseBudget;
+import com.codingstory.polaris.parser.ParseBudgetExceededException;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.Method;
+import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.parser.ParserProtos.Variable;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileImports;
+import com.codingstory.polaris.pipeline.PipelineProtos.IndexManifest;
+import com.codingstory.polaris.pipeline.PipelineProtos.IndexedFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.IndexedRepository;
+import com.codingstory.polaris.pipeline.PipelineProtos.ParsedFile;
+import com.codingstory.polaris.sourcedb.SourceDb;
+import com.codingstory.polaris.sourcedb.SourceDbImpl;
+import com.codingstory.polaris.sourcedb.SourceDbWriter;
+import com.codingstory.polaris.typedb.TypeDb;
+import com.codingstory.polaris.typedb.TypeDbImpl;
+import com.codingstory.polaris.typedb.TypeDbWriter;
+import com.codingstory.polaris.usagedb.UsageDb;
+import com.codingstory.polaris.usagedb.UsageDbImpl;
+import com.codingstory.polaris.usagedb.UsageDbWriter;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares files being indexed against the manifest of an existing index, so that {@link IndexPipeline} only
+ * processes files whose content has changed, plus files referring to them. Classes and members of reprocessed
+ * files keep their IDs, so documents of other files remain valid. Files may be checked from multiple threads.
+ */
+class IncrementalIndex {
+
+    private static final Log LOG = LogFactory.getLog(IncrementalIndex.class);
+    private static final int TYPES_PAGE_SIZE = 1000;
+
+    private final Map<String, IndexedFile> previousFiles = Maps.newHashMap();
+    private final Map<String, FileHandle> previousDirs = Maps.newHashMap();
+    private final ListMultimap<Long, FileHandle> previousAliases = ArrayListMultimap.create(); // By canonical ID
+    private final Set<Long> previousAliasIds = Sets.newHashSet();
+    private final Map<String, IndexedFile> currentFiles = Maps.newLinkedHashMap();
+    private final Map<String, FileHandle> currentDirs = Maps.newLinkedHashMap();
+    private final Map<String, String> indexedCommits = Maps.newHashMap();
+    private final Map<String, String> indexedIgnoreRules = Maps.newHashMap(); // By repository, see IgnoreRules
+    private final Set<String> scannedProjects = Sets.newHashSet();
+    private final Set<String> deletedKeys = Sets.newHashSet();
+    private final Set<Long> reprocessedFileIds = Sets.newHashSet();
+    private final List<FileImports> reprocessedImports = Lists.newArrayList();
+    private final List<FileHandle> deletedFiles = Lists.newArrayList();
+    private final List<FileHandle> deletedDirs = Lists.newArrayList();
+    private final List<FileContent> dependents = Lists.newArrayList();
+    private final List<ParsedFile> context = Lists.newArrayList();
+    private final Map<String, Long> previousIds = Maps.newHashMap();
+    private final Map<Long, Long> retainedUseCounts = Maps.newHashMap();
+    private final Set<Long> collidingIds = Sets.newHashSet();
+    private boolean hasNewOrChangedFiles = false;
+    private ParseBudget parseBudget = ParseBudget.UNLIMITED;
+    private final File indexDir;
+
+    private IncrementalIndex(File indexDir, IndexManifest manifest) {
+        this.indexDir = indexDir;
+        for (IndexedFile file : manifest.getFilesList()) {
+            previousFiles.put(keyOf(file.getFile()), file);
+            if (file.hasAliasOf()) {
+                previousAliases.put(file.getAliasOf(), file.getFile());
+                previousAliasIds.add(file.getFile().getId());
+            }
+        }
+        for (FileHandle dir : manifest.getDirectoriesList()) {
+            previousDirs.put(keyOf(dir), dir);
+        }
+        for (IndexedRepository repo : manifest.getRepositoriesList()) {
+            indexedCommits.put(repo.getName(), repo.getCommit());
+            if (repo.hasIgnoreRules()) {
+                indexedIgnoreRules.put(repo.getName(), repo.getIgnoreRules());
+            }
+        }
+        collidingIds.addAll(manifest.getCollidingIdsList());
+    }
+
+    /** Starts a full build, which records a new manifest. */
+    public static IncrementalIndex create() {
+        return new IncrementalIndex(null, IndexManifest.getDefaultInstance());
+    }
+
+    /** Starts an incremental build upon the index in {@code indexDir}, or a full build if there is none. */
+    public static IncrementalIndex open(File indexDir) throws IOException {
+        Preconditions.checkNotNull(indexDir);
+        File manifestFile = IndexPathUtils.getManifestPath(indexDir);
+        if (!manifestFile.exists()) {
+            LOG.info("No manifest in " + indexDir + ", will build index from scratch");
+            return create();
+        }
+        IndexManifest manifest = IndexManifest.parseFrom(FileUtils.readFileToByteArray(manifestFile));
+        LOG.info("Loaded manifest of " + manifest.getFilesCount() + " file(s)");
+        return new IncrementalIndex(indexDir, manifest);
+    }
+
+    public boolean hasPreviousIndex() {
+        return indexDir != null;
+    }
+
+    /**
+     * @param ignoreRules fingerprint of the ignore rules the repository is read with, see IgnoreRules
+     * @return the HEAD commit of the repository when it was indexed, or {@code null} if unknown or indexed with other
+     * ignore rules, which may have left out files that are not ignored now, or included files that are
+     */
+    public synchronized String getIndexedCommit(String repo, String ignoreRules) {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(ignoreRules);
+        if (!hasPreviousIndex() || !ignoreRules.equals(indexedIgnoreRules.get(repo))) {
+            return null;
+        }
+        return indexedCommits.get(repo);
+    }
+
+    public synchronized void setIndexedCommit(String repo, String commit, String ignoreRules) {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(commit);
+        Preconditions.checkNotNull(ignoreRules);
+        indexedCommits.put(repo, commit);
+        indexedIgnoreRules.put(repo, ignoreRules);
+    }
+
+    /** @return IDs which different keys have hashed to, see {@link com.codingstory.polaris.HashIdGenerator} */
+    public synchronized Set<Long> getCollidingIds() {
+        return ImmutableSet.copyOf(collidingIds);
+    }
+
+    public synchronized void addCollidingIds(Collection<Long> ids) {
+        Preconditions.checkNotNull(ids);
+        collidingIds.addAll(ids);
+    }
+
+    /**
+     * Declares every file of the project will be checked, so files not checked have been deleted. Otherwise, only
+     * files passed to {@link #deletePath(String, String)} are considered deleted.
+     */
+    public synchronized void setFullScan(String project) {
+        Preconditions.checkNotNull(project);
+        scannedProjects.add(project);
+    }
+
+    /**
+     * @return whether the file has been indexed with {@code contentHash}, without checking it, unlike
+     * {@link #checkFile}
+     */
+    public synchronized boolean isUnchanged(String project, String path, String contentHash) {
+        Preconditions.checkNotNull(contentHash);
+        IndexedFile previous = previousFiles.get(keyOf(project, path));
+        return previous != null && Objects.equal(previous.getContentHash(), contentHash);
+    }
+
+    /** @return handle of the file if it needs to be processed, or {@code null} if it is unchanged */
+    public synchronized FileHandle checkFile(String project, String path, String contentHash,
+            KeyedIdGenerator idGenerator) {
+        Preconditions.checkNotNull(project);
+        Preconditions.checkNotNull(path);
+        Preconditions.checkNotNull(contentHash);
+        String key = keyOf(project, path);
+        IndexedFile previous = previousFiles.get(key);
+        if (previous != null && Objects.equal(previous.getContentHash(), contentHash)) {
+            currentFiles.put(key, previous);
+            return null;
+        }
+        FileHandle handle = FileHandle.newBuilder()
+                .setId(previous != null ? previous.getFile().getId() : newId(key, idGenerator))
+                .setProject(project)
+                .setPath(path)
+                .build();
+        currentFiles.put(key, IndexedFile.newBuilder()
+                .setFile(handle)
+                .setContentHash(contentHash)
+                .build());
+        if (previous != null) {
+            reprocessedFileIds.add(handle.getId());
+        }
+        hasNewOrChangedFiles = true;
+        return handle;
+    }
+
+    /** @return handle of the directory if it is new, or {@code null} if it has been indexed */
+    public synchronized FileHandle checkDirectory(String project, String path, KeyedIdGenerator idGenerator) {
+        Preconditions.checkNotNull(project);
+        Preconditions.checkNotNull(path);
+        String key = keyOf(project, path);
+        FileHandle previous = previousDirs.get(key);
+        if (previous != null) {
+            currentDirs.put(key, previous);
+            return null;
+        }
+        FileHandle handle = FileHandle.newBuilder()
+                .setId(newId(key, idGenerator))
+                .setProject(project)
+                .setPath(path)
+                .build();
+        currentDirs.put(key, handle);
+        hasNewOrChangedFiles = true;
+        return handle;
+    }
+
+    private static long newId(String key, KeyedIdGenerator idGenerator) {
+        return idGenerator.next("file:" + key);
+    }
+
+    /**
+     * Drops a file which failed to be processed from the manifest, so that it is checked again next time.
+     *
+     * @return its content hash, or {@code null} if the file is unknown
+     */
+    public synchronized String dropFile(FileHandle file) {
+        Preconditions.checkNotNull(file);
+        IndexedFile dropped = currentFiles.remove(keyOf(file));
+        return dropped != null ? dropped.getContentHash() : null;
+    }
+
+    /** Records files processed in place of identical ones, which are reprocessed together when either changes. */
+    public synchronized void setAliases(ListMultimap<Long, FileHandle> aliases) {
+        Preconditions.checkNotNull(aliases);
+        for (Map.Entry<Long, FileHandle> entry : aliases.entries()) {
+            String key = keyOf(entry.getValue());
+            IndexedFile file = currentFiles.get(key);
+            if (file != null) {
+                currentFiles.put(key, file.toBuilder().setAliasOf(entry.getKey()).build());
+            }
+        }
+    }
+
+    /** Marks a file or directory (with path ending with "/") as deleted. */
+    public synchronized void deletePath(String project, String path) {
+        Preconditions.checkNotNull(project);
+        Preconditions.checkNotNull(path);
+        String key = keyOf(project, path);
+        IndexedFile previousFile = previousFiles.get(key);
+        if (previousFile != null && deletedKeys.add(key)) {
+            deletedFiles.add(previousFile.getFile());
+        }
+        FileHandle previousDir = previousDirs.get(key);
+        if (previousDir != null && deletedKeys.add(key)) {
+            deletedDirs.add(previousDir);
+        }
+    }
+
+    /** Limits parsing files to find their imports, which is unlimited by default. */
+    public void setParseBudget(ParseBudget parseBudget) {
+        this.parseBudget = Preconditions.checkNotNull(parseBudget);
+    }
+
+    /**
+     * Remembers what a file to be processed imports, which decides the context loaded from the existing index.
+     *
+     * @return {@code fileContent}, marked to be quarantined by the 1st pass if parsing it exceeds the budget
+     */
+    public FileContent recordImports(FileContent fileContent) {
+        if (!hasPreviousIndex()) {
+            return fileContent;
+        }
+        FileImports imports;
+        try {
+            imports = PipelineStages.extractImports(fileContent, parseBudget);
+        } catch (ParseBudgetExceededException e) {
+            LOG.warn("Parsing " + fileContent.getFile() + " exceeds the budget: " + e.getMessage());
+            return fileContent.toBuilder()
+                    .setQuarantineReason(e.getMessage())
+                    .build();
+        } catch (IOException e) {
+            LOG.debug("Failed to extract imports from " + fileContent.getFile(), e);
+            return fileContent;
+        }
+        synchronized (this) {
+            reprocessedImports.add(imports);
+        }
+        return fileContent;
+    }
+
+    /**
+     * Called after all files are checked. Finds deleted files, files depending on changed files and the context
+     * needed to resolve symbols in files to be processed.
+     */
+    public void prepare() throws IOException {
+        for (Map.Entry<String, IndexedFile> entry : previousFiles.entrySet()) {
+            FileHandle file = entry.getValue().getFile();
+            if (currentFiles.containsKey(entry.getKey()) || deletedKeys.contains(entry.getKey())) {
+                continue;
+            }
+            if (scannedProjects.contains(file.getProject())) {
+                deletedFiles.add(file);
+            } else {
+                currentFiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, FileHandle> entry : previousDirs.entrySet()) {
+            FileHandle dir = entry.getValue();
+            if (currentDirs.containsKey(entry.getKey()) || deletedKeys.contains(entry.getKey())) {
+                continue;
+            }
+            if (scannedProjects.contains(dir.getProject())) {
+                deletedDirs.add(dir);
+            } else {
+                currentDirs.put(entry.getKey(), dir);
+            }
+        }
+        if (!hasPreviousIndex()) {
+            return;
+        }
+
+        TypeDb typeDb = null;
+        UsageDb usageDb = null;
+        SourceDb sourceDb = null;
+        try {
+            typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+            usageDb = new UsageDbImpl(IndexPathUtils.getUsageDbPath(indexDir));
+            sourceDb = new SourceDbImpl(IndexPathUtils.getSourceDbPath(indexDir));
+            findDependents(typeDb, usageDb, sourceDb);
+            collectPreviousIds(typeDb, usageDb);
+            collectContext(typeDb);
+        } finally {
+            IOUtils.closeQuietly(typeDb);
+            IOUtils.closeQuietly(usageDb);
+            IOUtils.closeQuietly(sourceDb);
+        }
+        LOG.info(String.format("%d file(s) to reindex, %d depending file(s), %d deleted file(s), " +
+                "%d file(s) of context", reprocessedFileIds.size() - dependents.size(), dependents.size(),
+                deletedFiles.size(), context.size()));
+    }
+
+    /**
+     * Files referring to entities declared in changed or deleted files are reprocessed as well, and so are files
+     * referring to classes they could not resolve by the simple name of a class declared in new or changed files,
+     * which may have been added or renamed. So are aliases of reprocessed or deleted files, since their documents are
+     * copies. Entities of an alias are copies of those of its canonical file, with IDs of their own, which other
+     * files may refer to.
+     */
+    private void findDependents(TypeDb typeDb, UsageDb usageDb, SourceDb sourceDb) throws IOException {
+        Set<Long> changedFileIds = Sets.newHashSet(reprocessedFileIds);
+        for (FileHandle file : deletedFiles) {
+            changedFileIds.add(file.getId());
+        }
+        Set<Long> dependentFileIds = Sets.newHashSet();
+        Set<String> declaredClasses = Sets.newHashSet();
+        synchronized (this) {
+            for (FileImports imports : reprocessedImports) {
+                declaredClasses.addAll(imports.getDeclaredClassesList());
+            }
+        }
+        for (String name : declaredClasses) {
+            for (Long usingFileId : usageDb.findFilesWithUnresolvedName(name)) {
+                if (!changedFileIds.contains(usingFileId)) {
+                    dependentFileIds.add(usingFileId);
+                }
+            }
+        }
+        for (Long fileId : changedFileIds) {
+            for (ClassType clazz : getTypesInFile(typeDb, fileId)) {
+                List<Usage> usages = Lists.newArrayList();
+                usages.addAll(usageDb.query(Usage.Kind.TYPE, clazz.getHandle().getId()));
+                for (Method method : clazz.getMethodsList()) {
+                    usages.addAll(usageDb.query(Usage.Kind.METHOD, method.getHandle().getId()));
+                }
+                for (Variable field : clazz.getFieldsList()) {
+                    usages.addAll(usageDb.query(Usage.Kind.VARIABLE, field.getHandle().getId()));
+                }
+                for (Usage usage : usages) {
+                    long usingFileId = usage.getJumpTarget().getFile().getId();
+                    if (!changedFileIds.contains(usingFileId)) {
+                        dependentFileIds.add(usingFileId);
+                    }
+                }
+            }
+        }
+        for (Long fileId : ImmutableList.copyOf(Iterables.concat(changedFileIds, dependentFileIds))) {
+            for (FileHandle alias : previousAliases.get(fileId)) {
+                if (!changedFileIds.contains(alias.getId())) {
+                    dependentFileIds.add(alias.getId());
+                }
+            }
+        }
+        for (Long fileId : dependentFileIds) {
+            SourceFile source = sourceDb.querySourceById(fileId);
+            if (source == null) {
+                LOG.warn("Missing source of depending file " + fileId);
+                continue;
+            }
+            String key = keyOf(source.getHandle());
+            IndexedFile current = currentFiles.get(key);
+            if (current != null && current.hasAliasOf()) {
+                currentFiles.put(key, current.toBuilder().clearAliasOf().build()); // Grouped again by the run.
+            }
+            FileContent fileContent = FileContent.newBuilder()
+                    .setFile(source.getHandle())
+                    .setContent(source.getSource())
+                    .build();
+            dependents.add(recordImports(fileContent));
+            reprocessedFileIds.add(fileId);
+        }
+    }
+
+    /** Also counts usages of reprocessed classes from files not reprocessed, since they won't be counted again. */
+    private void collectPreviousIds(TypeDb typeDb, UsageDb usageDb) throws IOException {
+        for (Long fileId : reprocessedFileIds) {
+            if (previousAliasIds.contains(fileId)) {
+                continue; // IDs of an alias are derived from those of its canonical file.
+            }
+            for (ClassType clazz : getTypesInFile(typeDb, fileId)) {
+                long typeId = clazz.getHandle().getId();
+                previousIds.put(PipelineStages.typeKey(fileId, clazz.getHandle().getName()), typeId);
+                for (Method method : clazz.getMethodsList()) {
+                    previousIds.put(PipelineStages.methodKey(fileId, method.getHandle()), method.getHandle().getId());
+                }
+                for (Variable field : clazz.getFieldsList()) {
+                    previousIds.put(PipelineStages.fieldKey(fileId, field.getHandle().getName()),
+                            field.getHandle().getId());
+                }
+                long retained = 0;
+                for (Usage usage : usageDb.query(Usage.Kind.TYPE, typeId)) {
+                    if (!reprocessedFileIds.contains(usage.getJumpTarget().getFile().getId())) {
+                        retained++;
+                    }
+                }
+                retainedUseCounts.put(typeId, retained);
+            }
+        }
+    }
+
+    /** Loads classes which files to be processed may refer to, i.e. imported classes and same-package classes. */
+    private void collectContext(TypeDb typeDb) throws IOException {
+        Set<Long> deletedFileIds = Sets.newHashSet();
+        for (FileHandle file : deletedFiles) {
+            deletedFileIds.add(file.getId());
+        }
+        Set<String> packages = Sets.newHashSet();
+        Set<String> classes = Sets.newHashSet();
+        for (FileImports imports : reprocessedImports) {
+            packages.add(imports.getPackage());
+            classes.addAll(imports.getImportedClassesList());
+            classes.addAll(PipelineStages.wildcardImportCandidates(imports));
+        }
+        Set<Long> contextFileIds = Sets.newHashSet();
+        for (String clazz : classes) {
+            for (ClassType classType : getTypesByName(typeDb, clazz)) {
+                contextFileIds.add(classType.getJumpTarget().getFile().getId());
+            }
+        }
+        for (String pkg : packages) {
+            for (ClassType classType : typeDb.getTypesInPackage(pkg, Integer.MAX_VALUE)) {
+                contextFileIds.add(classType.getJumpTarget().getFile().getId());
+            }
+        }
+        for (Long fileId : contextFileIds) {
+            if (reprocessedFileIds.contains(fileId) || deletedFileIds.contains(fileId)
+                    || previousAliasIds.contains(fileId)) {
+                continue;
+            }
+            List<ClassType> types = getTypesInFile(typeDb, fileId);
+            if (types.isEmpty()) {
+                continue;
+            }
+            context.add(ParsedFile.newBuilder()
+                    .setFile(types.get(0).getJumpTarget().getFile())
+                    .setPackage(packageOf(types))
+                    .addAllClasses(types)
+                    .build());
+        }
+    }
+
+    /**
+     * TypeDb returns the first n matches only, so asks for twice as many until fewer are returned. Files of
+     * generated code may declare thousands of classes.
+     */
+    private static List<ClassType> getTypesInFile(TypeDb typeDb, long fileId) throws IOException {
+        int n = TYPES_PAGE_SIZE;
+        List<ClassType> types = typeDb.getTypesInFile(fileId, n);
+        while (types.size() == n) {
+            n *= 2;
+            types = typeDb.getTypesInFile(fileId, n);
+        }
+        return types;
+    }
+
+    private static List<ClassType> getTypesByName(TypeDb typeDb, String name) throws IOException {
+        int n = TYPES_PAGE_SIZE;
+        List<ClassType> types = typeDb.getTypeByName(name, null, n);
+        while (types.size() == n) {
+            n *= 2;
+            types = typeDb.getTypeByName(name, null, n);
+        }
+        return types;
+    }
+
+    /** The package of a file is the qualifier of its outermost class, which has the shortest name. */
+    private static String packageOf(List<ClassType> types) {
+        String outermost = null;
+        for (ClassType type : types) {
+            String name = type.getHandle().getName();
+            if (outermost == null || name.length() < outermost.length()) {
+                outermost = name;
+            }
+        }
+        int lastDot = outermost.lastIndexOf('.');
+        return lastDot == -1 ? "" : outermost.substring(0, lastDot);
+    }
+
+    /** @return whether the existing index is already up to date */
+    public boolean isUpToDate() {
+        return hasPreviousIndex() && !hasNewOrChangedFiles && deletedFiles.isEmpty() && deletedDirs.isEmpty();
+    }
+
+    /** Unchanged files which need to be processed again because files they depend on have changed. */
+    public List<FileContent> getDependents() {
+        return ImmutableList.copyOf(dependents);
+    }
+
+    /** Classes of unchanged files, used to resolve symbols in files being processed. */
+    public List<ParsedFile> getContext() {
+        return ImmutableList.copyOf(context);
+    }
+
+    /** IDs of entities declared in reprocessed files. See {@link PipelineStages#restoreIds}. */
+    public Map<String, Long> getPreviousIds() {
+        return ImmutableMap.copyOf(previousIds);
+    }
+
+    /** Adds usages which are not counted by the pipeline. */
+    public ClassType adjustUseCount(ClassType clazz) {
+        Long retained = retainedUseCounts.get(clazz.getHandle().getId());
+        if (retained == null) {
+            return clazz;
+        }
+        return PipelineStages.fillUseCount(clazz, clazz.getUseCount() + retained);
+    }
+
+    /**
+     * Finds IDs recorded in {@code ids} which collide, with each other or with IDs of the existing index which stay,
+     * i.e. of files neither reprocessed nor deleted. Parameters and local variables of the existing index are only
+     * found by their usages.
+     */
+    public Set<Long> findIdCollisions(IdCollisions ids) throws IOException {
+        Preconditions.checkNotNull(ids);
+        if (!hasPreviousIndex()) {
+            return ids.find(null);
+        }
+        final Set<Long> purgedFileIds = Sets.newHashSet(reprocessedFileIds);
+        for (FileHandle file : deletedFiles) {
+            purgedFileIds.add(file.getId());
+        }
+        TypeDb typeDb = null;
+        UsageDb usageDb = null;
+        SourceDb sourceDb = null;
+        try {
+            typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+            usageDb = new UsageDbImpl(IndexPathUtils.getUsageDbPath(indexDir));
+            sourceDb = new SourceDbImpl(IndexPathUtils.getSourceDbPath(indexDir));
+            final TypeDb types = typeDb;
+            final UsageDb usages = usageDb;
+            final SourceDb sources = sourceDb;
+            return ids.find(new IdCollisions.ExistingIds() {
+                @Override
+                public boolean contains(IdCollisions.Kind kind, long id) throws IOException {
+                    switch (kind) {
+                        case TYPE:
+                            ClassType clazz = types.getTypeById(id);
+                            return clazz != null && !purgedFileIds.contains(clazz.getJumpTarget().getFile().getId());
+                        case METHOD:
+                            Method method = types.getMethodById(id);
+                            return method != null
+                                    && !purgedFileIds.contains(method.getJumpTarget().getFile().getId());
+                        case FILE:
+                            return !purgedFileIds.contains(id) && sources.querySourceById(id) != null;
+                        default:
+                            Variable field = types.getFieldById(id);
+                            if (field != null) {
+                                return !purgedFileIds.contains(field.getJumpTarget().getFile().getId());
+                            }
+                            for (Usage usage : usages.query(Usage.Kind.VARIABLE, id)) {
+                                if (!purgedFileIds.contains(usage.getJumpTarget().getFile().getId())) {
+                                    return true;
+                                }
+                            }
+                            return false;
+                    }
+                }
+            });
+        } finally {
+            IOUtils.closeQuietly(typeDb);
+            IOUtils.closeQuietly(usageDb);
+            IOUtils.closeQuietly(sourceDb);
+        }
+    }
+
+    /** Deletes documents of reprocessed and deleted files from the index. */
+    public void purge(TypeDbWriter typeDb, SourceDbWriter sourceDb, UsageDbWriter usageDb) throws IOException {
+        Collection<Long> fileIds = Sets.newHashSet(reprocessedFileIds);
+        for (FileHandle file : deletedFiles) {
+            fileIds.add(file.getId());
+        }
+        for (Long fileId : fileIds) {
+            typeDb.deleteFile(fileId);
+            sourceDb.deleteSourceFile(fileId);
+            usageDb.deleteFile(fileId);
+        }
+        for (FileHandle dir : deletedDirs) {
+            sourceDb.deleteDirectory(dir.getProject(), dir.getPath());
+        }
+        LOG.info("Purged " + fileIds.size() + " file(s) and " + deletedDirs.size() + " directories");
+    }
+
+    public void save(File indexDir) throws IOException {
+        Preconditions.checkNotNull(indexDir);
+        IndexManifest.Builder manifest = IndexManifest.newBuilder()
+                .addAllFiles(currentFiles.values())
+                .addAllDirectories(currentDirs.values());
+        for (Map.Entry<String, String> entry : indexedCommits.entrySet()) {
+            IndexedRepository.Builder repo = IndexedRepository.newBuilder()
+                    .setName(entry.getKey())
+                    .setCommit(entry.getValue());
+            String ignoreRules = indexedIgnoreRules.get(entry.getKey());
+            if (ignoreRules != null) {
+                repo.setIgnoreRules(ignoreRules);
+            }
+            manifest.addRepositories(repo);
+        }
+        synchronized (this) {
+            manifest.addAllCollidingIds(Sets.newTreeSet(collidingIds));
+        }
+        File manifestFile = IndexPathUtils.getManifestPath(indexDir);
+        File tempFile = new File(manifestFile.getPath() + ".tmp");
+        FileUtils.writeByteArrayToFile(tempFile, manifest.build().toByteArray());
+        FileUtils.deleteQuietly(manifestFile);
+        FileUtils.moveFile(tempFile, manifestFile);
+    }
+
+    private static String keyOf(FileHandle file) {
+        return keyOf(file.getProject(), file.getPath());
+    }
+
+    private static String keyOf(String project, String path) {
+        return project + path; // Path starts with "/"
+    }
+}
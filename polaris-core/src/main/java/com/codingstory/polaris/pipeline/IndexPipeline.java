@@ -1,23 +1,27 @@
 package com.codingstory.polaris.pipeline;
 
-import com.codingstory.polaris.IdGenerator;
-import com.codingstory.polaris.SimpleIdGenerator;
+import com.codingstory.polaris.HashIdGenerator;
+import com.codingstory.polaris.HashUtils;
 import com.codingstory.polaris.indexing.DirectoryTranverser;
 import com.codingstory.polaris.indexing.IndexPathUtils;
-import com.codingstory.polaris.parser.FirstPassProcessor;
-import com.codingstory.polaris.parser.ImportExtractor;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
+import com.codingstory.polaris.parser.CompilationUnitCache;
+import com.codingstory.polaris.parser.ParseBudget;
+import com.codingstory.polaris.parser.ParseBudgetExceededException;
+import com.codingstory.polaris.parser.ParserProtos.CallSite;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
-import com.codingstory.polaris.parser.ParserProtos.TypeUsage;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
-import com.codingstory.polaris.parser.SecondPassProcessor;
-import com.codingstory.polaris.parser.SourceAnnotator;
-import com.codingstory.polaris.parser.SymbolTable;
-import com.codingstory.polaris.parser.ThirdPassProcessor;
+import com.codingstory.polaris.parser.TypeUtils;
+import com.codingstory.polaris.pipeline.PipelineCounters.Counter;
 import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
 import com.codingstory.polaris.pipeline.PipelineProtos.FileImports;
+import com.codingstory.polaris.pipeline.PipelineProtos.FirstPassResult;
 import com.codingstory.polaris.pipeline.PipelineProtos.ParsedFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.PipelineReport;
+import com.codingstory.polaris.pipeline.PipelineProtos.QuarantinedFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.StageReport;
 import com.codingstory.polaris.repo.GitUtils;
 import com.codingstory.polaris.repo.Repository;
 import com.codingstory.polaris.sourcedb.SourceDbWriter;
@@ -26,13 +30,23 @@ import com.codingstory.polaris.typedb.TypeDbWriter;
 import com.codingstory.polaris.typedb.TypeDbWriterImpl;
 import com.codingstory.polaris.usagedb.UsageDbWriter;
 import com.codingstory.polaris.usagedb.UsageDbWriterImpl;
-import com.google.common.base.Joiner;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.format.JsonFormat;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -42,6 +56,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.crunch.CombineFn;
 import org.apache.crunch.DoFn;
 import org.apache.crunch.Emitter;
+import org.apache.crunch.FilterFn;
 import org.apache.crunch.MapFn;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PTable;
@@ -56,21 +71,30 @@ import org.apache.crunch.lib.Join;
 import org.apache.crunch.types.PTableType;
 import org.apache.crunch.types.PType;
 import org.apache.crunch.types.writable.WritableTypeFamily;
+import org.apache.crunch.util.DistCache;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.SequenceFile;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.codingstory.polaris.CollectionUtils.nullToEmptyCollection;
 import static org.apache.crunch.types.PTypes.protos;
@@ -83,47 +107,133 @@ import static org.apache.crunch.types.writable.Writables.triples;
 /** A series of MapReduce jobs transforming source files into things needed to be indexed. */
 public class IndexPipeline implements Serializable {
 
+    /** Where the indexing stages are executed. */
+    public enum Engine {
+        /** Crunch MapReduce jobs, on the local job runner or the cluster given to the pipeline. */
+        MAPREDUCE,
+        /** A thread pool inside current JVM. All intermediate records are kept in memory. */
+        INMEMORY
+    }
+
+    /** What becomes of generated sources, see {@link GeneratedFileSniffer}. */
+    public enum GeneratedFiles {
+        /** Indexed like other files. */
+        INDEX,
+        /** Only types and members are indexed, so that references to them still resolve. */
+        TYPES_ONLY,
+        /**
+         * Left out, like ignored files. Only new and changed files are sniffed on incremental runs, so switching to
+         * it takes a full run.
+         */
+        SKIP
+    }
+
     private static final Log LOG = LogFactory.getLog(IndexPipeline.class);
-    private static final IdGenerator ID_GENERATOR = new SimpleIdGenerator(); // Just OK for local MR.
     private static final WritableTypeFamily TYPE_FAMILY = WritableTypeFamily.getInstance();
     private static final PType<ParsedFile> PARSED_FILE_PTYPE = protos(ParsedFile.class, TYPE_FAMILY);
     private static final PType<FileContent> FILE_CONTENT_PTYPE = protos(FileContent.class, TYPE_FAMILY);
     private static final PType<FileImports> FILE_IMPORTS_PTYPE = protos(FileImports.class, TYPE_FAMILY);
+    private static final PType<FirstPassResult> FIRST_PASS_RESULT_PTYPE =
+            protos(FirstPassResult.class, TYPE_FAMILY);
     private static final PType<ClassType> CLASS_TYPE_PTYPE = protos(ClassType.class, TYPE_FAMILY);
     private static final PType<Usage> USAGE_PTYPE = protos(Usage.class, TYPE_FAMILY);
+    private static final PType<CallSite> CALL_SITE_PTYPE = protos(CallSite.class, TYPE_FAMILY);
     private static final PType<SourceFile> SOURCE_FILE_PTYPE = protos(SourceFile.class, TYPE_FAMILY);
+    private static final PType<QuarantinedFile> QUARANTINED_FILE_PTYPE = protos(QuarantinedFile.class, TYPE_FAMILY);
+    private static final int DEFAULT_SHARD_BATCH_SIZE = 4096;
+    private static final int MAX_RUNS_FOR_ID_COLLISIONS = 3;
+    private static final String STAGE_FIRST_PASS = "first-pass";
+    private static final String STAGE_IMPORT_GRAPH = "import-graph";
+    private static final String STAGE_SECOND_PASS = "second-pass";
+    private static final String STAGE_CALL_SITES = "call-sites";
+    private static final String STAGE_OUTPUTS = "outputs";
+    private static final String STAGE_IN_MEMORY = "in-memory";
+    /** Stages run on {@link Engine#MAPREDUCE}, in order, each as a pipeline of its own. */
+    private static final List<String> MAPREDUCE_STAGES = ImmutableList.of(
+            STAGE_FIRST_PASS, STAGE_IMPORT_GRAPH, STAGE_SECOND_PASS, STAGE_CALL_SITES, STAGE_OUTPUTS);
 
     private final transient Configuration conf; // "transient" No need to access it from MR tasks.
     private final transient FileSystem fs;
-    private static final int MAX_IMPORTED_CLASSES = 1000; // prevent OOM
+    private final transient boolean local;
     private transient List<Repository> repos = Lists.newArrayList();
     private transient List<File> dirs = Lists.newArrayList();
-    private File workingDir;
-    private File inputDir1;
-    private File inputDir2;
-    private File classOutputDir;
-    private File sourceOutputDir;
-    private File usageOutputDir;
+    private transient List<File> jobJars = Lists.newArrayList();
+    // Paths on fs, which may be a cluster's file system. Path is not serializable.
+    private transient Path workingDir;
+    private transient Path inputDir1;
+    private transient Path inputDir2;
+    private transient Path contextDir;
+    private transient List<Partition> partitions = ImmutableList.of();
     private File indexDir;
+    private Map<String, Long> previousIds = ImmutableMap.of();
+    private HashIdGenerator idGenerator = new HashIdGenerator();
+    private final HeavyFilePolicy heavyFiles = new HeavyFilePolicy();
+    private ParseBudget parseBudget = ParseBudget.DEFAULT;
+    private transient List<String> excludes = Lists.newArrayList();
+    private transient GeneratedFiles generatedFiles = GeneratedFiles.TYPES_ONLY;
+    private transient File quarantineFile;
+    private transient Quarantine quarantine;
+    private transient Set<Long> quarantinedFileIds = Sets.newHashSet();
+    private transient DuplicateFiles duplicateFiles;
+    private transient ListMultimap<Long, FileHandle> aliases = ImmutableListMultimap.of();
+    private Set<Long> displacedFileIds = ImmutableSet.of(); // See DuplicateFiles#getDisplacedFileIds()
+    private transient Engine engine = Engine.MAPREDUCE;
+    private transient int threads = Runtime.getRuntime().availableProcessors();
+    private transient boolean incremental = false;
+    private transient IncrementalIndex incrementalIndex;
+    private transient boolean resume = false;
+    private transient boolean partitioned = false;
+    private final transient ProjectPartitions projectPartitions = new ProjectPartitions();
+    private transient Set<String> partitionsWithInput = Collections.synchronizedSet(Sets.<String>newHashSet());
+    private transient int concurrentPartitions = 1;
+    private transient long memoryBudget = 0; // Unbounded
+    private transient ResourcePlan resourcePlan;
+    private transient int shardBatchSize = DEFAULT_SHARD_BATCH_SIZE;
+    private transient PipelineCheckpoints checkpoints;
+    private transient PipelineCounters counters;
 
+    /** Runs on the local file system and the local job runner. */
     public IndexPipeline() {
+        this(new Configuration(), true);
+    }
+
+    /**
+     * Runs on the cluster {@code conf} points to. The working directory is on its default file system, and stages of
+     * {@link Engine#MAPREDUCE} are submitted to it as MapReduce jobs. Jars on the classpath are shipped with the jobs,
+     * besides those added by {@link #addJobJar(File)}. Repositories are still read, and the index is still written,
+     * on the local file system.
+     */
+    public IndexPipeline(Configuration conf) {
+        this(conf, false);
+    }
+
+    private IndexPipeline(Configuration conf, boolean local) {
+        this.conf = Preconditions.checkNotNull(conf);
+        this.local = local;
         try {
-            conf = new Configuration();
-            conf.setInt("io.sort.mb", 32); // To fit into 256MB heap.
+            if (local) {
+                conf.setInt("io.sort.mb", 32); // To fit into 256MB heap.
+            }
             conf.setBoolean("mapreduce.map.output.compress", true);
             conf.setBoolean("mapreduce.output.fileoutputformat.compress", true);
             conf.setStrings("mapreduce.output.fileoutputformat.compress.type", "BLOCK");
             conf.setBoolean("crunch.log.job.progress", true);
             SequenceFile.setDefaultCompressionType(conf, SequenceFile.CompressionType.BLOCK);
-            fs = FileSystem.getLocal(conf);
+            fs = local ? FileSystem.getLocal(conf) : FileSystem.get(conf);
         } catch (IOException e) {
-            throw new AssertionError();
+            throw new AssertionError(e);
         }
     }
 
     public void addRepoBase(File repoBase) throws IOException {
+        addRepoBase(repoBase, ImmutableList.<String>of());
+    }
+
+    /** Indexes {@code refs} of each repository in {@code repoBase}, or HEAD if empty. */
+    public void addRepoBase(File repoBase, List<String> refs) throws IOException {
         Preconditions.checkNotNull(repoBase);
-        for (Repository repo : GitUtils.openRepoBase(repoBase)) {
+        Preconditions.checkNotNull(refs);
+        for (Repository repo : GitUtils.openRepoBase(repoBase, refs)) {
             repos.add(repo);
         }
     }
@@ -133,72 +243,548 @@ public class IndexPipeline implements Serializable {
         dirs.add(dir);
     }
 
+    /** Ships {@code jar} with MapReduce jobs on a cluster, e.g. if classes of the pipeline are not in a jar. */
+    public void addJobJar(File jar) {
+        Preconditions.checkNotNull(jar);
+        jobJars.add(jar);
+    }
+
     public void setIndexDirectory(File dir) {
         indexDir = Preconditions.checkNotNull(dir);
     }
 
+    public void setEngine(Engine engine) {
+        this.engine = Preconditions.checkNotNull(engine);
+    }
+
+    /** Sets number of worker threads used to read repositories and by {@link Engine#INMEMORY}. */
+    public void setThreads(int threads) {
+        Preconditions.checkArgument(threads > 0);
+        this.threads = threads;
+    }
+
+    /**
+     * If set, only files changed since the index in {@link #setIndexDirectory(File)} was built are processed, and
+     * the index is updated in place. Otherwise the index directory is expected to be empty.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Keeps intermediate outputs in {@code dir}, which is not deleted if the run fails, so that it can be resumed.
+     * By default, a temporary directory is used.
+     */
+    public void setWorkingDirectory(File dir) {
+        Preconditions.checkNotNull(dir);
+        setWorkingDirectory(new Path(dir.getAbsolutePath()));
+    }
+
+    /** Like {@link #setWorkingDirectory(File)}, but {@code dir} is on the file system of the pipeline. */
+    public void setWorkingDirectory(Path dir) {
+        workingDir = Preconditions.checkNotNull(dir);
+    }
+
+    /**
+     * Files with at least {@code maxLines} lines, or with more than {@code maxSymbolNodes} names, types, method calls
+     * and variables in their AST, are heavy. Heavy files are processed apart from normal ones.
+     */
+    public void setHeavyFileThresholds(int maxLines, int maxSymbolNodes) {
+        heavyFiles.setThresholds(maxLines, maxSymbolNodes);
+    }
+
+    /** Sets number of partitions heavy files are spread over by the MapReduce engine. */
+    public void setHeavyFilePartitions(int partitions) {
+        heavyFiles.setPartitions(partitions);
+    }
+
+    /** If set, only types and members of heavy files are indexed, not their usages. */
+    public void setReduceHeavyFiles(boolean reduce) {
+        heavyFiles.setReduced(reduce);
+    }
+
+    /**
+     * Files whose parse takes more than {@code maxMillis} or allocates more than {@code maxAllocatedBytes} are
+     * quarantined: they are left out of the index, and skipped by later runs until they change.
+     */
+    public void setParseBudget(long maxMillis, long maxAllocatedBytes) {
+        parseBudget = new ParseBudget(maxMillis, maxAllocatedBytes);
+    }
+
+    /**
+     * Leaves paths matching {@code pattern}, in gitignore syntax, out of every project, e.g. "target/". Rules in
+     * the {@code .polarisignore} file at the root of a project take precedence.
+     */
+    public void addExclude(String pattern) {
+        excludes.add(Preconditions.checkNotNull(pattern));
+    }
+
+    /** Sets what becomes of generated sources. Defaults to {@link GeneratedFiles#TYPES_ONLY}. */
+    public void setGeneratedFiles(GeneratedFiles generatedFiles) {
+        this.generatedFiles = Preconditions.checkNotNull(generatedFiles);
+    }
+
+    /** Keeps the list of quarantined files in {@code file}. By default, it is kept in the index directory. */
+    public void setQuarantineFile(File file) {
+        quarantineFile = Preconditions.checkNotNull(file);
+    }
+
+    /**
+     * If set, stages completed by a failed run in the same working directory are skipped, as long as the input is
+     * the same. Otherwise the working directory is cleared.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * If set, files are processed in a partition per project, and their symbols are only resolved against files of
+     * the same partition. Partitions share no joins, so each is processed on its own, and memory used by
+     * {@link Engine#INMEMORY} is bounded by the largest partition rather than all projects.
+     */
+    public void setPartitionedByProject(boolean partitioned) {
+        this.partitioned = partitioned;
+    }
+
+    /**
+     * Resolves symbols of {@code project} against {@code dependency} too, if partitioned by project. Projects
+     * connected by dependencies are processed in one partition.
+     */
+    public void addProjectDependency(String project, String dependency) {
+        projectPartitions.addDependency(project, dependency);
+    }
+
+    /** Sets number of partitions processed at once, if partitioned by project. Defaults to 1. */
+    public void setConcurrentPartitions(int concurrentPartitions) {
+        Preconditions.checkArgument(concurrentPartitions > 0);
+        this.concurrentPartitions = concurrentPartitions;
+    }
+
+    /**
+     * Sizes buffers and chooses where records are held from a memory budget, see {@link ResourcePlan}. Sort and
+     * shuffle buffers spill to disk, but records grouped by a reducer, e.g. classes of a package, are held in memory
+     * whole, so a large enough group may still exceed the budget. On a cluster, the budget is the heap of each
+     * MapReduce task. By default, buffers fit a 256MB heap, and all partitions run on the engine set.
+     */
+    public void setMemoryBudget(long bytes) {
+        Preconditions.checkArgument(bytes > 0);
+        memoryBudget = bytes;
+    }
+
+    /**
+     * Runs the pipeline and updates the index. If IDs derived from different keys collide, the pipeline runs again
+     * with those IDs hashed again, before the index is touched, see {@link HashIdGenerator}.
+     */
     public void run() throws IOException {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
+        counters = new PipelineCounters();
+        planResources();
+        Set<Long> collidingIds = Sets.newHashSet();
+        int runs = 1;
+        while (!runOnce(collidingIds)) {
+            if (runs == MAX_RUNS_FOR_ID_COLLISIONS) {
+                throw new IOException("IDs still collide after " + runs + " runs: " + collidingIds);
+            }
+            runs++;
+            LOG.warn("Running again, since " + collidingIds.size() + " ID(s) are given to different entities");
+        }
+        if (incrementalIndex.isUpToDate()) {
+            return;
+        }
 
+        long secs = stopWatch.getTime() / 1000;
+        LOG.info(String.format("Elapsed time: %d min %d s", secs / 60, secs % 60));
+        writeReport(counters.toReport(engine.name(), stopWatch.getTime()));
+    }
+
+    /**
+     * @param collidingIds IDs found colliding by earlier runs, to which those found by this run are added
+     * @return whether the index is updated, or else IDs collide
+     */
+    private boolean runOnce(Set<Long> collidingIds) throws IOException {
         setUpInputAndOutputDirs();
-        for (Repository repo : repos) {
-            readRepo(repo);
-        }
+        quarantine = Quarantine.load(quarantineFile != null
+                ? quarantineFile : IndexPathUtils.getQuarantinePath(indexDir));
+        incrementalIndex = incremental ? IncrementalIndex.open(indexDir) : IncrementalIndex.create();
+        incrementalIndex.addCollidingIds(collidingIds);
+        incrementalIndex.setParseBudget(parseBudget);
+        idGenerator = new HashIdGenerator(incrementalIndex.getCollidingIds());
+        duplicateFiles = new DuplicateFiles();
+        resetInputDirs();
+        partitionsWithInput.clear();
+        StopWatch stageStopWatch = new StopWatch();
+        stageStopWatch.start();
+        readRepos();
         for (File dir : dirs) {
             readProjectDir(dir);
         }
+        incrementalIndex.prepare();
+        counters.increment("ReadInputs", Counter.WALL_MILLIS, stageStopWatch.getTime());
+        if (incrementalIndex.isUpToDate()) {
+            LOG.info("Index is up to date");
+            incrementalIndex.save(indexDir); // Indexed commits may have changed.
+            return true;
+        }
+        writeIncrementalInputs();
+        groupDuplicateFiles();
+        List<Path> inputDirs = Lists.newArrayList(inputDir2);
+        for (Partition partition : partitions) {
+            inputDirs.add(partition.inputDir);
+            inputDirs.add(partition.contextDir);
+        }
+        checkpoints = new PipelineCheckpoints(fs, new Path(workingDir, "checkpoints"),
+                PipelineCheckpoints.fingerprint(fs, conf, inputDirs, previousIds, heavyFiles + "," + parseBudget
+                        + "," + partitions + "," + idGenerator.getCollidingIds()), resume);
 
-        MRPipeline pipeline = setUpPipeline();
-        LOG.info("About to run indexing pipeline");
-        checkPipelineResult(pipeline.run());
+        LOG.info("About to run indexing pipeline on " + engine + " engine in " + partitions.size()
+                + " partition(s)");
+        if (!local && usesMapReduce()) {
+            shipJobJars();
+        }
+        runPartitions();
+        CompilationUnitCache.clear();
         LOG.info("Pipeline completes");
+        quarantineFiles();
 
-        buildIndexFromPipelineOutput();
+        stageStopWatch.reset();
+        stageStopWatch.start();
+        boolean built = buildIndexFromPipelineOutput(collidingIds);
+        counters.increment("BuildIndex", Counter.WALL_MILLIS, stageStopWatch.getTime());
+        return built;
+    }
 
-        long secs = stopWatch.getTime() / 1000;
-        LOG.info(String.format("Elapsed time: %d min %d s", secs / 60, secs % 60));
+    private void planResources() {
+        if (memoryBudget == 0) {
+            return;
+        }
+        resourcePlan = ResourcePlan.forBudget(memoryBudget, local, concurrentPartitions, threads);
+        resourcePlan.applyTo(conf);
+        shardBatchSize = resourcePlan.getShardBatchSize();
+        LOG.info("Resource plan: " + resourcePlan);
+        if (local && Runtime.getRuntime().maxMemory() < memoryBudget) {
+            LOG.warn("Memory budget exceeds the heap of " + (Runtime.getRuntime().maxMemory() >> 20) + "MB");
+        }
     }
 
+    /** @return whether any partition runs on {@link Engine#MAPREDUCE} */
+    private boolean usesMapReduce() throws IOException {
+        for (Partition partition : partitions) {
+            if (engineOf(partition) == Engine.MAPREDUCE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@link Engine#MAPREDUCE} if {@link Engine#INMEMORY} cannot hold the input of {@code partition} within
+     * the memory budget, or the engine set otherwise
+     */
+    private Engine engineOf(Partition partition) throws IOException {
+        if (engine != Engine.INMEMORY || resourcePlan == null) {
+            return engine;
+        }
+        long inputBytes = 0;
+        for (Path dir : ImmutableList.of(partition.inputDir, partition.contextDir)) {
+            if (fs.exists(dir)) {
+                inputBytes += fs.getContentSummary(dir).getLength();
+            }
+        }
+        return resourcePlan.fitsInMemory(inputBytes) ? Engine.INMEMORY : Engine.MAPREDUCE;
+    }
+
+    /** Called after all inputs are written, when aliases of each processed file are known. */
+    private void groupDuplicateFiles() {
+        aliases = duplicateFiles.getAliases();
+        displacedFileIds = duplicateFiles.getDisplacedFileIds();
+        incrementalIndex.setAliases(aliases);
+        counters.increment("ReadInputs", Counter.DUPLICATE_FILES, aliases.size());
+        LOG.info(aliases.size() + " file(s) are identical to " + aliases.keySet().size()
+                + " other(s), which are processed in their place");
+    }
+
+    /** Writes where time and volume of the run go, for tools to compare runs. */
+    private void writeReport(PipelineReport report) throws IOException {
+        for (StageReport stage : report.getStagesList()) {
+            LOG.info(String.format("%s: %d ms wall, %d ms CPU, %d in, %d out, %d parse failure(s)",
+                    stage.getName(), stage.getWallMillis(), stage.getCpuMillis(), stage.getRecordsIn(),
+                    stage.getRecordsOut(), stage.getParseFailures()));
+        }
+        File reportFile = IndexPathUtils.getPipelineReportPath(indexDir);
+        FileUtils.writeStringToFile(reportFile, JsonFormat.printToString(report));
+        LOG.info("Pipeline report is written to " + reportFile);
+    }
+
+    /**
+     * Plans the pipelines {@link #runMapReducePipeline(Partition)} runs for a partition, which are the same for all
+     * partitions. Plans of the stages are concatenated in the order they run, one graph per stage.
+     */
     public String plan() throws IOException {
         setUpInputAndOutputDirs();
-        MRPipeline pipeline = setUpPipeline();
-        pipeline.plan();
-        return conf.get(PlanningParameters.PIPELINE_PLAN_DOTFILE);
+        resetInputDirs();
+        Partition partition = newPartition(null);
+        StringBuilder plan = new StringBuilder();
+        for (String stage : MAPREDUCE_STAGES) {
+            MRPipeline pipeline = setUpStage(partition, stage);
+            pipeline.plan();
+            plan.append("// Stage ").append(stage).append('\n')
+                    .append(pipeline.getConfiguration().get(PlanningParameters.PIPELINE_PLAN_DOTFILE))
+                    .append('\n');
+        }
+        return plan.toString();
     }
 
-    private MRPipeline setUpPipeline() {
-        MRPipeline pipeline = new MRPipeline(IndexPipeline.class, "polaris-index-pipeline", conf);
+    /** Runs partitions with files to process, up to {@link #setConcurrentPartitions(int)} at once. */
+    private void runPartitions() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrentPartitions);
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (final Partition partition : partitions) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        runPartition(partition);
+                        return null;
+                    }
+                }));
+            }
+            getAll(futures);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runPartition(Partition partition) throws IOException {
+        if (partitioned) {
+            LOG.info("Running partition " + partition);
+        }
+        Engine partitionEngine = engineOf(partition);
+        if (partitionEngine != engine) {
+            LOG.info("Running partition " + partition + " on " + partitionEngine + " engine, since its input "
+                    + "exceeds the memory budget of " + engine + " engine");
+        }
+        if (partitionEngine == Engine.INMEMORY) {
+            if (!skipStage(partition, STAGE_IN_MEMORY, partition.classOutputDir, partition.usageOutputDir,
+                    partition.sourceOutputDir, partition.quarantineDir)) {
+                StopWatch stopWatch = new StopWatch();
+                stopWatch.start();
+                new InMemoryIndexEngine(conf, fs, idGenerator, threads, previousIds, counters, heavyFiles,
+                        parseBudget, displacedFileIds).run(partition.inputDir, partition.contextDir,
+                        partition.classOutputDir, partition.usageOutputDir, partition.sourceOutputDir,
+                        partition.quarantineDir);
+                counters.increment(STAGE_IN_MEMORY, Counter.WALL_MILLIS, stopWatch.getTime());
+                checkpoints.markDone(partition.checkpointOf(STAGE_IN_MEMORY));
+            }
+        } else {
+            runMapReducePipeline(partition);
+        }
+    }
+
+    /**
+     * Runs the stages one pipeline after another. Output of each stage is written to the working directory and
+     * read back by later stages, so that a resumed run can start from the first stage not completed.
+     */
+    private void runMapReducePipeline(Partition partition) throws IOException {
+        for (String stage : MAPREDUCE_STAGES) {
+            if (!skipStage(partition, stage, outputsOf(partition, stage))) {
+                runStage(setUpStage(partition, stage), partition, stage);
+            }
+        }
+    }
+
+    /** @return directories {@code stage} of {@code partition} writes */
+    private static Path[] outputsOf(Partition partition, String stage) {
+        if (stage.equals(STAGE_FIRST_PASS)) {
+            return new Path[] {partition.parsedFiles1stPassDir, partition.importsDir, partition.quarantineDir};
+        } else if (stage.equals(STAGE_IMPORT_GRAPH)) {
+            return new Path[] {partition.importGraphDir};
+        } else if (stage.equals(STAGE_SECOND_PASS)) {
+            return new Path[] {partition.parsedFiles2ndPassDir};
+        } else if (stage.equals(STAGE_CALL_SITES)) {
+            return new Path[] {partition.callSiteUsagesDir};
+        } else if (stage.equals(STAGE_OUTPUTS)) {
+            return new Path[] {partition.classOutputDir, partition.usageOutputDir, partition.sourceOutputDir};
+        }
+        throw new IllegalArgumentException("Unknown stage: " + stage);
+    }
+
+    /** Sets up the pipeline of {@code stage}, which reads outputs of earlier stages from the working directory. */
+    private MRPipeline setUpStage(Partition partition, String stage) {
+        MRPipeline pipeline = newPipeline();
+        if (stage.equals(STAGE_FIRST_PASS)) {
+            PCollection<FirstPassResult> firstPassResults = firstPass(readFileContents(pipeline, partition));
+            pipeline.write(discoverClasses(firstPassResults),
+                    At.sequenceFile(partition.parsedFiles1stPassDir, PARSED_FILE_PTYPE));
+            pipeline.write(extractImports(firstPassResults),
+                    At.sequenceFile(partition.importsDir, FILE_IMPORTS_PTYPE));
+            pipeline.write(extractQuarantinedFiles(firstPassResults),
+                    At.sequenceFile(partition.quarantineDir, QUARANTINED_FILE_PTYPE));
+        } else if (stage.equals(STAGE_IMPORT_GRAPH)) {
+            PCollection<FileImports> fileImports = pipeline.read(
+                    At.sequenceFile(partition.importsDir, FILE_IMPORTS_PTYPE));
+            pipeline.write(buildImportGraph(fileImports, readParsedFiles1stPass(pipeline, partition)),
+                    At.sequenceFile(partition.importGraphDir, longs(), longs()));
+        } else if (stage.equals(STAGE_SECOND_PASS)) {
+            pipeline.write(discoverMembers(readFileContents(pipeline, partition),
+                    readParsedFiles1stPass(pipeline, partition), readImportGraph(pipeline, partition)),
+                    At.sequenceFile(partition.parsedFiles2ndPassDir, PARSED_FILE_PTYPE));
+        } else if (stage.equals(STAGE_CALL_SITES)) {
+            PCollection<ParsedFile> parsedFiles2ndPass = readParsedFiles(pipeline, partition.parsedFiles2ndPassDir);
+            pipeline.write(resolveCallSites(parsedFiles2ndPass,
+                    parsedFiles2ndPass.union(readContext(pipeline, partition))),
+                    At.sequenceFile(partition.callSiteUsagesDir, USAGE_PTYPE));
+        } else if (stage.equals(STAGE_OUTPUTS)) {
+            writeOutputs(pipeline, partition, readParsedFiles(pipeline, partition.parsedFiles2ndPassDir),
+                    pipeline.read(At.sequenceFile(partition.callSiteUsagesDir, USAGE_PTYPE)));
+        } else {
+            throw new IllegalArgumentException("Unknown stage: " + stage);
+        }
+        return pipeline;
+    }
+
+    /** @return whether {@code stage} can be skipped, or deletes {@code outputs} left by a failed attempt */
+    private boolean skipStage(Partition partition, String stage, Path... outputs) throws IOException {
+        if (checkpoints.isDone(partition.checkpointOf(stage))) {
+            LOG.info("Skipping stage " + partition.checkpointOf(stage) + ", which has completed on the same input");
+            counters.increment(stage, Counter.SKIPPED_RUNS, 1);
+            return true;
+        }
+        for (Path output : outputs) {
+            fs.delete(output, true);
+        }
+        return false;
+    }
+
+    private void runStage(MRPipeline pipeline, Partition partition, String stage) throws IOException {
+        LOG.info("Running stage " + partition.checkpointOf(stage));
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        PipelineResult result = pipeline.run();
+        checkPipelineResult(result);
+        for (PipelineResult.StageResult stageResult : result.getStageResults()) {
+            counters.addHadoopCounters(stageResult.getCounters());
+        }
+        counters.increment(stage, Counter.WALL_MILLIS, stopWatch.getTime());
+        checkpoints.markDone(partition.checkpointOf(stage));
+    }
+
+    /** Ships jars on the classpath with MapReduce jobs, except those of Hadoop, which the cluster has. */
+    private void shipJobJars() throws IOException {
+        Set<String> jars = Sets.newLinkedHashSet();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (entry.endsWith(".jar") && !new File(entry).getName().startsWith("hadoop-")) {
+                jars.add(entry);
+            }
+        }
+        for (File jar : jobJars) {
+            jars.add(jar.getPath());
+        }
+        for (String jar : jars) {
+            DistCache.addJarToDistributedCache(conf, jar);
+        }
+        LOG.info("Shipping " + jars.size() + " jar(s) with MapReduce jobs");
+    }
+
+    private MRPipeline newPipeline() {
+        // Pipelines of partitions running at once must not share a configuration, which each of them changes.
+        MRPipeline pipeline = new MRPipeline(IndexPipeline.class, "polaris-index-pipeline", new Configuration(conf));
         pipeline.enableDebug();
-        PCollection<FileContent> fileContents = pipeline
-            .read(At.sequenceFile(new Path(inputDir1.getPath()), FILE_CONTENT_PTYPE));
-        PCollection<ParsedFile> parsedFiles1stPass = discoverClasses(fileContents);
-        PCollection<FileImports> fileImports = extractImports(fileContents);
-        PTable<Long, Long> importGraph1 =
-                guessImportGraphByImportedClasses(fileImports, parsedFiles1stPass);
-        PTable<Long, Long> importGraph2 =
-                guessImportGraphBySamePackage(parsedFiles1stPass);
-        PTable<Long, Long> importGraph = uniqueImportGraph(importGraph1.union(importGraph2));
-        // TODO: reverseImportGraphByImportedPackage
-        // TODO: reverseImportGraphByFilePackage
+        return pipeline;
+    }
+
+    private PCollection<FileContent> readFileContents(MRPipeline pipeline, Partition partition) {
+        return pipeline.read(At.sequenceFile(partition.inputDir, FILE_CONTENT_PTYPE))
+                .filter("SkipDisplacedFiles", new FilterFn<FileContent>() {
+                    @Override
+                    public boolean accept(FileContent in) {
+                        return !displacedFileIds.contains(in.getFile().getId());
+                    }
+                });
+    }
+
+    /** Reads classes of files not being reindexed, which are only used to resolve symbols. */
+    private PCollection<ParsedFile> readContext(MRPipeline pipeline, Partition partition) {
+        return readParsedFiles(pipeline, partition.contextDir);
+    }
+
+    private PCollection<ParsedFile> readParsedFiles1stPass(MRPipeline pipeline, Partition partition) {
+        return readParsedFiles(pipeline, partition.parsedFiles1stPassDir).union(readContext(pipeline, partition));
+    }
+
+    private PCollection<ParsedFile> readParsedFiles(MRPipeline pipeline, Path dir) {
+        return pipeline.read(At.sequenceFile(dir, PARSED_FILE_PTYPE));
+    }
+
+    private PTable<Long, Long> readImportGraph(MRPipeline pipeline, Partition partition) {
+        return pipeline.read(At.sequenceFile(partition.importGraphDir, longs(), longs()));
+    }
+
+    private PTable<Long, Long> buildImportGraph(
+            PCollection<FileImports> fileImports, PCollection<ParsedFile> parsedFiles1stPass) {
+        // Classes in the same package are looked up by package in joinImports(), rather than via the graph.
         // TODO: Iterate to compute transitive closure
-        PCollection<ParsedFile> parsedFiles2ndPass = discoverMembers(fileContents, parsedFiles1stPass, importGraph);
-        PCollection<Usage> usages2ndPass = extractUsages(parsedFiles2ndPass);
-        PCollection<ParsedFile> parsedFiles3rdPass = discoverMethodCalls(fileContents, parsedFiles2ndPass, importGraph);
-        PCollection<Usage> usages3rdPass = extractUsages(parsedFiles3rdPass);
-        PCollection<Usage> usages = usages2ndPass.union(usages3rdPass);
-        PCollection<ClassType> classes = fillUseCount(extractClasses(parsedFiles3rdPass), usages);
+        return uniqueImportGraph(guessImportGraphByImportedClasses(fileImports, parsedFiles1stPass));
+    }
+
+    private void writeOutputs(MRPipeline pipeline, Partition partition, PCollection<ParsedFile> parsedFiles2ndPass,
+            PCollection<Usage> callSiteUsages) {
+        PCollection<Usage> fileUsages = extractUsages(parsedFiles2ndPass);
+        // Only type usages are counted, so classes need not wait for call sites, which are method usages.
+        PCollection<ClassType> classes = fillUseCount(extractClasses(parsedFiles2ndPass), fileUsages);
         pipeline.write(
-                classes,
-                At.sequenceFile(new Path(classOutputDir.getPath()), PARSED_FILE_PTYPE));
+                sortClasses(classes),
+                At.sequenceFile(partition.classOutputDir, PARSED_FILE_PTYPE));
         pipeline.write(
-                usages,
-                At.sequenceFile(new Path(usageOutputDir.getPath()), USAGE_PTYPE));
+                sortUsages(fileUsages.union(callSiteUsages)),
+                At.sequenceFile(partition.usageOutputDir, USAGE_PTYPE));
         pipeline.write(
-                annotateSources(fileContents, usages),
-                At.sequenceFile(new Path(sourceOutputDir.getPath()), SOURCE_FILE_PTYPE));
+                sortSources(annotateSources(parsedFiles2ndPass, callSiteUsages)),
+                At.sequenceFile(partition.sourceOutputDir, SOURCE_FILE_PTYPE));
+    }
 
-        return pipeline;
+    /**
+     * Outputs are sorted by what their DBs look them up by, within each output file, which becomes a shard of the
+     * index. Documents looked up together are then written next to each other, so they compress better, are read
+     * with fewer seeks and merge faster.
+     */
+    private PCollection<ClassType> sortClasses(PCollection<ClassType> classes) {
+        return sortByKey("SortClasses", classes.by(new MapFn<ClassType, Long>() {
+            @Override
+            public Long map(ClassType in) {
+                return PipelineStages.classSortKey(in);
+            }
+        }, longs()), CLASS_TYPE_PTYPE);
+    }
+
+    private PCollection<Usage> sortUsages(PCollection<Usage> usages) {
+        return sortByKey("SortUsages", usages.by(new MapFn<Usage, Long>() {
+            @Override
+            public Long map(Usage in) {
+                return PipelineStages.usageSortKey(in);
+            }
+        }, longs()), USAGE_PTYPE);
+    }
+
+    private PCollection<SourceFile> sortSources(PCollection<SourceFile> sources) {
+        return sortByKey("SortSources", sources.by(new MapFn<SourceFile, String>() {
+            @Override
+            public String map(SourceFile in) {
+                return PipelineStages.sourceSortKey(in);
+            }
+        }, strings()), SOURCE_FILE_PTYPE);
+    }
+
+    /** Reducers see keys in order, so values come out sorted by key within each reducer's output file. */
+    private static <K, V> PCollection<V> sortByKey(String stage, PTable<K, V> table, PType<V> ptype) {
+        return table.groupByKey().parallelDo(stage, new DoFn<Pair<K, Iterable<V>>, V>() {
+            @Override
+            public void process(Pair<K, Iterable<V>> in, Emitter<V> emitter) {
+                for (V value : in.second()) {
+                    emitter.emit(value);
+                }
+            }
+        }, ptype);
     }
 
     private PTable<Long, Long> uniqueImportGraph(PTable<Long, Long> importGraph) {
@@ -219,158 +805,532 @@ public class IndexPipeline implements Serializable {
         }
     }
 
-    private PCollection<FileImports> extractImports(PCollection<FileContent> fileContents) {
-        return fileContents.parallelDo("ExtractImports", new DoFn<FileContent, FileImports>() {
-            @Override
-            public void process(FileContent in, Emitter<FileImports> emitter) {
-                try {
-                    ImportExtractor.Result result = ImportExtractor.findImports(in.getContent());
-                    emitter.emit(FileImports.newBuilder()
-                            .setFile(in.getFile())
-                            .setPackage(result.getPackage())
-                            .addAllImportedClasses(result.getImportedClasses())
-                            .addAllImportedPackages(result.getImportedPackages())
-                            .build());
-                } catch (IOException e) {
-                    LOG.warn("Failed to parse " + in.getFile());
-                    LOG.debug("Exception", e);
+    /** Publishes {@link PipelineCounters.Counter}s of its stage as Hadoop counters. */
+    private abstract static class CountedDoFn<S, T> extends DoFn<S, T> {
+        private final String stage;
+
+        protected CountedDoFn(String stage) {
+            this.stage = Preconditions.checkNotNull(stage);
+        }
+
+        @Override
+        public final void process(S in, final Emitter<T> emitter) {
+            long cpuTime = PipelineCounters.cpuTimeNanos();
+            count(Counter.RECORDS_IN, 1);
+            countedProcess(in, new Emitter<T>() {
+                @Override
+                public void emit(T out) {
+                    count(Counter.RECORDS_OUT, 1);
+                    emitter.emit(out);
                 }
-            }
-        }, FILE_IMPORTS_PTYPE);
+
+                @Override
+                public void flush() {
+                    emitter.flush();
+                }
+            });
+            count(Counter.CPU_NANOS, PipelineCounters.cpuTimeNanos() - cpuTime);
+        }
+
+        protected abstract void countedProcess(S in, Emitter<T> emitter);
+
+        protected void count(Counter counter, long value) {
+            increment(PipelineCounters.groupOf(stage), counter.name(), value);
+        }
     }
 
-    private PCollection<ParsedFile> discoverClasses(PCollection<FileContent> fileContents) {
-        PCollection<ParsedFile> parsedFiles =
-                fileContents.parallelDo("FirstPass", new DoFn<FileContent, ParsedFile>() {
+    /** Runs the 1st pass, which parses each file once to discover both its classes and its imports. */
+    private PCollection<FirstPassResult> firstPass(PCollection<FileContent> fileContents) {
+        PCollection<FirstPassResult> results =
+                fileContents.parallelDo("FirstPass", new CountedDoFn<FileContent, FirstPassResult>("FirstPass") {
                     @Override
-                    public void process(FileContent in, Emitter<ParsedFile> emitter) {
+                    protected void countedProcess(FileContent in, Emitter<FirstPassResult> emitter) {
+                        count(Counter.SOURCE_CHARS, in.getContent().length());
                         try {
-                            FirstPassProcessor.Result result = FirstPassProcessor.process(
-                                    in.getFile(),
-                                    in.getContent(),
-                                    ID_GENERATOR);
-                            SourceFile sourceFile = SourceFile.newBuilder()
-                                    .setHandle(in.getFile())
-                                    .build();
-                            // Don't save file content for now, since ParsedFile produced by 1st pass is
-                            // joined and duplicated for many times (= number of references).
-                            ParsedFile out = ParsedFile.newBuilder()
-                                    .setFile(sourceFile.getHandle())
-                                    .setPackage(result.getPackage())
-                                    .addAllClasses(result.getDiscoveredClasses())
-                                    .build();
-                            emitter.emit(out);
+                            FirstPassResult result = PipelineStages.firstPass(
+                                    in, idGenerator, heavyFiles, parseBudget);
+                            if (result.getParsedFile().getHeavy()) {
+                                count(Counter.HEAVY_FILES, 1);
+                            }
+                            emitter.emit(result);
+                        } catch (ParseBudgetExceededException e) {
+                            count(Counter.QUARANTINED, 1);
+                            LOG.warn("Parsing " + in.getFile() + " exceeds the budget: " + e.getMessage());
+                            emitter.emit(PipelineStages.quarantined(in, e.getMessage()));
                         } catch (IOException e) {
+                            count(Counter.PARSE_FAILURES, 1);
                             LOG.warn("Failed to parse " + in.getFile());
                             LOG.debug("Exception", e);
                         }
                     }
-                }, PARSED_FILE_PTYPE);
+                }, FIRST_PASS_RESULT_PTYPE);
 
-        // Force first pass is executed once.
-        return pivotParsedFilesByFileId(parsedFiles).collectValues().values().parallelDo(
-                new DoFn<Collection<ParsedFile>, ParsedFile>() {
+        // Force first pass is executed once, since both classes and imports are derived from it. Grouped results are
+        // streamed, not collected, so a reducer holds one at a time.
+        return results.parallelDo(new MapFn<FirstPassResult, Pair<Long, FirstPassResult>>() {
+            @Override
+            public Pair<Long, FirstPassResult> map(FirstPassResult in) {
+                return Pair.of(in.getParsedFile().getFile().getId(), in);
+            }
+        }, tableOf(longs(), FIRST_PASS_RESULT_PTYPE)).groupByKey().parallelDo(
+                new DoFn<Pair<Long, Iterable<FirstPassResult>>, FirstPassResult>() {
                     @Override
-                    public void process(Collection<ParsedFile> in, Emitter<ParsedFile> emitter) {
-                        for (ParsedFile t : in) {
+                    public void process(Pair<Long, Iterable<FirstPassResult>> in, Emitter<FirstPassResult> emitter) {
+                        for (FirstPassResult t : in.second()) {
                             emitter.emit(t);
                         }
                     }
-                }, PARSED_FILE_PTYPE);
+                }, FIRST_PASS_RESULT_PTYPE);
+    }
+
+    private PCollection<FileImports> extractImports(PCollection<FirstPassResult> firstPassResults) {
+        return firstPassResults.parallelDo("ExtractImports",
+                new CountedDoFn<FirstPassResult, FileImports>("ExtractImports") {
+                    @Override
+                    protected void countedProcess(FirstPassResult in, Emitter<FileImports> emitter) {
+                        if (!in.hasQuarantineReason()) {
+                            emitter.emit(in.getImports());
+                        }
+                    }
+                }, FILE_IMPORTS_PTYPE);
+    }
+
+    private PCollection<ParsedFile> discoverClasses(PCollection<FirstPassResult> firstPassResults) {
+        return firstPassResults.parallelDo("DiscoverClasses", new DoFn<FirstPassResult, ParsedFile>() {
+            @Override
+            public void process(FirstPassResult in, Emitter<ParsedFile> emitter) {
+                if (!in.hasQuarantineReason()) {
+                    emitter.emit(PipelineStages.restoreIds(in.getParsedFile(), previousIds));
+                }
+            }
+        }, PARSED_FILE_PTYPE);
+    }
+
+    private PCollection<QuarantinedFile> extractQuarantinedFiles(PCollection<FirstPassResult> firstPassResults) {
+        return firstPassResults.parallelDo("ExtractQuarantinedFiles", new DoFn<FirstPassResult, QuarantinedFile>() {
+            @Override
+            public void process(FirstPassResult in, Emitter<QuarantinedFile> emitter) {
+                if (in.hasQuarantineReason()) {
+                    emitter.emit(QuarantinedFile.newBuilder()
+                            .setFile(in.getParsedFile().getFile())
+                            .setReason(in.getQuarantineReason())
+                            .build());
+                }
+            }
+        }, QUARANTINED_FILE_PTYPE);
     }
 
     private void setUpInputAndOutputDirs() throws IOException {
-        workingDir = File.createTempFile("polaris-pipeline-", "");
-        FileUtils.deleteQuietly(workingDir);
-        FileUtils.forceMkdir(workingDir);
-        inputDir1 = new File(workingDir, "in1");
-        inputDir2 = new File(workingDir, "in2");
-        classOutputDir = new File(workingDir, "out-classes");
-        usageOutputDir = new File(workingDir, "out-usages");
-        sourceOutputDir = new File(workingDir, "out-sources");
-        FileUtils.forceMkdir(inputDir1);
-        FileUtils.forceMkdir(inputDir2);
-        conf.set("hadoop.tmp.dir", workingDir.getPath());
-        conf.set("crunch.tmp.dir", workingDir.getPath());
-        LOG.info("Temporary working dirctory: " + workingDir);
-    }
-
-    private void readRepo(Repository repo) throws IOException {
-        Preconditions.checkNotNull(repo);
-        LOG.info("Scanning repository: " + repo.getName());
-        File workingTree = checkOutWorkTree(repo);
-        doReadProjectDir(repo.getName(), workingTree);
-        FileUtils.deleteDirectory(workingTree);
+        if (workingDir == null) {
+            if (local) {
+                File tempFile = File.createTempFile("polaris-pipeline-", "");
+                FileUtils.deleteQuietly(tempFile);
+                workingDir = new Path(tempFile.getPath());
+            } else {
+                workingDir = new Path(fs.getHomeDirectory(), "polaris-pipeline-" + System.currentTimeMillis());
+            }
+        } else if (!resume) {
+            fs.delete(workingDir, true);
+        }
+        workingDir = fs.makeQualified(workingDir);
+        fs.mkdirs(workingDir);
+        inputDir1 = new Path(workingDir, "in1");
+        inputDir2 = new Path(workingDir, "in2");
+        contextDir = new Path(workingDir, "in-context");
+        if (local) {
+            conf.set("hadoop.tmp.dir", workingDir.toUri().getPath()); // Cluster nodes keep their own.
+        }
+        conf.set("crunch.tmp.dir", workingDir.toString());
+        LOG.info("Working dirctory: " + workingDir);
     }
 
-    private void readProjectDir(File dir) throws IOException {
-        LOG.info("Scanning project root: " + dir.getName());
-        doReadProjectDir(dir.getName(), dir);
+    /** Inputs are always read again, even if the run is resumed, so that changes are detected. */
+    private void resetInputDirs() throws IOException {
+        for (Path dir : ImmutableList.of(inputDir1, inputDir2, contextDir)) {
+            fs.delete(dir, true);
+            fs.mkdirs(dir);
+        }
+    }
+
+    /**
+     * Reads refs of repositories in parallel. Each ref is read as a project of its own, and written into its own
+     * input file. Files unchanged between refs share content, so they are processed once.
+     */
+    private void readRepos() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (final Repository repo : repos) {
+                List<String> refs = repo.getRefs().isEmpty() ? ImmutableList.of(Constants.HEAD) : repo.getRefs();
+                for (final String ref : refs) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            readRepo(repo, ref);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read repository", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-    private void doReadProjectDir(String project, File dir) throws IOException {
-        Preconditions.checkNotNull(project);
+    /**
+     * Only reads files changed since the commit indexed last time, if it is known and the ignore rules are the same.
+     * Otherwise, files are read in full, so that files ignored only now are deleted, and files ignored only before
+     * are added, though unchanged.
+     */
+    private void readRepo(Repository repo, String ref) throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(ref);
+        String project = repo.getProject(ref);
+        IgnoreRules ignoreRules = ignoreRulesOf(GitUtils.readFile(repo, ref, IgnoreRules.FILE_NAME));
+        final ProjectInput input = new ProjectInput(project, ignoreRules);
+        try {
+            GitUtils.TreeVisitor visitor = new GitUtils.TreeVisitor() {
+                @Override
+                public void visitDirectory(String path) throws IOException {
+                    input.addDirectory(path);
+                }
+
+                @Override
+                public void visitFile(String path, ObjectId blobId, ObjectReader reader) throws IOException {
+                    if (!path.endsWith(".java") || input.isIgnored(path, false)) {
+                        return;
+                    }
+                    byte[] content = null;
+                    // Sniffed before the file is checked, which records it. Unchanged files were sniffed when they
+                    // were indexed, so only changed blobs are loaded for it.
+                    if (generatedFiles == GeneratedFiles.SKIP && !input.isUnchanged(path, blobId.name())) {
+                        content = reader.open(blobId, Constants.OBJ_BLOB).getBytes();
+                        if (input.isSkippedAsGenerated(path, content)) {
+                            return;
+                        }
+                    }
+                    // Blob id is the content hash, so unchanged blobs are not even loaded otherwise.
+                    FileHandle handle = input.checkFile(path, blobId.name());
+                    if (handle != null) {
+                        input.addFile(handle, content != null
+                                ? content : reader.open(blobId, Constants.OBJ_BLOB).getBytes());
+                    }
+                }
+
+                @Override
+                public void visitDeleted(String path) {
+                    input.deletePath(path);
+                }
+            };
+            String baseCommit = incrementalIndex.getIndexedCommit(project, ignoreRules.fingerprint());
+            String headCommit = null;
+            if (baseCommit != null) {
+                LOG.info("Scanning changes of " + ref + " of repository " + repo.getName() + " since " + baseCommit);
+                headCommit = GitUtils.walkTreeSince(repo, ref, baseCommit, visitor);
+            }
+            if (headCommit == null) {
+                LOG.info("Scanning " + ref + " of repository: " + repo.getName());
+                incrementalIndex.setFullScan(project);
+                headCommit = GitUtils.walkTree(repo, ref, visitor);
+            }
+            if (headCommit != null) {
+                incrementalIndex.setIndexedCommit(project, headCommit, ignoreRules.fingerprint());
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void readProjectDir(final File dir) throws IOException {
         Preconditions.checkNotNull(dir);
-        SequenceFile.Writer w1 = SequenceFile.createWriter(fs, conf,
-                new Path(new File(inputDir1, "sources-of-" + project).getPath()),
-                NullWritable.class, BytesWritable.class);
-        SequenceFile.Writer w2 = SequenceFile.createWriter(fs, conf,
-                new Path(new File(inputDir2, "dirs-of-" + project).getPath()),
-                NullWritable.class, BytesWritable.class);
-
-        final List<File> sourceDirs = Lists.newArrayList();
-        final List<File> sourceFiles = Lists.newArrayList();
-        DirectoryTranverser.traverse(dir, new DirectoryTranverser.Visitor() {
-            @Override
-            public void visit(File file) {
-                if (file.isHidden()) {
-                    return;
+        LOG.info("Scanning project root: " + dir.getName());
+        File ignoreFile = new File(dir, IgnoreRules.FILE_NAME);
+        final ProjectInput input = new ProjectInput(dir.getName(),
+                ignoreRulesOf(ignoreFile.isFile() ? FileUtils.readFileToByteArray(ignoreFile) : null));
+        try {
+            final List<File> sourceDirs = Lists.newArrayList();
+            final List<File> sourceFiles = Lists.newArrayList();
+            DirectoryTranverser.traverse(dir, new DirectoryTranverser.Visitor() {
+                @Override
+                public void visit(File file) {
+                    if (file.isHidden()) {
+                        return;
+                    }
+                    String path = StringUtils.removeStart(file.getPath(), dir.getPath());
+                    if (file.isDirectory()) {
+                        sourceDirs.add(file);
+                    } else if (file.getName().endsWith(".java") && !input.isIgnored(path, false)) {
+                        sourceFiles.add(file);
+                    }
+                }
+            });
+
+            LOG.info("Found " + sourceFiles.size() + " file(s)");
+            incrementalIndex.setFullScan(dir.getName());
+            for (File sourceFile : sourceFiles) {
+                String path = StringUtils.removeStart(sourceFile.getPath(), dir.getPath());
+                byte[] content = FileUtils.readFileToByteArray(sourceFile);
+                if (input.isSkippedAsGenerated(path, content)) {
+                    continue;
                 }
-                if (file.isDirectory()) {
-                    sourceDirs.add(file);
-                } else if (file.getName().endsWith(".java")) {
-                    sourceFiles.add(file);
+                FileHandle handle = input.checkFile(path, HashUtils.gitBlobHash(content));
+                if (handle != null) {
+                    input.addFile(handle, content);
                 }
             }
-        });
+            for (File sourceDir : sourceDirs) {
+                input.addDirectory(StringUtils.removeStart(sourceDir.getPath(), dir.getPath()) + "/");
+            }
+        } finally {
+            input.close();
+        }
+    }
 
-        LOG.info("Found " + sourceFiles.size() + " file(s)");
-        long count = 0;
-        for (File sourceFile : sourceFiles) {
-            FileHandle handle = FileHandle.newBuilder()
-                    .setId(ID_GENERATOR.next())
-                    .setProject(project)
-                    .setPath(StringUtils.removeStart(sourceFile.getPath(), dir.getPath()))
-                    .build();
-            FileContent in = FileContent.newBuilder()
+    /** @return global excludes followed by the rules of a project's ignore file, if it has one */
+    private IgnoreRules ignoreRulesOf(byte[] ignoreFile) {
+        IgnoreRules rules = IgnoreRules.NONE.with(excludes);
+        if (ignoreFile == null) {
+            return rules;
+        }
+        return rules.with(Splitter.on('\n').split(new String(ignoreFile, Charsets.UTF_8)));
+    }
+
+    /** Writes source files and directories of a project into pipeline input. */
+    private class ProjectInput implements Closeable {
+        private final String project;
+        private final IgnoreRules ignoreRules;
+        private final String partition;
+        private final SequenceFiles.Writer sourceWriter;
+        private final SequenceFiles.Writer dirWriter;
+        private long count = 0;
+        private long unchanged = 0;
+        private long quarantined = 0;
+        private long duplicates = 0;
+        private long ignored = 0;
+        private long generated = 0;
+
+        private ProjectInput(String project, IgnoreRules ignoreRules) throws IOException {
+            this.project = Preconditions.checkNotNull(project);
+            this.ignoreRules = Preconditions.checkNotNull(ignoreRules);
+            this.partition = partitionOf(project);
+            sourceWriter = SequenceFiles.createWriter(fs, conf,
+                    new Path(newPartition(partition).inputDir, "sources-of-" + project));
+            dirWriter = SequenceFiles.createWriter(fs, conf, new Path(inputDir2, "dirs-of-" + project));
+        }
+
+        /**
+         * @return whether the file or directory is left out by ignore rules, in which case it is dropped from the
+         * index like a deleted one
+         */
+        public boolean isIgnored(String path, boolean directory) {
+            if (!ignoreRules.isIgnored(path, directory)) {
+                return false;
+            }
+            if (!directory) {
+                ignored++;
+            }
+            incrementalIndex.deletePath(project, path);
+            return true;
+        }
+
+        /** @return whether the file is generated and left out, in which case it is dropped from the index */
+        public boolean isSkippedAsGenerated(String path, byte[] content) {
+            if (generatedFiles != GeneratedFiles.SKIP || !GeneratedFileSniffer.isGenerated(content)) {
+                return false;
+            }
+            generated++;
+            incrementalIndex.deletePath(project, path);
+            return true;
+        }
+
+        /** @return whether the file has been indexed with this content, without checking it */
+        public boolean isUnchanged(String path, String contentHash) {
+            return incrementalIndex.isUnchanged(project, path, contentHash);
+        }
+
+        /**
+         * @return handle of the file if its content needs to be processed, or {@code null} if it is unchanged,
+         * quarantined or identical to a file processed in its place
+         */
+        public FileHandle checkFile(String path, String contentHash) {
+            if (quarantine.contains(project, path, contentHash)) {
+                quarantined++;
+                return null;
+            }
+            FileHandle handle = incrementalIndex.checkFile(project, path, contentHash, idGenerator);
+            if (handle == null) {
+                unchanged++;
+            } else if (!duplicateFiles.add(handle, contentHash)) {
+                duplicates++;
+                return null;
+            }
+            return handle;
+        }
+
+        public void addFile(FileHandle handle, byte[] content) throws IOException {
+            String source = new String(content);
+            boolean typesOnly = isTypesOnly(content);
+            if (typesOnly) {
+                generated++;
+            }
+            FileContent in = incrementalIndex.recordImports(FileContent.newBuilder()
                     .setFile(handle)
-                    .setContent(FileUtils.readFileToString(sourceFile))
-                    .build();
-            w1.append(NullWritable.get(), new BytesWritable(in.toByteArray()));
+                    .setContent(source)
+                    .setHeavy(heavyFiles.isHeavySource(source))
+                    .setGenerated(typesOnly)
+                    .build());
+            sourceWriter.append(in);
             count++;
             if (count % 5000 == 0) {
-                LOG.info("Processed " + count + " files");
+                LOG.info("Processed " + count + " files of " + project);
             }
         }
-        w1.close();
 
-        for (File sourceDir : sourceDirs) {
-            FileHandle f = FileHandle.newBuilder()
-                    .setId(ID_GENERATOR.next())
-                    .setProject(project)
-                    .setPath(StringUtils.removeStart(sourceDir.getPath(), dir.getPath()) + "/")
-                    .build();
-            w2.append(NullWritable.get(), new BytesWritable(f.toByteArray()));
+        public void deletePath(String path) {
+            incrementalIndex.deletePath(project, path);
+        }
+
+        public void addDirectory(String path) throws IOException {
+            if (isIgnored(path, true)) {
+                return;
+            }
+            FileHandle f = incrementalIndex.checkDirectory(project, path, idGenerator);
+            if (f != null) {
+                dirWriter.append(f);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            sourceWriter.close();
+            dirWriter.close();
+            if (count > 0) {
+                partitionsWithInput.add(partition);
+            }
+            counters.increment("ReadInputs", Counter.IGNORED_FILES, ignored);
+            counters.increment("ReadInputs", Counter.GENERATED_FILES, generated);
+            LOG.info(project + ": " + count + " file(s) to process, " + unchanged + " unchanged, " + quarantined
+                    + " quarantined, " + duplicates + " duplicate(s), " + ignored + " ignored, " + generated
+                    + " generated (" + generatedFiles + ")");
+        }
+    }
+
+    /** Input, intermediate and output directories of a partition, which is processed independently of others. */
+    private static class Partition {
+        private final String name;
+        private final Path inputDir;
+        private final Path contextDir;
+        private final Path parsedFiles1stPassDir;
+        private final Path importsDir;
+        private final Path importGraphDir;
+        private final Path parsedFiles2ndPassDir;
+        private final Path callSiteUsagesDir;
+        private final Path classOutputDir;
+        private final Path usageOutputDir;
+        private final Path sourceOutputDir;
+        private final Path quarantineDir;
+
+        private Partition(String name, Path inputDir, Path contextDir, Path stageDir) {
+            this.name = name;
+            this.inputDir = inputDir;
+            this.contextDir = contextDir;
+            parsedFiles1stPassDir = new Path(stageDir, "stage-1st-pass");
+            importsDir = new Path(stageDir, "stage-imports");
+            importGraphDir = new Path(stageDir, "stage-import-graph");
+            parsedFiles2ndPassDir = new Path(stageDir, "stage-2nd-pass");
+            callSiteUsagesDir = new Path(stageDir, "stage-call-sites");
+            classOutputDir = new Path(stageDir, "out-classes");
+            usageOutputDir = new Path(stageDir, "out-usages");
+            sourceOutputDir = new Path(stageDir, "out-sources");
+            quarantineDir = new Path(stageDir, "stage-quarantine");
+        }
+
+        /** @return name of {@code stage} of this partition in {@link PipelineCheckpoints} */
+        private String checkpointOf(String stage) {
+            return name == null ? stage : name + "/" + stage;
+        }
+
+        @Override
+        public String toString() {
+            return name == null ? "(all)" : name;
         }
-        w2.close();
     }
 
-    private File checkOutWorkTree(Repository repo) throws IOException {
-        File tempDir = Files.createTempDir();
-        GitUtils.checkoutWorkTree(repo, tempDir);
-        return tempDir;
+    /**
+     * Writes what {@link IncrementalIndex} found in the existing index into pipeline input, when partitions with
+     * files to process are known. Each partition gets the context of its own projects.
+     */
+    private void writeIncrementalInputs() throws IOException {
+        // By partition, which is null if not partitioned.
+        ListMultimap<String, FileContent> dependents = ArrayListMultimap.create();
+        for (FileContent dependent : incrementalIndex.getDependents()) {
+            byte[] content = dependent.getContent().getBytes();
+            if (duplicateFiles.add(dependent.getFile(), HashUtils.gitBlobHash(content))) {
+                dependents.put(partitionOf(dependent.getFile().getProject()), dependent.toBuilder()
+                        .setGenerated(isTypesOnly(content))
+                        .build());
+            }
+        }
+        ListMultimap<String, ParsedFile> context = ArrayListMultimap.create();
+        for (ParsedFile parsedFile : incrementalIndex.getContext()) {
+            context.put(partitionOf(parsedFile.getFile().getProject()), parsedFile);
+        }
+        List<Partition> partitions = Lists.newArrayList();
+        if (partitioned) {
+            partitionsWithInput.addAll(dependents.keySet());
+            for (String name : Ordering.natural().sortedCopy(partitionsWithInput)) {
+                partitions.add(newPartition(name));
+            }
+        } else {
+            partitions.add(newPartition(null));
+        }
+        for (Partition partition : partitions) {
+            writeMessages(new Path(partition.inputDir, "sources-of-dependents"), dependents.get(partition.name));
+            writeMessages(new Path(partition.contextDir, "context"), context.get(partition.name));
+        }
+        this.partitions = partitions;
+        previousIds = incrementalIndex.getPreviousIds();
+    }
+
+    /** @return whether only types and members of a file are indexed, since it is generated */
+    private boolean isTypesOnly(byte[] content) {
+        return generatedFiles == GeneratedFiles.TYPES_ONLY && GeneratedFileSniffer.isGenerated(content);
     }
 
+    /** @return name of the partition of {@code project}, or {@code null} if not partitioned by project */
+    private String partitionOf(String project) {
+        return partitioned ? projectPartitions.partitionOf(project) : null;
+    }
+
+    /** @param name of the partition, or {@code null} for all files if not partitioned by project */
+    private Partition newPartition(String name) {
+        if (name == null) {
+            return new Partition(null, inputDir1, contextDir, workingDir);
+        }
+        return new Partition(name, new Path(inputDir1, name), new Path(contextDir, name),
+                new Path(workingDir, "partition-" + name));
+    }
+
+    private void writeMessages(Path file, Iterable<? extends Message> messages) throws IOException {
+        SequenceFiles.Writer w = SequenceFiles.createWriter(fs, conf, file);
+        try {
+            for (Message message : messages) {
+                w.append(message);
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    /** Produces import relation A -> B if A imports a class declared in B, explicitly or by a wildcard import. */
     private PTable<Long, Long> guessImportGraphByImportedClasses(
             PCollection<FileImports> fileImports,
             PCollection<ParsedFile> parsedFiles) {
@@ -382,6 +1342,10 @@ public class IndexPipeline implements Serializable {
                         for (String clazz : in.getImportedClassesList()) {
                             emitter.emit(Pair.of(clazz, in.getFile().getId()));
                         }
+                        // Keyed by full class name too, so wildcard imports share the join with explicit ones.
+                        for (String clazz : PipelineStages.wildcardImportCandidates(in)) {
+                            emitter.emit(Pair.of(clazz, in.getFile().getId()));
+                        }
                     }
                 }, tableOf(strings(), longs()));
 
@@ -402,18 +1366,28 @@ public class IndexPipeline implements Serializable {
                 IdentityFn.<Pair<Long, Long>>getInstance(), tableOf(longs(), longs()));
     }
 
-    /** Produces import relation A -> B if A and B are in same package. */
-    private PTable<Long, Long> guessImportGraphBySamePackage(PCollection<ParsedFile> parsedFiles) {
-        PTable<String, ParsedFile> parsedFilesByPackage = pivotParsedFilesByPackage(parsedFiles);
-        return Join.innerJoin(parsedFilesByPackage, parsedFilesByPackage).values().parallelDo(
-                new MapFn<Pair<ParsedFile, ParsedFile>, Pair<Long, Long>>() {
+    /**
+     * Produces A -> classes in the package of A. Each file is joined with one class list of its package, so the
+     * cost is linear in the number of files, unlike joining files of a package with each other.
+     */
+    private PTable<Long, Collection<ClassType>> collectSamePackageClasses(PCollection<ParsedFile> parsedFiles) {
+        PTable<String, Collection<ClassType>> classesByPackage = parsedFiles.parallelDo(
+                "ClassesByPackage",
+                new DoFn<ParsedFile, Pair<String, ClassType>>() {
                     @Override
-                    public Pair<Long, Long> map(Pair<ParsedFile, ParsedFile> in) {
-                        return Pair.of(
-                                in.first().getFile().getId(),
-                                in.second().getFile().getId());
+                    public void process(ParsedFile in, Emitter<Pair<String, ClassType>> emitter) {
+                        for (ClassType clazz : in.getClassesList()) {
+                            emitter.emit(Pair.of(in.getPackage(), TypeUtils.summaryOf(clazz)));
+                        }
                     }
-                }, tableOf(longs(), longs()));
+                }, tableOf(strings(), CLASS_TYPE_PTYPE)).collectValues();
+        return Join.join(pivotParsedFilesByPackage(parsedFiles), classesByPackage).values().parallelDo(
+                new MapFn<Pair<ParsedFile, Collection<ClassType>>, Pair<Long, Collection<ClassType>>>() {
+                    @Override
+                    public Pair<Long, Collection<ClassType>> map(Pair<ParsedFile, Collection<ClassType>> in) {
+                        return Pair.of(in.first().getFile().getId(), in.second());
+                    }
+                }, tableOf(longs(), collections(CLASS_TYPE_PTYPE)));
     }
 
     private PCollection<Tuple3<FileContent, ParsedFile, Collection<ClassType>>> joinImports(
@@ -423,7 +1397,7 @@ public class IndexPipeline implements Serializable {
         // Assume A imports B...
         PTable<Long, FileContent> fileContentById = pivotFileContentById(fileContents);
         PTable<Long, ParsedFile> parsedFilesById = pivotParsedFilesByFileId(parsedFiles); // B -> class B {...}
-        PTable<Long, ClassType> classesById = pivotClassByFileId(extractClasses(parsedFiles));
+        PTable<Long, ClassType> classesById = summarizeClasses(pivotClassByFileId(extractClasses(parsedFiles)));
         PTable<Long, Long> invertImportGraph = inverse(importGraph, tableOf(longs(), longs())); // B -> A
         PTable<Long, ClassType> classesByImporterId = invertImportGraph.join(
                 classesById).values().parallelDo( // A -> class B {...}
@@ -433,40 +1407,22 @@ public class IndexPipeline implements Serializable {
         // Left join because a file can be imported by nobody.
         PTable<Long, Pair<FileContent, ParsedFile>> step1 = Join.join(fileContentById, parsedFilesById);
         PTable<Long, Collection<ClassType>> step2 = classesByImporterId.collectValues();
-        return Join.leftJoin(step1, step2).values().parallelDo(
-                new MapFn<Pair<Pair<FileContent, ParsedFile>, Collection<ClassType>>,
+        PTable<Long, Collection<ClassType>> step3 = collectSamePackageClasses(parsedFiles);
+        return Join.leftJoin(Join.leftJoin(step1, step2), step3).values().parallelDo(
+                new MapFn<Pair<Pair<Pair<FileContent, ParsedFile>, Collection<ClassType>>, Collection<ClassType>>,
                         Tuple3<FileContent, ParsedFile, Collection<ClassType>>>() {
                     @Override
                     public Tuple3<FileContent, ParsedFile, Collection<ClassType>> map(
-                            Pair<Pair<FileContent, ParsedFile>, Collection<ClassType>> in) {
-                        FileContent fileContent = in.first().first();
-                        Collection<ClassType> classes = truncateImportedClassesIfTooMany(
-                                fileContent.getFile(), in.second());
-                        return Tuple3.of(fileContent, in.first().second(), classes);
+                            Pair<Pair<Pair<FileContent, ParsedFile>, Collection<ClassType>>,
+                                    Collection<ClassType>> in) {
+                        FileContent fileContent = in.first().first().first();
+                        Collection<ClassType> classes = PipelineStages.mergeImportedClasses(
+                                nullToEmptyCollection(in.first().second()), nullToEmptyCollection(in.second()));
+                        return Tuple3.of(fileContent, in.first().first().second(), classes);
                     }
                 }, triples(FILE_CONTENT_PTYPE, PARSED_FILE_PTYPE, collections(CLASS_TYPE_PTYPE)));
     }
 
-    private Collection<ClassType> truncateImportedClassesIfTooMany(
-            FileHandle file, Collection<ClassType> importedClasses) {
-        if (importedClasses == null) {
-            return ImmutableList.of();
-        }
-        if (importedClasses.size() < MAX_IMPORTED_CLASSES) {
-            return importedClasses;
-        }
-        List<ClassType> l = ImmutableList.copyOf(importedClasses);
-        List<ClassType> toKeep = l.subList(0, MAX_IMPORTED_CLASSES);
-        List<ClassType> toDrop = l.subList(MAX_IMPORTED_CLASSES, l.size());
-        List<String> toDropExamples = Lists.newArrayList();
-        for (ClassType clazz : Iterables.limit(toDrop, 10)) {
-            toDropExamples.add(clazz.getHandle().getName());
-        }
-        LOG.warn(file.getPath() + " has " + importedClasses.size() + " imports, which is too many: " +
-                Joiner.on('\n').join(toDropExamples) + ". Only keep first " + MAX_IMPORTED_CLASSES);
-        return toKeep;
-    }
-
     private PTable<Long, ClassType> pivotClassByFileId(PCollection<ClassType> classes) {
         return classes.by(new MapFn<ClassType, Long>() {
             @Override
@@ -476,6 +1432,16 @@ public class IndexPipeline implements Serializable {
         }, longs());
     }
 
+    /** Keeps only what importers need from each class, since every class is copied to all its importers. */
+    private PTable<Long, ClassType> summarizeClasses(PTable<Long, ClassType> classes) {
+        return classes.parallelDo("SummarizeClasses", new MapFn<Pair<Long, ClassType>, Pair<Long, ClassType>>() {
+            @Override
+            public Pair<Long, ClassType> map(Pair<Long, ClassType> in) {
+                return Pair.of(in.first(), TypeUtils.summaryOf(in.second()));
+            }
+        }, tableOf(longs(), CLASS_TYPE_PTYPE));
+    }
+
     private PTable<Long, ClassType> pivotClassById(PCollection<ClassType> classes) {
         return classes.by(new MapFn<ClassType, Long>() {
             @Override
@@ -488,78 +1454,103 @@ public class IndexPipeline implements Serializable {
             PCollection<FileContent> fileContents,
             PCollection<ParsedFile> parsedFiles,
             PTable<Long, Long> importGraph) {
-        return joinImports(fileContents, parsedFiles, importGraph)
-                .parallelDo("SecondPass",
-                        new MapFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>, ParsedFile>() {
-                            @Override
-                            public ParsedFile map(Tuple3<FileContent, ParsedFile, Collection<ClassType>> in) {
-                                try {
-                                    FileContent fileContent = in.first();
-                                    ParsedFile currentFile = in.second();
-                                    FileHandle fileHandle = currentFile.getFile();
-                                    Collection<ClassType> importedClasses = in.third();
-                                    SymbolTable symbolTable = createSymbolTable(currentFile, importedClasses);
-                                    SecondPassProcessor.Result result = SecondPassProcessor.extract(
-                                            fileHandle.getProject(),
-                                            fileHandle,
-                                            fileContent.getContent(),
-                                            symbolTable,
-                                            ID_GENERATOR,
-                                            currentFile.getPackage());
-                                    return currentFile.toBuilder()
-                                            .clearClasses()
-                                            .addAllClasses(result.getClassTypes())
-                                            .clearUsages()
-                                            .addAllUsages(result.getUsages())
-                                            .build();
-                                } catch (IOException e) {
-                                    // Since we've inner-joined "parsedFilesById", no exceptions should occur.
-                                    throw new AssertionError(e);
-                                }
-                            }
-                        }, PARSED_FILE_PTYPE);
+        return routeHeavyFiles(joinImports(fileContents, parsedFiles, importGraph),
+                "SecondPass", secondPassFn("SecondPass"), secondPassFn("SecondPassHeavy"));
     }
 
-    private SymbolTable createSymbolTable(ParsedFile currentFile, Collection<ClassType> importedClasses) {
-        List<ClassType> classes = Lists.newArrayList();
-        classes.addAll(currentFile.getClassesList());
-        classes.addAll(importedClasses);
-        SymbolTable symbolTable = new SymbolTable();
-        for (ClassType clazz : classes) {
-            symbolTable.registerClassType(clazz);
-        }
-        return symbolTable;
+    private DoFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>, ParsedFile> secondPassFn(String stage) {
+        return new CountedDoFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>, ParsedFile>(stage) {
+            @Override
+            protected void countedProcess(Tuple3<FileContent, ParsedFile, Collection<ClassType>> in,
+                    Emitter<ParsedFile> emitter) {
+                count(Counter.SOURCE_CHARS, in.first().getContent().length());
+                count(Counter.IMPORTED_CLASSES, in.third().size());
+                try {
+                    emitter.emit(PipelineStages.secondPass(
+                            in.first(), in.second(), in.third(), idGenerator, heavyFiles, previousIds, parseBudget));
+                } catch (IOException e) {
+                    // Since we've inner-joined "parsedFilesById", no exceptions should occur.
+                    throw new AssertionError(e);
+                }
+            }
+        };
     }
 
-    private PCollection<ParsedFile> discoverMethodCalls(
-            PCollection<FileContent> fileContents,
-            PCollection<ParsedFile> parsedFiles,
-            PTable<Long, Long> importGraph) {
-        return joinImports(fileContents, parsedFiles, importGraph)
-                .parallelDo("ThirdPass",
-                        new MapFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>, ParsedFile>() {
+    /**
+     * Resolves call sites recorded by the 2nd pass into usages, by joining them with members of the classes they
+     * refer to, so that no file is parsed again for them.
+     */
+    private PCollection<Usage> resolveCallSites(
+            PCollection<ParsedFile> parsedFiles2ndPass,
+            PCollection<ParsedFile> parsedFilesWithContext) {
+        PTable<Long, CallSite> callSitesByClassId = parsedFiles2ndPass.parallelDo(
+                "CallSitesByClassId",
+                new DoFn<ParsedFile, Pair<Long, CallSite>>() {
                     @Override
-                    public ParsedFile map(Tuple3<FileContent, ParsedFile, Collection<ClassType>> in) {
-                        try {
-                            FileContent fileContent = in.first();
-                            ParsedFile currentFile = in.second();
-                            FileHandle fileHandle = currentFile.getFile();
-                            Collection<ClassType> importedClasses = in.third();
-                            List<Usage> result = ThirdPassProcessor.extract(
-                                    fileHandle,
-                                    fileContent.getContent(),
-                                    createSymbolTable(currentFile, importedClasses),
-                                    currentFile.getPackage(),
-                                    ID_GENERATOR);
-                            return currentFile.toBuilder()
-                                    .clearUsages()
-                                    .addAllUsages(result)
-                                    .build();
-                        } catch (IOException e) {
-                            throw new AssertionError(e);
+                    public void process(ParsedFile in, Emitter<Pair<Long, CallSite>> emitter) {
+                        for (CallSite callSite : in.getCallSitesList()) {
+                            emitter.emit(Pair.of(callSite.getClazz().getId(), callSite));
+                        }
+                    }
+                }, tableOf(longs(), CALL_SITE_PTYPE));
+        PTable<Long, ClassType> membersByClassId = parsedFilesWithContext.parallelDo(
+                "MembersByClassId",
+                new DoFn<ParsedFile, Pair<Long, ClassType>>() {
+                    @Override
+                    public void process(ParsedFile in, Emitter<Pair<Long, ClassType>> emitter) {
+                        for (ClassType clazz : in.getClassesList()) {
+                            emitter.emit(Pair.of(clazz.getHandle().getId(), PipelineStages.membersOf(clazz)));
                         }
                     }
-                }, PARSED_FILE_PTYPE);
+                }, tableOf(longs(), CLASS_TYPE_PTYPE));
+        return callSitesByClassId.join(membersByClassId).values().parallelDo(
+                "ResolveCallSites", new CountedDoFn<Pair<CallSite, ClassType>, Usage>("ResolveCallSites") {
+            @Override
+            protected void countedProcess(Pair<CallSite, ClassType> in, Emitter<Usage> emitter) {
+                Usage usage = PipelineStages.resolveCallSite(in.first(), in.second());
+                if (usage != null) {
+                    emitter.emit(usage);
+                }
+            }
+        }, USAGE_PTYPE);
+    }
+
+    /**
+     * Runs a pass on normal files in the tasks joining them with their imports, and on heavy files in reduce
+     * partitions of their own, so that a few heavy files do not stall tasks of thousands of normal ones.
+     */
+    private PCollection<ParsedFile> routeHeavyFiles(
+            PCollection<Tuple3<FileContent, ParsedFile, Collection<ClassType>>> joined, String stage,
+            DoFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>, ParsedFile> normalFn,
+            DoFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>, ParsedFile> heavyFn) {
+        PCollection<ParsedFile> normal = joined.filter(stage + "NormalFiles", new HeavyFileFilter(false))
+                .parallelDo(stage, normalFn, PARSED_FILE_PTYPE);
+        PCollection<ParsedFile> heavy = joined.filter(stage + "HeavyFiles", new HeavyFileFilter(true))
+                .by(new MapFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>, Long>() {
+                    @Override
+                    public Long map(Tuple3<FileContent, ParsedFile, Collection<ClassType>> in) {
+                        return in.second().getFile().getId();
+                    }
+                }, longs())
+                .groupByKey(heavyFiles.getPartitions())
+                .ungroup()
+                .values()
+                .parallelDo(stage + "Heavy", heavyFn, PARSED_FILE_PTYPE);
+        return normal.union(heavy);
+    }
+
+    /** Accepts either heavy or normal files joined with their imports. */
+    private static class HeavyFileFilter extends FilterFn<Tuple3<FileContent, ParsedFile, Collection<ClassType>>> {
+        private final boolean heavy;
+
+        private HeavyFileFilter(boolean heavy) {
+            this.heavy = heavy;
+        }
+
+        @Override
+        public boolean accept(Tuple3<FileContent, ParsedFile, Collection<ClassType>> in) {
+            return in.second().getHeavy() == heavy;
+        }
     }
 
     private PTable<Long, ParsedFile> pivotParsedFilesByFileId(PCollection<ParsedFile> parsedFiles) {
@@ -600,8 +1591,174 @@ public class IndexPipeline implements Serializable {
         }, ptype);
     }
 
-    private void buildIndexFromPipelineOutput() throws IOException {
-        // TODO: Build index in pipeline.
+    /** Reads which files declare the entities copied to aliases, before any copies are made. */
+    private AliasIds loadAliasIds(List<Path> classParts) throws IOException {
+        AliasIds aliasIds = new AliasIds(aliases, idGenerator);
+        if (aliasIds.isEmpty()) {
+            return aliasIds;
+        }
+        for (Path part : classParts) {
+            SequenceFile.Reader in = openSequenceFile(part);
+            try {
+                List<ClassType> batch;
+                while (!(batch = readBatch(in, ClassType.getDefaultInstance())).isEmpty()) {
+                    for (ClassType clazz : batch) {
+                        aliasIds.addDeclarations(clazz);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return aliasIds;
+    }
+
+    /** Builds one Lucene shard out of one pipeline output file. */
+    private interface ShardBuilder {
+        void build(SequenceFile.Reader in, File shard) throws IOException;
+    }
+
+    /**
+     * Builds a shard of each DB per pipeline output file on the thread pool, then adds the shards to the index, unless
+     * IDs of the entities collide. Shards are built here, not by reducers, since building them takes what is known
+     * only once all partitions have run: alias copies, quarantined files, use counts retained from the existing
+     * index, and the IDs of all entities to check for collisions. So shards scale with threads of this machine, and
+     * output files stay on the pipeline's file system until read.
+     *
+     * @return whether the index is updated, or else IDs found colliding are added to {@code collidingIds}
+     */
+    private boolean buildIndexFromPipelineOutput(Set<Long> collidingIds) throws IOException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        // Lucene writes shards on the local file system.
+        File shardDir = local ? new File(workingDir.toUri().getPath(), "shards") : Files.createTempDir();
+        final IdCollisions ids = new IdCollisions(FileSystem.getLocal(conf), conf,
+                new Path(new File(shardDir, "ids").getAbsolutePath()));
+        List<Path> classParts = Lists.newArrayList();
+        List<Path> usageParts = Lists.newArrayList();
+        List<Path> sourceParts = Lists.newArrayList();
+        for (Partition partition : partitions) {
+            classParts.addAll(SequenceFiles.listParts(fs, partition.classOutputDir));
+            usageParts.addAll(SequenceFiles.listParts(fs, partition.usageOutputDir));
+            sourceParts.addAll(SequenceFiles.listParts(fs, partition.sourceOutputDir));
+        }
+        final AliasIds aliasIds = loadAliasIds(classParts);
+        // Spare threads, if output files are fewer than threads, go to building documents within each shard.
+        int shardCount = classParts.size() + usageParts.size() + sourceParts.size();
+        final IndexWriterOptions shardOptions = IndexWriterOptions.defaults()
+                .setThreads(Math.max(1, threads / Math.max(1, shardCount)));
+        List<File> typeDbShards;
+        List<File> usageDbShards;
+        List<File> sourceDbShards;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<File>> typeDbFutures = submitShards(executor, classParts, new File(shardDir, "typedb"),
+                    new ShardBuilder() {
+                        @Override
+                        public void build(SequenceFile.Reader in, File shard) throws IOException {
+                            TypeDbWriter typeDb = new TypeDbWriterImpl(shard, shardOptions);
+                            try {
+                                List<ClassType> batch;
+                                while (!(batch = readBatch(in, ClassType.getDefaultInstance())).isEmpty()) {
+                                    List<ClassType> adjusted = Lists.newArrayListWithCapacity(batch.size());
+                                    for (ClassType clazz : batch) {
+                                        clazz = incrementalIndex.adjustUseCount(clazz);
+                                        adjusted.add(clazz);
+                                        adjusted.addAll(aliasIds.copiesOf(clazz));
+                                    }
+                                    for (ClassType clazz : adjusted) {
+                                        ids.addClass(clazz);
+                                    }
+                                    typeDb.writeAll(adjusted);
+                                }
+                            } finally {
+                                typeDb.close();
+                            }
+                        }
+                    });
+            List<Future<File>> usageDbFutures = submitShards(executor, usageParts, new File(shardDir, "usagedb"),
+                    new ShardBuilder() {
+                        @Override
+                        public void build(SequenceFile.Reader in, File shard) throws IOException {
+                            UsageDbWriter usageDb = new UsageDbWriterImpl(shard, shardOptions);
+                            try {
+                                List<Usage> batch;
+                                while (!(batch = readBatch(in, Usage.getDefaultInstance())).isEmpty()) {
+                                    List<Usage> resolved = Lists.newArrayListWithCapacity(batch.size());
+                                    SetMultimap<Long, String> unresolvedNames = HashMultimap.create();
+                                    for (Usage usage : batch) {
+                                        if (usage.getKind() != Usage.Kind.TYPE ||
+                                                usage.getType().getType().getClazz().getResolved()) {
+                                            resolved.add(usage);
+                                            resolved.addAll(aliasIds.copiesOf(usage));
+                                            continue;
+                                        }
+                                        String name = PipelineStages.unresolvedClassName(usage);
+                                        if (name != null) {
+                                            unresolvedNames.put(usage.getJumpTarget().getFile().getId(), name);
+                                        }
+                                    }
+                                    for (Usage usage : resolved) {
+                                        ids.addUsage(usage);
+                                    }
+                                    usageDb.writeAll(resolved);
+                                    for (Map.Entry<Long, String> entry : unresolvedNames.entries()) {
+                                        usageDb.writeUnresolvedName(entry.getKey(), entry.getValue());
+                                    }
+                                }
+                            } finally {
+                                usageDb.close();
+                            }
+                        }
+                    });
+            List<Future<File>> sourceDbFutures = submitShards(executor, sourceParts,
+                    new File(shardDir, "sourcedb"), new ShardBuilder() {
+                        @Override
+                        public void build(SequenceFile.Reader in, File shard) throws IOException {
+                            SourceDbWriter sourceDb = new SourceDbWriterImpl(shard, shardOptions);
+                            try {
+                                List<SourceFile> batch;
+                                while (!(batch = readBatch(in, SourceFile.getDefaultInstance())).isEmpty()) {
+                                    List<SourceFile> indexed = Lists.newArrayListWithCapacity(batch.size());
+                                    for (SourceFile source : batch) {
+                                        if (!quarantinedFileIds.contains(source.getHandle().getId())) {
+                                            indexed.add(source);
+                                        }
+                                    }
+                                    sourceDb.writeSourceFiles(indexed);
+                                    for (SourceFile source : indexed) {
+                                        long fileId = source.getHandle().getId();
+                                        ids.addFile(source.getHandle());
+                                        for (FileHandle alias : aliases.get(fileId)) {
+                                            ids.addFile(alias);
+                                            sourceDb.writeAlias(alias, fileId);
+                                        }
+                                    }
+                                }
+                            } finally {
+                                sourceDb.close();
+                            }
+                        }
+                    });
+            typeDbShards = getAll(typeDbFutures);
+            usageDbShards = getAll(usageDbFutures);
+            sourceDbShards = getAll(sourceDbFutures);
+        } finally {
+            executor.shutdownNow();
+            ids.close();
+        }
+        LOG.info(String.format("Built %d shard(s) in %d ms", typeDbShards.size() + usageDbShards.size()
+                + sourceDbShards.size(), stopWatch.getTime()));
+        Set<Long> newCollidingIds = incrementalIndex.findIdCollisions(ids);
+        if (!newCollidingIds.isEmpty()) {
+            counters.increment("BuildIndex", Counter.ID_COLLISIONS, newCollidingIds.size());
+            collidingIds.addAll(newCollidingIds);
+            LOG.warn(newCollidingIds.size() + " ID(s) are given to different entities, leaving the index as it is: "
+                    + newCollidingIds);
+            FileUtils.deleteQuietly(shardDir);
+            return false;
+        }
+
         TypeDbWriter typeDb = null;
         SourceDbWriter sourceDb = null;
         UsageDbWriter usageDb = null;
@@ -609,67 +1766,127 @@ public class IndexPipeline implements Serializable {
             typeDb = new TypeDbWriterImpl(IndexPathUtils.getTypeDbPath(indexDir));
             sourceDb = new SourceDbWriterImpl(IndexPathUtils.getSourceDbPath(indexDir));
             usageDb = new UsageDbWriterImpl(IndexPathUtils.getUsageDbPath(indexDir));
+            incrementalIndex.purge(typeDb, sourceDb, usageDb);
+            typeDb.flush(); // Apply deletions before adding shards.
+            sourceDb.flush();
+            usageDb.flush();
 
-            // Process pipeline output.
-            BytesWritable value = new BytesWritable();
-            for (File file : classOutputDir.listFiles()) {
-                if (isCrcFile(file)) {
-                    continue;
-                }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    typeDb.write(ClassType.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength())));
-                }
-            }
-            for (File file : usageOutputDir.listFiles()) {
-                if (isCrcFile(file)) {
-                    continue;
-                }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    Usage usage = Usage.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
-                    if (usage.getKind() != Usage.Kind.TYPE ||
-                            usage.getType().getType().getClazz().getResolved()) {
-                        usageDb.write(usage);
-                    }
-                }
-            }
-            for (File file : sourceOutputDir.listFiles()) {
-                if (isCrcFile(file)) {
-                    continue;
-                }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    sourceDb.writeSourceFile(SourceFile.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength())));
-                }
-            }
+            typeDb.addIndexes(typeDbShards);
+            usageDb.addIndexes(usageDbShards);
+            sourceDb.addIndexes(sourceDbShards);
 
             // Process repository layout.
-            for (File file : inputDir2.listFiles()) {
-                if (isCrcFile(file)) {
-                    continue;
-                }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    FileHandle f = FileHandle.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
-                    sourceDb.writeDirectory(f.getProject(), f.getPath());
+            BytesWritable value = new BytesWritable();
+            for (Path file : SequenceFiles.listParts(fs, inputDir2)) {
+                SequenceFile.Reader r = openSequenceFile(file);
+                try {
+                    FileHandle f;
+                    while ((f = SequenceFiles.next(r, value, FileHandle.getDefaultInstance())) != null) {
+                        sourceDb.writeDirectory(f.getProject(), f.getPath());
+                    }
+                } finally {
+                    r.close();
                 }
             }
-
-            LOG.info("Index files are written to " + indexDir);
         } finally {
             IOUtils.closeQuietly(typeDb);
             IOUtils.closeQuietly(sourceDb);
             IOUtils.closeQuietly(usageDb);
         }
+        FileUtils.deleteQuietly(shardDir);
+        // Written last, so that files of an interrupted run are reindexed next time.
+        incrementalIndex.save(indexDir);
+        LOG.info("Index files are written to " + indexDir + " in " + stopWatch.getTime() + " ms");
+        return true;
     }
 
-    private boolean isCrcFile(File file) {
-        return file.getPath().endsWith(".crc");
+    /**
+     * Moves files whose parse exceeded the budget from the manifest to the quarantine list. Only their sources are
+     * in the pipeline output, which are left out of the index too.
+     */
+    private void quarantineFiles() throws IOException {
+        quarantinedFileIds.clear();
+        List<Path> parts = Lists.newArrayList();
+        for (Partition partition : partitions) {
+            parts.addAll(SequenceFiles.listParts(fs, partition.quarantineDir));
+        }
+        for (Path file : parts) {
+            SequenceFile.Reader in = openSequenceFile(file);
+            try {
+                List<QuarantinedFile> batch;
+                while (!(batch = readBatch(in, QuarantinedFile.getDefaultInstance())).isEmpty()) {
+                    for (QuarantinedFile quarantined : batch) {
+                        String contentHash = incrementalIndex.dropFile(quarantined.getFile());
+                        if (contentHash != null) {
+                            quarantined = quarantined.toBuilder().setContentHash(contentHash).build();
+                        }
+                        quarantine.add(quarantined);
+                        quarantinedFileIds.add(quarantined.getFile().getId());
+                        for (FileHandle alias : aliases.get(quarantined.getFile().getId())) {
+                            incrementalIndex.dropFile(alias);
+                            quarantine.add(quarantined.toBuilder().setFile(alias).build()); // Same content
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (!quarantinedFileIds.isEmpty()) {
+            quarantine.save();
+        }
     }
 
-    private SequenceFile.Reader openLocalSequenceFile(File file) throws IOException {
-        return new SequenceFile.Reader(fs, new Path(file.getPath()), conf);
+    /** Reads up to {@link #shardBatchSize} messages. Returns an empty list at the end of {@code in}. */
+    private <T extends Message> List<T> readBatch(SequenceFile.Reader in, T prototype) throws IOException {
+        List<T> batch = Lists.newArrayList();
+        BytesWritable value = new BytesWritable();
+        T message;
+        while (batch.size() < shardBatchSize && (message = SequenceFiles.next(in, value, prototype)) != null) {
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    private List<Future<File>> submitShards(ExecutorService executor, List<Path> parts, File shardPrefix,
+            final ShardBuilder builder) {
+        List<Future<File>> futures = Lists.newArrayList();
+        int n = 0;
+        for (final Path file : parts) {
+            final File shard = new File(shardPrefix.getPath() + "-" + n++);
+            futures.add(executor.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    SequenceFile.Reader r = openSequenceFile(file);
+                    try {
+                        builder.build(r, shard);
+                    } finally {
+                        r.close();
+                    }
+                    return shard;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static <T> List<T> getAll(List<Future<T>> futures) throws IOException {
+        List<T> results = Lists.newArrayList();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return results;
+    }
+
+    private SequenceFile.Reader openSequenceFile(Path file) throws IOException {
+        return new SequenceFile.Reader(fs, file, conf);
     }
 
     private PCollection<ClassType> extractClasses(PCollection<ParsedFile> parsedFiles) {
@@ -694,24 +1911,21 @@ public class IndexPipeline implements Serializable {
         }, USAGE_PTYPE);
     }
 
-    private PCollection<SourceFile> annotateSources(PCollection<FileContent> fileContents, PCollection<Usage> usages) {
-        PTable<Long, FileContent> fileContentsById = pivotFileContentById(fileContents);
-        PTable<Long, Usage> usagesByFileId = pivotUsagesByFileId(usages);
-        return Join.leftJoin(fileContentsById, usagesByFileId.collectValues()).values().parallelDo(
-                "AnnotateSource", new MapFn<Pair<FileContent, Collection<Usage>>, SourceFile>() {
+    /**
+     * Annotates sources kept by the 2nd pass. Only usages of call sites are joined, since the 2nd pass has the
+     * others in place.
+     */
+    private PCollection<SourceFile> annotateSources(PCollection<ParsedFile> parsedFiles2ndPass,
+            PCollection<Usage> callSiteUsages) {
+        PTable<Long, ParsedFile> parsedFilesById = pivotParsedFilesByFileId(parsedFiles2ndPass);
+        PTable<Long, Usage> usagesByFileId = pivotUsagesByFileId(callSiteUsages);
+        return Join.leftJoin(parsedFilesById, usagesByFileId.collectValues()).values().parallelDo(
+                "AnnotateSource", new CountedDoFn<Pair<ParsedFile, Collection<Usage>>, SourceFile>("AnnotateSource") {
             @Override
-            public SourceFile map(Pair<FileContent, Collection<Usage>> in) {
+            protected void countedProcess(Pair<ParsedFile, Collection<Usage>> in, Emitter<SourceFile> emitter) {
+                count(Counter.SOURCE_CHARS, in.first().getContent().length());
                 try {
-                    FileContent fileContent = in.first();
-                    Collection<Usage> usages = nullToEmptyCollection(in.second());
-                    String annotated = SourceAnnotator.annotate(
-                            new ByteArrayInputStream(fileContent.getContent().getBytes()),
-                            usages);
-                    return SourceFile.newBuilder()
-                            .setHandle(fileContent.getFile())
-                            .setSource(fileContent.getContent())
-                            .setAnnotatedSource(annotated)
-                            .build();
+                    emitter.emit(PipelineStages.annotate(in.first(), nullToEmptyCollection(in.second())));
                 } catch (IOException e) {
                     throw new AssertionError(e);
                 }
@@ -723,9 +1937,9 @@ public class IndexPipeline implements Serializable {
         PCollection<Long> usedClasses = usages.parallelDo("FilterClassUsages", new DoFn<Usage, Long>() {
             @Override
             public void process(Usage usage, Emitter<Long> emitter) {
-                if (usage.getKind() == Usage.Kind.TYPE) {
-                    TypeUsage typeUsage = usage.getType();
-                    emitter.emit(typeUsage.getType().getClazz().getId());
+                Long id = PipelineStages.usedClassId(usage);
+                if (id != null) {
+                    emitter.emit(id);
                 }
             }
         }, longs());
@@ -733,14 +1947,11 @@ public class IndexPipeline implements Serializable {
         PTable<Long, Long> useCounts = usedClasses.count();
         PTable<Long, ClassType> classesById = pivotClassById(classes);
         return Join.leftJoin(classesById, useCounts).values().parallelDo(
-                "FillClassesWithUseCounts", new MapFn<Pair<ClassType, Long>, ClassType>() {
+                "FillClassesWithUseCounts",
+                new CountedDoFn<Pair<ClassType, Long>, ClassType>("FillClassesWithUseCounts") {
             @Override
-            public ClassType map(Pair<ClassType, Long> in) {
-                ClassType clazz = in.first();
-                long useCount = in.second() == null ? 0 : in.second();
-                return clazz.toBuilder()
-                        .setUseCount(useCount)
-                        .build();
+            protected void countedProcess(Pair<ClassType, Long> in, Emitter<ClassType> emitter) {
+                emitter.emit(PipelineStages.fillUseCount(in.first(), in.second()));
             }
         }, CLASS_TYPE_PTYPE);
     }
@@ -756,6 +1967,10 @@ public class IndexPipeline implements Serializable {
 
     public void cleanUp() {
         LOG.info("Deleting temporary working directory: " + workingDir);
-        FileUtils.deleteQuietly(workingDir);
+        try {
+            fs.delete(workingDir, true);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete " + workingDir, e);
+        }
     }
 }
@@ -0,0 +1,142 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records stages of {@link IndexPipeline} completed in a durable working directory, so that a resumed run skips
+ * them. A stage counts as completed only if it ran on inputs of the same fingerprint. Stages are checked in the
+ * order they run: once a stage has to run again, all later stages run again too, since their inputs change. Stages
+ * of a partition, named "partition/stage", only affect later stages of the same partition, and may be checked from
+ * multiple threads.
+ */
+class PipelineCheckpoints {
+
+    private static final Log LOG = LogFactory.getLog(PipelineCheckpoints.class);
+
+    private final FileSystem fs;
+    private final Path dir;
+    private final String fingerprint;
+    private final boolean resume;
+    private final Set<String> rerunningPartitions = Sets.newHashSet();
+
+    /**
+     * @param resume whether stages completed by an earlier run may be skipped. If not, every stage runs and
+     *               overwrites its checkpoint.
+     */
+    public PipelineCheckpoints(FileSystem fs, Path dir, String fingerprint, boolean resume) throws IOException {
+        this.fs = Preconditions.checkNotNull(fs);
+        this.dir = Preconditions.checkNotNull(dir);
+        this.fingerprint = Preconditions.checkNotNull(fingerprint);
+        this.resume = resume;
+        fs.mkdirs(dir);
+    }
+
+    /** @return whether {@code stage} has completed on the same inputs, in which case its output is reusable */
+    public synchronized boolean isDone(String stage) throws IOException {
+        Preconditions.checkNotNull(stage);
+        String partition = partitionOf(stage);
+        if (!resume || rerunningPartitions.contains(partition)) {
+            return false;
+        }
+        Path marker = new Path(dir, stage);
+        if (fs.exists(marker)) {
+            if (readMarker(marker).trim().equals(fingerprint)) {
+                return true;
+            }
+            LOG.info("Inputs of stage " + stage + " have changed since it completed");
+        }
+        rerunningPartitions.add(partition);
+        return false;
+    }
+
+    /** Marks {@code stage} as completed. */
+    public synchronized void markDone(String stage) throws IOException {
+        Preconditions.checkNotNull(stage);
+        Path marker = new Path(dir, stage);
+        Path tempFile = new Path(dir, stage + ".tmp");
+        FSDataOutputStream out = fs.create(tempFile, true);
+        try {
+            out.write(fingerprint.getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        fs.delete(marker, false);
+        if (!fs.rename(tempFile, marker)) {
+            throw new IOException("Failed to rename " + tempFile + " to " + marker);
+        }
+    }
+
+    private String readMarker(Path marker) throws IOException {
+        FSDataInputStream in = fs.open(marker);
+        try {
+            return IOUtils.toString(in, Charsets.UTF_8.name());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String partitionOf(String stage) {
+        int slash = stage.lastIndexOf('/');
+        return slash < 0 ? "" : stage.substring(0, slash);
+    }
+
+    /**
+     * Hashes records in the sequence files of {@code inputDirs}, together with {@code previousIds} and
+     * {@code settings} which change outputs of the stages. Raw bytes of sequence files are not hashed, because sync
+     * markers are random.
+     */
+    public static String fingerprint(FileSystem fs, Configuration conf, List<Path> inputDirs,
+            Map<String, Long> previousIds, String settings) throws IOException {
+        Preconditions.checkNotNull(fs);
+        Preconditions.checkNotNull(conf);
+        Preconditions.checkNotNull(inputDirs);
+        Preconditions.checkNotNull(previousIds);
+        Preconditions.checkNotNull(settings);
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        BytesWritable value = new BytesWritable();
+        for (Path inputDir : inputDirs) {
+            for (Path file : SequenceFiles.listParts(fs, inputDir)) {
+                sha1.update(file.getName().getBytes());
+                SequenceFile.Reader r = new SequenceFile.Reader(fs, file, conf);
+                try {
+                    while (r.next(NullWritable.get(), value)) {
+                        sha1.update(BigInteger.valueOf(value.getLength()).toByteArray());
+                        sha1.update(value.getBytes(), 0, value.getLength());
+                    }
+                } finally {
+                    r.close();
+                }
+            }
+        }
+        sha1.update(ImmutableSortedMap.copyOf(previousIds).toString().getBytes());
+        sha1.update(settings.getBytes());
+        return String.format("%040x", new BigInteger(1, sha1.digest()));
+    }
+}
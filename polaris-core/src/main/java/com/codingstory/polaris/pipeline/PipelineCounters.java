@@ -0,0 +1,119 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.pipeline.PipelineProtos.PipelineReport;
+import com.codingstory.polaris.pipeline.PipelineProtos.StageReport;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts records, source length and time of each stage of {@link IndexPipeline}. Stages of the MapReduce engine publish
+ * Hadoop counters in {@link #groupOf(String)}, which are added here after each job. The in-memory engine counts
+ * here directly. Safe to use from multiple threads.
+ */
+class PipelineCounters {
+
+    enum Counter {
+        WALL_MILLIS,
+        RECORDS_IN,
+        RECORDS_OUT,
+        PARSE_FAILURES,
+        SOURCE_CHARS,
+        CPU_NANOS,
+        IMPORTED_CLASSES,
+        HEAVY_FILES,
+        QUARANTINED,
+        DUPLICATE_FILES,
+        IGNORED_FILES,
+        GENERATED_FILES,
+        SKIPPED_RUNS,
+        ID_COLLISIONS
+    }
+
+    private static final String GROUP_PREFIX = "polaris:";
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    // Stages are reported in the order they are first counted.
+    private final Map<String, EnumMap<Counter, AtomicLong>> stages = Maps.newLinkedHashMap();
+
+    public void increment(String stage, Counter counter, long value) {
+        Preconditions.checkNotNull(stage);
+        Preconditions.checkNotNull(counter);
+        getCounters(stage).get(counter).addAndGet(value);
+    }
+
+    /** Adds counters published by the stages of a finished MapReduce job. */
+    public void addHadoopCounters(Counters counters) {
+        Preconditions.checkNotNull(counters);
+        for (CounterGroup group : counters) {
+            if (!group.getName().startsWith(GROUP_PREFIX)) {
+                continue;
+            }
+            String stage = group.getName().substring(GROUP_PREFIX.length());
+            for (org.apache.hadoop.mapreduce.Counter counter : group) {
+                increment(stage, Counter.valueOf(counter.getName()), counter.getValue());
+            }
+        }
+    }
+
+    public PipelineReport toReport(String engine, long totalMillis) {
+        PipelineReport.Builder report = PipelineReport.newBuilder()
+                .setEngine(engine)
+                .setTotalMillis(totalMillis);
+        synchronized (stages) {
+            for (Map.Entry<String, EnumMap<Counter, AtomicLong>> entry : stages.entrySet()) {
+                Map<Counter, AtomicLong> counters = entry.getValue();
+                report.addStages(StageReport.newBuilder()
+                        .setName(entry.getKey())
+                        .setWallMillis(counters.get(Counter.WALL_MILLIS).get())
+                        .setRecordsIn(counters.get(Counter.RECORDS_IN).get())
+                        .setRecordsOut(counters.get(Counter.RECORDS_OUT).get())
+                        .setParseFailures(counters.get(Counter.PARSE_FAILURES).get())
+                        .setSourceChars(counters.get(Counter.SOURCE_CHARS).get())
+                        .setCpuMillis(counters.get(Counter.CPU_NANOS).get() / 1000000)
+                        .setImportedClasses(counters.get(Counter.IMPORTED_CLASSES).get())
+                        .setHeavyFiles(counters.get(Counter.HEAVY_FILES).get())
+                        .setQuarantined(counters.get(Counter.QUARANTINED).get())
+                        .setDuplicateFiles(counters.get(Counter.DUPLICATE_FILES).get())
+                        .setIgnoredFiles(counters.get(Counter.IGNORED_FILES).get())
+                        .setGeneratedFiles(counters.get(Counter.GENERATED_FILES).get())
+                        .setSkippedRuns(counters.get(Counter.SKIPPED_RUNS).get())
+                        .setIdCollisions(counters.get(Counter.ID_COLLISIONS).get()));
+            }
+        }
+        return report.build();
+    }
+
+    private EnumMap<Counter, AtomicLong> getCounters(String stage) {
+        synchronized (stages) {
+            EnumMap<Counter, AtomicLong> counters = stages.get(stage);
+            if (counters == null) {
+                counters = new EnumMap<Counter, AtomicLong>(Counter.class);
+                for (Counter counter : Counter.values()) {
+                    counters.put(counter, new AtomicLong());
+                }
+                stages.put(stage, counters);
+            }
+            return counters;
+        }
+    }
+
+    /** @return name of the Hadoop counter group of {@code stage} */
+    public static String groupOf(String stage) {
+        return GROUP_PREFIX + stage;
+    }
+
+    /** @return CPU time of the current thread, or wall time if the JVM does not measure CPU time */
+    public static long cpuTimeNanos() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+                ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+                : System.nanoTime();
+    }
+}
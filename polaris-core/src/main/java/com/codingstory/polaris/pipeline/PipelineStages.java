@@ -0,0 +1,434 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.KeyedIdGenerator;
+import com.codingstory.polaris.parser.CompilationUnitCache;
+import com.codingstory.polaris.parser.FirstPassProcessor;
+import com.codingstory.polaris.parser.ImportExtractor;
+import com.codingstory.polaris.parser.ParseBudget;
+import com.codingstory.polaris.parser.ParseBudgetExceededException;
+import com.codingstory.polaris.parser.ParserUtils;
+import com.codingstory.polaris.parser.ParserProtos.CallSite;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.MethodHandle;
+import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.ParserProtos.TypeHandle;
+import com.codingstory.polaris.parser.ParserProtos.TypeKind;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.parser.ParserProtos.VariableHandle;
+import com.codingstory.polaris.parser.SecondPassProcessor;
+import com.codingstory.polaris.parser.SourceAnnotator;
+import com.codingstory.polaris.parser.SymbolTable;
+import com.codingstory.polaris.parser.ThirdPassProcessor;
+import com.codingstory.polaris.parser.TypeUtils;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileImports;
+import com.codingstory.polaris.pipeline.PipelineProtos.FirstPassResult;
+import com.codingstory.polaris.pipeline.PipelineProtos.ParsedFile;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import japa.parser.ast.CompilationUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Per-record logic of the indexing stages. Shared by the MapReduce pipeline and {@link InMemoryIndexEngine}, so
+ * both engines produce the same records.
+ */
+final class PipelineStages {
+
+    private static final Log LOG = LogFactory.getLog(PipelineStages.class);
+
+    private PipelineStages() {}
+
+    /**
+     * Discovers classes declared by the file and what it imports, parsing the file once for both. The file is marked
+     * heavy if it was found so when read, or if its AST is. Parsing and visiting the AST are each limited by
+     * {@code parseBudget}.
+     *
+     * @throws ParseBudgetExceededException if the file should be quarantined, see {@link #quarantined}, including if
+     *     its parse exceeded the budget when it was read
+     */
+    public static FirstPassResult firstPass(final FileContent in, final KeyedIdGenerator idGenerator,
+            HeavyFilePolicy heavyFiles, ParseBudget parseBudget) throws IOException {
+        if (in.hasQuarantineReason()) {
+            throw new ParseBudgetExceededException(in.getQuarantineReason());
+        }
+        final CompilationUnit compilationUnit = CompilationUnitCache.parse(
+                in.getFile(), in.getContent(), parseBudget);
+        FirstPassProcessor.Result result = parseBudget.run(new Callable<FirstPassProcessor.Result>() {
+            @Override
+            public FirstPassProcessor.Result call() throws IOException {
+                return FirstPassProcessor.process(in.getFile(), compilationUnit, idGenerator);
+            }
+        });
+        SourceFile sourceFile = SourceFile.newBuilder()
+                .setHandle(in.getFile())
+                .build();
+        // Don't save file content for now, since ParsedFile produced by 1st pass is
+        // joined and duplicated for many times (= number of references).
+        ParsedFile parsedFile = ParsedFile.newBuilder()
+                .setFile(sourceFile.getHandle())
+                .setPackage(result.getPackage())
+                .addAllClasses(result.getDiscoveredClasses())
+                .setHeavy(in.getHeavy() || heavyFiles.isHeavyAst(result.getSymbolNodes()))
+                .setGenerated(in.getGenerated())
+                .build();
+        FileImports imports = FileImports.newBuilder()
+                .setFile(in.getFile())
+                .setPackage(result.getPackage())
+                .addAllImportedClasses(result.getImportedClasses())
+                .addAllImportedPackages(result.getImportedPackages())
+                .addAllReferencedNames(result.getReferencedNames())
+                .build();
+        return FirstPassResult.newBuilder()
+                .setParsedFile(parsedFile)
+                .setImports(imports)
+                .build();
+    }
+
+    /** @return the 1st pass result of a file whose parse exceeded the budget, which later stages drop */
+    public static FirstPassResult quarantined(FileContent in, String reason) {
+        return FirstPassResult.newBuilder()
+                .setParsedFile(ParsedFile.newBuilder().setFile(in.getFile()))
+                .setQuarantineReason(reason)
+                .build();
+    }
+
+    /**
+     * Finds what the file imports and declares. Parsing and visiting the AST are each limited by {@code parseBudget}.
+     * The AST is cached, so the 1st pass of the file in the same JVM does not parse it again.
+     */
+    public static FileImports extractImports(FileContent in, ParseBudget parseBudget) throws IOException {
+        final CompilationUnit compilationUnit = CompilationUnitCache.parse(
+                in.getFile(), in.getContent(), parseBudget);
+        ImportExtractor.Result result = parseBudget.run(new Callable<ImportExtractor.Result>() {
+            @Override
+            public ImportExtractor.Result call() throws IOException {
+                return ImportExtractor.findImports(compilationUnit);
+            }
+        });
+        return FileImports.newBuilder()
+                .setFile(in.getFile())
+                .setPackage(result.getPackage())
+                .addAllImportedClasses(result.getImportedClasses())
+                .addAllImportedPackages(result.getImportedPackages())
+                .addAllReferencedNames(result.getReferencedNames())
+                .addAllDeclaredClasses(result.getDeclaredClasses())
+                .build();
+    }
+
+    /**
+     * Returns full names of classes the file may use from its wildcard-imported packages. Only names the file
+     * refers to are listed, so a wildcard import never brings in a whole package.
+     */
+    public static List<String> wildcardImportCandidates(FileImports imports) {
+        List<String> candidates = Lists.newArrayList();
+        for (String pkg : imports.getImportedPackagesList()) {
+            for (String name : imports.getReferencedNamesList()) {
+                candidates.add(pkg + "." + name);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Runs the 2nd and the 3rd pass on one parse of the file. The 2nd pass discovers members of its classes, whose
+     * IDs are then restored, and the 3rd pass local variables, variable and field accesses and method calls. Since
+     * imported classes are summaries of the 1st pass, which have no members, references to their members are kept
+     * as call sites to be resolved by {@link #resolveCallSite}. The content is kept for {@link #annotate}, so that
+     * file contents are joined with their imports only once. A pass exceeding {@code parseBudget} is stopped, and the
+     * file keeps what earlier passes found.
+     */
+    public static ParsedFile secondPass(
+            final FileContent fileContent,
+            ParsedFile currentFile,
+            Collection<ClassType> importedClasses,
+            final KeyedIdGenerator idGenerator,
+            HeavyFilePolicy heavyFiles,
+            Map<String, Long> previousIds,
+            ParseBudget parseBudget) throws IOException {
+        final FileHandle fileHandle = currentFile.getFile();
+        final CompilationUnit compilationUnit;
+        SecondPassProcessor.Result result;
+        try {
+            compilationUnit = CompilationUnitCache.parse(fileHandle, fileContent.getContent(), parseBudget);
+            final SymbolTable symbolTable = createSymbolTable(currentFile, importedClasses);
+            final String pkg = currentFile.getPackage();
+            result = parseBudget.run(new Callable<SecondPassProcessor.Result>() {
+                @Override
+                public SecondPassProcessor.Result call() throws IOException {
+                    return SecondPassProcessor.extract(fileHandle.getProject(), fileHandle,
+                            fileContent.getContent(), compilationUnit, symbolTable, idGenerator, pkg);
+                }
+            });
+        } catch (ParseBudgetExceededException e) {
+            LOG.warn("Indexing only types of " + fileHandle.getProject() + fileHandle.getPath() + ": "
+                    + e.getMessage());
+            return restoreIds(currentFile.toBuilder().setContent(fileContent.getContent()).build(), previousIds);
+        }
+        ParsedFile.Builder builder = currentFile.toBuilder()
+                .clearClasses()
+                .addAllClasses(result.getClassTypes())
+                .clearUsages()
+                .setContent(fileContent.getContent());
+        if (isReduced(currentFile, heavyFiles)) {
+            return restoreIds(builder.build(), previousIds);
+        }
+        final ParsedFile withMembers = restoreIds(builder.addAllUsages(result.getUsages()).build(), previousIds);
+        final SymbolTable symbolTable = createSymbolTable(withMembers, importedClasses);
+        final String pkg = currentFile.getPackage();
+        ThirdPassProcessor.Result calls;
+        try {
+            calls = parseBudget.run(new Callable<ThirdPassProcessor.Result>() {
+                @Override
+                public ThirdPassProcessor.Result call() throws IOException {
+                    return ThirdPassProcessor.extractWithCallSites(
+                            fileHandle, fileContent.getContent(), compilationUnit, symbolTable, pkg, idGenerator,
+                            withMembers.getClassesList());
+                }
+            });
+        } catch (ParseBudgetExceededException e) {
+            LOG.warn("Indexing only members of " + fileHandle.getProject() + fileHandle.getPath() + ": "
+                    + e.getMessage());
+            return withMembers;
+        }
+        return withMembers.toBuilder()
+                .addAllUsages(calls.getUsages())
+                .addAllCallSites(calls.getCallSites())
+                .build();
+    }
+
+    /** @return the usage of the member referred to at {@code callSite}, or {@code null} if it cannot be resolved */
+    public static Usage resolveCallSite(CallSite callSite, ClassType clazz) {
+        return ThirdPassProcessor.resolveCallSite(callSite, clazz);
+    }
+
+    /** Annotates the source kept by the 2nd pass with usages found in it, including those of its call sites. */
+    public static SourceFile annotate(ParsedFile parsedFile, Collection<Usage> callSiteUsages) throws IOException {
+        String annotated = SourceAnnotator.annotate(
+                new ByteArrayInputStream(parsedFile.getContent().getBytes()),
+                ImmutableList.copyOf(Iterables.concat(parsedFile.getUsagesList(), callSiteUsages)));
+        return SourceFile.newBuilder()
+                .setHandle(parsedFile.getFile())
+                .setSource(parsedFile.getContent())
+                .setAnnotatedSource(annotated)
+                .build();
+    }
+
+    /** @return fields and methods of {@code clazz}, which are all that call sites are resolved against */
+    public static ClassType membersOf(ClassType clazz) {
+        return ClassType.newBuilder()
+                .setHandle(clazz.getHandle())
+                .addAllFields(clazz.getFieldsList())
+                .addAllMethods(clazz.getMethodsList())
+                .build();
+    }
+
+    public static ClassType fillUseCount(ClassType clazz, Long useCount) {
+        return clazz.toBuilder()
+                .setUseCount(useCount == null ? 0 : useCount)
+                .build();
+    }
+
+    /** @return the id of the class referred by a type usage, or {@code null} if it is not a type usage. */
+    public static Long usedClassId(Usage usage) {
+        if (usage.getKind() != Usage.Kind.TYPE) {
+            return null;
+        }
+        return usage.getType().getType().getClazz().getId();
+    }
+
+    /**
+     * @return the simple name of the class referred by a type usage which could not be resolved, or {@code null} if
+     * it is resolved or not a type usage. See {@link IncrementalIndex}.
+     */
+    public static String unresolvedClassName(Usage usage) {
+        if (usage.getKind() != Usage.Kind.TYPE) {
+            return null;
+        }
+        TypeHandle type = usage.getType().getType();
+        if (type.getKind() != TypeKind.CLASS || type.getClazz().getResolved()) {
+            return null;
+        }
+        String name = ParserUtils.dropGenericTypes(type.getClazz().getName()).replace("[]", "").trim();
+        return name.isEmpty() ? null : TypeUtils.getSimpleName(name);
+    }
+
+    /**
+     * @return key to sort usages by before indexing: their kind, then the ID of what they use, so that usages looked
+     * up together are stored together. IDs are below 2^53, which leaves room for the kind above them.
+     */
+    public static long usageSortKey(Usage usage) {
+        long id;
+        switch (usage.getKind()) {
+            case TYPE:
+                id = usage.getType().getType().getClazz().getId();
+                break;
+            case METHOD:
+                id = usage.getMethod().getMethod().getId();
+                break;
+            case VARIABLE:
+                id = usage.getVariable().getVariable().getId();
+                break;
+            default:
+                throw new AssertionError("Unknown kind: " + usage.getKind());
+        }
+        return ((long) usage.getKind().getNumber() << 56) | id;
+    }
+
+    /** @return key to sort classes by before indexing: ID of the file declaring them */
+    public static long classSortKey(ClassType clazz) {
+        return clazz.getJumpTarget().getFile().getId();
+    }
+
+    /** @return key to sort sources by before indexing: project and path, so that files of a directory are adjacent */
+    public static String sourceSortKey(SourceFile source) {
+        return source.getHandle().getProject() + source.getHandle().getPath(); // Path starts with "/"
+    }
+
+    /**
+     * Replaces IDs of the classes and members declared in {@code parsedFile} with the IDs they had in the existing
+     * index, so that documents not being reindexed still refer to them correctly.
+     */
+    public static ParsedFile restoreIds(ParsedFile parsedFile, Map<String, Long> previousIds) {
+        if (previousIds.isEmpty()) {
+            return parsedFile;
+        }
+        long fileId = parsedFile.getFile().getId();
+        Map<Long, Long> restored = Maps.newHashMap();
+        ParsedFile.Builder builder = parsedFile.toBuilder();
+        for (int i = 0; i < builder.getClassesCount(); i++) {
+            ClassType.Builder clazz = builder.getClassesBuilder(i);
+            Long id = previousIds.get(typeKey(fileId, clazz.getHandle().getName()));
+            if (id != null) {
+                restored.put(clazz.getHandle().getId(), id);
+                clazz.getHandleBuilder().setId(id);
+            }
+            for (int j = 0; j < clazz.getMethodsCount(); j++) {
+                MethodHandle.Builder method = clazz.getMethodsBuilder(j).getHandleBuilder();
+                id = previousIds.get(methodKey(fileId, method.build()));
+                if (id != null) {
+                    restored.put(method.getId(), id);
+                    method.setId(id);
+                }
+            }
+            for (int j = 0; j < clazz.getFieldsCount(); j++) {
+                VariableHandle.Builder field = clazz.getFieldsBuilder(j).getHandleBuilder();
+                id = previousIds.get(fieldKey(fileId, field.getName()));
+                if (id != null) {
+                    restored.put(field.getId(), id);
+                    field.setId(id);
+                }
+            }
+        }
+        if (restored.isEmpty()) {
+            return parsedFile;
+        }
+        for (int i = 0; i < builder.getUsagesCount(); i++) {
+            Usage.Builder usage = builder.getUsagesBuilder(i);
+            Long id;
+            switch (usage.getKind()) {
+                case TYPE:
+                    ClassTypeHandle.Builder clazz = usage.getTypeBuilder().getTypeBuilder().getClazzBuilder();
+                    if ((id = restored.get(clazz.getId())) != null) {
+                        clazz.setId(id);
+                    }
+                    break;
+                case METHOD:
+                    MethodHandle.Builder method = usage.getMethodBuilder().getMethodBuilder();
+                    if ((id = restored.get(method.getId())) != null) {
+                        method.setId(id);
+                    }
+                    break;
+                case VARIABLE:
+                    VariableHandle.Builder variable = usage.getVariableBuilder().getVariableBuilder();
+                    if ((id = restored.get(variable.getId())) != null) {
+                        variable.setId(id);
+                    }
+                    break;
+                default:
+                    throw new AssertionError("Unknown kind: " + usage.getKind());
+            }
+        }
+        return builder.build();
+    }
+
+    /** Key of a class in the map passed to {@link #restoreIds(ParsedFile, Map)}. */
+    public static String typeKey(long fileId, String name) {
+        return "type:" + fileId + ":" + name;
+    }
+
+    /** Key of a method in the map passed to {@link #restoreIds(ParsedFile, Map)}. */
+    public static String methodKey(long fileId, MethodHandle method) {
+        List<String> parameters = Lists.newArrayList();
+        for (TypeHandle parameter : method.getParametersList()) {
+            switch (parameter.getKind()) {
+                case CLASS:
+                    parameters.add(parameter.getClazz().getName());
+                    break;
+                case PRIMITIVE:
+                    parameters.add(parameter.getPrimitive().getKind().name());
+                    break;
+                default:
+                    parameters.add(parameter.getKind().name());
+            }
+        }
+        return "method:" + fileId + ":" + method.getName() + "(" + Joiner.on(',').join(parameters) + ")";
+    }
+
+    /** Key of a field in the map passed to {@link #restoreIds(ParsedFile, Map)}. */
+    public static String fieldKey(long fileId, String name) {
+        return "field:" + fileId + ":" + name;
+    }
+
+    /** @return the summary of every class in {@code parsedFile}, to be shipped to files importing them */
+    public static List<ClassType> summarizeClasses(ParsedFile parsedFile) {
+        List<ClassType> summaries = Lists.newArrayListWithCapacity(parsedFile.getClassesCount());
+        for (ClassType clazz : parsedFile.getClassesList()) {
+            summaries.add(TypeUtils.summaryOf(clazz));
+        }
+        return summaries;
+    }
+
+    /** Merges explicitly imported classes with classes of the same package, dropping duplicates. */
+    public static Collection<ClassType> mergeImportedClasses(
+            Collection<ClassType> importedClasses, Collection<ClassType> samePackageClasses) {
+        Map<Long, ClassType> classes = Maps.newLinkedHashMap();
+        for (ClassType clazz : Iterables.concat(importedClasses, samePackageClasses)) {
+            if (!classes.containsKey(clazz.getHandle().getId())) {
+                classes.put(clazz.getHandle().getId(), clazz);
+            }
+        }
+        return ImmutableList.copyOf(classes.values());
+    }
+
+    /** @return whether only types and members of the file are indexed, skipping its usages */
+    private static boolean isReduced(ParsedFile parsedFile, HeavyFilePolicy heavyFiles) {
+        return parsedFile.getGenerated() || (parsedFile.getHeavy() && heavyFiles.isReduced());
+    }
+
+    /** Returns the AST of the file. It is parsed at most once while it stays in {@link CompilationUnitCache}. */
+    private static SymbolTable createSymbolTable(ParsedFile currentFile, Collection<ClassType> importedClasses) {
+        // Classes of the current file go last, so they take precedence over their summaries in the same package.
+        List<ClassType> classes = Lists.newArrayList();
+        classes.addAll(importedClasses);
+        classes.addAll(currentFile.getClassesList());
+        SymbolTable symbolTable = new SymbolTable();
+        for (ClassType clazz : classes) {
+            symbolTable.registerClassType(clazz);
+        }
+        return symbolTable;
+    }
+}
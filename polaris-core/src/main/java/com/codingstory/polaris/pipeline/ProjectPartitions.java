@@ -0,0 +1,49 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Assigns projects to partitions of {@link IndexPipeline}, which are processed independently of each other. Each
+ * project is a partition of its own, unless declared dependencies connect it with other projects, in which case
+ * they are all in one partition, so that symbols can be resolved across them. A partition is named after its least
+ * project, which only depends on the dependencies, not on which projects are read. Projects may be looked up from
+ * multiple threads.
+ */
+class ProjectPartitions {
+
+    private final Map<String, String> parents = Maps.newHashMap(); // Union-find forest rooted at least projects
+
+    /** Resolves symbols of {@code project} against those of {@code dependency}, and vice versa. */
+    public synchronized void addDependency(String project, String dependency) {
+        Preconditions.checkNotNull(project);
+        Preconditions.checkNotNull(dependency);
+        String left = find(project);
+        String right = find(dependency);
+        if (left.compareTo(right) < 0) {
+            parents.put(right, left);
+        } else if (right.compareTo(left) < 0) {
+            parents.put(left, right);
+        }
+    }
+
+    /** @return name of the partition of {@code project} */
+    public synchronized String partitionOf(String project) {
+        Preconditions.checkNotNull(project);
+        return find(project);
+    }
+
+    private String find(String project) {
+        String parent = parents.get(project);
+        if (parent == null) {
+            return project;
+        }
+        String root = find(parent);
+        if (!root.equals(parent)) {
+            parents.put(project, root);
+        }
+        return root;
+    }
+}
@@ -0,0 +1,75 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.pipeline.PipelineProtos.QuarantineList;
+import com.codingstory.polaris.pipeline.PipelineProtos.QuarantinedFile;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.googlecode.protobuf.format.JsonFormat;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Files whose parse exceeded the budget, which {@link IndexPipeline} skips until their content changes, so that
+ * one bad file cannot hold a whole run hostage. Kept as JSON, so that entries can be removed by hand to try them
+ * again. Files may be checked from multiple threads.
+ */
+class Quarantine {
+
+    private static final Log LOG = LogFactory.getLog(Quarantine.class);
+
+    private final File file;
+    private final Map<String, QuarantinedFile> files = Maps.newLinkedHashMap();
+
+    private Quarantine(File file) {
+        this.file = file;
+    }
+
+    /** Loads the quarantine list in {@code file}, or starts an empty one if there is none. */
+    public static Quarantine load(File file) throws IOException {
+        Preconditions.checkNotNull(file);
+        Quarantine quarantine = new Quarantine(file);
+        if (file.exists()) {
+            QuarantineList.Builder list = QuarantineList.newBuilder();
+            JsonFormat.merge(FileUtils.readFileToString(file), list);
+            for (QuarantinedFile quarantined : list.getFilesList()) {
+                quarantine.files.put(keyOf(quarantined.getFile().getProject(), quarantined.getFile().getPath()),
+                        quarantined);
+            }
+            LOG.info("Loaded " + quarantine.files.size() + " quarantined file(s) from " + file);
+        }
+        return quarantine;
+    }
+
+    /** @return whether the file is quarantined, unless its content has changed since */
+    public synchronized boolean contains(String project, String path, String contentHash) {
+        QuarantinedFile quarantined = files.get(keyOf(project, path));
+        return quarantined != null && Objects.equal(quarantined.getContentHash(), contentHash);
+    }
+
+    public synchronized void add(QuarantinedFile quarantined) {
+        Preconditions.checkNotNull(quarantined);
+        LOG.warn("Quarantined " + quarantined.getFile().getProject() + quarantined.getFile().getPath() + ": "
+                + quarantined.getReason());
+        files.put(keyOf(quarantined.getFile().getProject(), quarantined.getFile().getPath()), quarantined);
+    }
+
+    public synchronized void save() throws IOException {
+        QuarantineList list = QuarantineList.newBuilder()
+                .addAllFiles(files.values())
+                .build();
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileUtils.writeStringToFile(tempFile, JsonFormat.printToString(list));
+        FileUtils.deleteQuietly(file);
+        FileUtils.moveFile(tempFile, file);
+    }
+
+    private static String keyOf(String project, String path) {
+        return project + path; // Path starts with "/"
+    }
+}
@@ -0,0 +1,110 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Sizes buffers of {@link IndexPipeline} from a memory budget, instead of settings fit for a 256MB heap on any
+ * machine. What does not fit is spilled to disk: sort and shuffle buffers of MapReduce tasks are sized so that the
+ * records collected by reducers still fit beside them, and partitions too large to be held in memory by
+ * {@link IndexPipeline.Engine#INMEMORY} run on MapReduce instead.
+ *
+ * <p>Completion under the budget is not guaranteed. Records a pass needs at once are collected whole by reducers:
+ * classes imported by a file and classes of its package for the 2nd pass, and usages of a file for annotating it.
+ * They cannot be streamed, since the pass needs all of them together, and truncating them would change the index. So
+ * the plan leaves room for them but cannot guarantee it suffices. Nor does the plan choose join strategies: joins
+ * stay on the reduce side, since a map side join holds a whole table in each task.
+ *
+ * <p>On the local job runner, tasks run in the pipeline's own JVM, so the budget is shared by concurrent
+ * partitions. On a cluster, it is the heap of each task.
+ */
+class ResourcePlan {
+
+    private static final long MB = 1024 * 1024;
+    private static final int MIN_SORT_MB = 16;
+    private static final int MAX_SORT_MB = 1024; // Hadoop rejects io.sort.mb of 2GB and more.
+    private static final int MIN_SORT_FACTOR = 10;
+    private static final int MAX_SORT_FACTOR = 100;
+    private static final int MIN_SHARD_BATCH_SIZE = 16;
+    private static final int MAX_SHARD_BATCH_SIZE = 4096;
+    private static final long AVERAGE_RECORD_BYTES = 16 * 1024; // Of an annotated source, the largest output record
+    // Inputs are block compressed, and the in-memory engine keeps each file as a UTF-16 string, its parsed form and
+    // its annotated source at once.
+    private static final int IN_MEMORY_BYTES_PER_INPUT_BYTE = 40;
+    private static final int CONTAINER_OVERHEAD_MB = 256; // Beyond the heap, for the JVM itself
+
+    private final long budgetBytes;
+    private final boolean local;
+    private final long taskBytes;
+    private final int sortMb;
+    private final int sortFactor;
+    private final float shuffleInputBufferPercent;
+    private final int shardBatchSize;
+    private final long maxInMemoryInputBytes;
+
+    private ResourcePlan(long budgetBytes, boolean local, int concurrentPartitions, int threads) {
+        this.budgetBytes = budgetBytes;
+        this.local = local;
+        long partitionBytes = budgetBytes / concurrentPartitions;
+        taskBytes = local ? partitionBytes : budgetBytes;
+        // A quarter of a task for the map side sort buffer, and the rest for records held by the task, e.g. lists of
+        // classes collected by reducers.
+        sortMb = (int) clamp(taskBytes / 4 / MB, MIN_SORT_MB, MAX_SORT_MB);
+        // Each spill merged at once takes a read buffer.
+        sortFactor = (int) clamp(taskBytes / (8 * MB), MIN_SORT_FACTOR, MAX_SORT_FACTOR);
+        // Shuffled map outputs beyond this share of a reducer's heap are merged on disk.
+        shuffleInputBufferPercent = taskBytes < 1024 * MB ? 0.3f : 0.6f;
+        // The index is built after all partitions, by all threads at once.
+        shardBatchSize = (int) clamp(budgetBytes / 4 / threads / AVERAGE_RECORD_BYTES,
+                MIN_SHARD_BATCH_SIZE, MAX_SHARD_BATCH_SIZE);
+        maxInMemoryInputBytes = partitionBytes / IN_MEMORY_BYTES_PER_INPUT_BYTE;
+    }
+
+    /**
+     * @param local whether MapReduce tasks run in this JVM
+     * @param concurrentPartitions number of partitions processed at once
+     * @param threads number of threads building the index
+     */
+    public static ResourcePlan forBudget(long budgetBytes, boolean local, int concurrentPartitions, int threads) {
+        Preconditions.checkArgument(budgetBytes > 0);
+        Preconditions.checkArgument(concurrentPartitions > 0);
+        Preconditions.checkArgument(threads > 0);
+        return new ResourcePlan(budgetBytes, local, concurrentPartitions, threads);
+    }
+
+    /** Sets sizes of MapReduce buffers, and heaps of tasks if they run on a cluster. */
+    public void applyTo(Configuration conf) {
+        Preconditions.checkNotNull(conf);
+        conf.setInt("io.sort.mb", sortMb);
+        conf.setInt("io.sort.factor", sortFactor);
+        conf.setFloat("mapreduce.reduce.shuffle.input.buffer.percent", shuffleInputBufferPercent);
+        if (!local) {
+            int taskMb = (int) (taskBytes / MB);
+            for (String task : new String[] {"map", "reduce"}) {
+                conf.set("mapreduce." + task + ".java.opts", "-Xmx" + taskMb + "m");
+                conf.setInt("mapreduce." + task + ".memory.mb", taskMb + CONTAINER_OVERHEAD_MB);
+            }
+        }
+    }
+
+    /** @return number of records each thread building the index reads at once */
+    public int getShardBatchSize() {
+        return shardBatchSize;
+    }
+
+    /** @return whether {@link IndexPipeline.Engine#INMEMORY} can hold a partition of {@code inputBytes} in memory */
+    public boolean fitsInMemory(long inputBytes) {
+        return inputBytes <= maxInMemoryInputBytes;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString() {
+        return "budgetMb=" + budgetBytes / MB + ",taskMb=" + taskBytes / MB + ",sortMb=" + sortMb
+                + ",sortFactor=" + sortFactor + ",shuffleInputBufferPercent=" + shuffleInputBufferPercent
+                + ",shardBatchSize=" + shardBatchSize + ",maxInMemoryInputMb=" + maxInMemoryInputBytes / MB;
+    }
+}
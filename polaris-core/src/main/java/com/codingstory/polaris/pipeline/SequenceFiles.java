@@ -0,0 +1,109 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Lists, reads and writes sequence files making up pipeline inputs and outputs, on the local file system or a
+ * cluster's. Each record is a protobuf message in a {@link BytesWritable} value, keyed by {@link NullWritable}.
+ * Records are parsed from and serialized into buffers reused across records, since there are hundreds of millions.
+ */
+final class SequenceFiles {
+    private SequenceFiles() {}
+
+    private static final Comparator<Path> BY_NAME = new Comparator<Path>() {
+        @Override
+        public int compare(Path left, Path right) {
+            return left.getName().compareTo(right.getName());
+        }
+    };
+
+    /**
+     * @return files in {@code dir} sorted by name, skipping checksums and markers like "_SUCCESS", or an empty list if
+     * {@code dir} does not exist
+     */
+    public static List<Path> listParts(FileSystem fs, Path dir) throws IOException {
+        Preconditions.checkNotNull(fs);
+        Preconditions.checkNotNull(dir);
+        List<Path> parts = Lists.newArrayList();
+        if (!fs.exists(dir)) {
+            return parts;
+        }
+        for (FileStatus status : fs.listStatus(dir)) {
+            String name = status.getPath().getName();
+            if (status.isDirectory() || name.startsWith("_") || name.startsWith(".") || name.endsWith(".crc")) {
+                continue;
+            }
+            parts.add(status.getPath());
+        }
+        Collections.sort(parts, BY_NAME);
+        return parts;
+    }
+
+    /**
+     * Reads the next record of {@code in} into {@code value}, whose buffer is reused across calls, and parses it
+     * straight from that buffer.
+     *
+     * @return the record, or {@code null} at the end of {@code in}
+     */
+    public static <T extends Message> T next(SequenceFile.Reader in, BytesWritable value, T prototype)
+            throws IOException {
+        if (!in.next(NullWritable.get(), value)) {
+            return null;
+        }
+        return parse(value, prototype);
+    }
+
+    /** Parses the message in {@code value} without copying its valid bytes out of the backing buffer. */
+    @SuppressWarnings("unchecked")
+    public static <T extends Message> T parse(BytesWritable value, T prototype) throws IOException {
+        Preconditions.checkNotNull(value);
+        Preconditions.checkNotNull(prototype);
+        CodedInputStream input = CodedInputStream.newInstance(value.getBytes(), 0, value.getLength());
+        return (T) prototype.newBuilderForType().mergeFrom(input).build();
+    }
+
+    public static Writer createWriter(FileSystem fs, Configuration conf, Path file) throws IOException {
+        return new Writer(SequenceFile.createWriter(fs, conf, file, NullWritable.class, BytesWritable.class));
+    }
+
+    /** Appends messages, serializing each into a buffer which only grows to fit the largest one. */
+    public static final class Writer implements Closeable {
+        private final SequenceFile.Writer out;
+        private final BytesWritable value = new BytesWritable();
+
+        private Writer(SequenceFile.Writer out) {
+            this.out = out;
+        }
+
+        public void append(Message message) throws IOException {
+            int size = message.getSerializedSize();
+            value.setSize(size);
+            CodedOutputStream output = CodedOutputStream.newInstance(value.getBytes(), 0, size);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+            out.append(NullWritable.get(), value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
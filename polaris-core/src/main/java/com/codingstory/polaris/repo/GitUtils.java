@@ -1,28 +1,55 @@
 package com.codingstory.polaris.repo;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.FS;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 
 /** Fetches code from GitHub. */
 public class GitUtils {
 
     private static final Log LOG = LogFactory.getLog(GitUtils.class);
 
+    /** Receives entries of a git tree. Paths start with "/", and paths of directories also end with "/". */
+    public interface TreeVisitor {
+        void visitDirectory(String path) throws IOException;
+
+        /** The blob is not loaded. Use {@code reader} to open it if needed. */
+        void visitFile(String path, ObjectId blobId, ObjectReader reader) throws IOException;
+
+        /** Called by {@link #walkTreeSince} only. The path was a file or directory in the base commit. */
+        void visitDeleted(String path) throws IOException;
+    }
+
     public static Repository mirrorOrSync(Repository remote, File repoBase) throws IOException {
         Preconditions.checkNotNull(remote);
         Preconditions.checkNotNull(repoBase);
         File localDir = new File(repoBase, remote.getName());
         if (localDir.isDirectory()) {
-            Repository local = new Repository(remote.getName(), localDir.getPath());
+            Repository local = new Repository(remote.getName(), localDir.getPath(), remote.getRefs());
             sync(local);
             return local;
         } else {
@@ -42,7 +69,7 @@ public class GitUtils {
                     .setURI(remote.getUrl())
                     .setDirectory(output)
                     .call();
-            return new Repository(remote.getName(), output.getPath());
+            return new Repository(remote.getName(), output.getPath(), remote.getRefs());
         } catch (GitAPIException e) {
             throw new IOException(e);
         }
@@ -61,6 +88,11 @@ public class GitUtils {
     }
 
     public static List<Repository> openRepoBase(File repoBase) throws IOException {
+        return openRepoBase(repoBase, ImmutableList.<String>of());
+    }
+
+    /** Opens repositories under {@code repoBase}, indexing {@code refs} of each, or HEAD if empty. */
+    public static List<Repository> openRepoBase(File repoBase, List<String> refs) throws IOException {
         List<Repository> repos = Lists.newArrayList();
         File[] children = repoBase.listFiles();
         if (children == null) {
@@ -68,12 +100,208 @@ public class GitUtils {
         }
         for (File dir : children) {
             if (dir.isDirectory()) {
-                repos.add(new Repository(dir.getName(), dir.getPath()));
+                repos.add(new Repository(dir.getName(), dir.getPath(), refs));
             }
         }
         return repos;
     }
 
+    /**
+     * Walks the tree of HEAD commit in the object database of a local repository, so that no work tree needs to be
+     * checked out. Hidden files and directories are skipped.
+     *
+     * @return the HEAD commit, or {@code null} if the repository has none
+     */
+    public static String walkHeadTree(Repository repo, TreeVisitor visitor) throws IOException {
+        return walkTree(repo, Constants.HEAD, visitor);
+    }
+
+    /**
+     * Like {@link #walkHeadTree(Repository, TreeVisitor)}, but walks the commit {@code ref} points to, which may be a
+     * branch, a tag or anything else git can resolve.
+     *
+     * @return the commit, or {@code null} if the repository has no such ref
+     */
+    public static String walkTree(Repository repo, String ref, TreeVisitor visitor) throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(ref);
+        Preconditions.checkNotNull(visitor);
+        org.eclipse.jgit.lib.Repository db = openLocal(repo);
+        try {
+            ObjectId head = db.resolve(ref);
+            if (head == null) {
+                LOG.warn("No " + ref + " in " + repo);
+                return null;
+            }
+            ObjectReader reader = db.newObjectReader();
+            try {
+                RevCommit commit = new RevWalk(reader).parseCommit(head); // Peels annotated tags
+                TreeWalk treeWalk = new TreeWalk(reader);
+                treeWalk.addTree(commit.getTree());
+                treeWalk.setRecursive(false);
+                visitor.visitDirectory("/");
+                while (treeWalk.next()) {
+                    if (treeWalk.getNameString().startsWith(".")) {
+                        continue;
+                    }
+                    String path = "/" + treeWalk.getPathString();
+                    if (treeWalk.isSubtree()) {
+                        visitor.visitDirectory(path + "/");
+                        treeWalk.enterSubtree();
+                    } else if (isRegularFile(treeWalk.getRawMode(0))) {
+                        visitor.visitFile(path, treeWalk.getObjectId(0), reader);
+                    }
+                }
+                return commit.name();
+            } finally {
+                reader.release();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Like {@link #walkHeadTree(Repository, TreeVisitor)}, but only visits what has changed since {@code baseCommit}:
+     * added or modified files, directories containing them, and deleted files and directories.
+     *
+     * @return the HEAD commit, or {@code null} if the repository has no HEAD or {@code baseCommit} is unknown, in
+     * which case nothing is visited
+     */
+    public static String walkHeadTreeSince(Repository repo, String baseCommit, TreeVisitor visitor)
+            throws IOException {
+        return walkTreeSince(repo, Constants.HEAD, baseCommit, visitor);
+    }
+
+    /**
+     * Like {@link #walkHeadTreeSince(Repository, String, TreeVisitor)}, but compares the commit {@code ref} points
+     * to with {@code baseCommit}.
+     *
+     * @return the commit, or {@code null} if the repository has no such ref or {@code baseCommit} is unknown, in
+     * which case nothing is visited
+     */
+    public static String walkTreeSince(Repository repo, String ref, String baseCommit, TreeVisitor visitor)
+            throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(ref);
+        Preconditions.checkNotNull(baseCommit);
+        Preconditions.checkNotNull(visitor);
+        org.eclipse.jgit.lib.Repository db = openLocal(repo);
+        try {
+            ObjectId head = db.resolve(ref);
+            ObjectId base = ObjectId.isId(baseCommit) ? ObjectId.fromString(baseCommit) : null;
+            if (head == null || base == null || !db.hasObject(base)) {
+                return null;
+            }
+            ObjectReader reader = db.newObjectReader();
+            try {
+                RevWalk revWalk = new RevWalk(reader);
+                RevTree baseTree = revWalk.parseCommit(base).getTree();
+                RevCommit headCommit = revWalk.parseCommit(head);
+                RevTree headTree = headCommit.getTree();
+                TreeWalk treeWalk = new TreeWalk(reader);
+                treeWalk.addTree(baseTree);
+                treeWalk.addTree(headTree);
+                treeWalk.setRecursive(true);
+                treeWalk.setFilter(TreeFilter.ANY_DIFF);
+                Set<String> visitedDirs = Sets.newHashSet();
+                for (DiffEntry diff : DiffEntry.scan(treeWalk)) {
+                    boolean existed = diff.getChangeType() != DiffEntry.ChangeType.ADD;
+                    boolean exists = diff.getChangeType() != DiffEntry.ChangeType.DELETE
+                            && isRegularFile(diff.getNewMode().getBits());
+                    String oldPath = diff.getOldPath();
+                    if (existed && !exists && !isHidden(oldPath)) {
+                        visitor.visitDeleted("/" + oldPath);
+                        for (String dir : parentsOf(oldPath)) {
+                            if (visitedDirs.add(dir) && TreeWalk.forPath(reader, dir, headTree) == null) {
+                                visitor.visitDeleted("/" + dir + "/");
+                            }
+                        }
+                    }
+                    String newPath = diff.getNewPath();
+                    if (exists && !isHidden(newPath)) {
+                        for (String dir : parentsOf(newPath)) {
+                            if (visitedDirs.add(dir)) {
+                                visitor.visitDirectory("/" + dir + "/");
+                            }
+                        }
+                        visitor.visitFile("/" + newPath, diff.getNewId().toObjectId(), reader);
+                    }
+                }
+                return headCommit.name();
+            } finally {
+                reader.release();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @return content of the file at {@code path}, relative to the root, in the commit {@code ref} points to, or
+     * {@code null} if there is no such file or ref
+     */
+    public static byte[] readFile(Repository repo, String ref, String path) throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(ref);
+        Preconditions.checkNotNull(path);
+        org.eclipse.jgit.lib.Repository db = openLocal(repo);
+        try {
+            ObjectId head = db.resolve(ref);
+            if (head == null) {
+                return null;
+            }
+            ObjectReader reader = db.newObjectReader();
+            try {
+                RevCommit commit = new RevWalk(reader).parseCommit(head);
+                TreeWalk treeWalk = TreeWalk.forPath(reader, path, commit.getTree());
+                if (treeWalk == null || !isRegularFile(treeWalk.getRawMode(0))) {
+                    return null;
+                }
+                return reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes();
+            } finally {
+                reader.release();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static org.eclipse.jgit.lib.Repository openLocal(Repository repo) throws IOException {
+        Preconditions.checkArgument(repo.isLocal());
+        File gitDir = RepositoryCache.FileKey.resolve(new File(repo.getUrl()), FS.DETECTED);
+        if (gitDir == null) {
+            throw new IOException("Not a git repository: " + repo);
+        }
+        return new FileRepositoryBuilder()
+                .setGitDir(gitDir)
+                .setMustExist(true)
+                .build();
+    }
+
+    private static boolean isRegularFile(int mode) {
+        return (mode & FileMode.TYPE_MASK) == FileMode.TYPE_FILE;
+    }
+
+    private static boolean isHidden(String path) {
+        for (String name : Splitter.on('/').split(path)) {
+            if (name.startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns "a", "a/b" for "a/b/c". */
+    private static List<String> parentsOf(String path) {
+        List<String> parents = Lists.newArrayList();
+        int slash = -1;
+        while ((slash = path.indexOf('/', slash + 1)) != -1) {
+            parents.add(path.substring(0, slash));
+        }
+        return parents;
+    }
+
     public static void checkoutWorkTree(Repository repo, File outputDir) throws IOException {
         Preconditions.checkNotNull(repo);
         Preconditions.checkNotNull(outputDir);
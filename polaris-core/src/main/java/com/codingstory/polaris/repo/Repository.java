@@ -1,19 +1,30 @@
 package com.codingstory.polaris.repo;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jgit.lib.Constants;
 
 import java.io.File;
+import java.util.List;
 
 /** A Git repository. */
 public class Repository {
     private final String name;
     private final String url;
+    private final List<String> refs;
 
     public Repository(String name, String url) {
+        this(name, url, ImmutableList.<String>of());
+    }
+
+    /** @param refs branches or tags to index, or none to index HEAD only */
+    public Repository(String name, String url, List<String> refs) {
         Preconditions.checkNotNull(name);
         Preconditions.checkNotNull(url);
+        Preconditions.checkNotNull(refs);
         this.url = url;
         this.name = name;
+        this.refs = ImmutableList.copyOf(refs);
     }
 
     public String getName() {
@@ -24,6 +35,24 @@ public class Repository {
         return url;
     }
 
+    /** @return branches or tags to index, or an empty list to index HEAD only */
+    public List<String> getRefs() {
+        return refs;
+    }
+
+    /**
+     * @return name of the project {@code ref} is indexed as: the repository name for HEAD, or e.g. "name@release-1.0"
+     * for "refs/heads/release/1.0", so that each ref is searched as a project of its own
+     */
+    public String getProject(String ref) {
+        Preconditions.checkNotNull(ref);
+        if (ref.equals(Constants.HEAD)) {
+            return name;
+        }
+        // Project and path make keys of entities, so the project must not contain "/".
+        return name + "@" + org.eclipse.jgit.lib.Repository.shortenRefName(ref).replace('/', '-');
+    }
+
     public boolean isLocal() {
         return new File(url).isDirectory();
     }
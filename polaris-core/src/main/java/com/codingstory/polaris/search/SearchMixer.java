@@ -31,18 +31,20 @@ public class SearchMixer {
         this.sourceDb = Preconditions.checkNotNull(sourceDb);
     }
 
-    public List<Hit> search(String query, int n, boolean search) throws IOException {
+    /** Only searches {@code project}, unless it is {@code null}. */
+    public List<Hit> search(String query, String project, int n, boolean search) throws IOException {
         Preconditions.checkNotNull(query);
         Preconditions.checkArgument(n >= 0);
+        String scope = (project == null ? "" : " in " + project);
         if (search) {
-            LOG.info("Query: " + query);
+            LOG.info("Query: " + query + scope);
         } else {
-            LOG.info("Complete query: " + query);
+            LOG.info("Complete query: " + query + scope);
         }
         // TODO: Need to understand query
         List<Hit> hits = Lists.newArrayList();
-        hits.addAll(fillSummary(typeDb.query(query, n)));
-        hits.addAll(sourceDb.query(query, n));
+        hits.addAll(fillSummary(typeDb.query(query, project, n)));
+        hits.addAll(sourceDb.query(query, project, n));
         sortHits(hits);
         if (hits.size() > n) {
             return hits.subList(0, n);
@@ -53,4 +53,10 @@ public interface SourceDb extends Closeable {
 
     /** Matches {@code query} against file names or contents. */
     List<Hit> query(String query, int n) throws IOException;
+
+    /**
+     * Like {@link #query(String, int)}, but only searches {@code project}, unless it is {@code null}. Aliases in the
+     * project are matched by content of their canonical files.
+     */
+    List<Hit> query(String query, String project, int n) throws IOException;
 }
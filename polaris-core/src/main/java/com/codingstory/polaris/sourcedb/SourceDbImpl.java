@@ -8,8 +8,12 @@ import com.codingstory.polaris.parser.ParserProtos.SourceFile;
 import com.codingstory.polaris.search.SearchProtos.Hit;
 import com.codingstory.polaris.sourcedb.SourceDbProtos.SourceData;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,9 +24,13 @@ import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldCacheTermsFilter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
@@ -32,6 +40,8 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class SourceDbImpl implements SourceDb {
     private static final Log LOG = LogFactory.getLog(SourceDbImpl.class);
@@ -117,6 +127,11 @@ public class SourceDbImpl implements SourceDb {
 
     @Override
     public List<Hit> query(String query, int n) throws IOException {
+        return query(query, null, n);
+    }
+
+    @Override
+    public List<Hit> query(String query, String project, int n) throws IOException {
         Preconditions.checkNotNull(query);
         Preconditions.checkArgument(n >= 0);
         try {
@@ -124,12 +139,29 @@ public class SourceDbImpl implements SourceDb {
                     Version.LUCENE_36,
                     SEARCHABLE_FIELDS,
                     SourceCodeAnalyzer.getInstance());
-            TopDocs topDocs = searcher.search(parser.parse(query), n);
+            Query parsed = parser.parse(query);
+            Map<Long, FileHandle> aliases = ImmutableMap.of();
+            if (!Strings.isNullOrEmpty(project)) {
+                aliases = findAliasesByCanonicalFileId(project);
+                parsed = scopeToProject(parsed, project, aliases.keySet());
+            }
+            TopDocs topDocs = searcher.search(parsed, n);
             List<Hit> hits = Lists.newArrayList();
+            Set<Long> fileIds = Sets.newHashSet();
             for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
                 SourceFile source = retrieveDocument(scoreDoc.doc);
+                if (source == null) {
+                    continue;
+                }
+                FileHandle file = source.getHandle();
+                if (aliases.containsKey(file.getId()) && !file.getProject().equals(project)) {
+                    file = aliases.get(file.getId()); // Matched content of the canonical file
+                }
+                if (!fileIds.add(file.getId())) {
+                    continue;
+                }
                 JumpTarget jumpTarget = JumpTarget.newBuilder()
-                        .setFile(source.getHandle())
+                        .setFile(file)
                         .build();
                 hits.add(Hit.newBuilder()
                         .setKind(Hit.Kind.FILE)
@@ -146,6 +178,46 @@ public class SourceDbImpl implements SourceDb {
         }
     }
 
+    /** @return aliases in the project, by ID of their canonical files */
+    private Map<Long, FileHandle> findAliasesByCanonicalFileId(String project) throws IOException {
+        BooleanQuery booleanQuery = new BooleanQuery();
+        booleanQuery.add(new TermQuery(new Term(SourceDbIndexedField.PROJECT_RAW, project)), BooleanClause.Occur.MUST);
+        booleanQuery.add(new TermRangeQuery(SourceDbIndexedField.CANONICAL_FILE_ID_RAW, null, null, true, true),
+                BooleanClause.Occur.MUST);
+        TopDocs topDocs = searcher.search(booleanQuery, Integer.MAX_VALUE);
+        Map<Long, FileHandle> aliases = Maps.newHashMap();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            Document document = reader.document(scoreDoc.doc);
+            aliases.put(Long.parseLong(document.get(SourceDbIndexedField.CANONICAL_FILE_ID_RAW)),
+                    FileHandle.newBuilder()
+                            .setId(Long.parseLong(document.get(SourceDbIndexedField.FILE_ID_RAW)))
+                            .setProject(project)
+                            .setPath(document.get(SourceDbIndexedField.PATH_RAW))
+                            .build());
+        }
+        return aliases;
+    }
+
+    /** Restricts {@code query} to files in the project, and canonical files of aliases in it. */
+    private static Query scopeToProject(Query query, String project, Set<Long> canonicalFileIds) {
+        BooleanQuery scope = new BooleanQuery();
+        scope.add(new TermQuery(new Term(SourceDbIndexedField.PROJECT_RAW, project)), BooleanClause.Occur.SHOULD);
+        if (!canonicalFileIds.isEmpty()) {
+            // Too many to be clauses of a boolean query if the project is a ref sharing most files with another.
+            List<String> terms = Lists.newArrayList();
+            for (long fileId : canonicalFileIds) {
+                terms.add(String.valueOf(fileId));
+            }
+            scope.add(new ConstantScoreQuery(new FieldCacheTermsFilter(
+                    SourceDbIndexedField.FILE_ID_RAW, terms.toArray(new String[terms.size()]))),
+                    BooleanClause.Occur.SHOULD);
+        }
+        BooleanQuery scoped = new BooleanQuery();
+        scoped.add(query, BooleanClause.Occur.MUST);
+        scoped.add(scope, BooleanClause.Occur.MUST);
+        return scoped;
+    }
+
     private String getFileName(String path) {
         int slash = path.lastIndexOf("/");
         if (slash == -1) {
@@ -154,8 +226,30 @@ public class SourceDbImpl implements SourceDb {
         return path.substring(slash + 1);
     }
 
+    /** Resolves the source of an alias to that of its canonical file. Returns {@code null} if it is missing. */
     private SourceFile retrieveDocument(int docId) throws IOException {
         Document document = reader.document(docId);
+        String canonicalFileId = document.get(SourceDbIndexedField.CANONICAL_FILE_ID_RAW);
+        if (canonicalFileId != null) {
+            TopDocs topDocs = searcher.search(
+                    new TermQuery(new Term(SourceDbIndexedField.FILE_ID_RAW, canonicalFileId)), 1);
+            if (topDocs.scoreDocs.length == 0) {
+                LOG.warn("Missing canonical file " + canonicalFileId + " of alias "
+                        + document.get(SourceDbIndexedField.FILE_ID_RAW));
+                return null;
+            }
+            Document canonical = reader.document(topDocs.scoreDocs[0].doc);
+            return toSourceFile(canonical).toBuilder()
+                    .setHandle(FileHandle.newBuilder()
+                            .setId(Long.parseLong(document.get(SourceDbIndexedField.FILE_ID_RAW)))
+                            .setProject(document.get(SourceDbIndexedField.PROJECT_RAW))
+                            .setPath(document.get(SourceDbIndexedField.PATH_RAW)))
+                    .build();
+        }
+        return toSourceFile(document);
+    }
+
+    private static SourceFile toSourceFile(Document document) throws IOException {
         SourceData sourceData = SourceData.parseFrom(
                 SnappyUtils.uncompress(document.getBinaryValue(SourceDbIndexedField.SOURCE_DATA)));
         return sourceData.getSourceFile();
@@ -9,4 +9,5 @@ public class SourceDbIndexedField {
     public static final String PARENT_PATH_RAW = "ParentPathRaw";
     public static final String SOURCE_DATA = "SourceData";
     public static final String SOURCE_TEXT = "SourceText";
+    public static final String CANONICAL_FILE_ID_RAW = "CanonicalFileIdRaw";
 }
@@ -1,13 +1,30 @@
 package com.codingstory.polaris.sourcedb;
 
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public interface SourceDbWriter extends Closeable {
     void writeSourceFile(SourceFile sourceFile) throws IOException;
+
+    /** Writes all source files, building their documents concurrently if the writer is configured to. */
+    void writeSourceFiles(Iterable<SourceFile> sourceFiles) throws IOException;
+
+    /**
+     * Writes a file identical to the file of {@code canonicalFileId}, whose source is stored once for both. Its
+     * content is not searchable on its own.
+     */
+    void writeAlias(FileHandle alias, long canonicalFileId) throws IOException;
     void writeDirectory(String project, String path) throws IOException;
+    void deleteSourceFile(long fileId) throws IOException;
+    void deleteDirectory(String project, String path) throws IOException;
+
+    /** Merges indexes built by other writers of the same kind. */
+    void addIndexes(List<File> shards) throws IOException;
     void flush() throws IOException;
     void close() throws IOException;
 }
@@ -1,7 +1,12 @@
 package com.codingstory.polaris.sourcedb;
 
+import com.codingstory.polaris.IdUtils;
 import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.indexing.ConcurrentDocumentWriter;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
+import com.codingstory.polaris.indexing.IndexWriterUtils;
 import com.codingstory.polaris.indexing.analysis.SourceCodeAnalyzer;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
 import com.codingstory.polaris.sourcedb.SourceDbProtos.SourceData;
 import com.google.common.base.Objects;
@@ -10,38 +15,59 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class SourceDbWriterImpl implements SourceDbWriter {
-    private IndexWriter writer;
+    private final IndexWriter writer;
+    private final ConcurrentDocumentWriter<SourceFile> documentWriter;
 
     public SourceDbWriterImpl(File path) throws IOException {
+        this(path, IndexWriterOptions.defaults());
+    }
+
+    public SourceDbWriterImpl(File path, IndexWriterOptions options) throws IOException {
         Preconditions.checkNotNull(path);
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36, SourceCodeAnalyzer.getInstance());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        this.writer = new IndexWriter(FSDirectory.open(path), config);
+        Preconditions.checkNotNull(options);
+        this.writer = new IndexWriter(FSDirectory.open(path), options.createConfig(SourceCodeAnalyzer.getInstance()));
+        this.documentWriter = new ConcurrentDocumentWriter<SourceFile>(writer,
+                new ConcurrentDocumentWriter.DocumentBuilder<SourceFile>() {
+                    @Override
+                    public Document build(SourceFile record) throws IOException {
+                        return toDocument(record);
+                    }
+                }, options.getThreads());
     }
     @Override
     public void writeSourceFile(SourceFile sourceFile) throws IOException {
-        Preconditions.checkNotNull(sourceFile);
-        Document document = new Document();
-        document.add(new Field(SourceDbIndexedField.FILE_ID_RAW, String.valueOf(sourceFile.getHandle().getId()),
-                Field.Store.YES, Field.Index.ANALYZED));
-        document.add(new Field(SourceDbIndexedField.PROJECT, sourceFile.getHandle().getProject(),
-                Field.Store.YES,  Field.Index.ANALYZED));
-        document.add(new Field(SourceDbIndexedField.PROJECT_RAW, sourceFile.getHandle().getProject(),
-                Field.Store.YES,  Field.Index.ANALYZED));
-        document.add(new Field(SourceDbIndexedField.PATH, sourceFile.getHandle().getPath(),
-                Field.Store.YES, Field.Index.ANALYZED));
-        document.add(new Field(SourceDbIndexedField.PATH_RAW, sourceFile.getHandle().getPath(),
+        documentWriter.write(sourceFile);
+    }
+
+    @Override
+    public void writeSourceFiles(Iterable<SourceFile> sourceFiles) throws IOException {
+        documentWriter.writeAll(sourceFiles);
+    }
+
+    @Override
+    public void writeAlias(FileHandle alias, long canonicalFileId) throws IOException {
+        Preconditions.checkNotNull(alias);
+        IdUtils.checkValid(canonicalFileId);
+        Document document = toFileDocument(alias);
+        document.add(new Field(SourceDbIndexedField.CANONICAL_FILE_ID_RAW, String.valueOf(canonicalFileId),
                 Field.Store.YES, Field.Index.ANALYZED));
-        document.add(new Field(SourceDbIndexedField.PARENT_PATH_RAW,
-                findParentPath(sourceFile.getHandle().getPath()), Field.Store.YES, Field.Index.ANALYZED));
+        writer.addDocument(document);
+    }
+
+    private static Document toDocument(SourceFile sourceFile) throws IOException {
+        Preconditions.checkNotNull(sourceFile);
+        Document document = toFileDocument(sourceFile.getHandle());
         SourceData sourceData = SourceData.newBuilder()
                 .setSourceFile(sourceFile)
                 .build();
@@ -50,7 +76,25 @@ public class SourceDbWriterImpl implements SourceDbWriter {
         document.add(new Field(SourceDbIndexedField.SOURCE_TEXT,
                 sourceData.getSourceFile().getSource(), Field.Store.YES,
                 Field.Index.ANALYZED, Field.TermVector.WITH_POSITIONS_OFFSETS));
-        writer.addDocument(document);
+        return document;
+    }
+
+    /** @return a document with the fields telling the file */
+    private static Document toFileDocument(FileHandle file) {
+        Document document = new Document();
+        document.add(new Field(SourceDbIndexedField.FILE_ID_RAW, String.valueOf(file.getId()),
+                Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new Field(SourceDbIndexedField.PROJECT, file.getProject(),
+                Field.Store.YES,  Field.Index.ANALYZED));
+        document.add(new Field(SourceDbIndexedField.PROJECT_RAW, file.getProject(),
+                Field.Store.YES,  Field.Index.ANALYZED));
+        document.add(new Field(SourceDbIndexedField.PATH, file.getPath(),
+                Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new Field(SourceDbIndexedField.PATH_RAW, file.getPath(),
+                Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new Field(SourceDbIndexedField.PARENT_PATH_RAW,
+                findParentPath(file.getPath()), Field.Store.YES, Field.Index.ANALYZED));
+        return document;
     }
 
     @Override
@@ -66,6 +110,29 @@ public class SourceDbWriterImpl implements SourceDbWriter {
         writer.addDocument(document);
     }
 
+    @Override
+    public void deleteSourceFile(long fileId) throws IOException {
+        IdUtils.checkValid(fileId);
+        writer.deleteDocuments(new Term(SourceDbIndexedField.FILE_ID_RAW, String.valueOf(fileId)));
+    }
+
+    @Override
+    public void deleteDirectory(String project, String path) throws IOException {
+        Preconditions.checkNotNull(project);
+        Preconditions.checkNotNull(path);
+        path = SourceDbUtils.fixPathForDirectory(path);
+        // Only directories have paths ending with "/".
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term(SourceDbIndexedField.PROJECT_RAW, project)), BooleanClause.Occur.MUST);
+        query.add(new TermQuery(new Term(SourceDbIndexedField.PATH_RAW, path)), BooleanClause.Occur.MUST);
+        writer.deleteDocuments(query);
+    }
+
+    @Override
+    public void addIndexes(List<File> shards) throws IOException {
+        IndexWriterUtils.addIndexes(writer, shards);
+    }
+
     @Override
     public void flush() throws IOException {
         writer.commit();
@@ -73,10 +140,11 @@ public class SourceDbWriterImpl implements SourceDbWriter {
 
     @Override
     public void close() throws IOException {
+        documentWriter.close();
         writer.close();
     }
 
-    private String findParentPath(String path) {
+    private static String findParentPath(String path) {
         if (Objects.equal(path, "/")) {
             return "";
         } else {
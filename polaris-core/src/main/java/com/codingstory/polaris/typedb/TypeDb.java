@@ -13,9 +13,15 @@ public interface TypeDb extends Closeable {
     ClassType getTypeById(long id) throws IOException;
     List<ClassType> getTypeByName(String type, String project, int n) throws IOException;
     List<ClassType> getTypesInFile(long fileId, int n) throws IOException;
+
+    /** Returns top-level types in the package. Nested types are not included. */
+    List<ClassType> getTypesInPackage(String pkg, int n) throws IOException;
     Variable getFieldById(long id) throws IOException;
     Method getMethodById(long id) throws IOException;
 
     /** Searches for types in {@code TypeDb}. It does not set {@code summary}. */
     List<Hit> query(String query, int n) throws IOException;
+
+    /** Like {@link #query(String, int)}, but only searches {@code project}, unless it is {@code null}. */
+    List<Hit> query(String query, String project, int n) throws IOException;
 }
@@ -79,6 +79,11 @@ public class TypeDbImpl implements TypeDb {
 
     @Override
     public List<Hit> query(String query, int n) throws IOException {
+        return query(query, null, n);
+    }
+
+    @Override
+    public List<Hit> query(String query, String project, int n) throws IOException {
         Preconditions.checkNotNull(query);
         Preconditions.checkArgument(n >= 0);
         BooleanQuery booleanQuery = new BooleanQuery();
@@ -87,6 +92,12 @@ public class TypeDbImpl implements TypeDb {
                     new Term(field, query.toLowerCase())), // case-insensitive
                     BooleanClause.Occur.SHOULD);
         }
+        if (!Strings.isNullOrEmpty(project)) {
+            BooleanQuery scoped = new BooleanQuery();
+            scoped.add(booleanQuery, BooleanClause.Occur.MUST);
+            scoped.add(new TermQuery(new Term(TypeDbIndexedField.PROJECT, project)), BooleanClause.Occur.MUST);
+            booleanQuery = scoped;
+        }
         TopDocs hits = searcher.search(booleanQuery, n);
         List<Hit> result = Lists.newArrayList();
         for (ScoreDoc scoreDoc: hits.scoreDocs) {
@@ -114,6 +125,23 @@ public class TypeDbImpl implements TypeDb {
         return result;
     }
 
+    @Override
+    public List<ClassType> getTypesInPackage(String pkg, int n) throws IOException {
+        Preconditions.checkNotNull(pkg);
+        Preconditions.checkArgument(n >= 0);
+        String prefix = pkg.isEmpty() ? "" : pkg + ".";
+        Query query = new PrefixQuery(new Term(TypeDbIndexedField.FULL_TYPE, prefix));
+        TopDocs hits = searcher.search(query, n);
+        List<ClassType> result = Lists.newArrayList();
+        for (ScoreDoc scoreDoc: hits.scoreDocs) {
+            String name = reader.document(scoreDoc.doc).get(TypeDbIndexedField.FULL_TYPE);
+            if (name.indexOf('.', prefix.length()) == -1) { // Skip sub-packages and nested types.
+                result.add(retrieveDocument(scoreDoc.doc));
+            }
+        }
+        return result;
+    }
+
     @Override
     public Variable getFieldById(long id) throws IOException {
         IdUtils.checkValid(id);
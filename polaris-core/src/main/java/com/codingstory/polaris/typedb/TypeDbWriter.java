@@ -3,9 +3,20 @@ package com.codingstory.polaris.typedb;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public interface TypeDbWriter extends Closeable {
     void write(ClassType type) throws IOException;
+
+    /** Writes all types, building their documents concurrently if the writer is configured to. */
+    void writeAll(Iterable<ClassType> types) throws IOException;
+
+    /** Deletes all types declared in the file. */
+    void deleteFile(long fileId) throws IOException;
+
+    /** Merges indexes built by other writers of the same kind. */
+    void addIndexes(List<File> shards) throws IOException;
     void flush() throws IOException;
 }
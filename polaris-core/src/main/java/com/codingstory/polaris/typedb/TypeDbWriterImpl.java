@@ -1,6 +1,10 @@
 package com.codingstory.polaris.typedb;
 
+import com.codingstory.polaris.IdUtils;
 import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.indexing.ConcurrentDocumentWriter;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
+import com.codingstory.polaris.indexing.IndexWriterUtils;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.Method;
@@ -11,24 +15,45 @@ import com.google.common.base.Preconditions;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class TypeDbWriterImpl implements TypeDbWriter {
     private final IndexWriter writer;
+    private final ConcurrentDocumentWriter<ClassType> documentWriter;
 
     public TypeDbWriterImpl(File path) throws IOException {
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36, new TypeDbAnalyzer());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        this.writer = new IndexWriter(FSDirectory.open(path), config);
+        this(path, IndexWriterOptions.defaults());
+    }
+
+    public TypeDbWriterImpl(File path, IndexWriterOptions options) throws IOException {
+        Preconditions.checkNotNull(path);
+        Preconditions.checkNotNull(options);
+        this.writer = new IndexWriter(FSDirectory.open(path), options.createConfig(new TypeDbAnalyzer()));
+        this.documentWriter = new ConcurrentDocumentWriter<ClassType>(writer,
+                new ConcurrentDocumentWriter.DocumentBuilder<ClassType>() {
+                    @Override
+                    public Document build(ClassType record) throws IOException {
+                        return toDocument(record);
+                    }
+                }, options.getThreads());
     }
 
     @Override
     public void write(ClassType type) throws IOException {
+        documentWriter.write(type);
+    }
+
+    @Override
+    public void writeAll(Iterable<ClassType> types) throws IOException {
+        documentWriter.writeAll(types);
+    }
+
+    private static Document toDocument(ClassType type) throws IOException {
         Preconditions.checkNotNull(type);
         Document document = new Document();
         ClassTypeHandle handle = type.getHandle();
@@ -60,7 +85,18 @@ public class TypeDbWriterImpl implements TypeDbWriter {
                 .build();
         byte[] typeDataBinary = SnappyUtils.compress(typeData.toByteArray());
         document.add(new Field(TypeDbIndexedField.TYPE_DATA, typeDataBinary));
-        writer.addDocument(document);
+        return document;
+    }
+
+    @Override
+    public void deleteFile(long fileId) throws IOException {
+        IdUtils.checkValid(fileId);
+        writer.deleteDocuments(new Term(TypeDbIndexedField.FILE_ID, String.valueOf(fileId)));
+    }
+
+    @Override
+    public void addIndexes(List<File> shards) throws IOException {
+        IndexWriterUtils.addIndexes(writer, shards);
     }
 
     @Override
@@ -70,6 +106,7 @@ public class TypeDbWriterImpl implements TypeDbWriter {
 
     @Override
     public void close() throws IOException {
+        documentWriter.close();
         writer.close();
     }
 
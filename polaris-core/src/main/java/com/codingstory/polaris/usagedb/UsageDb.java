@@ -5,7 +5,11 @@ import com.codingstory.polaris.parser.ParserProtos.Usage;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 
 public interface UsageDb extends Closeable {
     List<Usage> query(Usage.Kind kind, long id) throws IOException;
+
+    /** @return IDs of files referring to a class named {@code simpleName} which could not be resolved */
+    Set<Long> findFilesWithUnresolvedName(String simpleName) throws IOException;
 }
@@ -5,6 +5,7 @@ import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.usagedb.UsageDbProtos.UsageData;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
@@ -19,6 +20,7 @@ import org.apache.lucene.store.FSDirectory;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 
 public class UsageDbImpl implements UsageDb {
     private final IndexReader reader;
@@ -44,6 +46,18 @@ public class UsageDbImpl implements UsageDb {
         return typeUsageResult;
     }
 
+    @Override
+    public Set<Long> findFilesWithUnresolvedName(String simpleName) throws IOException {
+        Preconditions.checkNotNull(simpleName);
+        TopDocs result = searcher.search(new TermQuery(new Term(UsageDbIndexedField.UNRESOLVED_NAME, simpleName)),
+                Integer.MAX_VALUE);
+        Set<Long> fileIds = Sets.newHashSet();
+        for (ScoreDoc scoreDoc : result.scoreDocs) {
+            fileIds.add(Long.parseLong(reader.document(scoreDoc.doc).get(UsageDbIndexedField.FILE_ID)));
+        }
+        return fileIds;
+    }
+
     @Override
     public void close() throws IOException {
         reader.close();
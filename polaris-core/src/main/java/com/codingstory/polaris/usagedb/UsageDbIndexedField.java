@@ -3,5 +3,7 @@ package com.codingstory.polaris.usagedb;
 public class UsageDbIndexedField {
     public static final String ID = "Id";
     public static final String KIND = "Kind";
+    public static final String FILE_ID = "FileId";
     public static final String USAGE_DATA = "UsageData";
+    public static final String UNRESOLVED_NAME = "UnresolvedName";
 }
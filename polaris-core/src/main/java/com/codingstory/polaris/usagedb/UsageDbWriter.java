@@ -3,9 +3,26 @@ package com.codingstory.polaris.usagedb;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public interface UsageDbWriter extends Closeable {
     void write(Usage usage) throws IOException;
+
+    /** Writes all usages, building their documents concurrently if the writer is configured to. */
+    void writeAll(Iterable<Usage> usages) throws IOException;
+
+    /**
+     * Records that the file refers to a class by {@code simpleName}, which could not be resolved. Deleted along with
+     * usages of the file.
+     */
+    void writeUnresolvedName(long fileId, String simpleName) throws IOException;
+
+    /** Deletes all usages occurring in the file. */
+    void deleteFile(long fileId) throws IOException;
+
+    /** Merges indexes built by other writers of the same kind. */
+    void addIndexes(List<File> shards) throws IOException;
     void flush() throws IOException;
 }
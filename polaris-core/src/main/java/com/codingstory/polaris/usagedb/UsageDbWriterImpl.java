@@ -1,6 +1,10 @@
 package com.codingstory.polaris.usagedb;
 
+import com.codingstory.polaris.IdUtils;
 import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.indexing.ConcurrentDocumentWriter;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
+import com.codingstory.polaris.indexing.IndexWriterUtils;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.usagedb.UsageDbProtos.UsageData;
 import com.google.common.base.Preconditions;
@@ -8,25 +12,57 @@ import org.apache.lucene.analysis.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class UsageDbWriterImpl implements UsageDbWriter {
-    private IndexWriter writer;
+    private final IndexWriter writer;
+    private final ConcurrentDocumentWriter<Usage> documentWriter;
 
     public UsageDbWriterImpl(File path) throws IOException {
+        this(path, IndexWriterOptions.defaults());
+    }
+
+    public UsageDbWriterImpl(File path, IndexWriterOptions options) throws IOException {
         Preconditions.checkNotNull(path);
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36, new KeywordAnalyzer());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        this.writer = new IndexWriter(FSDirectory.open(path), config);
+        Preconditions.checkNotNull(options);
+        this.writer = new IndexWriter(FSDirectory.open(path), options.createConfig(new KeywordAnalyzer()));
+        this.documentWriter = new ConcurrentDocumentWriter<Usage>(writer,
+                new ConcurrentDocumentWriter.DocumentBuilder<Usage>() {
+                    @Override
+                    public Document build(Usage record) throws IOException {
+                        return toDocument(record);
+                    }
+                }, options.getThreads());
     }
 
     @Override
     public void write(Usage usage) throws IOException {
+        documentWriter.write(usage);
+    }
+
+    @Override
+    public void writeAll(Iterable<Usage> usages) throws IOException {
+        documentWriter.writeAll(usages);
+    }
+
+    @Override
+    public void writeUnresolvedName(long fileId, String simpleName) throws IOException {
+        IdUtils.checkValid(fileId);
+        Preconditions.checkNotNull(simpleName);
+        Document document = new Document();
+        document.add(new Field(UsageDbIndexedField.FILE_ID, String.valueOf(fileId), Field.Store.YES,
+                Field.Index.ANALYZED));
+        document.add(new Field(UsageDbIndexedField.UNRESOLVED_NAME, simpleName, Field.Store.NO,
+                Field.Index.ANALYZED));
+        writer.addDocument(document);
+    }
+
+    private static Document toDocument(Usage usage) throws IOException {
         Preconditions.checkNotNull(usage);
         Document document = new Document();
         long id;
@@ -46,11 +82,24 @@ public class UsageDbWriterImpl implements UsageDbWriter {
         document.add(new Field(UsageDbIndexedField.ID, String.valueOf(id), Field.Store.YES, Field.Index.ANALYZED));
         document.add(new Field(UsageDbIndexedField.KIND, String.valueOf(usage.getKind().getNumber()),
                 Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new Field(UsageDbIndexedField.FILE_ID, String.valueOf(usage.getJumpTarget().getFile().getId()),
+                Field.Store.YES, Field.Index.ANALYZED));
         UsageData usageData = UsageData.newBuilder()
                 .setUsage(usage)
                 .build();
         document.add(new Field(UsageDbIndexedField.USAGE_DATA, SnappyUtils.compress(usageData.toByteArray())));
-        writer.addDocument(document);
+        return document;
+    }
+
+    @Override
+    public void deleteFile(long fileId) throws IOException {
+        IdUtils.checkValid(fileId);
+        writer.deleteDocuments(new Term(UsageDbIndexedField.FILE_ID, String.valueOf(fileId)));
+    }
+
+    @Override
+    public void addIndexes(List<File> shards) throws IOException {
+        IndexWriterUtils.addIndexes(writer, shards);
     }
 
     @Override
@@ -60,6 +109,7 @@ public class UsageDbWriterImpl implements UsageDbWriter {
 
     @Override
     public void close() throws IOException {
+        documentWriter.close();
         writer.close();
     }
 }
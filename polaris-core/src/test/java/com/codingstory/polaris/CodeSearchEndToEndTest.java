@@ -1,14 +1,20 @@
 package com.codingstory.polaris;
 
 import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.parser.ParseBudget;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.Method;
 import com.codingstory.polaris.parser.ParserProtos.MethodUsage;
+import com.codingstory.polaris.parser.ParserProtos.TypeKind;
 import com.codingstory.polaris.parser.ParserProtos.TypeUsage;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.parser.ParserProtos.VariableUsage;
 import com.codingstory.polaris.pipeline.IndexPipeline;
+import com.codingstory.polaris.pipeline.PipelineProtos.PipelineReport;
+import com.codingstory.polaris.pipeline.PipelineProtos.StageReport;
 import com.codingstory.polaris.search.CodeSearchImpl;
 import com.codingstory.polaris.search.SearchProtos.CodeSearch;
 import com.codingstory.polaris.search.SearchProtos.GetTypeRequest;
@@ -29,18 +35,27 @@ import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.format.JsonFormat;
 import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.codingstory.polaris.TestUtils.assertEqualsIgnoreOrder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 public class CodeSearchEndToEndTest {
@@ -192,6 +207,32 @@ public class CodeSearchEndToEndTest {
         assertTrue(found);
     }
 
+    @Test
+    public void testListUsages_members() throws IOException, ServiceException {
+        // The same references from the declaring file, where they are resolved in place, and from another file,
+        // where they are resolved as call sites.
+        String references = "void h(A a) {\na.f(1);\na.f(\"s\");\na.v();\na.v(\"s\", \"t\");\na.x = A.count;\n}\n";
+        writeFile("project/src/p/A.java", "package p;\nclass A {\nint x;\nstatic int count;\nvoid f(int i) {}\n"
+                + "void f(String s) {}\nvoid v(String... s) {}\n" + references + "}");
+        writeFile("project/src/p/B.java", "package p;\nclass B {\n" + references + "}");
+        buildIndex(ImmutableList.of("project"));
+
+        ClassType classA = getOnlyType("p.A");
+        for (Method method : classA.getMethodsList()) {
+            String name = method.getHandle().getName();
+            if (name.equals("p.A.v")) {
+                assertUsedFromBothFiles(ImmutableList.of("a.v();", "a.v(\"s\", \"t\");"), method);
+            } else if (name.equals("p.A.f")) {
+                boolean takesInt = method.getHandle().getParameters(0).getKind() == TypeKind.PRIMITIVE;
+                assertUsedFromBothFiles(ImmutableList.of(takesInt ? "a.f(1);" : "a.f(\"s\");"), method);
+            }
+        }
+        assertEquals(2, classA.getFieldsCount());
+        for (Variable field : classA.getFieldsList()) {
+            assertUsedFromBothFiles(ImmutableList.of("a.x = A.count;"), field);
+        }
+    }
+
     @Test
     public void testCrossProjectReference() throws IOException {
         writeFile("project1/src/com/company/A.java", "package project1; import project2.B; class A { B b; }");
@@ -207,6 +248,27 @@ public class CodeSearchEndToEndTest {
         assertEquals(class1.getHandle(), field2.getType().getClazz());
     }
 
+    @Test
+    public void testPartitionedByProject() throws IOException {
+        writeFile("project1/src/A.java", "package project1; import project2.B; class A { B b; }");
+        writeFile("project2/src/B.java", "package project2; class B {}");
+        writeFile("project3/src/C.java", "package project3; import project2.B; class C { B b; }");
+        buildIndex(ImmutableList.of("project1", "project2", "project3"), true, new PipelineSetUp() {
+            @Override
+            public void setUp(IndexPipeline indexPipeline) {
+                indexPipeline.setPartitionedByProject(true);
+                indexPipeline.addProjectDependency("project1", "project2");
+            }
+        });
+
+        // Symbols are resolved across projects only along declared dependencies.
+        ClassType classB = getOnlyType("project2.B");
+        Variable field1 = Iterables.getOnlyElement(getOnlyType("project1.A").getFieldsList());
+        Variable field3 = Iterables.getOnlyElement(getOnlyType("project3.C").getFieldsList());
+        assertEquals(classB.getHandle(), field1.getType().getClazz());
+        assertFalse(field3.getType().getClazz().getResolved());
+    }
+
     @Test
     public void testFullTextSearch() throws IOException, ServiceException {
         writeFile("project1/src/com/company/A.java", "/* search it */");
@@ -236,6 +298,393 @@ public class CodeSearchEndToEndTest {
         assertEquals(3, clazz.getUseCount());
     }
 
+    @Test
+    public void testWildcardImport() throws IOException, ServiceException {
+        writeFile("project/src/com/company/util/A.java", "package com.company.util;\nclass A {}");
+        writeFile("project/src/com/company/util/Unused.java", "package com.company.util;\nclass Unused {}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nimport com.company.util.*;\n" +
+                "class B {\nA a;\n}");
+        buildIndex(ImmutableList.of("project"));
+        ClassType classA = getOnlyType("com.company.util.A");
+        ClassType classB = getOnlyType("com.company.B");
+        Variable field = Iterables.getOnlyElement(classB.getFieldsList());
+        assertEquals(classA.getHandle(), field.getType().getClazz());
+    }
+
+    @Test
+    public void testIncrementalReindex() throws IOException, ServiceException {
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {\nvoid f() {}\n}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {}");
+        writeFile("project/src/com/company/C.java", "package com.company;\nclass C {}");
+        buildIndex(ImmutableList.of("project"));
+        ClassType classA = getOnlyType("com.company.A");
+
+        // Changes B, deletes C. A is not touched.
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {\nvoid g() {\nA a;\na.f();\n}\n}");
+        FileUtils.forceDelete(new File(tempDir, "project/src/com/company/C.java"));
+        buildIndex(ImmutableList.of("project"), true);
+        assertEquals(classA.getHandle(), getOnlyType("com.company.A").getHandle());
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        assertTrue(typeDb.getTypeByName("com.company.C", null, 2).isEmpty());
+        Method methodF = Iterables.getOnlyElement(classA.getMethodsList());
+        assertEquals(ImmutableList.of("a.f();"), listMethodCallSnippets(methodF));
+
+        // Changes A. B is reindexed since it calls A.f().
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {\nvoid f() {}\nvoid h() {}\n}");
+        buildIndex(ImmutableList.of("project"), true);
+        ClassType newClassA = getOnlyType("com.company.A");
+        assertEquals(classA.getHandle(), newClassA.getHandle());
+        assertEquals(2, newClassA.getMethodsCount());
+        assertEquals(ImmutableList.of("a.f();"), listMethodCallSnippets(methodF));
+    }
+
+    @Test
+    public void testIncrementalReindex_addedClass() throws IOException, ServiceException {
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {\nD d;\n}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {}");
+        buildIndex(ImmutableList.of("project"));
+        assertFalse(Iterables.getOnlyElement(getOnlyType("com.company.A").getFieldsList())
+                .getType().getClazz().getResolved());
+
+        // Adds D, which A refers to. A is not touched, but is reindexed since it could not resolve D.
+        writeFile("project/src/com/company/D.java", "package com.company;\nclass D {}");
+        buildIndex(ImmutableList.of("project"), true);
+        ClassTypeHandle fieldType = Iterables.getOnlyElement(getOnlyType("com.company.A").getFieldsList())
+                .getType().getClazz();
+        assertEquals(getOnlyType("com.company.D").getHandle(), fieldType);
+    }
+
+    @Test
+    public void testIncrementalReindex_excludesChanged() throws Exception {
+        File repoBase = new File(tempDir, "repos");
+        File workTree = new File(repoBase, "project");
+        FileUtils.write(new File(workTree, "src/com/company/A.java"), "package com.company;\nclass A {}");
+        FileUtils.write(new File(workTree, "gen/com/company/G.java"), "package com.company;\nclass G {}");
+        Git git = Git.init().setDirectory(workTree).call();
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage("Initial commit").call();
+        buildIndexOfRepos(repoBase, ImmutableList.<String>of());
+        getOnlyType("com.company.G");
+
+        // Nothing is committed since, but files excluded now are deleted...
+        buildIndexOfRepos(repoBase, ImmutableList.of("gen/"));
+        assertTrue(getTypes("com.company.G").isEmpty());
+        getOnlyType("com.company.A");
+
+        // ...and added again once no longer excluded, though unchanged.
+        buildIndexOfRepos(repoBase, ImmutableList.<String>of());
+        getOnlyType("com.company.G");
+    }
+
+    @Test
+    public void testResume()throws IOException, ServiceException {
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {\nvoid f() {}\n}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {\nvoid g() {\nA a;\na.f();\n}\n}");
+        File workingDir = new File(tempDir, "work");
+        buildIndex(ImmutableList.of("project"), false, resumable(workingDir, false));
+        ClassType classA = getOnlyType("com.company.A");
+        Map<String, StageReport> stages = readStageReports();
+        assertEquals(2, stages.get("FirstPass").getRecordsIn());
+        for (StageReport stage : stages.values()) {
+            assertEquals(0, stage.getSkippedRuns());
+        }
+
+        // Nothing has changed, so the index is built out of checkpointed outputs.
+        FileUtils.cleanDirectory(indexDir);
+        buildIndex(ImmutableList.of("project"), false, resumable(workingDir, true));
+        assertEquals(classA.getHandle(), getOnlyType("com.company.A").getHandle());
+        Method methodF = Iterables.getOnlyElement(getOnlyType("com.company.A").getMethodsList());
+        assertEquals(ImmutableList.of("a.f();"), listMethodCallSnippets(methodF));
+        stages = readStageReports();
+        assertFalse(stages.containsKey("FirstPass"));
+        Set<String> checkpointedStages = Sets.newHashSet();
+        for (StageReport stage : stages.values()) {
+            if (stage.getSkippedRuns() > 0) {
+                assertEquals(1, stage.getSkippedRuns());
+                assertEquals(0, stage.getWallMillis());
+                checkpointedStages.add(stage.getName());
+            }
+        }
+        assertFalse(checkpointedStages.isEmpty());
+
+        // Inputs have changed, so the checkpointed stages run again, and none is skipped.
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {}");
+        FileUtils.cleanDirectory(indexDir);
+        buildIndex(ImmutableList.of("project"), false, resumable(workingDir, true));
+        methodF = Iterables.getOnlyElement(getOnlyType("com.company.A").getMethodsList());
+        assertTrue(listMethodCallSnippets(methodF).isEmpty());
+        stages = readStageReports();
+        assertEquals(2, stages.get("FirstPass").getRecordsIn());
+        for (StageReport stage : stages.values()) {
+            assertEquals(0, stage.getSkippedRuns());
+        }
+        assertTrue(stages.keySet().containsAll(checkpointedStages));
+    }
+
+    @Test
+    public void testPipelineReport() throws IOException {
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {\nA a;\n}");
+        writeFile("project/src/com/company/Broken.java", "package com.company;\nclass {");
+        buildIndex(ImmutableList.of("project"));
+
+        PipelineReport report = readReport();
+        StageReport firstPass = null;
+        for (StageReport stage : report.getStagesList()) {
+            if (stage.getName().equals("FirstPass")) {
+                firstPass = stage;
+            }
+        }
+        assertNotNull(firstPass);
+        assertEquals(3, firstPass.getRecordsIn());
+        assertEquals(2, firstPass.getRecordsOut());
+        assertEquals(1, firstPass.getParseFailures());
+        assertTrue(report.getTotalMillis() > 0);
+    }
+
+    private PipelineReport readReport() throws IOException {
+        PipelineReport.Builder report = PipelineReport.newBuilder();
+        JsonFormat.merge(FileUtils.readFileToString(IndexPathUtils.getPipelineReportPath(indexDir)), report);
+        return report.build();
+    }
+
+    private Map<String, StageReport> readStageReports() throws IOException {
+        Map<String, StageReport> stages = Maps.newHashMap();
+        for (StageReport stage : readReport().getStagesList()) {
+            stages.put(stage.getName(), stage);
+        }
+        return stages;
+    }
+
+    @Test
+    public void testDuplicateFiles() throws IOException, ServiceException {
+        String vendored = "package com.vendor;\nclass V {\nvoid f() {\nf();\n}\n}";
+        String vendoredUser = "package com.vendor;\nclass W {\nV v;\n}";
+        writeFile("project1/src/com/vendor/V.java", vendored);
+        writeFile("project1/src/com/vendor/W.java", vendoredUser);
+        writeFile("project2/lib/com/vendor/V.java", vendored);
+        writeFile("project2/lib/com/vendor/W.java", vendoredUser);
+        buildIndex(ImmutableList.of("project1", "project2"));
+
+        // Parsed once, for both.
+        PipelineReport.Builder report = PipelineReport.newBuilder();
+        JsonFormat.merge(FileUtils.readFileToString(IndexPathUtils.getPipelineReportPath(indexDir)), report);
+        for (StageReport stage : report.getStagesList()) {
+            if (stage.getName().equals("FirstPass")) {
+                assertEquals(2, stage.getRecordsIn());
+            } else if (stage.getName().equals("ReadInputs")) {
+                assertEquals(2, stage.getDuplicateFiles());
+            }
+        }
+
+        // Both files have the class, each with IDs of its own, and calls in each are found.
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        ClassType class1 = Iterables.getOnlyElement(typeDb.getTypeByName("com.vendor.V", "project1", 2));
+        ClassType class2 = Iterables.getOnlyElement(typeDb.getTypeByName("com.vendor.V", "project2", 2));
+        assertFalse(class1.getHandle().getId() == class2.getHandle().getId());
+        assertEquals(class1, typeDb.getTypeById(class1.getHandle().getId()));
+        assertEquals(class2, typeDb.getTypeById(class2.getHandle().getId()));
+        assertEquals("/lib/com/vendor/V.java", class2.getJumpTarget().getFile().getPath());
+        // The copy of W refers to the copy of V in its own project.
+        ClassType user2 = Iterables.getOnlyElement(typeDb.getTypeByName("com.vendor.W", "project2", 2));
+        assertEquals(class2.getHandle().getId(),
+                Iterables.getOnlyElement(user2.getFieldsList()).getType().getClazz().getId());
+        typeDb.close();
+        Method methodF1 = Iterables.getOnlyElement(class1.getMethodsList());
+        Method methodF2 = Iterables.getOnlyElement(class2.getMethodsList());
+        assertFalse(methodF1.getHandle().getId() == methodF2.getHandle().getId());
+        assertEquals(ImmutableList.of("f();"), listMethodCallSnippets(methodF1));
+        assertEquals(ImmutableList.of("f();"), listMethodCallSnippets(methodF2));
+        assertEquals(vendored, getSource("project2", "/lib/com/vendor/V.java"));
+
+        // The copy in project2 keeps its content when the one processed in its place changes.
+        writeFile("project1/src/com/vendor/V.java", "package com.vendor;\nclass V {}");
+        buildIndex(ImmutableList.of("project1", "project2"), true);
+        assertEquals(vendored, getSource("project2", "/lib/com/vendor/V.java"));
+        typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        assertEquals(0, Iterables.getOnlyElement(typeDb.getTypeByName("com.vendor.V", "project1", 2))
+                .getMethodsCount());
+        assertEquals(1, Iterables.getOnlyElement(typeDb.getTypeByName("com.vendor.V", "project2", 2))
+                .getMethodsCount());
+        typeDb.close();
+    }
+
+    @Test
+    public void testHeavyFile() throws IOException, ServiceException {
+        writeHeavyFileProject();
+        buildIndex(ImmutableList.of("project"), true, withHeavyFiles(false));
+        Method methodF = Iterables.getOnlyElement(getOnlyType("com.company.A").getMethodsList());
+        assertEqualsIgnoreOrder(ImmutableList.of("a.f();", "heavy.f();"), listMethodCallSnippets(methodF));
+    }
+
+    @Test
+    public void testReducedHeavyFile() throws IOException, ServiceException {
+        writeHeavyFileProject();
+        buildIndex(ImmutableList.of("project"), true, withHeavyFiles(true));
+        // Types and members of the heavy file are indexed, but its usages are not.
+        assertEquals(1, getOnlyType("com.company.Heavy").getMethodsCount());
+        Method methodF = Iterables.getOnlyElement(getOnlyType("com.company.A").getMethodsList());
+        assertEquals(ImmutableList.of("a.f();"), listMethodCallSnippets(methodF));
+    }
+
+    private void writeHeavyFileProject() throws IOException {
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {\nvoid f() {}\n}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {\nvoid g() {\nA a;\na.f();\n}\n}");
+        writeFile("project/src/com/company/Heavy.java", "package com.company;\nclass Heavy {\nvoid h() {\n" +
+                "A heavy;\nheavy.f();\n}\n}\n\n\n\n");
+    }
+
+    /** Files of 10 lines or more are heavy. */
+    private static PipelineSetUp withHeavyFiles(final boolean reduce) {
+        return new PipelineSetUp() {
+            @Override
+            public void setUp(IndexPipeline indexPipeline) {
+                indexPipeline.setHeavyFileThresholds(10, 1000);
+                indexPipeline.setReduceHeavyFiles(reduce);
+            }
+        };
+    }
+
+    @Test
+    public void testQuarantine() throws IOException {
+        StringBuilder source = new StringBuilder("package com.company;\nclass A {\n");
+        for (int i = 0; i < 2000; i++) {
+            source.append("int f").append(i).append(";\n");
+        }
+        writeFile("project/src/com/company/A.java", source + "}");
+        File quarantineFile = new File(tempDir, "quarantine");
+
+        // Parsing exceeds a budget of 1 ms and 1 byte.
+        buildIndex(ImmutableList.of("project"), true, withQuarantine(quarantineFile, new ParseBudget(1, 1)));
+        assertTrue(getTypes("com.company.A").isEmpty());
+        assertTrue(FileUtils.readFileToString(quarantineFile).contains("/src/com/company/A.java"));
+
+        // Later runs skip the file, however much budget they have...
+        FileUtils.cleanDirectory(indexDir);
+        buildIndex(ImmutableList.of("project"), true, withQuarantine(quarantineFile, ParseBudget.DEFAULT));
+        assertTrue(getTypes("com.company.A").isEmpty());
+
+        // ...until it changes.
+        writeFile("project/src/com/company/A.java", source + "int g;\n}");
+        FileUtils.cleanDirectory(indexDir);
+        buildIndex(ImmutableList.of("project"), true, withQuarantine(quarantineFile, ParseBudget.DEFAULT));
+        assertEquals(2001, getOnlyType("com.company.A").getFieldsCount());
+    }
+
+    @Test
+    public void testQuarantine_incremental() throws IOException {
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {\n}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {\n}");
+        File quarantineFile = new File(tempDir, "quarantine");
+        buildIndex(ImmutableList.of("project"), true, withQuarantine(quarantineFile, ParseBudget.DEFAULT));
+
+        // Only the changed file is parsed when read, which exceeds the budget.
+        StringBuilder source = new StringBuilder("package com.company;\nclass A {\n");
+        for (int i = 0; i < 2000; i++) {
+            source.append("int f").append(i).append(";\n");
+        }
+        writeFile("project/src/com/company/A.java", source + "}");
+        buildIndex(ImmutableList.of("project"), true, withQuarantine(quarantineFile, new ParseBudget(1, 1), true));
+        assertTrue(getTypes("com.company.A").isEmpty());
+        getOnlyType("com.company.B");
+        assertTrue(FileUtils.readFileToString(quarantineFile).contains("/src/com/company/A.java"));
+    }
+
+    private static PipelineSetUp withQuarantine(File quarantineFile, ParseBudget parseBudget) {
+        return withQuarantine(quarantineFile, parseBudget, false);
+    }
+
+    private static PipelineSetUp withQuarantine(final File quarantineFile, final ParseBudget parseBudget,
+            final boolean incremental) {
+        return new PipelineSetUp() {
+            @Override
+            public void setUp(IndexPipeline indexPipeline) {
+                indexPipeline.setIncremental(incremental);
+                indexPipeline.setParseBudget(parseBudget.getMaxMillis(), parseBudget.getMaxAllocatedBytes());
+                indexPipeline.setQuarantineFile(quarantineFile);
+            }
+        };
+    }
+
+    private List<ClassType> getTypes(String name) throws IOException {
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        try {
+            return typeDb.getTypeByName(name, null, 2);
+        } finally {
+            typeDb.close();
+        }
+    }
+
+    private ClassType getOnlyType(String name) throws IOException {
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        try {
+            return Iterables.getOnlyElement(typeDb.getTypeByName(name, null, 2));
+        } finally {
+            typeDb.close();
+        }
+    }
+
+    private String getSource(String project, String path) throws IOException, ServiceException {
+        SourceRequest req = SourceRequest.newBuilder()
+                .setProjectName(project)
+                .setFileName(path)
+                .build();
+        SourceResponse resp = createSearcher().source(NoOpController.getInstance(), req);
+        assertEquals(StatusCode.OK, resp.getStatus());
+        assertEquals(project, resp.getSource().getHandle().getProject());
+        return resp.getSource().getSource();
+    }
+
+    private List<String> listMethodCallSnippets(Method method) throws IOException, ServiceException {
+        ListUsagesRequest req = ListUsagesRequest.newBuilder()
+                .setKind(Usage.Kind.METHOD)
+                .setId(method.getHandle().getId())
+                .build();
+        ListUsagesResponse resp = createSearcher().listUsages(NoOpController.getInstance(), req);
+        assertEquals(StatusCode.OK, resp.getStatus());
+        List<String> snippets = Lists.newArrayList();
+        for (Usage usage : resp.getUsagesList()) {
+            if (usage.getMethod().getKind() == MethodUsage.Kind.METHOD_CALL) {
+                snippets.add(usage.getSnippet());
+            }
+        }
+        return snippets;
+    }
+
+    private void assertUsedFromBothFiles(List<String> snippets, Method method) throws IOException, ServiceException {
+        assertUsedFromBothFiles(snippets, Usage.Kind.METHOD, method.getHandle().getId());
+    }
+
+    private void assertUsedFromBothFiles(List<String> snippets, Variable field) throws IOException, ServiceException {
+        assertUsedFromBothFiles(snippets, Usage.Kind.VARIABLE, field.getHandle().getId());
+    }
+
+    /** Asserts that calls or accesses of entity {@code id} are at {@code snippets} in both A.java and B.java. */
+    private void assertUsedFromBothFiles(List<String> snippets, Usage.Kind kind, long id)
+            throws IOException, ServiceException {
+        ListUsagesRequest req = ListUsagesRequest.newBuilder()
+                .setKind(kind)
+                .setId(id)
+                .build();
+        ListUsagesResponse resp = createSearcher().listUsages(NoOpController.getInstance(), req);
+        assertEquals(StatusCode.OK, resp.getStatus());
+        List<String> snippetsOfA = Lists.newArrayList();
+        List<String> snippetsOfB = Lists.newArrayList();
+        for (Usage usage : resp.getUsagesList()) {
+            boolean declaration = (kind == Usage.Kind.METHOD)
+                    ? usage.getMethod().getKind() == MethodUsage.Kind.METHOD_DECLARATION
+                    : usage.getVariable().getKind() == VariableUsage.Kind.DECLARATION;
+            if (declaration) {
+                continue;
+            }
+            String path = usage.getJumpTarget().getFile().getPath();
+            (path.endsWith("/A.java") ? snippetsOfA : snippetsOfB).add(usage.getSnippet());
+        }
+        List<String> expected = Ordering.natural().sortedCopy(snippets);
+        assertEquals(expected, Ordering.natural().sortedCopy(snippetsOfA));
+        assertEquals(expected, Ordering.natural().sortedCopy(snippetsOfB));
+    }
+
     private CodeSearch.BlockingInterface createSearcher() throws IOException {
         return new CodeSearchImpl(indexDir);
     }
@@ -244,18 +693,68 @@ public class CodeSearchEndToEndTest {
         FileUtils.write(new File(tempDir, path), content);
     }
 
+    /** Hook for subclasses to run the same cases against a differently configured pipeline. */
+    protected void configurePipeline(IndexPipeline indexPipeline) {
+    }
+
+    /** Settings of a test case, applied before {@link #configurePipeline}. */
+    private interface PipelineSetUp {
+        void setUp(IndexPipeline indexPipeline);
+    }
+
+    private static PipelineSetUp resumable(final File workingDir, final boolean resume) {
+        return new PipelineSetUp() {
+            @Override
+            public void setUp(IndexPipeline indexPipeline) {
+                indexPipeline.setWorkingDirectory(workingDir);
+                indexPipeline.setResume(resume);
+            }
+        };
+    }
+
     private void buildIndex(List<String> projects) throws IOException {
-        IndexPipeline indexPipeline = null;
+        buildIndex(projects, false);
+    }
+
+    private void buildIndex(List<String> projects, final boolean incremental) throws IOException {
+        buildIndex(projects, true, new PipelineSetUp() {
+            @Override
+            public void setUp(IndexPipeline indexPipeline) {
+                indexPipeline.setIncremental(incremental);
+            }
+        });
+    }
+
+    /** Builds the index incrementally from HEAD of repositories in {@code repoBase}. */
+    private void buildIndexOfRepos(File repoBase, List<String> excludes) throws IOException {
+        IndexPipeline indexPipeline = new IndexPipeline();
+        try {
+            indexPipeline.setIndexDirectory(indexDir);
+            indexPipeline.setIncremental(true);
+            for (String exclude : excludes) {
+                indexPipeline.addExclude(exclude);
+            }
+            configurePipeline(indexPipeline);
+            indexPipeline.addRepoBase(repoBase);
+            indexPipeline.run();
+        } finally {
+            indexPipeline.cleanUp();
+        }
+    }
+
+    /** @param cleanUp whether to delete the working directory after the run, which is kept if it fails */
+    private void buildIndex(List<String> projects, boolean cleanUp, PipelineSetUp setUp) throws IOException {
+        IndexPipeline indexPipeline = new IndexPipeline();
         try {
-            indexPipeline = new IndexPipeline();
             indexPipeline.setIndexDirectory(indexDir);
-            // indexPipeline.setUseMemPipeline(true);
+            setUp.setUp(indexPipeline);
+            configurePipeline(indexPipeline);
             for (String project : projects) {
                 indexPipeline.addProjectDirectory(new File(tempDir, project));
             }
             indexPipeline.run();
         } finally {
-            if (indexPipeline != null) {
+            if (cleanUp) {
                 indexPipeline.cleanUp();
             }
         }
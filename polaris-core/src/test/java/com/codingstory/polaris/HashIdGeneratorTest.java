@@ -0,0 +1,115 @@
+package com.codingstory.polaris;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashIdGeneratorTest {
+
+    private static final int THREADS = 16;
+    private static final int KEYS = 100000;
+
+    @Test
+    public void testSameKey() {
+        HashIdGenerator idGenerator = new HashIdGenerator();
+        long id = idGenerator.next("class:project/A.java:A");
+        assertEquals(id, idGenerator.next("class:project/A.java:A"));
+        assertEquals(id, new HashIdGenerator().next("class:project/A.java:A"));
+    }
+
+    @Test
+    public void testIndependentOfOrder() {
+        HashIdGenerator forward = new HashIdGenerator();
+        HashIdGenerator backward = new HashIdGenerator();
+        long[] ids = new long[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = forward.next("key" + i);
+        }
+        for (int i = ids.length - 1; i >= 0; i--) {
+            assertEquals(ids[i], backward.next("key" + i));
+        }
+    }
+
+    @Test
+    public void testDistinctKeys() {
+        HashIdGenerator idGenerator = new HashIdGenerator();
+        Set<Long> ids = Sets.newHashSet();
+        for (int i = 0; i < 100000; i++) {
+            long id = idGenerator.next("key" + i);
+            assertTrue(HashIdGenerator.isHashed(id));
+            assertTrue(id < (1L << 53)); // Exact as a JavaScript number.
+            assertTrue(ids.add(id));
+        }
+    }
+
+    @Test
+    public void testCollidingIds() {
+        long id = new HashIdGenerator().next("key");
+        HashIdGenerator idGenerator = new HashIdGenerator(ImmutableSet.of(id));
+        long rehashed = idGenerator.next("key");
+        assertTrue(HashIdGenerator.isHashed(rehashed));
+        assertFalse(rehashed == id);
+        assertEquals(rehashed, new HashIdGenerator(ImmutableSet.of(id)).next("key"));
+
+        // Salted IDs which collide again are salted once more.
+        idGenerator = new HashIdGenerator(ImmutableSet.of(id, rehashed));
+        long rehashedTwice = idGenerator.next("key");
+        assertFalse(rehashedTwice == id);
+        assertFalse(rehashedTwice == rehashed);
+
+        // Other keys keep their IDs.
+        assertEquals(new HashIdGenerator().next("other"), idGenerator.next("other"));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        // Threads share one generator with no lock, and must derive the same IDs as a single thread does.
+        final HashIdGenerator idGenerator = new HashIdGenerator(ImmutableSet.of(new HashIdGenerator().next("key0")));
+        final long[] expected = new long[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            expected[i] = new HashIdGenerator(idGenerator.getCollidingIds()).next("key" + i);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < THREADS; i++) {
+                final int offset = i * KEYS / THREADS; // Threads start at different keys, and race on all of them.
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int j = 0; j < KEYS; j++) {
+                            int key = (offset + j) % KEYS;
+                            assertEquals(expected[key], idGenerator.next("key" + key));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Set<Long> ids = Sets.newHashSet();
+        for (long id : expected) {
+            assertTrue(ids.add(id));
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.codingstory.polaris;
+
+import com.codingstory.polaris.pipeline.IndexPipeline;
+
+/** Runs {@link CodeSearchEndToEndTest} against the in-memory engine. */
+public class InMemoryEngineEndToEndTest extends CodeSearchEndToEndTest {
+    @Override
+    protected void configurePipeline(IndexPipeline indexPipeline) {
+        indexPipeline.setEngine(IndexPipeline.Engine.INMEMORY);
+    }
+}
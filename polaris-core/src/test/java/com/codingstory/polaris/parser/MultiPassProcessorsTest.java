@@ -1,7 +1,9 @@
 package com.codingstory.polaris.parser;
 
-import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.HashIdGenerator;
+import com.codingstory.polaris.KeyedIdGenerator;
 import com.codingstory.polaris.SimpleIdGenerator;
+import com.codingstory.polaris.parser.ParserProtos.CallSite;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
@@ -15,8 +17,10 @@ import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.codingstory.polaris.parser.ParserProtos.VariableUsage;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -35,7 +39,7 @@ import static org.junit.Assert.assertTrue;
 public class MultiPassProcessorsTest {
 
     private static final String TEST_PROJECT = "TestProject";
-    private static final IdGenerator ID_GENERATOR = new SimpleIdGenerator();
+    private static final KeyedIdGenerator ID_GENERATOR = new SimpleIdGenerator();
     private static final Comparator<ClassType> CLASS_TYPE_COMPARATOR_BY_NAME = new Comparator<ClassType>() {
         @Override
         public int compare(ClassType left, ClassType right) {
@@ -436,29 +440,227 @@ public class MultiPassProcessorsTest {
 
     // TODO: testMethodCall_staticBlock()
 
-    public static SecondPassProcessor.Result extractFromCode(String code) throws IOException {
+    @Test
+    public void testFirstPass_imports() throws IOException {
+        String code = "package pkg;\nimport java.util.List;\nimport java.io.*;\n" +
+                "class A { List<File> files; Map.Entry e; int n = Math.max(1, n); }\n";
         FileHandle fakeFile = FileHandle.newBuilder()
                 .setId(100L)
                 .setProject("project")
                 .setPath("/file")
                 .build();
-        FirstPassProcessor.Result result1 = FirstPassProcessor.process(
+        FirstPassProcessor.Result result = FirstPassProcessor.process(fakeFile, code, ID_GENERATOR);
+        assertEquals("pkg", result.getPackage());
+        assertEquals("pkg.A", Iterables.getOnlyElement(result.getDiscoveredClasses()).getHandle().getName());
+        assertEquals(ImmutableList.of("java.util.List"), result.getImportedClasses());
+        assertEquals(ImmutableList.of("java.io"), result.getImportedPackages());
+        assertEquals(ImmutableSet.of("List", "File", "Map", "Math"),
+                ImmutableSet.copyOf(result.getReferencedNames()));
+    }
+
+    @Test
+    public void testWildcardImport() throws IOException {
+        FileHandle libFile = FileHandle.newBuilder()
+                .setId(101L)
+                .setProject("project")
+                .setPath("/lib")
+                .build();
+        ClassType libClass = Iterables.getOnlyElement(FirstPassProcessor.process(
+                libFile, "package lib;\nclass A {}\n", ID_GENERATOR).getDiscoveredClasses());
+        FileHandle fakeFile = FileHandle.newBuilder()
+                .setId(100L)
+                .setProject("project")
+                .setPath("/file")
+                .build();
+        String code = "package pkg;\nimport lib.*;\nclass B { A a; }\n";
+        FirstPassProcessor.Result result1 = FirstPassProcessor.process(fakeFile, code, ID_GENERATOR);
+        List<ClassType> classes = Lists.newArrayList(result1.getDiscoveredClasses());
+        classes.add(libClass);
+        SecondPassProcessor.Result result2 = SecondPassProcessor.extract(
+                TEST_PROJECT,
+                fakeFile,
+                code,
+                createSymbolTableAndRegisterClasses(classes),
+                ID_GENERATOR,
+                result1.getPackage());
+        ClassType clazz = Iterables.getOnlyElement(result2.getClassTypes());
+        Variable field = Iterables.getOnlyElement(clazz.getFieldsList());
+        assertEquals(libClass.getHandle(), field.getType().getClazz());
+    }
+
+    @Test
+    public void testMethodCall_importedSummary() throws IOException {
+        ClassType libClass = Iterables.getOnlyElement(extractFromCode(
+                "package lib;\n/** Doc */\npublic class A { public int f(int x) { return x; } }\n").getClassTypes());
+        ClassType summary = TypeUtils.summaryOf(libClass);
+        assertFalse(summary.hasJumpTarget());
+        assertFalse(summary.hasJavaDoc());
+        assertEquals(libClass.getMethods(0).getHandle(), summary.getMethods(0).getHandle());
+
+        FileHandle fakeFile = FileHandle.newBuilder()
+                .setId(101L)
+                .setProject("project")
+                .setPath("/file")
+                .build();
+        String code = "package pkg;\nimport lib.A;\nclass B { void g() { A a; a.f(1); } }\n";
+        FirstPassProcessor.Result result1 = FirstPassProcessor.process(fakeFile, code, ID_GENERATOR);
+        List<ClassType> classes = Lists.newArrayList(summary);
+        classes.addAll(result1.getDiscoveredClasses());
+        SecondPassProcessor.Result result2 = SecondPassProcessor.extract(
+                TEST_PROJECT,
+                fakeFile,
+                code,
+                createSymbolTableAndRegisterClasses(classes),
+                ID_GENERATOR,
+                result1.getPackage());
+        classes = Lists.newArrayList(summary);
+        classes.addAll(result2.getClassTypes());
+        List<Usage> result3 = ThirdPassProcessor.extract(
                 fakeFile,
                 code,
+                createSymbolTableAndRegisterClasses(classes),
+                result1.getPackage(),
                 ID_GENERATOR);
+        Usage usage = findUniqueMethodUsageByKind(result3, MethodUsage.Kind.METHOD_CALL);
+        assertEquals(libClass.getMethods(0).getHandle(), usage.getMethod().getMethod());
+    }
+
+    @Test
+    public void testMethodCall_callSite() throws IOException {
+        ClassType libClass = Iterables.getOnlyElement(extractFromCode(
+                "package lib;\npublic class A { public int f(int x) { return x; } }\n").getClassTypes());
+        ClassType summary = TypeUtils.summaryOf(libClass).toBuilder().clearMethods().build();
+
+        FileHandle fakeFile = FileHandle.newBuilder()
+                .setId(101L)
+                .setProject("project")
+                .setPath("/file")
+                .build();
+        String code = "package pkg;\nimport lib.A;\nclass B { void g() { A a; a.f(1); h(); } void h() {} }\n";
+        CompilationUnit compilationUnit = ParserUtils.parse(code);
+        FirstPassProcessor.Result result1 = FirstPassProcessor.process(fakeFile, compilationUnit, ID_GENERATOR);
+        List<ClassType> classes = Lists.newArrayList(summary);
+        classes.addAll(result1.getDiscoveredClasses());
         SecondPassProcessor.Result result2 = SecondPassProcessor.extract(
                 TEST_PROJECT,
                 fakeFile,
                 code,
-                createSymbolTableAndRegisterClasses(result1.getDiscoveredClasses()),
+                compilationUnit,
+                createSymbolTableAndRegisterClasses(classes),
                 ID_GENERATOR,
                 result1.getPackage());
+        classes = Lists.newArrayList(summary);
+        classes.addAll(result2.getClassTypes());
+        ThirdPassProcessor.Result result3 = ThirdPassProcessor.extractWithCallSites(
+                fakeFile,
+                code,
+                compilationUnit,
+                createSymbolTableAndRegisterClasses(classes),
+                result1.getPackage(),
+                ID_GENERATOR,
+                result2.getClassTypes());
+
+        // The call within the file is resolved, the call into lib.A is deferred.
+        Usage localCall = findUniqueMethodUsageByKind(result3.getUsages(), MethodUsage.Kind.METHOD_CALL);
+        assertEquals("pkg.B.h", localCall.getMethod().getMethod().getName());
+        CallSite callSite = Iterables.getOnlyElement(result3.getCallSites());
+        assertEquals(libClass.getHandle().getId(), callSite.getClazz().getId());
+        Usage usage = ThirdPassProcessor.resolveCallSite(callSite, libClass);
+        assertEquals(libClass.getMethods(0).getHandle(), usage.getMethod().getMethod());
+        assertEquals(fakeFile, usage.getJumpTarget().getFile());
+    }
+
+    @Test
+    public void testStableIds() throws IOException {
+        String code = "package pkg;\nclass A {\n  int f;\n  void m(int x) { int y; }\n  { }\n  { }\n}\n";
+        String editedCode = "package pkg;\n// Comment\nclass B {}\nclass A {\n  void n() {}\n  int f;\n"
+                + "  void m(int x) { int y; }\n  { }\n  { }\n}\n";
+        SecondPassProcessor.Result result = extractFromCode(code, new HashIdGenerator());
+        SecondPassProcessor.Result editedResult = extractFromCode(
+                editedCode, new HashIdGenerator());
+        ClassType clazz = findClassByName(result.getClassTypes(), "pkg.A");
+        ClassType editedClazz = findClassByName(editedResult.getClassTypes(), "pkg.A");
+        assertEquals(clazz.getHandle().getId(), editedClazz.getHandle().getId());
+        assertTrue(HashIdGenerator.isHashed(clazz.getHandle().getId()));
+        assertEquals(clazz.getFields(0).getHandle().getId(), editedClazz.getFields(0).getHandle().getId());
+        assertEquals(methodIds(clazz, "pkg.A.m"), methodIds(editedClazz, "pkg.A.m"));
+        assertEquals(findMethodByName(clazz, "pkg.A.m").getParameters(0).getHandle().getId(),
+                findMethodByName(editedClazz, "pkg.A.m").getParameters(0).getHandle().getId());
+        List<Long> initializerIds = methodIds(clazz, "pkg.A.<cinit>");
+        assertEquals(2, ImmutableSet.copyOf(initializerIds).size());
+        assertEquals(initializerIds, methodIds(editedClazz, "pkg.A.<cinit>"));
+        assertEquals(localVariableId(result.getUsages(), "y"), localVariableId(editedResult.getUsages(), "y"));
+    }
+
+    private static ClassType findClassByName(List<ClassType> classes, String name) {
+        for (ClassType clazz : classes) {
+            if (clazz.getHandle().getName().equals(name)) {
+                return clazz;
+            }
+        }
+        throw new AssertionError("No class " + name);
+    }
+
+    private static Method findMethodByName(ClassType clazz, String name) {
+        for (Method method : clazz.getMethodsList()) {
+            if (method.getHandle().getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new AssertionError("No method " + name);
+    }
+
+    private static List<Long> methodIds(ClassType clazz, String name) {
+        List<Long> ids = Lists.newArrayList();
+        for (Method method : clazz.getMethodsList()) {
+            if (method.getHandle().getName().equals(name)) {
+                ids.add(method.getHandle().getId());
+            }
+        }
+        return ids;
+    }
+
+    private long localVariableId(List<Usage> usages, String name) {
+        for (Usage usage : filterVariableUsagesByKind(usages, VariableUsage.Kind.DECLARATION)) {
+            if (usage.getVariable().getVariable().getName().equals(name)) {
+                return usage.getVariable().getVariable().getId();
+            }
+        }
+        throw new AssertionError("No local variable " + name);
+    }
+
+    public static SecondPassProcessor.Result extractFromCode(String code) throws IOException {
+        return extractFromCode(code, ID_GENERATOR);
+    }
+
+    private static SecondPassProcessor.Result extractFromCode(String code, KeyedIdGenerator idGenerator)
+            throws IOException {
+        FileHandle fakeFile = FileHandle.newBuilder()
+                .setId(100L)
+                .setProject("project")
+                .setPath("/file")
+                .build();
+        // All passes share one AST, like PipelineStages does.
+        CompilationUnit compilationUnit = ParserUtils.parse(code);
+        FirstPassProcessor.Result result1 = FirstPassProcessor.process(
+                fakeFile,
+                compilationUnit,
+                idGenerator);
+        SecondPassProcessor.Result result2 = SecondPassProcessor.extract(
+                TEST_PROJECT,
+                fakeFile,
+                code,
+                compilationUnit,
+                createSymbolTableAndRegisterClasses(result1.getDiscoveredClasses()),
+                idGenerator,
+                result1.getPackage());
         List<Usage> result3 = ThirdPassProcessor.extract(
                 fakeFile,
                 code,
+                compilationUnit,
                 createSymbolTableAndRegisterClasses(result2.getClassTypes()),
                 result1.getPackage(),
-                ID_GENERATOR);
+                idGenerator);
         result2.getUsages().addAll(result3); // temp hack
         return result2;
     }
@@ -0,0 +1,123 @@
+package com.codingstory.polaris.parser;
+
+import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
+import japa.parser.ast.body.TypeDeclaration;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParseBudgetTest {
+
+    private static volatile long spins;
+
+    @Test
+    public void testWithinBudget() throws IOException {
+        CompilationUnit compilationUnit = ParserUtils.parse(classWithFields(2000), ParseBudget.DEFAULT);
+        TypeDeclaration type = compilationUnit.getTypes().get(0);
+        assertEquals(2000, type.getMembers().size());
+    }
+
+    @Test
+    public void testExceeded() throws IOException {
+        try {
+            ParserUtils.parse(classWithFields(2000), new ParseBudget(1, 1));
+            fail();
+        } catch (ParseBudgetExceededException e) {
+            // Expected.
+        }
+        // The parser is usable after an aborted parse.
+        ParserUtils.parse(classWithFields(1));
+    }
+
+    @Test
+    public void testExceededWithoutProgress() throws IOException {
+        try {
+            new ParseBudget(200, Long.MAX_VALUE).run(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (true) {
+                        spins++; // Like a visitor looping on its AST, which checks the budget as it goes.
+                        ParseBudget.checkpoint();
+                    }
+                }
+            });
+            fail();
+        } catch (ParseBudgetExceededException e) {
+            assertTrue(e.getMessage().contains("ms"));
+        }
+    }
+
+    @Test
+    public void testExceededWithoutCheckpoints() throws IOException {
+        try {
+            new ParseBudget(200, Long.MAX_VALUE).run(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    long start = System.currentTimeMillis();
+                    while (System.currentTimeMillis() - start < 400) {
+                        spins++; // Like a parser looping on its lookahead, reading nothing more.
+                    }
+                    return null;
+                }
+            });
+            fail();
+        } catch (ParseBudgetExceededException e) {
+            assertTrue(e.getMessage().contains("ms"));
+        }
+    }
+
+    @Test
+    public void testExceededWhileWaiting() throws IOException {
+        try {
+            new ParseBudget(200, Long.MAX_VALUE).run(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    Thread.sleep(60 * 1000); // Interrupted by the watchdog.
+                    return null;
+                }
+            });
+            fail();
+        } catch (ParseBudgetExceededException e) {
+            assertTrue(e.getMessage().contains("ms"));
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testExceededByAllocation() throws IOException {
+        try {
+            new ParseBudget(60 * 1000, 1 << 20).run(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    List<byte[]> allocated = Lists.newLinkedList();
+                    while (true) {
+                        allocated.add(new byte[1024]);
+                        if (allocated.size() > 1024) {
+                            allocated.remove(0); // Keep the heap small, but allocate on.
+                        }
+                        ParseBudget.checkpoint();
+                    }
+                }
+            });
+            fail();
+        } catch (ParseBudgetExceededException e) {
+            assertTrue(e.getMessage().contains("bytes"));
+        }
+    }
+
+    private static String classWithFields(int n) {
+        StringBuilder source = new StringBuilder("class A {\n");
+        for (int i = 0; i < n; i++) {
+            source.append("int f").append(i).append(";\n");
+        }
+        return source.append("}\n").toString();
+    }
+}
@@ -0,0 +1,117 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.typedb.TypeDb;
+import com.codingstory.polaris.typedb.TypeDbImpl;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.mapred.MiniMRCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Runs {@link IndexPipeline} as MapReduce jobs on a DFS and MapReduce cluster inside the test JVM. */
+public class ClusterIndexPipelineTest {
+    private static MiniDFSCluster dfsCluster;
+    private static MiniMRCluster mrCluster;
+    private static File tempDir;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        tempDir = Files.createTempDir();
+        System.setProperty("hadoop.log.dir", new File(tempDir, "logs").getPath());
+        Configuration conf = new Configuration();
+        System.setProperty("test.build.data", new File(tempDir, "dfs").getPath());
+        dfsCluster = new MiniDFSCluster.Builder(conf).numDataNodes(2).build();
+        mrCluster = new MiniMRCluster(2, dfsCluster.getFileSystem().getUri().toString(), 1);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        if (mrCluster != null) {
+            mrCluster.shutdown();
+        }
+        if (dfsCluster != null) {
+            dfsCluster.shutdown();
+        }
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        File projectDir = new File(tempDir, "project");
+        FileUtils.write(new File(projectDir, "src/com/company/A.java"),
+                "package com.company;\nclass A {\nvoid f() {}\n}");
+        FileUtils.write(new File(projectDir, "src/com/company/B.java"),
+                "package com.company;\nclass B {\nvoid g() {\nA a;\na.f();\n}\n}");
+        File indexDir = new File(tempDir, "index");
+        FileUtils.forceMkdir(indexDir);
+        Path workingDir = new Path("/polaris/work");
+
+        IndexPipeline pipeline = new IndexPipeline(mrCluster.createJobConf());
+        pipeline.addJobJar(jarClassesOf(IndexPipeline.class));
+        pipeline.setWorkingDirectory(workingDir);
+        pipeline.setIndexDirectory(indexDir);
+        pipeline.addProjectDirectory(projectDir);
+        pipeline.run();
+
+        // Intermediate outputs are on the cluster.
+        FileSystem dfs = dfsCluster.getFileSystem();
+        assertTrue(dfs.exists(new Path(workingDir, "stage-2nd-pass")));
+        assertTrue(dfs.exists(new Path(workingDir, "stage-call-sites")));
+        assertFalse(SequenceFiles.listParts(dfs, new Path(workingDir, "out-classes")).isEmpty());
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        try {
+            ClassType classA = Iterables.getOnlyElement(typeDb.getTypeByName("com.company.A", null, 2));
+            assertEquals("com.company.A.f", Iterables.getOnlyElement(classA.getMethodsList()).getHandle().getName());
+            assertEquals(1, Iterables.getOnlyElement(typeDb.getTypeByName("com.company.B", null, 2))
+                    .getMethodsCount());
+        } finally {
+            typeDb.close();
+        }
+        pipeline.cleanUp();
+        assertFalse(dfs.exists(workingDir));
+    }
+
+    /** Packs classes in the directory {@code clazz} is loaded from, which are not in a jar when tests run. */
+    private static File jarClassesOf(Class<?> clazz) throws IOException {
+        File classesDir = new File(clazz.getProtectionDomain().getCodeSource().getLocation().getPath());
+        File jar = new File(tempDir, "polaris-classes.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (File file : FileUtils.listFiles(classesDir, null, true)) {
+                String name = file.getPath().substring(classesDir.getPath().length() + 1).replace('\\', '/');
+                out.putNextEntry(new JarEntry(name));
+                InputStream in = new FileInputStream(file);
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+}
@@ -0,0 +1,53 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeneratedFileSnifferTest {
+
+    @Test
+    public void testGenerators() {
+        assertGenerated("// Generated by the protocol buffer compiler.  DO NOT EDIT!\n// source: a.proto\n");
+        assertGenerated("/**\n * Autogenerated by Thrift Compiler (0.9.0)\n *\n"
+                + " * DO NOT EDIT UNLESS YOU ARE SURE THAT YOU KNOW WHAT YOU ARE DOING\n */\n");
+        assertGenerated("/**\n * Autogenerated by Avro\n * \n * DO NOT EDIT DIRECTLY\n */\n");
+        assertGenerated("// Generated from Expr.g4 by ANTLR 4.5\npackage a;\n");
+        assertGenerated("// $ANTLR 3.5 Expr.g 2013-01-01 00:00:00\npackage a;\n");
+        assertGenerated("// This file was generated by the JavaTM Architecture for XML Binding(JAXB) Reference "
+                + "Implementation\n");
+        assertGenerated("/* Generated By:JavaCC: Do not edit this line. Parser.java */\n");
+    }
+
+    @Test
+    public void testAnnotations() {
+        assertGenerated("package a;\nimport javax.annotation.Generated;\n@Generated(\"x\")\nclass A {}\n");
+        assertGenerated("package a;\n@javax.annotation.processing.Generated(\"x\")\nclass A {}\n");
+        assertGenerated("package a;\n/**\n * @generated\n */\nclass A {}\n");
+    }
+
+    @Test
+    public void testHandWritten() {
+        assertNotGenerated("package a;\nclass A {}\n");
+        assertNotGenerated("package a;\nimport javax.persistence.GeneratedValue;\n"
+                + "class A {\n  @Id @GeneratedValue\n  long id;\n}\n");
+        assertNotGenerated("package a;\nclass A {\n  // Do not edit without updating B as well.\n  int x;\n}\n");
+        assertNotGenerated("package a;\n/** Keeps ids generated by B. */\nclass A {}\n");
+    }
+
+    @Test
+    public void testOnlyHeader() {
+        assertNotGenerated("package a;\nclass A {\n" + Strings.repeat("  int x;\n", 2000) + "  @Generated int y;\n}\n");
+    }
+
+    private static void assertGenerated(String source) {
+        assertTrue(source, GeneratedFileSniffer.isGenerated(source.getBytes(Charsets.UTF_8)));
+    }
+
+    private static void assertNotGenerated(String source) {
+        assertFalse(source, GeneratedFileSniffer.isGenerated(source.getBytes(Charsets.UTF_8)));
+    }
+}
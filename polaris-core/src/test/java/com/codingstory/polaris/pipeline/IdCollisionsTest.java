@@ -0,0 +1,124 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
+import com.codingstory.polaris.parser.ParserProtos.Variable;
+import com.codingstory.polaris.parser.ParserProtos.VariableHandle;
+import com.codingstory.polaris.parser.ParserProtos.VariableUsage;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.codingstory.polaris.parser.TypeUtils.positionOf;
+import static com.codingstory.polaris.parser.TypeUtils.spanOf;
+import static com.codingstory.polaris.parser.TypeUtils.usageOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdCollisionsTest {
+    private static final FileHandle FILE = FileHandle.newBuilder()
+            .setId(1)
+            .setProject("project")
+            .setPath("/A.java")
+            .build();
+
+    private File tempDir;
+    private IdCollisions ids;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDir();
+        Configuration conf = new Configuration();
+        ids = new IdCollisions(FileSystem.getLocal(conf), conf, new Path(tempDir.getPath(), "ids"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ids.close();
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    @Test
+    public void testDifferentEntities() throws IOException {
+        ids.addClass(classOf(100, "A"));
+        ids.addClass(classOf(100, "B"));
+        ids.addClass(classOf(101, "C"));
+        ids.addFile(FileHandle.newBuilder(FILE).setId(101).build());
+        ids.addFile(FILE);
+        assertEquals(ImmutableSet.of(100L, 101L), ids.find(null));
+    }
+
+    @Test
+    public void testSameEntity() throws IOException {
+        JumpTarget declaration = jumpTargetOf(3, 8);
+        ids.addClass(classOf(100, "A").toBuilder()
+                .addFields(Variable.newBuilder()
+                        .setHandle(VariableHandle.newBuilder().setId(200).setName("A.f"))
+                        .setKind(Variable.Kind.FIELD)
+                        .setJumpTarget(declaration))
+                .build());
+        // The field is declared by a usage too.
+        ids.addUsage(usageOf(VariableUsage.newBuilder()
+                .setVariable(VariableHandle.newBuilder().setId(200).setName("A.f"))
+                .setKind(VariableUsage.Kind.DECLARATION)
+                .build(), declaration, "snippet"));
+        // Accesses declare nothing.
+        ids.addUsage(usageOf(VariableUsage.newBuilder()
+                .setVariable(VariableHandle.newBuilder().setId(100).setName("x"))
+                .setKind(VariableUsage.Kind.ACCESS)
+                .build(), jumpTargetOf(5, 4), "snippet"));
+        ids.addFile(FILE);
+        ids.addFile(FILE);
+        assertTrue(ids.find(null).isEmpty());
+    }
+
+    @Test
+    public void testLocalVariables() throws IOException {
+        // Variables named alike in different scopes are different entities.
+        for (int line : new int[] {3, 7}) {
+            ids.addUsage(usageOf(VariableUsage.newBuilder()
+                    .setVariable(VariableHandle.newBuilder().setId(300).setName("i"))
+                    .setKind(VariableUsage.Kind.DECLARATION)
+                    .build(), jumpTargetOf(line, 12), "snippet"));
+        }
+        assertEquals(ImmutableSet.of(300L), ids.find(null));
+    }
+
+    @Test
+    public void testExisting() throws IOException {
+        ids.addClass(classOf(100, "A"));
+        ids.addFile(FILE);
+        assertEquals(ImmutableSet.of(100L), ids.find(new IdCollisions.ExistingIds() {
+            @Override
+            public boolean contains(IdCollisions.Kind kind, long id) {
+                return kind == IdCollisions.Kind.TYPE && id == 100;
+            }
+        }));
+    }
+
+    private static ClassType classOf(long id, String name) {
+        return ClassType.newBuilder()
+                .setHandle(ClassTypeHandle.newBuilder().setId(id).setName(name).setResolved(true))
+                .setKind(ClassType.Kind.CLASS)
+                .setJumpTarget(jumpTargetOf(1, 0))
+                .build();
+    }
+
+    private static JumpTarget jumpTargetOf(int line, int column) {
+        return JumpTarget.newBuilder()
+                .setFile(FILE)
+                .setSpan(spanOf(positionOf(line, column), positionOf(line, column + 1)))
+                .build();
+    }
+}
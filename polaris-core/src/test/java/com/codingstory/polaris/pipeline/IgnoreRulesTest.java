@@ -0,0 +1,73 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IgnoreRulesTest {
+
+    @Test
+    public void testNone() {
+        assertFalse(IgnoreRules.NONE.isIgnored("/src/A.java", false));
+    }
+
+    @Test
+    public void testDirectoryAtAnyDepth() {
+        IgnoreRules rules = rulesOf("# Build outputs", "", "target/");
+        assertTrue(rules.isIgnored("/target/A.java", false));
+        assertTrue(rules.isIgnored("/module/target/gen/A.java", false));
+        assertTrue(rules.isIgnored("/module/target/", true));
+        assertFalse(rules.isIgnored("/src/target", false)); // Not a directory
+        assertFalse(rules.isIgnored("/src/targets/A.java", false));
+    }
+
+    @Test
+    public void testAnchored() {
+        IgnoreRules rules = rulesOf("/build", "src/test/**/fixtures");
+        assertTrue(rules.isIgnored("/build/A.java", false));
+        assertFalse(rules.isIgnored("/src/build/A.java", false));
+        assertTrue(rules.isIgnored("/src/test/fixtures/A.java", false));
+        assertTrue(rules.isIgnored("/src/test/java/a/fixtures/A.java", false));
+        assertFalse(rules.isIgnored("/src/main/fixtures/A.java", false));
+    }
+
+    @Test
+    public void testWildcards() {
+        IgnoreRules rules = rulesOf("*Proto?.java", "Gen[0-9].java");
+        assertTrue(rules.isIgnored("/src/a/PersonProtos.java", false));
+        assertTrue(rules.isIgnored("/Gen1.java", false));
+        assertFalse(rules.isIgnored("/GenX.java", false));
+        assertFalse(rules.isIgnored("/src/a/Person.java", false));
+    }
+
+    @Test
+    public void testNegation() {
+        IgnoreRules rules = rulesOf("*.java", "!Keep.java", "gen/", "!gen/Keep.java");
+        assertTrue(rules.isIgnored("/A.java", false));
+        assertFalse(rules.isIgnored("/a/Keep.java", false));
+        // A file in an excluded directory cannot be included again.
+        assertTrue(rules.isIgnored("/gen/Keep.java", false));
+    }
+
+    @Test
+    public void testLaterRulesTakePrecedence() {
+        IgnoreRules rules = rulesOf("generated/").with(ImmutableList.of("!generated/"));
+        assertFalse(rules.isIgnored("/generated/A.java", false));
+    }
+
+    @Test
+    public void testFingerprint() {
+        String fingerprint = rulesOf("gen/", "*.txt").fingerprint();
+        assertEquals(fingerprint, rulesOf("# Generated", "gen/", "", "  *.txt  ").fingerprint());
+        assertFalse(fingerprint.equals(rulesOf("*.txt", "gen/").fingerprint()));
+        assertFalse(fingerprint.equals(rulesOf("gen/").fingerprint()));
+        assertFalse(IgnoreRules.NONE.fingerprint().equals(rulesOf("gen/").fingerprint()));
+    }
+
+    private static IgnoreRules rulesOf(String... lines) {
+        return IgnoreRules.NONE.with(ImmutableList.copyOf(lines));
+    }
+}
@@ -0,0 +1,120 @@
+package com.codingstory.polaris.pipeline;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.time.StopWatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compares wall-clock time of indexing engines. Not a unit test, run it by hand:
+ *
+ * <pre>
+ *   IndexPipelineBenchmark [project-dir..]
+ * </pre>
+ *
+ * Without arguments, it generates synthetic corpora: one using explicit imports, and one using wildcard imports
+ * only, which stresses resolution of wildcard imports.
+ */
+public class IndexPipelineBenchmark {
+
+    private static final int PACKAGES = 50;
+    private static final int FILES_PER_PACKAGE = 40;
+    private static final int WILDCARD_IMPORTS_PER_FILE = 5;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            List<File> projects = Lists.newArrayList();
+            for (String arg : args) {
+                projects.add(new File(arg));
+            }
+            runAllEngines("given", projects);
+            return;
+        }
+        File corpus = Files.createTempDir();
+        try {
+            runAllEngines("explicit", ImmutableList.of(generateCorpus(new File(corpus, "synthetic"), false)));
+            runAllEngines("wildcard", ImmutableList.of(generateCorpus(new File(corpus, "wildcard"), true)));
+        } finally {
+            FileUtils.deleteQuietly(corpus);
+        }
+    }
+
+    private static void runAllEngines(String corpus, List<File> projects) throws IOException {
+        for (IndexPipeline.Engine engine : IndexPipeline.Engine.values()) {
+            long millis = runOnce(engine, projects);
+            System.out.println(String.format("%-10s %-10s %8d ms", corpus, engine, millis));
+        }
+    }
+
+    private static long runOnce(IndexPipeline.Engine engine, List<File> projects) throws IOException {
+        File indexDir = Files.createTempDir();
+        IndexPipeline pipeline = new IndexPipeline();
+        try {
+            pipeline.setEngine(engine);
+            pipeline.setIndexDirectory(indexDir);
+            for (File project : projects) {
+                pipeline.addProjectDirectory(project);
+            }
+            StopWatch stopWatch = new StopWatch();
+            stopWatch.start();
+            pipeline.run();
+            return stopWatch.getTime();
+        } finally {
+            pipeline.cleanUp();
+            FileUtils.deleteQuietly(indexDir);
+        }
+    }
+
+    /**
+     * Generates classes which reference each other by imports and by same-package access. With
+     * {@code wildcardImports}, every file imports several whole packages and refers to a class of each by its
+     * simple name.
+     */
+    static File generateCorpus(File root, boolean wildcardImports) throws IOException {
+        for (int p = 0; p < PACKAGES; p++) {
+            for (int f = 0; f < FILES_PER_PACKAGE; f++) {
+                String pkg = "pkg" + p;
+                String other = "pkg" + ((p + 1) % PACKAGES);
+                StringBuilder imports = new StringBuilder();
+                StringBuilder fields = new StringBuilder();
+                if (wildcardImports) {
+                    for (int i = 1; i <= WILDCARD_IMPORTS_PER_FILE; i++) {
+                        String imported = "pkg" + ((p + i) % PACKAGES);
+                        imports.append("import ").append(imported).append(".*;\n");
+                        fields.append("    private D").append(i).append("x").append((p + i) % PACKAGES)
+                                .append(" d").append(i).append(";\n");
+                    }
+                    if (f == 0) {
+                        // Give each package classes only reachable by wildcard imports.
+                        for (int i = 1; i <= WILDCARD_IMPORTS_PER_FILE; i++) {
+                            FileUtils.write(new File(root, "src/" + pkg + "/D" + i + "x" + p + ".java"),
+                                    "package " + pkg + ";\npublic class D" + i + "x" + p + " {}\n");
+                        }
+                    }
+                } else {
+                    imports.append("import ").append(other).append(".C").append(f).append(";\n");
+                }
+                String source = "package " + pkg + ";\n" +
+                        imports +
+                        "public class C" + f + " {\n" +
+                        fields +
+                        "    private " + other + ".C" + f + " next;\n" +
+                        "    private C" + ((f + 1) % FILES_PER_PACKAGE) + " sibling;\n" +
+                        "    public int f(int x) { return x + 1; }\n" +
+                        "    public void g() {\n" +
+                        "        C" + f + " c = new C" + f + "();\n" +
+                        "        c.f(1);\n" +
+                        "        sibling.g();\n" +
+                        "    }\n" +
+                        "}\n";
+                FileUtils.write(new File(root, "src/" + pkg + "/C" + f + ".java"), source);
+            }
+        }
+        return root;
+    }
+}
@@ -0,0 +1,58 @@
+package com.codingstory.polaris.pipeline;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResourcePlanTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testLocal() {
+        // Concurrent partitions share the budget, since their tasks run in this JVM.
+        ResourcePlan plan = ResourcePlan.forBudget(1024 * MB, true, 2, 4);
+        Configuration conf = new Configuration(false);
+        plan.applyTo(conf);
+        assertEquals(128, conf.getInt("io.sort.mb", 0));
+        assertEquals(64, conf.getInt("io.sort.factor", 0));
+        assertEquals(0.3f, conf.getFloat("mapreduce.reduce.shuffle.input.buffer.percent", 0), 0.001f);
+        assertNull(conf.get("mapreduce.map.java.opts"));
+        assertEquals(4096, plan.getShardBatchSize());
+        assertTrue(plan.fitsInMemory(12 * MB));
+        assertFalse(plan.fitsInMemory(13 * MB));
+    }
+
+    @Test
+    public void testCluster() {
+        // The budget is the heap of each task.
+        ResourcePlan plan = ResourcePlan.forBudget(4096 * MB, false, 4, 8);
+        Configuration conf = new Configuration(false);
+        plan.applyTo(conf);
+        assertEquals(1024, conf.getInt("io.sort.mb", 0));
+        assertEquals(100, conf.getInt("io.sort.factor", 0));
+        assertEquals(0.6f, conf.getFloat("mapreduce.reduce.shuffle.input.buffer.percent", 0), 0.001f);
+        for (String task : new String[] {"map", "reduce"}) {
+            assertEquals("-Xmx4096m", conf.get("mapreduce." + task + ".java.opts"));
+            assertEquals(4096 + 256, conf.getInt("mapreduce." + task + ".memory.mb", 0));
+        }
+    }
+
+    @Test
+    public void testSmallBudget() {
+        ResourcePlan plan = ResourcePlan.forBudget(16 * MB, true, 1, 1);
+        Configuration conf = new Configuration(false);
+        plan.applyTo(conf);
+        assertEquals(16, conf.getInt("io.sort.mb", 0));
+        assertEquals(10, conf.getInt("io.sort.factor", 0));
+        assertEquals(256, plan.getShardBatchSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoBudget() {
+        ResourcePlan.forBudget(0, true, 1, 1);
+    }
+}
@@ -0,0 +1,198 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Compares time and bytes allocated to write and read pipeline records by copying each record into a fresh array,
+ * against reusing buffers with {@link SequenceFiles}. Not a unit test, run it by hand:
+ *
+ * <pre>
+ *   SequenceFileRecordsBenchmark [records]
+ * </pre>
+ */
+public class SequenceFileRecordsBenchmark {
+
+    private static final int DEFAULT_RECORDS = 200000;
+    private static final String CONTENT = Strings.repeat("public class C { int f(int x) { return x + 1; } }\n", 40);
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RECORDS;
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File dir = Files.createTempDir();
+        try {
+            Path copied = new Path(dir.getPath(), "copied");
+            Path reused = new Path(dir.getPath(), "reused");
+            // Once to warm up, once to measure.
+            for (int round = 0; round < 2; round++) {
+                boolean print = round > 0;
+                measure(print, "write", "copying", new WriteByCopying(fs, conf, copied, records));
+                measure(print, "write", "reusing", new WriteByReusing(fs, conf, reused, records));
+                measure(print, "read", "copying", new ReadByCopying(fs, conf, copied));
+                measure(print, "read", "reusing", new ReadByReusing(fs, conf, reused));
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static void measure(boolean print, String operation, String approach, Run run) throws IOException {
+        System.gc();
+        long allocated = allocatedBytes();
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        run.run();
+        long millis = stopWatch.getTime();
+        allocated = allocatedBytes() - allocated;
+        if (print) {
+            System.out.println(String.format("%-6s %-8s %8d ms %10d KB allocated",
+                    operation, approach, millis, allocated / 1024));
+        }
+    }
+
+    private static FileContent newRecord(int i) {
+        return FileContent.newBuilder()
+                .setFile(FileHandle.newBuilder()
+                        .setId(i)
+                        .setProject("benchmark")
+                        .setPath("/src/pkg/C" + i + ".java"))
+                .setContent(CONTENT)
+                .build();
+    }
+
+    private static class WriteByCopying implements Run {
+        private final FileSystem fs;
+        private final Configuration conf;
+        private final Path file;
+        private final int records;
+
+        WriteByCopying(FileSystem fs, Configuration conf, Path file, int records) {
+            this.fs = fs;
+            this.conf = conf;
+            this.file = file;
+            this.records = records;
+        }
+
+        @Override
+        public void run() throws IOException {
+            SequenceFile.Writer w = SequenceFile.createWriter(fs, conf, file,
+                    NullWritable.class, BytesWritable.class);
+            try {
+                for (int i = 0; i < records; i++) {
+                    w.append(NullWritable.get(), new BytesWritable(newRecord(i).toByteArray()));
+                }
+            } finally {
+                w.close();
+            }
+        }
+    }
+
+    private static class WriteByReusing implements Run {
+        private final FileSystem fs;
+        private final Configuration conf;
+        private final Path file;
+        private final int records;
+
+        WriteByReusing(FileSystem fs, Configuration conf, Path file, int records) {
+            this.fs = fs;
+            this.conf = conf;
+            this.file = file;
+            this.records = records;
+        }
+
+        @Override
+        public void run() throws IOException {
+            SequenceFiles.Writer w = SequenceFiles.createWriter(fs, conf, file);
+            try {
+                for (int i = 0; i < records; i++) {
+                    w.append(newRecord(i));
+                }
+            } finally {
+                w.close();
+            }
+        }
+    }
+
+    private static class ReadByCopying implements Run {
+        private final FileSystem fs;
+        private final Configuration conf;
+        private final Path file;
+
+        ReadByCopying(FileSystem fs, Configuration conf, Path file) {
+            this.fs = fs;
+            this.conf = conf;
+            this.file = file;
+        }
+
+        @Override
+        public void run() throws IOException {
+            SequenceFile.Reader r = new SequenceFile.Reader(fs, file, conf);
+            try {
+                BytesWritable value = new BytesWritable();
+                while (r.next(NullWritable.get(), value)) {
+                    FileContent.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
+                }
+            } finally {
+                r.close();
+            }
+        }
+    }
+
+    private static class ReadByReusing implements Run {
+        private final FileSystem fs;
+        private final Configuration conf;
+        private final Path file;
+
+        ReadByReusing(FileSystem fs, Configuration conf, Path file) {
+            this.fs = fs;
+            this.conf = conf;
+            this.file = file;
+        }
+
+        @Override
+        public void run() throws IOException {
+            SequenceFile.Reader r = new SequenceFile.Reader(fs, file, conf);
+            try {
+                BytesWritable value = new BytesWritable();
+                while (SequenceFiles.next(r, value, FileContent.getDefaultInstance()) != null) {
+                    // Only parsed.
+                }
+            } finally {
+                r.close();
+            }
+        }
+    }
+
+    /** @return bytes allocated by the current thread so far, or 0 if the JVM does not measure it */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (hotSpot.isThreadAllocatedMemorySupported() && hotSpot.isThreadAllocatedMemoryEnabled()) {
+                return hotSpot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,132 @@
+package com.codingstory.polaris.repo;
+
+import com.codingstory.polaris.HashUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static com.codingstory.polaris.TestUtils.assertEqualsIgnoreOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GitUtilsTest {
+    private File tempDir;
+
+    @Before
+    public void setUp() {
+        tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+    }
+
+    @Test
+    public void testWalkHeadTree() throws Exception {
+        File workTree = new File(tempDir, "repo");
+        FileUtils.write(new File(workTree, "src/A.java"), "class A {}");
+        FileUtils.write(new File(workTree, "README"), "readme");
+        FileUtils.write(new File(workTree, ".hidden/B.java"), "class B {}");
+        Git git = Git.init().setDirectory(workTree).call();
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage("Initial commit").call();
+        FileUtils.write(new File(workTree, "src/C.java"), "class C {}"); // Not committed
+
+        RecordingVisitor visitor = new RecordingVisitor();
+        String head = GitUtils.walkHeadTree(new Repository("repo", workTree.getPath()), visitor);
+        assertEquals(git.getRepository().resolve("HEAD").name(), head);
+        assertEqualsIgnoreOrder(ImmutableList.of("/", "/src/"), visitor.dirs);
+        assertEquals(ImmutableMap.of("/src/A.java", "class A {}", "/README", "readme"), visitor.files);
+        assertTrue(visitor.deleted.isEmpty());
+    }
+
+    @Test
+    public void testWalkHeadTreeSince() throws Exception {
+        File workTree = new File(tempDir, "repo");
+        FileUtils.write(new File(workTree, "src/A.java"), "class A {}");
+        FileUtils.write(new File(workTree, "src/B.java"), "class B {}");
+        FileUtils.write(new File(workTree, "old/C.java"), "class C {}");
+        Git git = Git.init().setDirectory(workTree).call();
+        git.add().addFilepattern(".").call();
+        String base = git.commit().setMessage("Initial commit").call().getId().name();
+        FileUtils.write(new File(workTree, "src/A.java"), "class A { int a; }");
+        FileUtils.write(new File(workTree, "new/D.java"), "class D {}");
+        git.add().addFilepattern(".").call();
+        git.rm().addFilepattern("old/C.java").call();
+        git.commit().setMessage("Second commit").call();
+
+        Repository repo = new Repository("repo", workTree.getPath());
+        RecordingVisitor visitor = new RecordingVisitor();
+        assertNotNull(GitUtils.walkHeadTreeSince(repo, base, visitor));
+        assertEqualsIgnoreOrder(ImmutableList.of("/src/", "/new/"), visitor.dirs);
+        assertEquals(ImmutableMap.of("/src/A.java", "class A { int a; }", "/new/D.java", "class D {}"),
+                visitor.files);
+        assertEqualsIgnoreOrder(ImmutableList.of("/old/C.java", "/old/"), visitor.deleted);
+
+        assertNull(GitUtils.walkHeadTreeSince(repo, "0123456789012345678901234567890123456789", visitor));
+    }
+
+    @Test
+    public void testWalkTreeOfRefs() throws Exception {
+        File workTree = new File(tempDir, "repo");
+        FileUtils.write(new File(workTree, "src/A.java"), "class A {}");
+        Git git = Git.init().setDirectory(workTree).call();
+        git.add().addFilepattern(".").call();
+        String release = git.commit().setMessage("Initial commit").call().getId().name();
+        git.branchCreate().setName("release/1.0").call();
+        git.tag().setName("v1.0").setMessage("Release 1.0").call(); // Annotated
+        FileUtils.write(new File(workTree, "src/A.java"), "class A { int a; }");
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage("Second commit").call();
+
+        Repository repo = new Repository("repo", workTree.getPath(), ImmutableList.of("release/1.0", "v1.0"));
+        for (String ref : repo.getRefs()) {
+            RecordingVisitor visitor = new RecordingVisitor();
+            assertEquals(release, GitUtils.walkTree(repo, ref, visitor));
+            assertEquals(ImmutableMap.of("/src/A.java", "class A {}"), visitor.files);
+        }
+        RecordingVisitor visitor = new RecordingVisitor();
+        assertNotNull(GitUtils.walkTreeSince(repo, "HEAD", release, visitor));
+        assertEquals(ImmutableMap.of("/src/A.java", "class A { int a; }"), visitor.files);
+        assertNull(GitUtils.walkTree(repo, "nosuchbranch", new RecordingVisitor()));
+
+        assertEquals("repo", repo.getProject("HEAD"));
+        assertEquals("repo@release-1.0", repo.getProject("refs/heads/release/1.0"));
+        assertEquals("repo@v1.0", repo.getProject("v1.0"));
+    }
+
+    private static class RecordingVisitor implements GitUtils.TreeVisitor {
+        private final List<String> dirs = Lists.newArrayList();
+        private final Map<String, String> files = Maps.newHashMap();
+        private final List<String> deleted = Lists.newArrayList();
+
+        @Override
+        public void visitDirectory(String path) {
+            dirs.add(path);
+        }
+
+        @Override
+        public void visitFile(String path, ObjectId blobId, ObjectReader reader) throws IOException {
+            String content = new String(reader.open(blobId).getBytes());
+            assertEquals(HashUtils.gitBlobHash(content.getBytes()), blobId.name());
+            files.put(path, content);
+        }
+
+        @Override
+        public void visitDeleted(String path) {
+            deleted.add(path);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
 import com.codingstory.polaris.search.SearchProtos.Hit;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
 import org.junit.Before;
 import org.junit.Test;
@@ -46,6 +47,27 @@ public class SourceDbTest {
         assertNull(r.querySourceByPath(TEST_PROJECT, "/nosuchfile"));
     }
 
+    @Test
+    public void testAlias() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        long canonical = writeFile(w, "/dir1/a", "hello");
+        FileHandle alias = FileHandle.newBuilder()
+                .setId(ID_GENERATOR.next())
+                .setProject("OtherProject")
+                .setPath("/dir2/a")
+                .build();
+        w.writeAlias(alias, canonical);
+        w.close();
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        SourceFile source = r.querySourceById(alias.getId());
+        assertEquals(alias, source.getHandle());
+        assertEquals("hello", source.getSource());
+        assertEquals(alias, r.querySourceByPath("OtherProject", "/dir2/a").getHandle());
+        assertEquals(ImmutableList.of(alias), r.listDirectory("OtherProject", "/dir2").getFiles());
+        assertEquals(1, r.query("hello", 10).size()); // Content is stored once.
+    }
+
     @Test
     public void testListDirectory() throws IOException {
         SourceDbWriter w = new SourceDbWriterImpl(tempDir);
@@ -109,11 +131,42 @@ public class SourceDbTest {
         assertEquals(2, hits.size());
     }
 
+    @Test
+    public void testQuery_project() throws IOException {
+        String branch = "TestProject@release-1.0";
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        long canonical = writeFile(w, "/a", "hello");
+        FileHandle alias = FileHandle.newBuilder()
+                .setId(ID_GENERATOR.next())
+                .setProject(branch)
+                .setPath("/a")
+                .build();
+        w.writeAlias(alias, canonical);
+        long changed = writeFile(w, branch, "/b", "hello world");
+        w.close();
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        assertEquals(2, r.query("hello", 10).size());
+        List<Hit> hits = r.query("hello", TEST_PROJECT, 10);
+        assertEquals(1, hits.size());
+        assertEquals(canonical, hits.get(0).getJumpTarget().getFile().getId());
+        hits = r.query("hello", branch, 10);
+        assertEquals(2, hits.size());
+        assertEquals(ImmutableSet.of(alias.getId(), changed), ImmutableSet.of(
+                hits.get(0).getJumpTarget().getFile().getId(),
+                hits.get(1).getJumpTarget().getFile().getId()));
+        assertEquals("hello world", r.querySourceByPath(branch, "/b").getSource());
+    }
+
     private long writeFile(SourceDbWriter w, String path, String content) throws IOException {
+        return writeFile(w, TEST_PROJECT, path, content);
+    }
+
+    private long writeFile(SourceDbWriter w, String project, String path, String content) throws IOException {
         long fileId = ID_GENERATOR.next();
         FileHandle f = FileHandle.newBuilder()
                 .setId(fileId)
-                .setProject(TEST_PROJECT)
+                .setProject(project)
                 .setPath(path)
                 .build();
         SourceFile source = SourceFile.newBuilder()
@@ -2,6 +2,7 @@ package com.codingstory.polaris.typedb;
 
 import com.codingstory.polaris.IdGenerator;
 import com.codingstory.polaris.SimpleIdGenerator;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.Variable;
@@ -73,6 +74,25 @@ public class TypeDbTest {
         r.close();
     }
 
+    @Test
+    public void testWriteAll_concurrently() throws IOException {
+        List<ClassType> types = Lists.newArrayList();
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            types.add(createEmptyClass("MyClass" + i));
+        }
+        TypeDbWriter w = new TypeDbWriterImpl(tempDir, IndexWriterOptions.defaults().setThreads(4));
+        w.writeAll(types);
+        w.close();
+        TypeDb r = new TypeDbImpl(tempDir);
+        for (ClassType type : types) {
+            ClassType result = r.getTypeById(type.getHandle().getId());
+            assertNotNull(result);
+            assertEquals(type.getHandle(), result.getHandle());
+        }
+        r.close();
+    }
+
     @Test
     public void testGetTypeById_notFound() throws IOException {
         new TypeDbWriterImpl(tempDir).close();
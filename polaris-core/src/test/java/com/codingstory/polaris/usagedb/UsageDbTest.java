@@ -6,6 +6,7 @@ import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.TypeUsage;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.parser.TypeUtils;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import org.junit.Before;
@@ -22,6 +23,7 @@ import static com.codingstory.polaris.parser.TypeUtils.positionOf;
 import static com.codingstory.polaris.parser.TypeUtils.spanOf;
 import static com.codingstory.polaris.parser.TypeUtils.usageOf;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class UsageDbTest {
     private static final String TEST_PROJECT = "TestProject";
@@ -82,4 +84,20 @@ public class UsageDbTest {
         assertEquals(usage2.getJumpTarget(), usages.get(1).getJumpTarget());
         r.close();
     }
+
+    @Test
+    public void testUnresolvedNames() throws IOException {
+        UsageDbWriter w = new UsageDbWriterImpl(tempDir);
+        w.writeUnresolvedName(200L, "MyClass");
+        w.writeUnresolvedName(300L, "MyClass");
+        w.writeUnresolvedName(300L, "OtherClass");
+        w.deleteFile(300L);
+        w.writeUnresolvedName(400L, "MyClass");
+        w.close();
+        UsageDb r = new UsageDbImpl(tempDir);
+        assertEquals(ImmutableSet.of(200L, 400L), r.findFilesWithUnresolvedName("MyClass"));
+        assertTrue(r.findFilesWithUnresolvedName("OtherClass").isEmpty());
+        assertTrue(r.query(Usage.Kind.TYPE, 200L).isEmpty());
+        r.close();
+    }
 }